@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ベンチマークを実行するクラスです。
+ * <p>
+ * 引数を指定しない場合は、全てのベンチマークをアロケーションの計測（GCプロファイラ）付きで実行します。
+ * 引数を指定した場合は、JMHのコマンドラインオプションとして扱います（例：SetContentBenchmark -prof gc）。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class BenchmarkRunner {
+
+    /**
+     * ベンチマークを実行します。
+     *
+     * @param args
+     *            JMHのコマンドラインオプション
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            Main.main(args);
+            return;
+        }
+        runAll();
+    }
+
+    /**
+     * 全てのベンチマークを、アロケーションの計測付きで実行します。
+     *
+     * @throws RunnerException
+     */
+    private static void runAll() throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include("com\\.szmslab\\.quickjavamail\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
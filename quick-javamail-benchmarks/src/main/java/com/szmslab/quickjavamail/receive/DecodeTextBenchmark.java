@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.szmslab.quickjavamail.utils.MailUtil;
+
+/**
+ * MailUtil#decodeTextによるエンコードされたヘッダのデコードのベンチマークです。
+ *
+ * @author szmslab
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecodeTextBenchmark {
+
+    /**
+     * エンコード方式（B：BASE64、Q：Quoted-Printable、NONE：エンコードなし）。
+     */
+    @Param({"B", "Q", "NONE"})
+    public String encoding;
+
+    /**
+     * 文字セット。
+     */
+    @Param({"ISO-2022-JP", "UTF-8"})
+    public String charset;
+
+    /**
+     * デコードする文字列。
+     */
+    private String encodedText;
+
+    /**
+     * デコードする文字列を作成します。
+     *
+     * @throws UnsupportedEncodingException
+     */
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        String text = "【重要】第3四半期の会議資料について（ご確認のお願い）Re: Fw: quick-javamail";
+        encodedText = "NONE".equals(encoding) ? text : MimeUtility.encodeText(text, charset, encoding);
+    }
+
+    /**
+     * 文字列をデコードします。
+     *
+     * @return デコードした文字列
+     * @throws UnsupportedEncodingException
+     */
+    @Benchmark
+    public String decodeText() throws UnsupportedEncodingException {
+        return MailUtil.decodeText(encodedText);
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+
+/**
+ * ベンチマーク用のメールを生成するクラスです。
+ * <p>
+ * 乱数の種を固定しているため、毎回同じ内容のメールが生成されます。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class MailCorpus {
+
+    /**
+     * 件名、ファイル名に使用する日本語の文字列。
+     */
+    private static final String[] JAPANESE_WORDS = {
+        "お知らせ", "会議資料", "見積書", "請求書", "議事録", "ご案内", "進捗報告", "第3四半期"
+    };
+
+    /**
+     * メールの種類です。
+     *
+     * @author szmslab
+     */
+    public enum Kind {
+
+        /**
+         * text/plain（件名、差出人、宛先が日本語のエンコードされたヘッダ）
+         */
+        ENCODED_WORD_HEADERS,
+
+        /**
+         * multipart/mixed（multipart/alternative（text/plain、multipart/related）、添付ファイル）の入れ子構造
+         */
+        NESTED_MULTIPART,
+
+        /**
+         * multipart/alternative（text/plain、multipart/related（text/html、インライン画像×3））
+         */
+        INLINE_IMAGES,
+
+        /**
+         * multipart/mixed（text/plain、Content-Transfer-Encodingがbase64のmessage/rfc822）
+         */
+        RFC822_BASE64,
+
+        /**
+         * message/partial（分割メールの1通目）
+         */
+        PARTIAL
+
+    }
+
+    /**
+     * セッション。
+     */
+    private final Session session = Session.getInstance(new Properties());
+
+    /**
+     * 乱数。
+     */
+    private final Random random;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param seed
+     *            乱数の種
+     */
+    public MailCorpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * 指定した種類のメールを生成します。
+     *
+     * @param kind
+     *            メールの種類
+     * @param count
+     *            生成する件数
+     * @return シリアライズしたメールのリスト
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public List<byte[]> generate(Kind kind, int count) throws MessagingException, IOException {
+        List<byte[]> list = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            list.add(toBytes(create(kind, i)));
+        }
+        return list;
+    }
+
+    /**
+     * 全ての種類のメールを生成し、EMLファイルとして出力します。
+     *
+     * @param directory
+     *            出力先のディレクトリ
+     * @param countPerKind
+     *            種類ごとに生成する件数
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public void export(File directory, int countPerKind) throws MessagingException, IOException {
+        directory.mkdirs();
+        for (Kind kind : Kind.values()) {
+            List<byte[]> list = generate(kind, countPerKind);
+            for (int i = 0; i < list.size(); i++) {
+                OutputStream os = new FileOutputStream(new File(directory, String.format("%s-%04d.eml", kind.name().toLowerCase(), i)));
+                try {
+                    os.write(list.get(i));
+                } finally {
+                    os.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定した種類のメッセージを作成します。
+     *
+     * @param kind
+     *            メールの種類
+     * @param index
+     *            通番
+     * @return メッセージ
+     * @throws MessagingException
+     * @throws IOException
+     */
+    MimeMessage create(Kind kind, int index) throws MessagingException, IOException {
+        MimeMessage message = createHeaders(index);
+        switch (kind) {
+        case ENCODED_WORD_HEADERS:
+            message.setText(createText(16), "ISO-2022-JP");
+            break;
+        case NESTED_MULTIPART:
+            MimeMultipart mixed = new MimeMultipart("mixed");
+            mixed.addBodyPart(wrap(createAlternative(1)));
+            mixed.addBodyPart(createAttachment(createWord() + ".pdf", "application/pdf", 64 * 1024));
+            mixed.addBodyPart(createAttachment(createWord() + ".xlsx", "application/octet-stream", 16 * 1024));
+            message.setContent(mixed);
+            break;
+        case INLINE_IMAGES:
+            message.setContent(createAlternative(3));
+            break;
+        case RFC822_BASE64:
+            MimeMultipart withRfc822 = new MimeMultipart("mixed");
+            withRfc822.addBodyPart(createTextPart(createText(8)));
+            withRfc822.addBodyPart(createBase64Rfc822Part(createHeaders(index + 1)));
+            message.setContent(withRfc822);
+            break;
+        case PARTIAL:
+            MimeMessage whole = createHeaders(index);
+            whole.setText(createText(256), "ISO-2022-JP");
+            byte[] wholeBytes = toBytes(whole);
+            byte[] fragment = new byte[wholeBytes.length / 2];
+            System.arraycopy(wholeBytes, 0, fragment, 0, fragment.length);
+            message.setDataHandler(new DataHandler(new ByteArrayDataSource(fragment,
+                    "message/partial; id=\"partial." + index + "@example.com\"; number=1; total=2")));
+            break;
+        default:
+            throw new IllegalArgumentException(kind.name());
+        }
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * 日本語のエンコードされたヘッダを持つメッセージを作成します。
+     *
+     * @param index
+     *            通番
+     * @return メッセージ
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private MimeMessage createHeaders(int index) throws MessagingException, IOException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("from" + index + "@example.com", "差出人 " + createWord(), "ISO-2022-JP"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("to@example.com", "宛先 " + createWord(), "UTF-8"));
+        message.setRecipient(Message.RecipientType.CC, new InternetAddress("cc@example.com", createWord(), "ISO-2022-JP"));
+        message.setSubject("【" + createWord() + "】" + createWord() + "について（" + index + "）", "ISO-2022-JP");
+        message.setHeader("X-Mailer", "quick-javamail-benchmarks");
+        return message;
+    }
+
+    /**
+     * multipart/alternative（text/plain、text/htmlまたはmultipart/related）を作成します。
+     *
+     * @param imageCount
+     *            インライン画像の数
+     * @return マルチパート
+     * @throws MessagingException
+     * @throws UnsupportedEncodingException
+     */
+    private MimeMultipart createAlternative(int imageCount) throws MessagingException, UnsupportedEncodingException {
+        StringBuilder html = new StringBuilder("<html><body><p>").append(createText(8)).append("</p>");
+        for (int i = 0; i < imageCount; i++) {
+            html.append("<img src=\"cid:image").append(i).append("\">");
+        }
+        html.append("</body></html>");
+        MimeBodyPart htmlPart = new MimeBodyPart();
+        htmlPart.setText(html.toString(), "UTF-8", "html");
+
+        MimeMultipart related = new MimeMultipart("related");
+        related.addBodyPart(htmlPart);
+        for (int i = 0; i < imageCount; i++) {
+            MimeBodyPart imagePart = new MimeBodyPart();
+            imagePart.setDataHandler(new DataHandler(new ByteArrayDataSource(createBytes(8 * 1024), "image/png")));
+            imagePart.setFileName(MimeUtility.encodeWord(createWord() + i + ".png", "ISO-2022-JP", "B"));
+            imagePart.setDisposition(Part.INLINE);
+            imagePart.setContentID("<image" + i + ">");
+            related.addBodyPart(imagePart);
+        }
+
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(createTextPart(createText(8)));
+        alternative.addBodyPart(wrap(related));
+        return alternative;
+    }
+
+    /**
+     * text/plainのパートを作成します。
+     *
+     * @param text
+     *            本文
+     * @return パート
+     * @throws MessagingException
+     */
+    private MimeBodyPart createTextPart(String text) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setText(text, "ISO-2022-JP");
+        return part;
+    }
+
+    /**
+     * 添付ファイルのパートを作成します（ファイル名は日本語のエンコードされた値）。
+     *
+     * @param fileName
+     *            ファイル名
+     * @param contentType
+     *            Content-Type
+     * @param size
+     *            サイズ（バイト）
+     * @return パート
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private MimeBodyPart createAttachment(String fileName, String contentType, int size)
+            throws MessagingException, IOException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(createBytes(size), contentType)));
+        part.setFileName(MimeUtility.encodeWord(fileName, "ISO-2022-JP", "B"));
+        part.setDisposition(Part.ATTACHMENT);
+        return part;
+    }
+
+    /**
+     * Content-Transfer-Encodingがbase64のmessage/rfc822のパートを作成します。
+     *
+     * @param attachedMessage
+     *            添付するメッセージ
+     * @return パート
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private MimeBodyPart createBase64Rfc822Part(MimeMessage attachedMessage) throws MessagingException, IOException {
+        attachedMessage.setText(createText(32), "ISO-2022-JP");
+        attachedMessage.saveChanges();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = MimeUtility.encode(baos, "base64");
+        os.write(toBytes(attachedMessage));
+        os.flush();
+
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", "message/rfc822");
+        headers.setHeader("Content-Transfer-Encoding", "base64");
+        headers.setHeader("Content-Disposition", "attachment");
+        return new MimeBodyPart(headers, baos.toByteArray());
+    }
+
+    /**
+     * マルチパートをパートで包みます。
+     *
+     * @param multipart
+     *            マルチパート
+     * @return パート
+     * @throws MessagingException
+     */
+    private MimeBodyPart wrap(MimeMultipart multipart) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setContent(multipart);
+        return part;
+    }
+
+    /**
+     * 日本語の本文を作成します。
+     *
+     * @param lines
+     *            行数
+     * @return 本文
+     */
+    private String createText(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append(createWord()).append("の件、").append(createWord()).append("をご確認ください。\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 日本語の単語を選択します。
+     *
+     * @return 単語
+     */
+    private String createWord() {
+        return JAPANESE_WORDS[random.nextInt(JAPANESE_WORDS.length)];
+    }
+
+    /**
+     * 乱数のバイト列を作成します。
+     *
+     * @param size
+     *            サイズ（バイト）
+     * @return バイト列
+     */
+    private byte[] createBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * メッセージをシリアライズします。
+     *
+     * @param message
+     *            メッセージ
+     * @return シリアライズしたメッセージ
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private static byte[] toBytes(MimeMessage message) throws MessagingException, IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        message.writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * 全ての種類のメールを生成し、EMLファイルとして出力します。
+     *
+     * @param args
+     *            出力先のディレクトリ、種類ごとに生成する件数（省略時は10）
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MailCorpus <directory> [countPerKind]");
+            return;
+        }
+        new MailCorpus(1L).export(new File(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : 10);
+    }
+
+}
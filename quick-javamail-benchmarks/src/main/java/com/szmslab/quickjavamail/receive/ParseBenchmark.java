@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * MessageLoaderによる受信メールの解析のベンチマークです。
+ * <p>
+ * 1回の操作で1通のメールを解析するため、GCプロファイラのgc.alloc.rate.normが1通あたりのアロケーション量になります。
+ * </p>
+ *
+ * @author szmslab
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    /**
+     * 種類ごとに生成するメールの件数。
+     */
+    private static final int CORPUS_SIZE = 32;
+
+    /**
+     * メールの種類。
+     */
+    @Param({"ENCODED_WORD_HEADERS", "NESTED_MULTIPART", "INLINE_IMAGES", "RFC822_BASE64", "PARTIAL"})
+    public MailCorpus.Kind kind;
+
+    /**
+     * セッション。
+     */
+    private Session session;
+
+    /**
+     * シリアライズしたメール。
+     */
+    private List<byte[]> corpus;
+
+    /**
+     * 次に解析するメールのインデックス。
+     */
+    private int index = 0;
+
+    /**
+     * メールを生成します。
+     *
+     * @throws MessagingException
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws MessagingException, IOException {
+        session = Session.getInstance(new Properties());
+        corpus = new MailCorpus(1L).generate(kind, CORPUS_SIZE);
+    }
+
+    /**
+     * メールのヘッダと内容（本文、添付ファイル、インライン画像ファイル）を解析します。
+     *
+     * @param bh
+     *            Blackhole
+     * @throws MessagingException
+     * @throws IOException
+     */
+    @Benchmark
+    public void load(Blackhole bh) throws MessagingException, IOException {
+        MessageLoader loader = new MessageLoader(nextMessage());
+        bh.consume(loader.getSubject());
+        bh.consume(loader.getFromAddressList());
+        bh.consume(loader.getToAddressList());
+        bh.consume(loader.getSentDate());
+        if (loader.isPartial()) {
+            bh.consume(loader.getPartialContent());
+        } else {
+            bh.consume(loader.getText());
+            bh.consume(loader.getHtml());
+            bh.consume(loader.getAttachmentFileList());
+            bh.consume(loader.getInlineImageFileList());
+        }
+    }
+
+    /**
+     * メールのヘッダのみを解析します。
+     *
+     * @param bh
+     *            Blackhole
+     * @throws MessagingException
+     */
+    @Benchmark
+    public void loadHeaders(Blackhole bh) throws MessagingException {
+        MessageLoader loader = new MessageLoader(nextMessage());
+        bh.consume(loader.getSubject());
+        bh.consume(loader.getFromAddressList());
+        bh.consume(loader.getToAddressList());
+        bh.consume(loader.getHeaders());
+    }
+
+    /**
+     * 次のメールを作成します。
+     *
+     * @return メッセージ
+     * @throws MessagingException
+     */
+    private MimeMessage nextMessage() throws MessagingException {
+        byte[] bytes = corpus.get(index);
+        index = (index + 1) % corpus.size();
+        return new MimeMessage(session, new SharedByteArrayInputStream(bytes));
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.mail.util.ByteArrayDataSource;
+
+import com.szmslab.quickjavamail.utils.AttachmentFile;
+import com.szmslab.quickjavamail.utils.InlineImageFile;
+import com.szmslab.quickjavamail.utils.MailAddress;
+
+/**
+ * ベンチマーク用のメールを作成するクラスです。
+ *
+ * @author szmslab
+ */
+public class BenchmarkMails {
+
+    /**
+     * 本文の繰り返し単位。
+     */
+    private static final String TEXT_UNIT = "お世話になっております。quick-javamailのベンチマーク用の本文です。\r\n";
+
+    /**
+     * 本文の繰り返し回数（約4KB）。
+     */
+    private static final int TEXT_REPEAT = 64;
+
+    /**
+     * メッセージの構造です（MailSender#setContentの6通りの構造に対応します）。
+     *
+     * @author szmslab
+     */
+    public enum Layout {
+
+        /**
+         * text/plain
+         */
+        PLAIN(false, false, false),
+
+        /**
+         * multipart/mixed（text/plain、添付ファイル）
+         */
+        MIXED(false, true, false),
+
+        /**
+         * multipart/alternative（text/plain、text/html）
+         */
+        ALTERNATIVE(true, false, false),
+
+        /**
+         * multipart/alternative（text/plain、multipart/related）
+         */
+        ALTERNATIVE_RELATED(true, false, true),
+
+        /**
+         * multipart/mixed（multipart/alternative、添付ファイル）
+         */
+        MIXED_ALTERNATIVE(true, true, false),
+
+        /**
+         * multipart/mixed（multipart/alternative（text/plain、multipart/related）、添付ファイル）
+         */
+        MIXED_ALTERNATIVE_RELATED(true, true, true);
+
+        /**
+         * 本文(HTML)を含むかどうか。
+         */
+        private final boolean hasHtml;
+
+        /**
+         * 添付ファイルを含むかどうか。
+         */
+        private final boolean hasAttachment;
+
+        /**
+         * インライン画像ファイルを含むかどうか。
+         */
+        private final boolean hasImage;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param hasHtml
+         *            本文(HTML)を含むかどうか
+         * @param hasAttachment
+         *            添付ファイルを含むかどうか
+         * @param hasImage
+         *            インライン画像ファイルを含むかどうか
+         */
+        private Layout(boolean hasHtml, boolean hasAttachment, boolean hasImage) {
+            this.hasHtml = hasHtml;
+            this.hasAttachment = hasAttachment;
+            this.hasImage = hasImage;
+        }
+
+    }
+
+    /**
+     * ベンチマーク用のメールを作成します。
+     *
+     * @param layout
+     *            メッセージの構造
+     * @param charset
+     *            文字セット（ISO-2022-JP、UTF-8）
+     * @param attachmentSize
+     *            添付ファイルのサイズ（バイト）
+     * @return メール
+     */
+    public static MailSender create(Layout layout, String charset, int attachmentSize) {
+        SmtpProperties properties = new SmtpProperties();
+        properties.host("localhost").port("25");
+
+        MailSender sender = new MailSender(properties)
+                .useDefaultSession(false)
+                .charset(charset, "ISO-2022-JP".equalsIgnoreCase(charset) ? "7bit" : "base64")
+                .from(new MailAddress("from@example.com", "差出人"))
+                .to(new MailAddress("to@example.com", "宛先"))
+                .cc(new MailAddress("cc@example.com"))
+                .subject("ベンチマーク用の件名です")
+                .text(createText());
+        if (layout.hasHtml) {
+            sender.html("<html><body><p>" + createText().replace("\r\n", "<br>") + "</p>"
+                    + (layout.hasImage ? "<img src=\"cid:image1\">" : "") + "</body></html>");
+        }
+        if (layout.hasAttachment) {
+            sender.attachmentFiles(new AttachmentFile("添付ファイル.bin",
+                    new ByteArrayDataSource(createBytes(attachmentSize, 1), "application/octet-stream")));
+        }
+        if (layout.hasImage) {
+            sender.inlineImageFiles(new InlineImageFile("image1", "image1.png",
+                    new ByteArrayDataSource(createBytes(8 * 1024, 2), "image/png")));
+        }
+        return sender;
+    }
+
+    /**
+     * 本文を作成します。
+     *
+     * @return 本文
+     */
+    static String createText() {
+        StringBuilder sb = new StringBuilder(TEXT_UNIT.length() * TEXT_REPEAT);
+        for (int i = 0; i < TEXT_REPEAT; i++) {
+            sb.append(TEXT_UNIT);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 乱数のバイト列を作成します（毎回同じ内容になります）。
+     *
+     * @param size
+     *            サイズ（バイト）
+     * @param seed
+     *            乱数の種
+     * @return バイト列
+     */
+    static byte[] createBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * 書き出したバイト数を数え、内容を破棄する出力ストリームです。
+     *
+     * @author szmslab
+     */
+    public static class CountingNullOutputStream extends OutputStream {
+
+        /**
+         * 書き出したバイト数。
+         */
+        private long count = 0;
+
+        /* (非 Javadoc)
+         * @see java.io.OutputStream#write(int)
+         */
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        /* (非 Javadoc)
+         * @see java.io.OutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        /**
+         * 書き出したバイト数を取得します。
+         *
+         * @return 書き出したバイト数
+         */
+        public long getCount() {
+            return count;
+        }
+
+    }
+
+}
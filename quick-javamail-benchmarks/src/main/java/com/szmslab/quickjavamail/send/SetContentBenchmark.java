@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MailSenderのメッセージ作成（setContentの6通りの構造）のベンチマークです。
+ *
+ * @author szmslab
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetContentBenchmark {
+
+    /**
+     * メッセージの構造。
+     */
+    @Param({"PLAIN", "MIXED", "ALTERNATIVE", "ALTERNATIVE_RELATED", "MIXED_ALTERNATIVE", "MIXED_ALTERNATIVE_RELATED"})
+    public BenchmarkMails.Layout layout;
+
+    /**
+     * 文字セット。
+     */
+    @Param({"ISO-2022-JP", "UTF-8"})
+    public String charset;
+
+    /**
+     * 送信するメール。
+     */
+    private MailSender sender;
+
+    /**
+     * セッション。
+     */
+    private Session session;
+
+    /**
+     * メールを作成します。
+     */
+    @Setup
+    public void setup() {
+        sender = BenchmarkMails.create(layout, charset, 16 * 1024);
+        session = sender.createSession();
+    }
+
+    /**
+     * メッセージを作成します（ヘッダは確定させません）。
+     *
+     * @return メッセージ
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    @Benchmark
+    public MimeMessage createMessage() throws UnsupportedEncodingException, MessagingException {
+        return sender.createMessage(session);
+    }
+
+    /**
+     * メッセージを作成し、ヘッダを確定させます（Content-Transfer-Encodingの判定を含みます）。
+     *
+     * @return メッセージ
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    @Benchmark
+    public MimeMessage createMessageAndSaveChanges() throws UnsupportedEncodingException, MessagingException {
+        MimeMessage message = sender.createMessage(session);
+        message.saveChanges();
+        return message;
+    }
+
+}
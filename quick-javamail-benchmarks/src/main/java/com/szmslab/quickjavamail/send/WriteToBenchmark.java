@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MimeMessage#writeToによるメッセージの書き出しのベンチマークです。
+ * <p>
+ * 添付ファイルのサイズと文字セットごとに、作成済みのメッセージの書き出しと、
+ * 作成から書き出しまで（送信時の処理と同等）を計測します。
+ * </p>
+ *
+ * @author szmslab
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteToBenchmark {
+
+    /**
+     * 添付ファイルのサイズ（バイト）。
+     */
+    @Param({"1024", "102400", "1048576", "10485760"})
+    public int attachmentSize;
+
+    /**
+     * 文字セット。
+     */
+    @Param({"ISO-2022-JP", "UTF-8"})
+    public String charset;
+
+    /**
+     * 送信するメール。
+     */
+    private MailSender sender;
+
+    /**
+     * セッション。
+     */
+    private Session session;
+
+    /**
+     * 作成済みのメッセージ。
+     */
+    private MimeMessage message;
+
+    /**
+     * シリアライズ済みのメッセージ。
+     */
+    private SerializedMimeMessage serializedMessage;
+
+    /**
+     * メールとメッセージを作成します。
+     *
+     * @throws IOException
+     * @throws MessagingException
+     */
+    @Setup
+    public void setup() throws IOException, MessagingException {
+        sender = BenchmarkMails.create(BenchmarkMails.Layout.MIXED_ALTERNATIVE, charset, attachmentSize);
+        session = sender.createSession();
+        message = sender.createMessage(session);
+        message.saveChanges();
+        serializedMessage = SerializedMimeMessage.serialize(sender.createMessage(session));
+    }
+
+    /**
+     * 作成済みのメッセージを書き出します（添付ファイルのエンコードを含みます）。
+     *
+     * @return 書き出したバイト数
+     * @throws IOException
+     * @throws MessagingException
+     */
+    @Benchmark
+    public long writeTo() throws IOException, MessagingException {
+        BenchmarkMails.CountingNullOutputStream out = new BenchmarkMails.CountingNullOutputStream();
+        message.writeTo(out);
+        return out.getCount();
+    }
+
+    /**
+     * シリアライズ済みのメッセージを書き出します（再エンコードを行いません）。
+     *
+     * @return 書き出したバイト数
+     * @throws IOException
+     * @throws MessagingException
+     */
+    @Benchmark
+    public long writeToSerialized() throws IOException, MessagingException {
+        BenchmarkMails.CountingNullOutputStream out = new BenchmarkMails.CountingNullOutputStream();
+        serializedMessage.writeTo(out);
+        return out.getCount();
+    }
+
+    /**
+     * メッセージを作成し、書き出します。
+     *
+     * @return 書き出したバイト数
+     * @throws IOException
+     * @throws MessagingException
+     */
+    @Benchmark
+    public long createAndWriteTo() throws IOException, MessagingException {
+        MimeMessage newMessage = sender.createMessage(session);
+        newMessage.saveChanges();
+        BenchmarkMails.CountingNullOutputStream out = new BenchmarkMails.CountingNullOutputStream();
+        newMessage.writeTo(out);
+        return out.getCount();
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 接続ごとにスレッドを割り当てる、プロセス内で動作するサーバの基底クラスです。
+ *
+ * @author szmslab
+ */
+public abstract class AbstractServer {
+
+    /**
+     * 待ち受けるポート番号（0の場合は空いているポート番号）。
+     */
+    private int port = 0;
+
+    /**
+     * サーバソケット。
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * 接続中のクライアント。
+     */
+    private final Set<ProtocolConnection> connectionSet =
+            Collections.synchronizedSet(new HashSet<ProtocolConnection>());
+
+    /**
+     * 接続数。
+     */
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+
+    /**
+     * 待ち受けるポート番号を設定します。
+     *
+     * @param port
+     *            ポート番号（0の場合は空いているポート番号）
+     * @return 自身のインスタンス
+     */
+    public AbstractServer port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * サーバを開始します。
+     *
+     * @return 自身のインスタンス
+     * @throws IOException
+     */
+    public synchronized AbstractServer start() throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException(getName() + " is already started");
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 100);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, getName() + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    /**
+     * サーバを停止し、接続中のクライアントを切断します。
+     */
+    public synchronized void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            serverSocket = null;
+        }
+        synchronized (connectionSet) {
+            for (ProtocolConnection connection : connectionSet) {
+                connection.close();
+            }
+            connectionSet.clear();
+        }
+    }
+
+    /**
+     * 待ち受けているポート番号を取得します。
+     *
+     * @return ポート番号
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? port : serverSocket.getLocalPort();
+    }
+
+    /**
+     * 接続数を取得します。
+     *
+     * @return 接続数
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * サーバの名前（スレッド名に使用します）を取得します。
+     *
+     * @return サーバの名前
+     */
+    protected String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * 接続を処理します。
+     *
+     * @param connection
+     *            接続
+     * @throws Exception
+     */
+    abstract void handle(ProtocolConnection connection) throws Exception;
+
+    /**
+     * 接続を受け付け、接続ごとにスレッドを開始します。
+     */
+    private void acceptLoop() {
+        ServerSocket ss;
+        synchronized (this) {
+            ss = serverSocket;
+        }
+        while (ss != null && !ss.isClosed()) {
+            final Socket socket;
+            try {
+                socket = ss.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ProtocolConnection connection = null;
+                    try {
+                        socket.setTcpNoDelay(true);
+                        connection = new ProtocolConnection(socket);
+                        connectionSet.add(connection);
+                        handle(connection);
+                    } catch (Exception e) {
+                        // クライアントの切断、サーバの停止によるエラーは無視する。
+                    } finally {
+                        if (connection != null) {
+                            connectionSet.remove(connection);
+                            connection.close();
+                        } else {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // 無視する。
+                            }
+                        }
+                    }
+                }
+            }, getName() + "-" + connectionCount.get());
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * 指定した時間待機します（割り込まれた場合は割り込み状態を戻して終了します）。
+     *
+     * @param millis
+     *            待機時間（ミリ秒）
+     */
+    static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
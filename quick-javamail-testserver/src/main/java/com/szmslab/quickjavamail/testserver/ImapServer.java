@@ -0,0 +1,886 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import javax.mail.MessagingException;
+
+import com.szmslab.quickjavamail.testserver.MailDirectory.Entry;
+
+/**
+ * {@link MailDirectory}のEMLファイルを配信する、負荷試験用のIMAPサーバです。
+ * <p>
+ * メールボックスはINBOXのみです。認証（LOGIN）は、全てのユーザを受け付けます。
+ * FETCH（ENVELOPE、BODYSTRUCTURE、部分取得を含むBODY[セクション]）、STORE、EXPUNGE、SEARCH（フラグとUIDのみ）、
+ * およびIDLE（メールボックスに追加されたメッセージをEXISTSで通知します）に対応しています。
+ * 対応していない検索条件はNOで応答するため、JavaMailはクライアント側で検索します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class ImapServer extends AbstractServer {
+
+    /**
+     * サーバの機能。
+     */
+    private static final String CAPABILITY = "IMAP4rev1 IDLE UIDPLUS UNSELECT";
+
+    /**
+     * 対応しているフラグ。
+     */
+    private static final String FLAGS = "(\\Answered \\Flagged \\Deleted \\Seen \\Draft)";
+
+    /**
+     * メールボックス名。
+     */
+    private static final String INBOX = "INBOX";
+
+    /**
+     * メールボックス。
+     */
+    private final MailDirectory mailDirectory;
+
+    /**
+     * コマンドの応答の遅延（ミリ秒）。
+     */
+    private volatile long commandLatency = 0;
+
+    /**
+     * IDLE中にメールボックスを確認する間隔（ミリ秒）。
+     */
+    private volatile int idleInterval = 200;
+
+    /**
+     * 解析済みのMIMEの構造。
+     */
+    private final Map<Entry, MimeStructure> structureMap =
+            Collections.synchronizedMap(new WeakHashMap<Entry, MimeStructure>());
+
+    /**
+     * コンストラクタです。
+     *
+     * @param mailDirectory
+     *            メールボックス
+     */
+    public ImapServer(MailDirectory mailDirectory) {
+        this.mailDirectory = mailDirectory;
+    }
+
+    /**
+     * コマンドの応答の遅延を設定します。
+     *
+     * @param commandLatency
+     *            コマンドの応答の遅延（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public ImapServer latency(long commandLatency) {
+        this.commandLatency = commandLatency;
+        return this;
+    }
+
+    /**
+     * IDLE中にメールボックスを確認する間隔を設定します。
+     *
+     * @param idleInterval
+     *            IDLE中にメールボックスを確認する間隔（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public ImapServer idleInterval(int idleInterval) {
+        this.idleInterval = idleInterval;
+        return this;
+    }
+
+    /**
+     * メールボックスを取得します。
+     *
+     * @return メールボックス
+     */
+    public MailDirectory getMailDirectory() {
+        return mailDirectory;
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.testserver.AbstractServer#handle(com.szmslab.quickjavamail.testserver.ProtocolConnection)
+     */
+    @Override
+    void handle(ProtocolConnection connection) throws Exception {
+        new ImapSession(connection).run();
+    }
+
+    /**
+     * メッセージのMIMEの構造を取得します。
+     *
+     * @param entry
+     *            メッセージ
+     * @return MIMEの構造
+     * @throws IOException
+     * @throws MessagingException
+     */
+    private MimeStructure getStructure(Entry entry) throws IOException, MessagingException {
+        MimeStructure structure = structureMap.get(entry);
+        if (structure == null) {
+            structure = MimeStructure.parse(entry.getContent());
+            structureMap.put(entry, structure);
+        }
+        return structure;
+    }
+
+    /**
+     * 1接続分のIMAPのセッションです。
+     *
+     * @author szmslab
+     */
+    private class ImapSession {
+
+        /**
+         * 接続。
+         */
+        private final ProtocolConnection connection;
+
+        /**
+         * INTERNALDATEの形式。
+         */
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.ENGLISH);
+
+        /**
+         * 認証済みかどうか。
+         */
+        private boolean isAuthenticated = false;
+
+        /**
+         * 選択中のメールボックスのメッセージ（メッセージ番号の順。選択していない場合はnull）。
+         */
+        private List<Entry> view;
+
+        /**
+         * 読み取り専用で選択したかどうか。
+         */
+        private boolean isReadOnly = false;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param connection
+         *            接続
+         */
+        ImapSession(ProtocolConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * コマンドを処理します。
+         *
+         * @throws Exception
+         */
+        void run() throws Exception {
+            connection.writeLine("* OK [CAPABILITY " + CAPABILITY + "] quick-javamail ImapServer ready");
+            String line;
+            while ((line = readCommand()) != null) {
+                List<String> args = tokenize(line);
+                if (args.size() < 2) {
+                    connection.writeLine((args.isEmpty() ? "*" : args.get(0)) + " BAD Missing command");
+                    continue;
+                }
+                String tag = args.get(0);
+                String command = args.get(1).toUpperCase(Locale.ENGLISH);
+                boolean isUid = false;
+                if ("UID".equals(command) && args.size() > 2) {
+                    isUid = true;
+                    command = args.get(2).toUpperCase(Locale.ENGLISH);
+                    args = args.subList(1, args.size());
+                }
+                args = args.subList(2, args.size());
+                sleep(commandLatency);
+                if (!execute(tag, command, args, isUid)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * コマンドを実行します。
+         *
+         * @param tag
+         *            タグ
+         * @param command
+         *            コマンド
+         * @param args
+         *            引数
+         * @param isUid
+         *            UIDコマンドかどうか
+         * @return セッションを継続するかどうか
+         * @throws Exception
+         */
+        private boolean execute(String tag, String command, List<String> args, boolean isUid) throws Exception {
+            if ("CAPABILITY".equals(command)) {
+                connection.writeLine("* CAPABILITY " + CAPABILITY);
+                ok(tag, command);
+            } else if ("NOOP".equals(command) || "CHECK".equals(command)) {
+                synchronizeView();
+                ok(tag, command);
+            } else if ("LOGOUT".equals(command)) {
+                connection.writeLine("* BYE quick-javamail ImapServer logging out");
+                ok(tag, command);
+                return false;
+            } else if ("LOGIN".equals(command) || "AUTHENTICATE".equals(command)) {
+                if ("AUTHENTICATE".equals(command)) {
+                    connection.writeLine("+ ");
+                    connection.readLine();
+                }
+                isAuthenticated = true;
+                connection.writeLine(tag + " OK [CAPABILITY " + CAPABILITY + "] " + command + " completed");
+            } else if (!isAuthenticated) {
+                connection.writeLine(tag + " NO Not authenticated");
+            } else if ("SELECT".equals(command) || "EXAMINE".equals(command)) {
+                select(tag, command, args);
+            } else if ("LIST".equals(command) || "LSUB".equals(command)) {
+                list(tag, command, args);
+            } else if ("STATUS".equals(command)) {
+                status(tag, args);
+            } else if ("CREATE".equals(command) || "DELETE".equals(command) || "RENAME".equals(command)
+                    || "APPEND".equals(command)) {
+                connection.writeLine(tag + " NO " + command + " is not supported");
+            } else if ("SUBSCRIBE".equals(command) || "UNSUBSCRIBE".equals(command)) {
+                ok(tag, command);
+            } else if (view == null) {
+                connection.writeLine(tag + " NO No mailbox selected");
+            } else if ("FETCH".equals(command)) {
+                fetch(tag, args, isUid);
+            } else if ("STORE".equals(command)) {
+                store(tag, args, isUid);
+            } else if ("SEARCH".equals(command)) {
+                search(tag, args, isUid);
+            } else if ("EXPUNGE".equals(command)) {
+                expunge();
+                synchronizeView();
+                ok(tag, command);
+            } else if ("CLOSE".equals(command) || "UNSELECT".equals(command)) {
+                if ("CLOSE".equals(command)) {
+                    expunge();
+                }
+                view = null;
+                ok(tag, command);
+            } else if ("IDLE".equals(command)) {
+                idle(tag);
+            } else {
+                connection.writeLine(tag + " BAD Command not recognized");
+            }
+            return true;
+        }
+
+        /**
+         * メールボックスを選択します（SELECT、EXAMINE）。
+         *
+         * @param tag
+         *            タグ
+         * @param command
+         *            コマンド
+         * @param args
+         *            引数
+         * @throws IOException
+         */
+        private void select(String tag, String command, List<String> args) throws IOException {
+            view = null;
+            if (args.isEmpty() || !INBOX.equalsIgnoreCase(args.get(0))) {
+                connection.writeLine(tag + " NO Mailbox does not exist");
+                return;
+            }
+            mailDirectory.refresh();
+            view = mailDirectory.getEntries();
+            isReadOnly = "EXAMINE".equals(command);
+            connection.write("* FLAGS " + FLAGS + "\r\n");
+            connection.write("* OK [PERMANENTFLAGS " + (isReadOnly ? "()" : FLAGS.replace(")", " \\*)")) + "]\r\n");
+            connection.write("* " + view.size() + " EXISTS\r\n");
+            connection.write("* 0 RECENT\r\n");
+            connection.write("* OK [UIDVALIDITY " + mailDirectory.getUidValidity() + "]\r\n");
+            connection.write("* OK [UIDNEXT " + mailDirectory.getNextUid() + "]\r\n");
+            connection.writeLine(tag + " OK [" + (isReadOnly ? "READ-ONLY" : "READ-WRITE") + "] " + command
+                    + " completed");
+        }
+
+        /**
+         * メールボックスの一覧を応答します（LIST、LSUB）。
+         *
+         * @param tag
+         *            タグ
+         * @param command
+         *            コマンド
+         * @param args
+         *            引数
+         * @throws IOException
+         */
+        private void list(String tag, String command, List<String> args) throws IOException {
+            String pattern = args.size() > 1 ? args.get(1) : "";
+            if (pattern.length() == 0) {
+                connection.write("* " + command + " (\\Noselect) \"/\" \"\"\r\n");
+            } else {
+                String regex = pattern.replace("*", ".*").replace("%", "[^/]*");
+                if (INBOX.matches("(?i)" + regex)) {
+                    connection.write("* " + command + " (\\HasNoChildren) \"/\" " + INBOX + "\r\n");
+                }
+            }
+            ok(tag, command);
+        }
+
+        /**
+         * メールボックスの状態を応答します（STATUS）。
+         *
+         * @param tag
+         *            タグ
+         * @param args
+         *            引数
+         * @throws IOException
+         */
+        private void status(String tag, List<String> args) throws IOException {
+            if (args.size() < 2 || !INBOX.equalsIgnoreCase(args.get(0))) {
+                connection.writeLine(tag + " NO Mailbox does not exist");
+                return;
+            }
+            mailDirectory.refresh();
+            List<Entry> entryList = mailDirectory.getEntries();
+            StringBuilder sb = new StringBuilder();
+            for (String item : tokenize(unwrap(args.get(1)))) {
+                String name = item.toUpperCase(Locale.ENGLISH);
+                long value;
+                if ("MESSAGES".equals(name)) {
+                    value = entryList.size();
+                } else if ("UIDNEXT".equals(name)) {
+                    value = mailDirectory.getNextUid();
+                } else if ("UIDVALIDITY".equals(name)) {
+                    value = mailDirectory.getUidValidity();
+                } else if ("UNSEEN".equals(name)) {
+                    value = 0;
+                    for (Entry entry : entryList) {
+                        if (!entry.hasFlag(Entry.SEEN)) {
+                            value++;
+                        }
+                    }
+                } else if ("RECENT".equals(name)) {
+                    value = 0;
+                } else {
+                    continue;
+                }
+                sb.append(sb.length() == 0 ? "" : " ").append(name).append(' ').append(value);
+            }
+            connection.write("* STATUS " + INBOX + " (" + sb + ")\r\n");
+            ok(tag, "STATUS");
+        }
+
+        /**
+         * メッセージを取得します（FETCH、UID FETCH）。
+         *
+         * @param tag
+         *            タグ
+         * @param args
+         *            引数
+         * @param isUid
+         *            UIDコマンドかどうか
+         * @throws Exception
+         */
+        private void fetch(String tag, List<String> args, boolean isUid) throws Exception {
+            if (args.size() < 2) {
+                connection.writeLine(tag + " BAD Missing arguments");
+                return;
+            }
+            List<String> itemList = new ArrayList<String>();
+            for (String item : tokenize(unwrap(args.get(1)))) {
+                String name = item.toUpperCase(Locale.ENGLISH);
+                if ("ALL".equals(name) || "FAST".equals(name) || "FULL".equals(name)) {
+                    itemList.addAll(Arrays.asList("FLAGS", "INTERNALDATE", "RFC822.SIZE"));
+                    if (!"FAST".equals(name)) {
+                        itemList.add("ENVELOPE");
+                    }
+                    if ("FULL".equals(name)) {
+                        itemList.add("BODY");
+                    }
+                } else {
+                    itemList.add(item);
+                }
+            }
+            if (isUid && !containsIgnoreCase(itemList, "UID")) {
+                itemList.add(0, "UID");
+            }
+
+            for (int index : parseSequenceSet(args.get(0), isUid)) {
+                Entry entry = view.get(index);
+                connection.write("* " + (index + 1) + " FETCH (");
+                boolean isFirst = true;
+                boolean isFlagsWritten = false;
+                boolean isSeenChanged = false;
+                for (String item : itemList) {
+                    if (!isFirst) {
+                        connection.write(" ");
+                    }
+                    isFirst = false;
+                    String name = item.toUpperCase(Locale.ENGLISH);
+                    if ("UID".equals(name)) {
+                        connection.write("UID " + entry.getUid());
+                    } else if ("FLAGS".equals(name)) {
+                        connection.write("FLAGS " + flags(entry));
+                        isFlagsWritten = true;
+                    } else if ("INTERNALDATE".equals(name)) {
+                        connection.write("INTERNALDATE \"" + dateFormat.format(new Date(entry.getInternalDate())) + "\"");
+                    } else if ("RFC822.SIZE".equals(name)) {
+                        connection.write("RFC822.SIZE " + entry.getSize());
+                    } else if ("ENVELOPE".equals(name)) {
+                        connection.write("ENVELOPE " + getStructure(entry).toEnvelope());
+                    } else if ("BODYSTRUCTURE".equals(name) || "BODY".equals(name)) {
+                        connection.write(name + " " + getStructure(entry).toBodyStructure());
+                    } else if ("RFC822".equals(name) || "RFC822.HEADER".equals(name) || "RFC822.TEXT".equals(name)) {
+                        String section = "RFC822".equals(name) ? "" : name.substring(7);
+                        writeLiteral(name, getStructure(entry).getSection(section));
+                        isSeenChanged |= !"RFC822.HEADER".equals(name) && markSeen(entry);
+                    } else if (name.startsWith("BODY[") || name.startsWith("BODY.PEEK[")) {
+                        int open = item.indexOf('[');
+                        int close = item.lastIndexOf(']');
+                        String section = item.substring(open + 1, close);
+                        byte[] content = getStructure(entry).getSection(section);
+                        String responseName = "BODY[" + section + "]";
+                        if (content != null && close + 1 < item.length() && item.charAt(close + 1) == '<') {
+                            String[] partial = item.substring(close + 2, item.length() - 1).split("\\.");
+                            int origin = Math.min(Integer.parseInt(partial[0]), content.length);
+                            int length = partial.length > 1 ? Integer.parseInt(partial[1]) : content.length;
+                            content = Arrays.copyOfRange(content, origin, Math.min(content.length, origin + length));
+                            responseName += "<" + origin + ">";
+                        }
+                        writeLiteral(responseName, content);
+                        isSeenChanged |= name.startsWith("BODY[") && markSeen(entry);
+                    } else {
+                        connection.write(name + " NIL");
+                    }
+                }
+                if (isSeenChanged && !isFlagsWritten) {
+                    connection.write(" FLAGS " + flags(entry));
+                }
+                connection.write(")\r\n");
+            }
+            ok(tag, (isUid ? "UID " : "") + "FETCH");
+        }
+
+        /**
+         * フラグを変更します（STORE、UID STORE）。
+         *
+         * @param tag
+         *            タグ
+         * @param args
+         *            引数
+         * @param isUid
+         *            UIDコマンドかどうか
+         * @throws IOException
+         */
+        private void store(String tag, List<String> args, boolean isUid) throws IOException {
+            if (args.size() < 3) {
+                connection.writeLine(tag + " BAD Missing arguments");
+                return;
+            }
+            if (isReadOnly) {
+                connection.writeLine(tag + " NO Mailbox is read-only");
+                return;
+            }
+            String operation = args.get(1).toUpperCase(Locale.ENGLISH);
+            boolean isSilent = operation.endsWith(".SILENT");
+            Set<String> flagSet = new LinkedHashSet<String>();
+            for (String flag : tokenize(unwrap(args.get(2)))) {
+                flagSet.add(normalizeFlag(flag));
+            }
+            for (int index : parseSequenceSet(args.get(0), isUid)) {
+                Entry entry = view.get(index);
+                if (operation.startsWith("+")) {
+                    for (String flag : flagSet) {
+                        entry.addFlag(flag);
+                    }
+                } else if (operation.startsWith("-")) {
+                    for (String flag : flagSet) {
+                        entry.removeFlag(flag);
+                    }
+                } else {
+                    entry.setFlags(flagSet);
+                }
+                if (!isSilent) {
+                    connection.write("* " + (index + 1) + " FETCH (" + (isUid ? "UID " + entry.getUid() + " " : "")
+                            + "FLAGS " + flags(entry) + ")\r\n");
+                }
+            }
+            ok(tag, (isUid ? "UID " : "") + "STORE");
+        }
+
+        /**
+         * メッセージを検索します（SEARCH、UID SEARCH）。
+         * <p>
+         * ALL、SEEN、UNSEEN、DELETED、UNDELETED、FLAGGED、UNFLAGGED、UID、および、メッセージ番号の範囲のみに対応します。
+         * </p>
+         *
+         * @param tag
+         *            タグ
+         * @param args
+         *            引数
+         * @param isUid
+         *            UIDコマンドかどうか
+         * @throws IOException
+         */
+        private void search(String tag, List<String> args, boolean isUid) throws IOException {
+            Set<Integer> resultSet = new TreeSet<Integer>();
+            for (int i = 0; i < view.size(); i++) {
+                resultSet.add(i);
+            }
+            for (int i = 0; i < args.size(); i++) {
+                String key = args.get(i).toUpperCase(Locale.ENGLISH);
+                if ("CHARSET".equals(key)) {
+                    i++;
+                } else if ("ALL".equals(key)) {
+                    continue;
+                } else if ("SEEN".equals(key) || "UNSEEN".equals(key)) {
+                    retainFlag(resultSet, Entry.SEEN, "SEEN".equals(key));
+                } else if ("DELETED".equals(key) || "UNDELETED".equals(key)) {
+                    retainFlag(resultSet, Entry.DELETED, "DELETED".equals(key));
+                } else if ("FLAGGED".equals(key) || "UNFLAGGED".equals(key)) {
+                    retainFlag(resultSet, "\\Flagged", "FLAGGED".equals(key));
+                } else if ("UID".equals(key) && i + 1 < args.size()) {
+                    resultSet.retainAll(parseSequenceSet(args.get(++i), true));
+                } else if (Character.isDigit(key.charAt(0)) || key.charAt(0) == '*') {
+                    resultSet.retainAll(parseSequenceSet(key, false));
+                } else {
+                    connection.writeLine(tag + " NO Unsupported search criteria: " + key);
+                    return;
+                }
+            }
+            StringBuilder sb = new StringBuilder("* SEARCH");
+            for (int index : resultSet) {
+                sb.append(' ').append(isUid ? view.get(index).getUid() : index + 1);
+            }
+            connection.write(sb.append("\r\n").toString());
+            ok(tag, (isUid ? "UID " : "") + "SEARCH");
+        }
+
+        /**
+         * 削除フラグを持つメッセージを削除します。
+         */
+        private void expunge() {
+            if (isReadOnly) {
+                return;
+            }
+            List<Entry> deletedList = new ArrayList<Entry>();
+            for (Entry entry : view) {
+                if (entry.hasFlag(Entry.DELETED)) {
+                    deletedList.add(entry);
+                }
+            }
+            if (!deletedList.isEmpty()) {
+                mailDirectory.remove(deletedList);
+            }
+        }
+
+        /**
+         * メールボックスの変更を待機し、通知します（IDLE）。
+         *
+         * @param tag
+         *            タグ
+         * @throws IOException
+         */
+        private void idle(String tag) throws IOException {
+            connection.writeLine("+ idling");
+            while (!connection.waitForInput(idleInterval)) {
+                synchronizeView();
+                connection.flush();
+            }
+            String line = connection.readLine();
+            if (line != null && "DONE".equalsIgnoreCase(line.trim())) {
+                ok(tag, "IDLE");
+            } else {
+                connection.writeLine(tag + " BAD Expected DONE");
+            }
+        }
+
+        /**
+         * メールボックスの変更（削除されたメッセージ、追加されたメッセージ）を通知します。
+         *
+         * @throws IOException
+         */
+        private void synchronizeView() throws IOException {
+            if (view == null) {
+                return;
+            }
+            mailDirectory.refresh();
+            List<Entry> currentList = mailDirectory.getEntries();
+            Set<Entry> currentSet = new HashSet<Entry>(currentList);
+            for (int i = view.size() - 1; i >= 0; i--) {
+                if (!currentSet.contains(view.get(i))) {
+                    connection.write("* " + (i + 1) + " EXPUNGE\r\n");
+                    view.remove(i);
+                }
+            }
+            long lastUid = view.isEmpty() ? 0 : view.get(view.size() - 1).getUid();
+            boolean isAdded = false;
+            for (Entry entry : currentList) {
+                if (entry.getUid() > lastUid) {
+                    view.add(entry);
+                    isAdded = true;
+                }
+            }
+            if (isAdded) {
+                connection.write("* " + view.size() + " EXISTS\r\n");
+            }
+        }
+
+        /**
+         * 既読フラグを設定します。
+         *
+         * @param entry
+         *            メッセージ
+         * @return フラグを変更したかどうか
+         */
+        private boolean markSeen(Entry entry) {
+            if (isReadOnly || entry.hasFlag(Entry.SEEN)) {
+                return false;
+            }
+            entry.addFlag(Entry.SEEN);
+            return true;
+        }
+
+        /**
+         * 指定したフラグの有無で検索結果を絞り込みます。
+         *
+         * @param resultSet
+         *            検索結果（メッセージのインデックス）
+         * @param flag
+         *            フラグ
+         * @param isSet
+         *            フラグを持つメッセージを残すかどうか
+         */
+        private void retainFlag(Set<Integer> resultSet, String flag, boolean isSet) {
+            for (int i = 0; i < view.size(); i++) {
+                if (view.get(i).hasFlag(flag) != isSet) {
+                    resultSet.remove(i);
+                }
+            }
+        }
+
+        /**
+         * メッセージ番号、またはUIDの範囲を、メッセージのインデックスに変換します。
+         *
+         * @param sequenceSet
+         *            メッセージ番号、またはUIDの範囲（例：1:5,7,9:*）
+         * @param isUid
+         *            UIDの範囲かどうか
+         * @return メッセージのインデックス（昇順）
+         */
+        private Set<Integer> parseSequenceSet(String sequenceSet, boolean isUid) {
+            Set<Integer> indexSet = new TreeSet<Integer>();
+            if (view.isEmpty()) {
+                return indexSet;
+            }
+            long max = isUid ? view.get(view.size() - 1).getUid() : view.size();
+            for (String range : sequenceSet.split(",")) {
+                String[] bounds = range.split(":");
+                long from = "*".equals(bounds[0]) ? max : Long.parseLong(bounds[0]);
+                long to = bounds.length < 2 ? from : "*".equals(bounds[1]) ? max : Long.parseLong(bounds[1]);
+                if (from > to) {
+                    long tmp = from;
+                    from = to;
+                    to = tmp;
+                }
+                if (isUid) {
+                    for (int i = 0; i < view.size(); i++) {
+                        long uid = view.get(i).getUid();
+                        if (uid >= from && uid <= to) {
+                            indexSet.add(i);
+                        }
+                    }
+                } else {
+                    for (long n = Math.max(1, from); n <= Math.min(max, to); n++) {
+                        indexSet.add((int) n - 1);
+                    }
+                }
+            }
+            return indexSet;
+        }
+
+        /**
+         * リテラルを書き込みます。
+         *
+         * @param name
+         *            項目名
+         * @param content
+         *            内容（nullの場合はNIL）
+         * @throws IOException
+         */
+        private void writeLiteral(String name, byte[] content) throws IOException {
+            if (content == null) {
+                connection.write(name + " NIL");
+                return;
+            }
+            connection.write(name + " {" + content.length + "}\r\n");
+            connection.write(content);
+        }
+
+        /**
+         * メッセージのフラグをIMAPの形式に変換します。
+         *
+         * @param entry
+         *            メッセージ
+         * @return フラグ
+         */
+        private String flags(Entry entry) {
+            StringBuilder sb = new StringBuilder("(");
+            for (String flag : entry.getFlags()) {
+                sb.append(sb.length() > 1 ? " " : "").append(flag);
+            }
+            return sb.append(')').toString();
+        }
+
+        /**
+         * 完了の応答を書き込みます。
+         *
+         * @param tag
+         *            タグ
+         * @param command
+         *            コマンド
+         * @throws IOException
+         */
+        private void ok(String tag, String command) throws IOException {
+            connection.writeLine(tag + " OK " + command + " completed");
+        }
+
+        /**
+         * コマンドを1行読み込みます（リテラルは引用符で囲んだ文字列に置き換えます）。
+         *
+         * @return コマンド（接続が閉じられた場合はnull）
+         * @throws IOException
+         */
+        private String readCommand() throws IOException {
+            String line = connection.readLine();
+            StringBuilder sb = new StringBuilder();
+            while (line != null && line.endsWith("}") && line.lastIndexOf('{') >= 0) {
+                int open = line.lastIndexOf('{');
+                String size = line.substring(open + 1, line.length() - 1);
+                boolean isNonSync = size.endsWith("+");
+                if (isNonSync) {
+                    size = size.substring(0, size.length() - 1);
+                }
+                if (!size.matches("[0-9]+")) {
+                    break;
+                }
+                if (!isNonSync) {
+                    connection.writeLine("+ Ready for literal data");
+                }
+                String literal = new String(connection.readBytes(Integer.parseInt(size)), "ISO-8859-1");
+                sb.append(line.substring(0, open));
+                sb.append('"').append(literal.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                line = connection.readLine();
+            }
+            return line == null ? null : sb.append(line).toString();
+        }
+
+    }
+
+    /**
+     * 引数を分割します。
+     * <p>
+     * 引用符で囲んだ文字列は引用符を除き、括弧で囲んだ部分は分割せずにそのまま返します。
+     * </p>
+     *
+     * @param s
+     *            引数
+     * @return 分割した引数
+     */
+    static List<String> tokenize(String s) {
+        List<String> tokenList = new ArrayList<String>();
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == ' ') {
+                i++;
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                for (i++; i < s.length() && s.charAt(i) != '"'; i++) {
+                    if (s.charAt(i) == '\\' && i + 1 < s.length()) {
+                        i++;
+                    }
+                    sb.append(s.charAt(i));
+                }
+                tokenList.add(sb.toString());
+                i++;
+            } else {
+                int start = i;
+                int depth = 0;
+                boolean isQuoted = false;
+                for (; i < s.length(); i++) {
+                    char d = s.charAt(i);
+                    if (d == '"') {
+                        isQuoted = !isQuoted;
+                    } else if (!isQuoted && (d == '(' || d == '[')) {
+                        depth++;
+                    } else if (!isQuoted && (d == ')' || d == ']')) {
+                        depth--;
+                    } else if (!isQuoted && d == ' ' && depth == 0) {
+                        break;
+                    }
+                }
+                tokenList.add(s.substring(start, i));
+            }
+        }
+        return tokenList;
+    }
+
+    /**
+     * 括弧で囲んだ引数の括弧を除きます。
+     *
+     * @param s
+     *            引数
+     * @return 括弧を除いた引数
+     */
+    private static String unwrap(String s) {
+        return s.startsWith("(") && s.endsWith(")") ? s.substring(1, s.length() - 1) : s;
+    }
+
+    /**
+     * リストに文字列が含まれるかどうかを判定します（大文字と小文字を区別しません）。
+     *
+     * @param list
+     *            リスト
+     * @param s
+     *            文字列
+     * @return 文字列が含まれるかどうか
+     */
+    private static boolean containsIgnoreCase(List<String> list, String s) {
+        for (String element : list) {
+            if (element.equalsIgnoreCase(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * システムフラグの大文字と小文字を正規化します。
+     *
+     * @param flag
+     *            フラグ
+     * @return 正規化したフラグ
+     */
+    private static String normalizeFlag(String flag) {
+        if (flag.startsWith("\\") && flag.length() > 1) {
+            return "\\" + Character.toUpperCase(flag.charAt(1)) + flag.substring(2).toLowerCase(Locale.ENGLISH);
+        }
+        return flag;
+    }
+
+}
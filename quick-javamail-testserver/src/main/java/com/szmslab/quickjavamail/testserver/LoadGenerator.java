@@ -0,0 +1,503 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import com.szmslab.quickjavamail.receive.ImapProperties;
+import com.szmslab.quickjavamail.receive.MailReceiver;
+import com.szmslab.quickjavamail.receive.MessageLoader;
+import com.szmslab.quickjavamail.receive.Pop3Properties;
+import com.szmslab.quickjavamail.receive.ReceiveIterationCallback;
+import com.szmslab.quickjavamail.send.AsyncSendExecutor;
+import com.szmslab.quickjavamail.send.MailSender;
+import com.szmslab.quickjavamail.send.SmtpProperties;
+import com.szmslab.quickjavamail.send.TransportPool;
+import com.szmslab.quickjavamail.utils.AttachmentFile;
+import com.szmslab.quickjavamail.utils.MailAddress;
+import com.szmslab.quickjavamail.utils.MailProperties;
+
+/**
+ * 指定した同時実行数で操作を繰り返し、スループットとレイテンシのパーセンタイルを計測する負荷生成器です。
+ * <p>
+ * mainメソッドは、プロセス内でSMTP、POP3、IMAPのサーバを起動し、quick-javamailの送信、受信を計測します（ネットワーク接続は不要です）。
+ * </p>
+ *
+ * <pre>
+ * java -jar quick-javamail-testserver.jar --mode send|pop3|imap [--concurrency 16] [--operations 10000]
+ *     [--duration 30] [--warmup 500] [--threads platform|virtual] [--size 10240] [--messages 20]
+ *     [--latency 0] [--pool 0]
+ * </pre>
+ *
+ * @author szmslab
+ */
+public class LoadGenerator {
+
+    /**
+     * 負荷試験で繰り返す操作です。
+     *
+     * @author szmslab
+     */
+    public interface Operation {
+
+        /**
+         * 操作を1回実行します。
+         *
+         * @param worker
+         *            ワーカーの番号（0から開始）
+         * @param sequence
+         *            操作の通番（0から開始）
+         * @throws Exception
+         */
+        void execute(int worker, long sequence) throws Exception;
+
+    }
+
+    /**
+     * 試験の名前。
+     */
+    private String name = "load";
+
+    /**
+     * 同時実行数。
+     */
+    private int concurrency = 1;
+
+    /**
+     * 計測する操作の数（0以下の場合は時間で終了します）。
+     */
+    private long operations = 1000;
+
+    /**
+     * 計測する時間（ミリ秒）。
+     */
+    private long duration = 0;
+
+    /**
+     * 計測前に実行する操作の数。
+     */
+    private long warmupOperations = 0;
+
+    /**
+     * 仮想スレッドを使用するかどうか。
+     */
+    private boolean useVirtualThreads = false;
+
+    /**
+     * 試験の名前を設定します。
+     *
+     * @param name
+     *            試験の名前
+     * @return 自身のインスタンス
+     */
+    public LoadGenerator name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * 同時実行数を設定します。
+     *
+     * @param concurrency
+     *            同時実行数
+     * @return 自身のインスタンス
+     */
+    public LoadGenerator concurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * 計測する操作の数を設定します（時間で終了する設定は解除されます）。
+     *
+     * @param operations
+     *            計測する操作の数
+     * @return 自身のインスタンス
+     */
+    public LoadGenerator operations(long operations) {
+        this.operations = operations;
+        this.duration = 0;
+        return this;
+    }
+
+    /**
+     * 計測する時間を設定します（操作の数で終了する設定は解除されます）。
+     *
+     * @param duration
+     *            計測する時間（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public LoadGenerator duration(long duration) {
+        this.duration = duration;
+        this.operations = 0;
+        return this;
+    }
+
+    /**
+     * 計測前に実行する操作の数を設定します。
+     *
+     * @param warmupOperations
+     *            計測前に実行する操作の数
+     * @return 自身のインスタンス
+     */
+    public LoadGenerator warmup(long warmupOperations) {
+        this.warmupOperations = warmupOperations;
+        return this;
+    }
+
+    /**
+     * 仮想スレッドを使用するかどうかを設定します。
+     * <p>
+     * 仮想スレッドが使用できない場合（JDK 21未満）は、プラットフォームスレッドを使用します。
+     * JDK 21〜23では、SMTPの送信中の仮想スレッドがキャリアスレッドに固定されるため、
+     * プラットフォームスレッドとの比較で、その影響を計測できます。
+     * </p>
+     *
+     * @param useVirtualThreads
+     *            仮想スレッドを使用するかどうか
+     * @return 自身のインスタンス
+     */
+    public LoadGenerator virtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    /**
+     * 操作を繰り返し、計測します。
+     *
+     * @param operation
+     *            操作
+     * @return 負荷試験の結果
+     * @throws InterruptedException
+     */
+    public LoadReport run(Operation operation) throws InterruptedException {
+        ExecutorService executor = newExecutor();
+        try {
+            if (warmupOperations > 0) {
+                execute(executor, operation, warmupOperations, 0);
+            }
+            return execute(executor, operation, operations, duration);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * ワーカーを起動し、操作の数、または時間に達するまで操作を繰り返します。
+     *
+     * @param executor
+     *            ワーカーを実行するExecutorService
+     * @param operation
+     *            操作
+     * @param maxOperations
+     *            操作の数（0以下の場合は時間で終了します）
+     * @param maxMillis
+     *            時間（ミリ秒）
+     * @return 負荷試験の結果
+     * @throws InterruptedException
+     */
+    private LoadReport execute(ExecutorService executor, final Operation operation, final long maxOperations,
+            long maxMillis) throws InterruptedException {
+        final AtomicLong sequence = new AtomicLong(0);
+        final AtomicInteger errorCount = new AtomicInteger(0);
+        final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch doneSignal = new CountDownLatch(concurrency);
+        final long[][] workerLatencies = new long[concurrency][];
+        final int[] workerCounts = new int[concurrency];
+        final long startNanos = System.nanoTime();
+        final long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+
+        for (int i = 0; i < concurrency; i++) {
+            final int worker = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    try {
+                        startSignal.await();
+                        while (!Thread.currentThread().isInterrupted()) {
+                            long seq = sequence.getAndIncrement();
+                            if (maxOperations > 0 ? seq >= maxOperations : System.nanoTime() >= deadline) {
+                                break;
+                            }
+                            long begin = System.nanoTime();
+                            try {
+                                operation.execute(worker, seq);
+                            } catch (Exception e) {
+                                errorCount.incrementAndGet();
+                                firstError.compareAndSet(null, e);
+                                continue;
+                            }
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = System.nanoTime() - begin;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        workerLatencies[worker] = latencies;
+                        workerCounts[worker] = count;
+                        doneSignal.countDown();
+                    }
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        startSignal.countDown();
+        doneSignal.await();
+        long elapsedNanos = System.nanoTime() - begin;
+
+        int total = 0;
+        for (int count : workerCounts) {
+            total += count;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (int i = 0; i < concurrency; i++) {
+            System.arraycopy(workerLatencies[i], 0, latencies, offset, workerCounts[i]);
+            offset += workerCounts[i];
+        }
+        return new LoadReport(name, concurrency, latencies, errorCount.get(), firstError.get(), elapsedNanos);
+    }
+
+    /**
+     * ワーカーを実行するExecutorServiceを作成します。
+     *
+     * @return ExecutorService
+     */
+    private ExecutorService newExecutor() {
+        ExecutorService executor = useVirtualThreads ? AsyncSendExecutor.newVirtualThreadPerTaskExecutor() : null;
+        return executor != null ? executor : Executors.newFixedThreadPool(concurrency);
+    }
+
+    /**
+     * プロセス内でサーバを起動し、quick-javamailの送信、受信の負荷試験を実行します。
+     *
+     * @param args
+     *            オプション（クラスのドキュメントを参照）
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        String mode = option(options, "mode", "send");
+        int size = Integer.parseInt(option(options, "size", "10240"));
+        long latency = Long.parseLong(option(options, "latency", "0"));
+
+        LoadGenerator generator = new LoadGenerator()
+                .concurrency(Integer.parseInt(option(options, "concurrency", "16")))
+                .warmup(Long.parseLong(option(options, "warmup", "500")))
+                .virtualThreads("virtual".equals(option(options, "threads", "platform")));
+        if (options.containsKey("duration")) {
+            generator.duration(Long.parseLong(options.get("duration")) * 1000);
+        } else {
+            generator.operations(Long.parseLong(option(options, "operations", "10000")));
+        }
+
+        List<AbstractServer> serverList = new ArrayList<AbstractServer>();
+        try {
+            Operation operation;
+            if ("send".equals(mode)) {
+                SmtpSinkServer server = new SmtpSinkServer().latency(latency, latency);
+                serverList.add(server.start());
+                int poolSize = Integer.parseInt(option(options, "pool", "0"));
+                operation = newSendOperation(server.getPort(), size, poolSize > 0 ? new TransportPool().maxIdlePerKey(poolSize) : null);
+            } else if ("pop3".equals(mode) || "imap".equals(mode)) {
+                File directory = new File(System.getProperty("java.io.tmpdir"),
+                        "quick-javamail-loadgen-" + System.nanoTime());
+                createMessages(directory, Integer.parseInt(option(options, "messages", "20")), size);
+                MailDirectory mailDirectory = new MailDirectory(directory).readOnly(true);
+                AbstractServer server = "pop3".equals(mode)
+                        ? new Pop3Server(mailDirectory).latency(latency)
+                        : new ImapServer(mailDirectory).latency(latency);
+                serverList.add(server.start());
+                operation = newReceiveOperation(mode, server.getPort());
+            } else {
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+            generator.name(mode + (generator.useVirtualThreads ? "(virtual)" : ""));
+            System.out.println(generator.run(operation));
+        } finally {
+            for (AbstractServer server : serverList) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * メールを1通送信する操作を作成します。
+     *
+     * @param port
+     *            SMTPサーバのポート番号
+     * @param size
+     *            添付ファイルのサイズ（バイト）
+     * @param transportPool
+     *            Transportのプール（使用しない場合はnull）
+     * @return 操作
+     */
+    private static Operation newSendOperation(int port, final int size, final TransportPool transportPool) {
+        final MailProperties properties = new SmtpProperties().host("127.0.0.1").port(String.valueOf(port));
+        final byte[] attachment = createContent(size);
+        return new Operation() {
+            @Override
+            public void execute(int worker, long sequence) throws Exception {
+                MailSender sender = new MailSender(properties)
+                        .transportPool(transportPool)
+                        .charset("UTF-8")
+                        .from(new MailAddress("loadgen@example.com", "負荷試験"))
+                        .to(new MailAddress("user" + worker + "@example.com"))
+                        .subject("負荷試験 #" + sequence)
+                        .text("負荷試験の本文です。\r\nsequence=" + sequence + "\r\n");
+                if (attachment.length > 0) {
+                    sender.attachmentFiles(new AttachmentFile("添付ファイル.bin",
+                            new ByteArrayDataSource(attachment, "application/octet-stream")));
+                }
+                sender.execute();
+            }
+        };
+    }
+
+    /**
+     * メールボックスの全てのメールを受信する操作を作成します。
+     *
+     * @param protocol
+     *            プロトコル（pop3、imap）
+     * @param port
+     *            サーバのポート番号
+     * @return 操作
+     */
+    private static Operation newReceiveOperation(String protocol, int port) {
+        final MailProperties properties = ("pop3".equals(protocol) ? new Pop3Properties() : new ImapProperties())
+                .host("127.0.0.1")
+                .port(String.valueOf(port))
+                .authenticate("loadgen", "loadgen");
+        return new Operation() {
+            @Override
+            public void execute(int worker, long sequence) throws Exception {
+                new MailReceiver(properties).readonly(true)
+                        .execute(new ReceiveIterationCallback() {
+                            @Override
+                            public boolean iterate(MessageLoader loader) throws Exception {
+                                loader.getSubject();
+                                loader.getFromAddressList();
+                                loader.getText();
+                                loader.getAttachmentFileList();
+                                return true;
+                            }
+                        });
+            }
+        };
+    }
+
+    /**
+     * 受信の試験に使用するEMLファイルを作成します。
+     *
+     * @param directory
+     *            作成先のディレクトリ
+     * @param count
+     *            メッセージ数
+     * @param size
+     *            添付ファイルのサイズ（バイト）
+     * @throws Exception
+     */
+    private static void createMessages(File directory, int count, int size) throws Exception {
+        directory.mkdirs();
+        Session session = Session.getInstance(new Properties());
+        byte[] attachment = createContent(size);
+        for (int i = 0; i < count; i++) {
+            MimeMessage message = new MimeMessage(session);
+            message.setFrom(new InternetAddress("sender@example.com", "送信者", "UTF-8"));
+            message.setRecipient(Message.RecipientType.TO, new InternetAddress("loadgen@example.com"));
+            message.setSubject("受信の負荷試験 #" + i, "UTF-8");
+
+            MimeMultipart multipart = new MimeMultipart("mixed");
+            MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText("受信の負荷試験の本文です。\r\nmessage=" + i + "\r\n", "UTF-8");
+            multipart.addBodyPart(textPart);
+            if (attachment.length > 0) {
+                MimeBodyPart attachmentPart = new MimeBodyPart();
+                attachmentPart.setDataHandler(new DataHandler(
+                        new ByteArrayDataSource(attachment, "application/octet-stream")));
+                attachmentPart.setFileName("attachment-" + i + ".bin");
+                multipart.addBodyPart(attachmentPart);
+            }
+            message.setContent(multipart);
+            message.saveChanges();
+
+            OutputStream os = new FileOutputStream(new File(directory, String.format("%06d.eml", i)));
+            try {
+                message.writeTo(os);
+            } finally {
+                os.close();
+            }
+            new File(directory, String.format("%06d.eml", i)).deleteOnExit();
+        }
+        directory.deleteOnExit();
+    }
+
+    /**
+     * 指定したサイズの内容を作成します。
+     *
+     * @param size
+     *            サイズ（バイト）
+     * @return 内容
+     */
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return content;
+    }
+
+    /**
+     * オプションの値を取得します。
+     *
+     * @param options
+     *            オプション
+     * @param key
+     *            オプション名
+     * @param defaultValue
+     *            指定されていない場合の値
+     * @return オプションの値
+     */
+    private static String option(Map<String, String> options, String key, String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.util.Arrays;
+
+/**
+ * 負荷試験の結果（スループット、レイテンシのパーセンタイル）を格納するクラスです。
+ * <p>
+ * パーセンタイルは、全ての操作のレイテンシを並べ替えて求めた正確な値です。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class LoadReport {
+
+    /**
+     * 試験の名前。
+     */
+    private final String name;
+
+    /**
+     * 同時実行数。
+     */
+    private final int concurrency;
+
+    /**
+     * 成功した操作のレイテンシ（ナノ秒、昇順）。
+     */
+    private final long[] latencies;
+
+    /**
+     * 失敗した操作の数。
+     */
+    private final int errorCount;
+
+    /**
+     * 最初に発生した例外（失敗しなかった場合はnull）。
+     */
+    private final Throwable firstError;
+
+    /**
+     * 試験の経過時間（ナノ秒）。
+     */
+    private final long elapsedNanos;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param name
+     *            試験の名前
+     * @param concurrency
+     *            同時実行数
+     * @param latencies
+     *            成功した操作のレイテンシ（ナノ秒）
+     * @param errorCount
+     *            失敗した操作の数
+     * @param firstError
+     *            最初に発生した例外
+     * @param elapsedNanos
+     *            試験の経過時間（ナノ秒）
+     */
+    LoadReport(String name, int concurrency, long[] latencies, int errorCount, Throwable firstError,
+            long elapsedNanos) {
+        this.name = name;
+        this.concurrency = concurrency;
+        this.latencies = latencies;
+        this.errorCount = errorCount;
+        this.firstError = firstError;
+        this.elapsedNanos = elapsedNanos;
+        Arrays.sort(this.latencies);
+    }
+
+    /**
+     * 試験の名前を取得します。
+     *
+     * @return 試験の名前
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 同時実行数を取得します。
+     *
+     * @return 同時実行数
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * 成功した操作の数を取得します。
+     *
+     * @return 成功した操作の数
+     */
+    public int getSuccessCount() {
+        return latencies.length;
+    }
+
+    /**
+     * 失敗した操作の数を取得します。
+     *
+     * @return 失敗した操作の数
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * 最初に発生した例外を取得します。
+     *
+     * @return 最初に発生した例外（失敗しなかった場合はnull）
+     */
+    public Throwable getFirstError() {
+        return firstError;
+    }
+
+    /**
+     * 試験の経過時間を取得します。
+     *
+     * @return 試験の経過時間（ミリ秒）
+     */
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000L;
+    }
+
+    /**
+     * スループット（1秒あたりに成功した操作の数）を取得します。
+     *
+     * @return スループット（操作/秒）
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : latencies.length * 1000000000.0 / elapsedNanos;
+    }
+
+    /**
+     * レイテンシの平均を取得します。
+     *
+     * @return レイテンシの平均（ミリ秒）
+     */
+    public double getMeanMillis() {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        double total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        return total / latencies.length / 1000000.0;
+    }
+
+    /**
+     * レイテンシのパーセンタイルを取得します（nearest-rank法）。
+     *
+     * @param percentile
+     *            パーセンタイル（0～100）
+     * @return レイテンシ（ミリ秒）
+     */
+    public double getPercentileMillis(double percentile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * latencies.length);
+        int index = Math.min(latencies.length - 1, Math.max(0, rank - 1));
+        return latencies[index] / 1000000.0;
+    }
+
+    /**
+     * レイテンシの最大値を取得します。
+     *
+     * @return レイテンシの最大値（ミリ秒）
+     */
+    public double getMaxMillis() {
+        return latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1000000.0;
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s: concurrency=%d, ok=%d, errors=%d, elapsed=%dms, throughput=%.1f ops/s%n",
+                name, concurrency, getSuccessCount(), errorCount, getElapsedMillis(), getThroughput()));
+        sb.append(String.format("  latency(ms): mean=%.2f, p50=%.2f, p90=%.2f, p99=%.2f, p99.9=%.2f, max=%.2f",
+                getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90), getPercentileMillis(99),
+                getPercentileMillis(99.9), getMaxMillis()));
+        if (firstError != null) {
+            sb.append(String.format("%n  first error: %s", firstError));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * POP3、IMAPのサーバが参照する、EMLファイルを格納したディレクトリ（メールボックス）です。
+ * <p>
+ * ファイル名の昇順にUIDを割り当てます。UIDVALIDITYはインスタンスの作成時刻から決定するため、
+ * インスタンスを作り直した場合は変わります。フラグはメモリ上にのみ保持します。
+ * {@link #refresh()}で、ディレクトリに追加されたファイル（{@link SmtpSinkServer}が保存したファイルなど）を取り込みます。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class MailDirectory {
+
+    /**
+     * EMLファイルの拡張子。
+     */
+    private static final String EXTENSION = ".eml";
+
+    /**
+     * 追加したファイルの通番。
+     */
+    private static final AtomicLong fileSequence = new AtomicLong(0);
+
+    /**
+     * ディレクトリ。
+     */
+    private final File directory;
+
+    /**
+     * UIDVALIDITY。
+     */
+    private final long uidValidity;
+
+    /**
+     * 次に割り当てるUID。
+     */
+    private long nextUid = 1;
+
+    /**
+     * メッセージ（UIDの昇順）。
+     */
+    private final List<Entry> entryList = new ArrayList<Entry>();
+
+    /**
+     * 取り込み済みのファイル。
+     */
+    private final Set<File> loadedFileSet = new HashSet<File>();
+
+    /**
+     * 削除の操作をファイルに反映しないかどうか。
+     */
+    private volatile boolean isReadOnly = false;
+
+    /**
+     * メッセージの内容をメモリ上に保持するかどうか。
+     */
+    private volatile boolean isCacheContent = true;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param directory
+     *            EMLファイルを格納したディレクトリ
+     */
+    public MailDirectory(File directory) {
+        this.directory = directory;
+        this.uidValidity = System.currentTimeMillis() / 1000;
+        directory.mkdirs();
+        refresh();
+    }
+
+    /**
+     * 削除の操作をファイルに反映しないかどうかを設定します。
+     * <p>
+     * trueの場合、POP3のDELE、IMAPのEXPUNGEは受け付けますが、メッセージは削除されません。
+     * 同じメッセージを繰り返し受信する負荷試験で使用します。
+     * </p>
+     *
+     * @param isReadOnly
+     *            削除の操作をファイルに反映しないかどうか
+     * @return 自身のインスタンス
+     */
+    public MailDirectory readOnly(boolean isReadOnly) {
+        this.isReadOnly = isReadOnly;
+        return this;
+    }
+
+    /**
+     * メッセージの内容をメモリ上に保持するかどうかを設定します（デフォルトはtrue）。
+     *
+     * @param isCacheContent
+     *            メッセージの内容をメモリ上に保持するかどうか
+     * @return 自身のインスタンス
+     */
+    public MailDirectory cacheContent(boolean isCacheContent) {
+        this.isCacheContent = isCacheContent;
+        return this;
+    }
+
+    /**
+     * ディレクトリに追加されたファイルを取り込みます。
+     *
+     * @return 取り込んだファイル数
+     */
+    public synchronized int refresh() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase().endsWith(EXTENSION);
+            }
+        });
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files);
+        int count = 0;
+        for (File file : files) {
+            if (loadedFileSet.add(file)) {
+                entryList.add(new Entry(nextUid++, file));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * メッセージを追加します。
+     *
+     * @param content
+     *            メッセージの内容
+     * @return 追加したメッセージ
+     * @throws IOException
+     */
+    public synchronized Entry append(byte[] content) throws IOException {
+        File file = new File(directory, String.format("%013d-%06d%s",
+                System.currentTimeMillis(), fileSequence.incrementAndGet(), EXTENSION));
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        loadedFileSet.add(file);
+        Entry entry = new Entry(nextUid++, file);
+        entryList.add(entry);
+        return entry;
+    }
+
+    /**
+     * メッセージを削除します。
+     *
+     * @param entries
+     *            削除するメッセージ
+     */
+    public synchronized void remove(Collection<Entry> entries) {
+        if (isReadOnly) {
+            for (Entry entry : entries) {
+                entry.removeFlag(Entry.DELETED);
+            }
+            return;
+        }
+        for (Entry entry : entries) {
+            if (entryList.remove(entry)) {
+                entry.getFile().delete();
+            }
+        }
+    }
+
+    /**
+     * メッセージの一覧を取得します。
+     *
+     * @return メッセージの一覧（UIDの昇順）
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entryList);
+    }
+
+    /**
+     * UIDVALIDITYを取得します。
+     *
+     * @return UIDVALIDITY
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * 次に割り当てるUIDを取得します。
+     *
+     * @return 次に割り当てるUID
+     */
+    public synchronized long getNextUid() {
+        return nextUid;
+    }
+
+    /**
+     * ディレクトリを取得します。
+     *
+     * @return ディレクトリ
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * メールボックス内のメッセージです。
+     *
+     * @author szmslab
+     */
+    public class Entry {
+
+        /**
+         * 削除フラグ。
+         */
+        static final String DELETED = "\\Deleted";
+
+        /**
+         * 既読フラグ。
+         */
+        static final String SEEN = "\\Seen";
+
+        /**
+         * UID。
+         */
+        private final long uid;
+
+        /**
+         * EMLファイル。
+         */
+        private final File file;
+
+        /**
+         * フラグ。
+         */
+        private final Set<String> flagSet = new LinkedHashSet<String>();
+
+        /**
+         * メッセージの内容（メモリ上に保持しない場合はnull）。
+         */
+        private volatile byte[] content;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param uid
+         *            UID
+         * @param file
+         *            EMLファイル
+         */
+        Entry(long uid, File file) {
+            this.uid = uid;
+            this.file = file;
+        }
+
+        /**
+         * UIDを取得します。
+         *
+         * @return UID
+         */
+        public long getUid() {
+            return uid;
+        }
+
+        /**
+         * EMLファイルを取得します。
+         *
+         * @return EMLファイル
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * メッセージのサイズ（バイト）を取得します。
+         *
+         * @return メッセージのサイズ（バイト）
+         */
+        public long getSize() {
+            byte[] bytes = content;
+            return bytes != null ? bytes.length : file.length();
+        }
+
+        /**
+         * メッセージの受信日時（ファイルの更新日時）を取得します。
+         *
+         * @return メッセージの受信日時（ミリ秒）
+         */
+        public long getInternalDate() {
+            return file.lastModified();
+        }
+
+        /**
+         * メッセージの内容を取得します。
+         *
+         * @return メッセージの内容
+         * @throws IOException
+         */
+        public byte[] getContent() throws IOException {
+            byte[] bytes = content;
+            if (bytes != null) {
+                return bytes;
+            }
+            bytes = readFile(file);
+            if (isCacheContent) {
+                content = bytes;
+            }
+            return bytes;
+        }
+
+        /**
+         * フラグを取得します。
+         *
+         * @return フラグ
+         */
+        public Set<String> getFlags() {
+            synchronized (flagSet) {
+                return new LinkedHashSet<String>(flagSet);
+            }
+        }
+
+        /**
+         * フラグを持つかどうかを判定します。
+         *
+         * @param flag
+         *            フラグ
+         * @return フラグを持つかどうか
+         */
+        public boolean hasFlag(String flag) {
+            synchronized (flagSet) {
+                return flagSet.contains(flag);
+            }
+        }
+
+        /**
+         * フラグを置き換えます。
+         *
+         * @param flags
+         *            フラグ
+         */
+        void setFlags(Collection<String> flags) {
+            synchronized (flagSet) {
+                flagSet.clear();
+                flagSet.addAll(flags);
+            }
+        }
+
+        /**
+         * フラグを追加します。
+         *
+         * @param flag
+         *            フラグ
+         */
+        void addFlag(String flag) {
+            synchronized (flagSet) {
+                flagSet.add(flag);
+            }
+        }
+
+        /**
+         * フラグを削除します。
+         *
+         * @param flag
+         *            フラグ
+         */
+        void removeFlag(String flag) {
+            synchronized (flagSet) {
+                flagSet.remove(flag);
+            }
+        }
+
+    }
+
+    /**
+     * ファイルの内容を読み込みます。
+     *
+     * @param file
+     *            ファイル
+     * @return ファイルの内容
+     * @throws IOException
+     */
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return baos.toByteArray();
+    }
+
+}
@@ -0,0 +1,620 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParameterList;
+
+/**
+ * EMLファイルのバイト列を解析した、MIMEの構造（IMAPのENVELOPE、BODYSTRUCTURE、セクションの取得に使用します）です。
+ * <p>
+ * 各パートはヘッダと本文のバイト列上の位置を保持するため、セクションの内容は元のバイト列をそのまま返します。
+ * BODYSTRUCTUREのタイプ、パラメータ名などの大文字と小文字は、元のヘッダのまま返します。
+ * </p>
+ *
+ * @author szmslab
+ */
+class MimeStructure {
+
+    /**
+     * メッセージのバイト列。
+     */
+    private final byte[] bytes;
+
+    /**
+     * ヘッダの開始位置。
+     */
+    private final int start;
+
+    /**
+     * 本文の開始位置（ヘッダの終了位置）。
+     */
+    private final int bodyStart;
+
+    /**
+     * 本文の終了位置。
+     */
+    private final int end;
+
+    /**
+     * ヘッダ。
+     */
+    private final InternetHeaders headers;
+
+    /**
+     * Content-Type。
+     */
+    private final ContentType contentType;
+
+    /**
+     * マルチパートの子パート（マルチパートでない場合はnull）。
+     */
+    private final List<MimeStructure> childList;
+
+    /**
+     * message/rfc822のメッセージ（message/rfc822でない場合はnull）。
+     */
+    private final MimeStructure nestedMessage;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param bytes
+     *            メッセージのバイト列
+     * @param start
+     *            ヘッダの開始位置
+     * @param end
+     *            本文の終了位置
+     * @throws MessagingException
+     */
+    MimeStructure(byte[] bytes, int start, int end) throws MessagingException {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        this.bodyStart = findBodyStart(bytes, start, end);
+        this.headers = new InternetHeaders(new ByteArrayInputStream(bytes, start, bodyStart - start));
+        this.contentType = parseContentType(headers.getHeader("Content-Type", null));
+
+        if (contentType.match("multipart/*") && contentType.getParameter("boundary") != null) {
+            this.childList = parseMultipart(contentType.getParameter("boundary"));
+            this.nestedMessage = null;
+        } else if (contentType.match("message/rfc822")) {
+            this.childList = null;
+            this.nestedMessage = new MimeStructure(bytes, bodyStart, end);
+        } else {
+            this.childList = null;
+            this.nestedMessage = null;
+        }
+    }
+
+    /**
+     * メッセージのバイト列を解析します。
+     *
+     * @param bytes
+     *            メッセージのバイト列
+     * @return MIMEの構造
+     * @throws MessagingException
+     */
+    static MimeStructure parse(byte[] bytes) throws MessagingException {
+        return new MimeStructure(bytes, 0, bytes.length);
+    }
+
+    /**
+     * セクションの内容を取得します。
+     * <p>
+     * セクションは、「」（全体）、「HEADER」、「TEXT」、「HEADER.FIELDS (...)」、「HEADER.FIELDS.NOT (...)」、
+     * パート番号（「1.2」など）、および、パート番号に続けた「.MIME」、「.HEADER」、「.TEXT」、「.HEADER.FIELDS (...)」に対応します。
+     * </p>
+     *
+     * @param section
+     *            セクション
+     * @return セクションの内容（存在しない場合はnull）
+     */
+    byte[] getSection(String section) {
+        MimeStructure part = this;
+        String rest = section.trim();
+        boolean isTop = true;
+        while (rest.length() > 0 && Character.isDigit(rest.charAt(0))) {
+            int dot = rest.indexOf('.');
+            int number = Integer.parseInt(dot < 0 ? rest : rest.substring(0, dot));
+            MimeStructure container = !isTop && part.nestedMessage != null ? part.nestedMessage : part;
+            part = container.getChild(number);
+            if (part == null) {
+                return null;
+            }
+            isTop = false;
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+
+        String upper = rest.toUpperCase(Locale.ENGLISH);
+        if (upper.length() == 0) {
+            return isTop ? copy(start, end) : copy(part.bodyStart, part.end);
+        }
+        if ("MIME".equals(upper)) {
+            return isTop ? null : copy(part.start, part.bodyStart);
+        }
+        MimeStructure message = isTop ? part : part.nestedMessage;
+        if (message == null) {
+            return null;
+        }
+        if ("HEADER".equals(upper)) {
+            return copy(message.start, message.bodyStart);
+        }
+        if ("TEXT".equals(upper)) {
+            return copy(message.bodyStart, message.end);
+        }
+        if (upper.startsWith("HEADER.FIELDS")) {
+            boolean isNot = upper.startsWith("HEADER.FIELDS.NOT");
+            String fields = rest.substring(rest.indexOf('(') + 1, rest.lastIndexOf(')')).trim();
+            return message.filterHeaders(fields.replace("\"", "").split("\\s+"), isNot);
+        }
+        return null;
+    }
+
+    /**
+     * IMAPのENVELOPEを作成します。
+     *
+     * @return ENVELOPE
+     */
+    String toEnvelope() {
+        StringBuilder sb = new StringBuilder("(");
+        sb.append(nstring(getHeader("Date"))).append(' ');
+        sb.append(nstring(getHeader("Subject"))).append(' ');
+        String from = addressList("From");
+        sb.append(from).append(' ');
+        String sender = addressList("Sender");
+        sb.append("NIL".equals(sender) ? from : sender).append(' ');
+        String replyTo = addressList("Reply-To");
+        sb.append("NIL".equals(replyTo) ? from : replyTo).append(' ');
+        sb.append(addressList("To")).append(' ');
+        sb.append(addressList("Cc")).append(' ');
+        sb.append(addressList("Bcc")).append(' ');
+        sb.append(nstring(getHeader("In-Reply-To"))).append(' ');
+        sb.append(nstring(getHeader("Message-ID")));
+        return sb.append(')').toString();
+    }
+
+    /**
+     * IMAPのBODYSTRUCTUREを作成します。
+     *
+     * @return BODYSTRUCTURE
+     */
+    String toBodyStructure() {
+        StringBuilder sb = new StringBuilder("(");
+        if (childList != null) {
+            for (MimeStructure child : childList) {
+                sb.append(child.toBodyStructure());
+            }
+            sb.append(' ').append(nstring(contentType.getSubType()));
+            sb.append(' ').append(parameterList(contentType.getParameterList()));
+            sb.append(' ').append(disposition());
+            sb.append(' ').append(nstring(getHeader("Content-Language")));
+            return sb.append(')').toString();
+        }
+
+        sb.append(nstring(contentType.getPrimaryType())).append(' ');
+        sb.append(nstring(contentType.getSubType())).append(' ');
+        sb.append(parameterList(contentType.getParameterList())).append(' ');
+        sb.append(nstring(getHeader("Content-ID"))).append(' ');
+        sb.append(nstring(getHeader("Content-Description"))).append(' ');
+        String encoding = getHeader("Content-Transfer-Encoding");
+        sb.append(nstring(encoding == null ? "7BIT" : encoding.trim())).append(' ');
+        sb.append(end - bodyStart);
+        if (nestedMessage != null) {
+            sb.append(' ').append(nestedMessage.toEnvelope());
+            sb.append(' ').append(nestedMessage.toBodyStructure());
+            sb.append(' ').append(countLines(bodyStart, end));
+        } else if (contentType.match("text/*")) {
+            sb.append(' ').append(countLines(bodyStart, end));
+        }
+        sb.append(" NIL ").append(disposition());
+        sb.append(' ').append(nstring(getHeader("Content-Language")));
+        return sb.append(')').toString();
+    }
+
+    /**
+     * パートの番号に対応する子パートを取得します。
+     *
+     * @param number
+     *            パートの番号（1から開始）
+     * @return 子パート（存在しない場合はnull）
+     */
+    private MimeStructure getChild(int number) {
+        if (childList != null) {
+            return number >= 1 && number <= childList.size() ? childList.get(number - 1) : null;
+        }
+        return number == 1 ? this : null;
+    }
+
+    /**
+     * マルチパートを解析します。
+     *
+     * @param boundary
+     *            境界文字列
+     * @return 子パート
+     * @throws MessagingException
+     */
+    private List<MimeStructure> parseMultipart(String boundary) throws MessagingException {
+        byte[] delimiter = ProtocolConnection.toBytes("--" + boundary);
+        List<MimeStructure> partList = new ArrayList<MimeStructure>();
+        int partStart = -1;
+        int lineStart = bodyStart;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (startsWith(lineStart, lineEnd, delimiter)) {
+                int suffix = lineStart + delimiter.length;
+                boolean isClose = suffix + 1 < lineEnd && bytes[suffix] == '-' && bytes[suffix + 1] == '-';
+                if (isClose || isBlank(suffix, lineEnd)) {
+                    if (partStart >= 0) {
+                        int partEnd = lineStart;
+                        if (partEnd > partStart && bytes[partEnd - 1] == '\n') {
+                            partEnd--;
+                            if (partEnd > partStart && bytes[partEnd - 1] == '\r') {
+                                partEnd--;
+                            }
+                        }
+                        partList.add(new MimeStructure(bytes, partStart, partEnd));
+                    }
+                    if (isClose) {
+                        return partList;
+                    }
+                    partStart = Math.min(lineEnd + 1, end);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (partStart >= 0 && partStart < end) {
+            partList.add(new MimeStructure(bytes, partStart, end));
+        }
+        return partList;
+    }
+
+    /**
+     * 指定したヘッダを抽出（または除外）したヘッダのバイト列を作成します。
+     *
+     * @param names
+     *            ヘッダ名
+     * @param isNot
+     *            指定したヘッダを除外するかどうか
+     * @return ヘッダのバイト列（末尾に空行を含みます）
+     */
+    private byte[] filterHeaders(String[] names, boolean isNot) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Enumeration<?> lines = isNot ? headers.getNonMatchingHeaderLines(names) : headers.getMatchingHeaderLines(names);
+        while (lines.hasMoreElements()) {
+            byte[] line = ProtocolConnection.toBytes((String) lines.nextElement());
+            baos.write(line, 0, line.length);
+            baos.write('\r');
+            baos.write('\n');
+        }
+        baos.write('\r');
+        baos.write('\n');
+        return baos.toByteArray();
+    }
+
+    /**
+     * ヘッダの値を取得します（折り返しを解除します）。
+     *
+     * @param name
+     *            ヘッダ名
+     * @return ヘッダの値（存在しない場合はnull）
+     */
+    private String getHeader(String name) {
+        String value = headers.getHeader(name, null);
+        return value == null ? null : MimeUtility.unfold(value).trim();
+    }
+
+    /**
+     * アドレスのヘッダをIMAPのアドレスのリストに変換します。
+     *
+     * @param name
+     *            ヘッダ名
+     * @return アドレスのリスト（存在しない場合はNIL）
+     */
+    private String addressList(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return "NIL";
+        }
+        try {
+            InternetAddress[] addresses = InternetAddress.parseHeader(value, false);
+            if (addresses.length == 0) {
+                return "NIL";
+            }
+            StringBuilder sb = new StringBuilder("(");
+            for (InternetAddress address : addresses) {
+                if (address.isGroup()) {
+                    String group = address.getAddress();
+                    sb.append("(NIL NIL ").append(nstring(group.substring(0, group.indexOf(':')))).append(" NIL)");
+                    for (InternetAddress member : address.getGroup(false)) {
+                        appendAddress(sb, member);
+                    }
+                    sb.append("(NIL NIL NIL NIL)");
+                } else {
+                    appendAddress(sb, address);
+                }
+            }
+            return sb.append(')').toString();
+        } catch (AddressException e) {
+            return "NIL";
+        }
+    }
+
+    /**
+     * アドレスをIMAPのアドレスの形式で追加します。
+     *
+     * @param sb
+     *            追加先
+     * @param address
+     *            アドレス
+     */
+    private static void appendAddress(StringBuilder sb, InternetAddress address) {
+        String personal = address.getPersonal();
+        if (personal != null && !isAscii(personal)) {
+            try {
+                personal = MimeUtility.encodeWord(personal, "UTF-8", "B");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        String mailAddress = address.getAddress();
+        int at = mailAddress == null ? -1 : mailAddress.lastIndexOf('@');
+        sb.append('(').append(nstring(personal)).append(" NIL ");
+        sb.append(nstring(at < 0 ? mailAddress : mailAddress.substring(0, at))).append(' ');
+        sb.append(nstring(at < 0 ? null : mailAddress.substring(at + 1))).append(')');
+    }
+
+    /**
+     * Content-DispositionをIMAPの形式に変換します。
+     *
+     * @return Content-Disposition（存在しない場合はNIL）
+     */
+    private String disposition() {
+        String value = getHeader("Content-Disposition");
+        if (value == null) {
+            return "NIL";
+        }
+        try {
+            ContentDisposition disposition = new ContentDisposition(value);
+            return "(" + nstring(disposition.getDisposition()) + " "
+                    + parameterList(disposition.getParameterList()) + ")";
+        } catch (MessagingException e) {
+            return "NIL";
+        }
+    }
+
+    /**
+     * パラメータをIMAPの形式に変換します。
+     * <p>
+     * ASCII以外の文字を含む値は、RFC 2231の形式でエンコードします。
+     * </p>
+     *
+     * @param parameterList
+     *            パラメータ
+     * @return パラメータ（存在しない場合はNIL）
+     */
+    private static String parameterList(ParameterList parameterList) {
+        if (parameterList == null || parameterList.size() == 0) {
+            return "NIL";
+        }
+        StringBuilder sb = new StringBuilder("(");
+        Enumeration<?> names = parameterList.getNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            String value = parameterList.get(name);
+            if (sb.length() > 1) {
+                sb.append(' ');
+            }
+            if (isAscii(value)) {
+                sb.append(nstring(name)).append(' ').append(nstring(value));
+            } else {
+                sb.append(nstring(name + "*")).append(' ').append(nstring(encodeRfc2231(value)));
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * 値をRFC 2231の形式（UTF-8）でエンコードします。
+     *
+     * @param value
+     *            値
+     * @return エンコードした値
+     */
+    private static String encodeRfc2231(String value) {
+        StringBuilder sb = new StringBuilder("utf-8''");
+        try {
+            for (byte b : value.getBytes("UTF-8")) {
+                int c = b & 0xff;
+                if (c > 0x20 && c < 0x7f && "*'%()<>@,;:\\\"/[]?=".indexOf(c) < 0) {
+                    sb.append((char) c);
+                } else {
+                    sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)));
+                    sb.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 文字列をIMAPのnstring（NIL、引用符で囲んだ文字列、またはリテラル）に変換します。
+     *
+     * @param s
+     *            文字列
+     * @return nstring
+     */
+    static String nstring(String s) {
+        if (s == null) {
+            return "NIL";
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+                return "{" + ProtocolConnection.toBytes(s).length + "}\r\n" + s;
+            }
+        }
+        return "\"" + s + "\"";
+    }
+
+    /**
+     * Content-Typeを解析します。
+     *
+     * @param value
+     *            Content-Typeの値
+     * @return Content-Type（存在しない場合、解析できない場合はtext/plain）
+     */
+    private static ContentType parseContentType(String value) {
+        if (value != null) {
+            try {
+                return new ContentType(MimeUtility.unfold(value));
+            } catch (MessagingException e) {
+                // text/plainとして扱う。
+            }
+        }
+        ContentType cType = new ContentType("text", "plain", null);
+        cType.setParameter("charset", "us-ascii");
+        return cType;
+    }
+
+    /**
+     * ヘッダの終了位置（本文の開始位置）を検索します。
+     *
+     * @param bytes
+     *            メッセージのバイト列
+     * @param start
+     *            ヘッダの開始位置
+     * @param end
+     *            本文の終了位置
+     * @return 本文の開始位置
+     */
+    private static int findBodyStart(byte[] bytes, int start, int end) {
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == lineStart || (lineEnd == lineStart + 1 && bytes[lineStart] == '\r')) {
+                return Math.min(lineEnd + 1, end);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return end;
+    }
+
+    /**
+     * 行が指定したバイト列で始まるかどうかを判定します。
+     *
+     * @param lineStart
+     *            行の開始位置
+     * @param lineEnd
+     *            行の終了位置
+     * @param prefix
+     *            バイト列
+     * @return 指定したバイト列で始まるかどうか
+     */
+    private boolean startsWith(int lineStart, int lineEnd, byte[] prefix) {
+        if (lineEnd - lineStart < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[lineStart + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 範囲内が空白のみかどうかを判定します。
+     *
+     * @param from
+     *            開始位置
+     * @param to
+     *            終了位置
+     * @return 空白のみかどうか
+     */
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t' && bytes[i] != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 範囲内の行数を数えます。
+     *
+     * @param from
+     *            開始位置
+     * @param to
+     *            終了位置
+     * @return 行数
+     */
+    private int countLines(int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') {
+                lines++;
+            }
+        }
+        return to > from && bytes[to - 1] != '\n' ? lines + 1 : lines;
+    }
+
+    /**
+     * 範囲内のバイト列を複製します。
+     *
+     * @param from
+     *            開始位置
+     * @param to
+     *            終了位置
+     * @return バイト列
+     */
+    private byte[] copy(int from, int to) {
+        byte[] copied = new byte[to - from];
+        System.arraycopy(bytes, from, copied, 0, copied.length);
+        return copied;
+    }
+
+    /**
+     * 文字列がASCII文字のみで構成されるかどうかを判定します。
+     *
+     * @param s
+     *            文字列
+     * @return ASCII文字のみで構成されるかどうか
+     */
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.szmslab.quickjavamail.testserver.MailDirectory.Entry;
+
+/**
+ * {@link MailDirectory}のEMLファイルを配信する、負荷試験用のPOP3サーバです。
+ * <p>
+ * 認証（USER/PASS）は、全てのユーザを受け付けます。全てのユーザが同じメールボックスを参照します。
+ * 削除（DELE）はQUITコマンドの受信時に反映します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class Pop3Server extends AbstractServer {
+
+    /**
+     * ドット。
+     */
+    private static final byte[] DOT = {'.'};
+
+    /**
+     * 改行。
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * メールボックス。
+     */
+    private final MailDirectory mailDirectory;
+
+    /**
+     * コマンドの応答の遅延（ミリ秒）。
+     */
+    private volatile long commandLatency = 0;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param mailDirectory
+     *            メールボックス
+     */
+    public Pop3Server(MailDirectory mailDirectory) {
+        this.mailDirectory = mailDirectory;
+    }
+
+    /**
+     * コマンドの応答の遅延を設定します。
+     *
+     * @param commandLatency
+     *            コマンドの応答の遅延（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public Pop3Server latency(long commandLatency) {
+        this.commandLatency = commandLatency;
+        return this;
+    }
+
+    /**
+     * メールボックスを取得します。
+     *
+     * @return メールボックス
+     */
+    public MailDirectory getMailDirectory() {
+        return mailDirectory;
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.testserver.AbstractServer#handle(com.szmslab.quickjavamail.testserver.ProtocolConnection)
+     */
+    @Override
+    void handle(ProtocolConnection connection) throws Exception {
+        connection.writeLine("+OK quick-javamail Pop3Server ready");
+        List<Entry> entryList = null;
+        Set<Entry> deletedSet = new LinkedHashSet<Entry>();
+        String line;
+        while ((line = connection.readLine()) != null) {
+            String[] args = line.split(" ");
+            String command = args[0].toUpperCase();
+            sleep(commandLatency);
+            if ("CAPA".equals(command)) {
+                connection.write("+OK\r\nUSER\r\nUIDL\r\nTOP\r\n");
+                connection.writeLine(".");
+            } else if ("USER".equals(command)) {
+                connection.writeLine("+OK");
+            } else if ("PASS".equals(command)) {
+                mailDirectory.refresh();
+                entryList = mailDirectory.getEntries();
+                connection.writeLine("+OK " + entryList.size() + " messages");
+            } else if ("QUIT".equals(command)) {
+                if (!deletedSet.isEmpty()) {
+                    mailDirectory.remove(deletedSet);
+                }
+                connection.writeLine("+OK Bye");
+                return;
+            } else if ("NOOP".equals(command)) {
+                connection.writeLine("+OK");
+            } else if (entryList == null) {
+                connection.writeLine("-ERR Not authenticated");
+            } else if ("STAT".equals(command)) {
+                long size = 0;
+                int count = 0;
+                for (Entry entry : entryList) {
+                    if (!deletedSet.contains(entry)) {
+                        size += entry.getSize();
+                        count++;
+                    }
+                }
+                connection.writeLine("+OK " + count + " " + size);
+            } else if ("LIST".equals(command) || "UIDL".equals(command)) {
+                boolean isUidl = "UIDL".equals(command);
+                if (args.length > 1) {
+                    Entry entry = getEntry(entryList, deletedSet, args[1]);
+                    if (entry == null) {
+                        connection.writeLine("-ERR No such message");
+                    } else {
+                        connection.writeLine("+OK " + args[1] + " " + (isUidl ? uidl(entry) : entry.getSize()));
+                    }
+                    continue;
+                }
+                connection.write("+OK\r\n");
+                for (int i = 0; i < entryList.size(); i++) {
+                    Entry entry = entryList.get(i);
+                    if (!deletedSet.contains(entry)) {
+                        connection.write((i + 1) + " " + (isUidl ? uidl(entry) : entry.getSize()) + "\r\n");
+                    }
+                }
+                connection.writeLine(".");
+            } else if ("RETR".equals(command) || "TOP".equals(command)) {
+                Entry entry = args.length > 1 ? getEntry(entryList, deletedSet, args[1]) : null;
+                if (entry == null) {
+                    connection.writeLine("-ERR No such message");
+                    continue;
+                }
+                int bodyLines = -1;
+                if ("TOP".equals(command)) {
+                    bodyLines = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+                }
+                connection.write("+OK " + entry.getSize() + " octets\r\n");
+                writeStuffed(connection, entry.getContent(), bodyLines);
+                connection.writeLine(".");
+            } else if ("DELE".equals(command)) {
+                Entry entry = args.length > 1 ? getEntry(entryList, deletedSet, args[1]) : null;
+                if (entry == null) {
+                    connection.writeLine("-ERR No such message");
+                } else {
+                    deletedSet.add(entry);
+                    connection.writeLine("+OK");
+                }
+            } else if ("RSET".equals(command)) {
+                deletedSet.clear();
+                connection.writeLine("+OK");
+            } else {
+                connection.writeLine("-ERR Command not recognized");
+            }
+        }
+    }
+
+    /**
+     * メッセージ番号に対応するメッセージを取得します。
+     *
+     * @param entryList
+     *            メッセージの一覧
+     * @param deletedSet
+     *            削除したメッセージ
+     * @param number
+     *            メッセージ番号
+     * @return メッセージ（存在しない場合はnull）
+     */
+    private static Entry getEntry(List<Entry> entryList, Set<Entry> deletedSet, String number) {
+        try {
+            int index = Integer.parseInt(number) - 1;
+            if (index < 0 || index >= entryList.size() || deletedSet.contains(entryList.get(index))) {
+                return null;
+            }
+            return entryList.get(index);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * UIDLの応答に使用する一意な識別子を取得します。
+     *
+     * @param entry
+     *            メッセージ
+     * @return 一意な識別子
+     */
+    private String uidl(Entry entry) {
+        return mailDirectory.getUidValidity() + "." + entry.getUid();
+    }
+
+    /**
+     * メッセージの行頭のドットを二重にして書き込みます。
+     *
+     * @param connection
+     *            接続
+     * @param content
+     *            メッセージの内容
+     * @param bodyLines
+     *            書き込む本文の行数（負の場合は全て）
+     * @throws IOException
+     */
+    static void writeStuffed(ProtocolConnection connection, byte[] content, int bodyLines) throws IOException {
+        boolean isBody = false;
+        int writtenBodyLines = 0;
+        int start = 0;
+        while (start < content.length) {
+            if (isBody && bodyLines >= 0 && writtenBodyLines++ >= bodyLines) {
+                break;
+            }
+            int next = start;
+            while (next < content.length && content[next] != '\n') {
+                next++;
+            }
+            int end = next > start && next < content.length && content[next - 1] == '\r' ? next - 1 : next;
+            if (end > start && content[start] == '.') {
+                connection.write(DOT);
+            }
+            connection.write(content, start, end - start);
+            connection.write(CRLF);
+            if (!isBody && end == start) {
+                isBody = true;
+            }
+            start = next + 1;
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * 行単位のプロトコルの接続を扱うクラスです。
+ *
+ * @author szmslab
+ */
+class ProtocolConnection {
+
+    /**
+     * ソケット。
+     */
+    private final Socket socket;
+
+    /**
+     * 入力ストリーム。
+     */
+    private final InputStream in;
+
+    /**
+     * 出力ストリーム。
+     */
+    private final OutputStream out;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param socket
+     *            ソケット
+     * @throws IOException
+     */
+    ProtocolConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * 1行読み込みます。
+     *
+     * @return 行（改行を含みません。接続が閉じられた場合はnull）
+     * @throws IOException
+     */
+    String readLine() throws IOException {
+        byte[] bytes = readLineBytes();
+        return bytes == null ? null : new String(bytes, "ISO-8859-1");
+    }
+
+    /**
+     * 1行読み込みます。
+     *
+     * @return 行のバイト列（改行を含みません。接続が閉じられた場合はnull）
+     * @throws IOException
+     */
+    byte[] readLineBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = baos.toByteArray();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    byte[] trimmed = new byte[length - 1];
+                    System.arraycopy(bytes, 0, trimmed, 0, trimmed.length);
+                    return trimmed;
+                }
+                return bytes;
+            }
+            baos.write(b);
+        }
+        return baos.size() == 0 ? null : baos.toByteArray();
+    }
+
+    /**
+     * 指定したバイト数を読み込みます。
+     *
+     * @param length
+     *            バイト数
+     * @return バイト列
+     * @throws IOException
+     */
+    byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(bytes, offset, length - offset);
+            if (n < 0) {
+                throw new IOException("Connection closed");
+            }
+            offset += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * 1行書き込み、送信します。
+     *
+     * @param line
+     *            行（改行を含みません）
+     * @throws IOException
+     */
+    void writeLine(String line) throws IOException {
+        write(line);
+        write("\r\n");
+        flush();
+    }
+
+    /**
+     * 文字列を書き込みます（送信はしません）。
+     *
+     * @param s
+     *            文字列
+     * @throws IOException
+     */
+    void write(String s) throws IOException {
+        out.write(toBytes(s));
+    }
+
+    /**
+     * バイト列を書き込みます（送信はしません）。
+     *
+     * @param bytes
+     *            バイト列
+     * @throws IOException
+     */
+    void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * バイト列を書き込みます（送信はしません）。
+     *
+     * @param bytes
+     *            バイト列
+     * @param offset
+     *            開始位置
+     * @param length
+     *            バイト数
+     * @throws IOException
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * 書き込んだ内容を送信します。
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * 入力データを待機します（入力データは読み込みません）。
+     *
+     * @param timeout
+     *            待機する時間（ミリ秒）
+     * @return 入力データがあるかどうか
+     * @throws IOException
+     *             接続が閉じられた場合
+     */
+    boolean waitForInput(int timeout) throws IOException {
+        if (in.available() > 0) {
+            return true;
+        }
+        socket.setSoTimeout(timeout);
+        try {
+            in.mark(1);
+            if (in.read() == -1) {
+                throw new EOFException("Connection closed");
+            }
+            in.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    /**
+     * 接続を閉じます。
+     */
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 既に閉じられている場合は無視する。
+        }
+    }
+
+    /**
+     * 文字列をバイト列に変換します。
+     *
+     * @param s
+     *            文字列
+     * @return バイト列（ISO-8859-1）
+     */
+    static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.testserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 受信したメールを破棄（または保存）する、負荷試験用のSMTPサーバです。
+ * <p>
+ * コマンドごとの応答の遅延、宛先の拒否、DATAコマンドの一時的・恒久的なエラー、切断を注入できます。
+ * 認証（AUTH PLAIN、AUTH LOGIN）は、全てのユーザを受け付けます。STARTTLSには対応していません。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class SmtpSinkServer extends AbstractServer {
+
+    /**
+     * コマンドの応答の遅延（ミリ秒）。
+     */
+    private volatile long commandLatency = 0;
+
+    /**
+     * メッセージの受け付け応答の遅延（ミリ秒）。
+     */
+    private volatile long dataLatency = 0;
+
+    /**
+     * 恒久的なエラー（550）で拒否する宛先（部分一致）。
+     */
+    private volatile List<String> rejectedRecipientList = Collections.emptyList();
+
+    /**
+     * 一時的なエラー（450）で拒否する宛先（部分一致）。
+     */
+    private volatile List<String> deferredRecipientList = Collections.emptyList();
+
+    /**
+     * メッセージをエラーで拒否する確率（0～1）。
+     */
+    private volatile double dataFailureRate = 0;
+
+    /**
+     * メッセージを拒否する場合の応答。
+     */
+    private volatile String dataFailureReply = "451 4.3.0 Temporary failure injected";
+
+    /**
+     * メッセージの受信後、応答せずに切断する確率（0～1）。
+     */
+    private volatile double disconnectRate = 0;
+
+    /**
+     * 受信したメッセージの保存先ディレクトリ。
+     */
+    private volatile File messageDirectory;
+
+    /**
+     * 受信したメッセージをメモリ上に保持するかどうか。
+     */
+    private volatile boolean isKeepMessages = false;
+
+    /**
+     * メモリ上に保持したメッセージ。
+     */
+    private final List<byte[]> messageList = Collections.synchronizedList(new ArrayList<byte[]>());
+
+    /**
+     * 乱数（エラーの注入に使用します）。
+     */
+    private final Random random = new Random();
+
+    /**
+     * 受け付けたメッセージ数。
+     */
+    private final AtomicInteger messageCount = new AtomicInteger(0);
+
+    /**
+     * 受け付けた宛先数。
+     */
+    private final AtomicInteger recipientCount = new AtomicInteger(0);
+
+    /**
+     * 拒否した宛先数。
+     */
+    private final AtomicInteger rejectedRecipientCount = new AtomicInteger(0);
+
+    /**
+     * 拒否したメッセージ数。
+     */
+    private final AtomicInteger rejectedMessageCount = new AtomicInteger(0);
+
+    /**
+     * 受け付けたメッセージのバイト数。
+     */
+    private final AtomicLong byteCount = new AtomicLong(0);
+
+    /**
+     * メッセージを保存したファイルの通番。
+     */
+    private final AtomicLong fileSequence = new AtomicLong(0);
+
+    /**
+     * コマンドの応答の遅延を設定します。
+     *
+     * @param commandLatency
+     *            コマンドの応答の遅延（ミリ秒）
+     * @param dataLatency
+     *            メッセージの受け付け応答の遅延（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer latency(long commandLatency, long dataLatency) {
+        this.commandLatency = commandLatency;
+        this.dataLatency = dataLatency;
+        return this;
+    }
+
+    /**
+     * 恒久的なエラー（550）で拒否する宛先を設定します。
+     *
+     * @param patterns
+     *            拒否する宛先（部分一致）
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer rejectRecipients(String... patterns) {
+        this.rejectedRecipientList = Arrays.asList(patterns);
+        return this;
+    }
+
+    /**
+     * 一時的なエラー（450）で拒否する宛先を設定します。
+     *
+     * @param patterns
+     *            拒否する宛先（部分一致）
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer deferRecipients(String... patterns) {
+        this.deferredRecipientList = Arrays.asList(patterns);
+        return this;
+    }
+
+    /**
+     * メッセージをエラーで拒否する確率と応答を設定します。
+     *
+     * @param rate
+     *            拒否する確率（0～1）
+     * @param reply
+     *            拒否する場合の応答（例：451 4.3.0 Try again later）
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer dataFailure(double rate, String reply) {
+        this.dataFailureRate = rate;
+        this.dataFailureReply = reply;
+        return this;
+    }
+
+    /**
+     * メッセージの受信後、応答せずに切断する確率を設定します。
+     *
+     * @param rate
+     *            切断する確率（0～1）
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer disconnectRate(double rate) {
+        this.disconnectRate = rate;
+        return this;
+    }
+
+    /**
+     * 受信したメッセージの保存先ディレクトリを設定します。
+     * <p>
+     * 保存したEMLファイルは、{@link MailDirectory}でPOP3、IMAPのサーバから参照できます。
+     * </p>
+     *
+     * @param messageDirectory
+     *            受信したメッセージの保存先ディレクトリ
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer messageDirectory(File messageDirectory) {
+        if (messageDirectory != null) {
+            messageDirectory.mkdirs();
+        }
+        this.messageDirectory = messageDirectory;
+        return this;
+    }
+
+    /**
+     * 受信したメッセージをメモリ上に保持するかどうかを設定します。
+     *
+     * @param isKeepMessages
+     *            受信したメッセージをメモリ上に保持するかどうか
+     * @return 自身のインスタンス
+     */
+    public SmtpSinkServer keepMessages(boolean isKeepMessages) {
+        this.isKeepMessages = isKeepMessages;
+        return this;
+    }
+
+    /**
+     * メモリ上に保持したメッセージを取得します。
+     *
+     * @return メモリ上に保持したメッセージ
+     */
+    public List<byte[]> getMessages() {
+        synchronized (messageList) {
+            return new ArrayList<byte[]>(messageList);
+        }
+    }
+
+    /**
+     * 受け付けたメッセージ数を取得します。
+     *
+     * @return 受け付けたメッセージ数
+     */
+    public int getMessageCount() {
+        return messageCount.get();
+    }
+
+    /**
+     * 受け付けた宛先数を取得します。
+     *
+     * @return 受け付けた宛先数
+     */
+    public int getRecipientCount() {
+        return recipientCount.get();
+    }
+
+    /**
+     * 拒否した宛先数を取得します。
+     *
+     * @return 拒否した宛先数
+     */
+    public int getRejectedRecipientCount() {
+        return rejectedRecipientCount.get();
+    }
+
+    /**
+     * 拒否したメッセージ数を取得します。
+     *
+     * @return 拒否したメッセージ数
+     */
+    public int getRejectedMessageCount() {
+        return rejectedMessageCount.get();
+    }
+
+    /**
+     * 受け付けたメッセージのバイト数を取得します。
+     *
+     * @return 受け付けたメッセージのバイト数
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.testserver.AbstractServer#handle(com.szmslab.quickjavamail.testserver.ProtocolConnection)
+     */
+    @Override
+    void handle(ProtocolConnection connection) throws Exception {
+        connection.writeLine("220 localhost ESMTP quick-javamail SmtpSinkServer");
+        int transactionRecipients = 0;
+        boolean hasSender = false;
+        String line;
+        while ((line = connection.readLine()) != null) {
+            String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+            sleep(commandLatency);
+            if ("EHLO".equals(command)) {
+                connection.write("250-localhost\r\n250-8BITMIME\r\n250-SIZE 0\r\n");
+                connection.writeLine("250 AUTH PLAIN LOGIN");
+            } else if ("HELO".equals(command)) {
+                connection.writeLine("250 localhost");
+            } else if ("AUTH".equals(command)) {
+                authenticate(connection, line);
+            } else if ("MAIL".equals(command)) {
+                hasSender = true;
+                transactionRecipients = 0;
+                connection.writeLine("250 2.1.0 Ok");
+            } else if ("RCPT".equals(command)) {
+                if (!hasSender) {
+                    connection.writeLine("503 5.5.1 Need MAIL command");
+                } else if (matches(line, rejectedRecipientList)) {
+                    rejectedRecipientCount.incrementAndGet();
+                    connection.writeLine("550 5.1.1 Recipient rejected");
+                } else if (matches(line, deferredRecipientList)) {
+                    rejectedRecipientCount.incrementAndGet();
+                    connection.writeLine("450 4.2.1 Recipient deferred");
+                } else {
+                    transactionRecipients++;
+                    connection.writeLine("250 2.1.5 Ok");
+                }
+            } else if ("DATA".equals(command)) {
+                if (transactionRecipients == 0) {
+                    connection.writeLine("554 5.5.1 No valid recipients");
+                    continue;
+                }
+                connection.writeLine("354 End data with <CR><LF>.<CR><LF>");
+                byte[] message = readData(connection);
+                sleep(dataLatency);
+                if (disconnectRate > 0 && random.nextDouble() < disconnectRate) {
+                    return;
+                }
+                if (dataFailureRate > 0 && random.nextDouble() < dataFailureRate) {
+                    rejectedMessageCount.incrementAndGet();
+                    connection.writeLine(dataFailureReply);
+                } else {
+                    accept(message, transactionRecipients);
+                    connection.writeLine("250 2.0.0 Ok: queued");
+                }
+                hasSender = false;
+                transactionRecipients = 0;
+            } else if ("RSET".equals(command)) {
+                hasSender = false;
+                transactionRecipients = 0;
+                connection.writeLine("250 2.0.0 Ok");
+            } else if ("NOOP".equals(command)) {
+                connection.writeLine("250 2.0.0 Ok");
+            } else if ("QUIT".equals(command)) {
+                connection.writeLine("221 2.0.0 Bye");
+                return;
+            } else {
+                connection.writeLine("502 5.5.2 Command not recognized");
+            }
+        }
+    }
+
+    /**
+     * 認証します（全てのユーザを受け付けます）。
+     *
+     * @param connection
+     *            接続
+     * @param line
+     *            AUTHコマンドの行
+     * @throws IOException
+     */
+    private void authenticate(ProtocolConnection connection, String line) throws IOException {
+        String[] args = line.split(" ");
+        String mechanism = args.length > 1 ? args[1].toUpperCase() : "";
+        if ("PLAIN".equals(mechanism)) {
+            if (args.length < 3) {
+                connection.writeLine("334 ");
+                connection.readLine();
+            }
+        } else if ("LOGIN".equals(mechanism)) {
+            if (args.length < 3) {
+                connection.writeLine("334 VXNlcm5hbWU6");
+                connection.readLine();
+            }
+            connection.writeLine("334 UGFzc3dvcmQ6");
+            connection.readLine();
+        } else {
+            connection.writeLine("504 5.5.4 Unrecognized authentication type");
+            return;
+        }
+        connection.writeLine("235 2.7.0 Authentication successful");
+    }
+
+    /**
+     * メッセージを読み込みます（ドットの除去を行います）。
+     *
+     * @param connection
+     *            接続
+     * @return メッセージ
+     * @throws IOException
+     */
+    private byte[] readData(ProtocolConnection connection) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(8 * 1024);
+        byte[] line;
+        while ((line = connection.readLineBytes()) != null) {
+            if (line.length == 1 && line[0] == '.') {
+                break;
+            }
+            int offset = line.length > 1 && line[0] == '.' ? 1 : 0;
+            baos.write(line, offset, line.length - offset);
+            baos.write('\r');
+            baos.write('\n');
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * メッセージを受け付けます。
+     *
+     * @param message
+     *            メッセージ
+     * @param recipients
+     *            宛先数
+     * @throws IOException
+     */
+    private void accept(byte[] message, int recipients) throws IOException {
+        messageCount.incrementAndGet();
+        recipientCount.addAndGet(recipients);
+        byteCount.addAndGet(message.length);
+        if (isKeepMessages) {
+            messageList.add(message);
+        }
+        File directory = messageDirectory;
+        if (directory != null) {
+            File file = new File(directory, String.format("%013d-%06d.eml",
+                    System.currentTimeMillis(), fileSequence.incrementAndGet()));
+            OutputStream os = new FileOutputStream(file);
+            try {
+                os.write(message);
+            } finally {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * 行がいずれかのパターンを含むかどうかを判定します。
+     *
+     * @param line
+     *            行
+     * @param patternList
+     *            パターン
+     * @return いずれかのパターンを含むかどうか
+     */
+    private static boolean matches(String line, List<String> patternList) {
+        for (String pattern : patternList) {
+            if (line.contains(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * 処理済みのメッセージの位置をプロパティファイルに保存するクラスです。
+ * <p>
+ * 「キー=UIDVALIDITY:UID」の形式で保存します。
+ * 一時ファイルに書き込んで同期してから置き換えるため、書き込み中に停止しても以前の内容が残ります。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class FileSyncCheckpointStore implements SyncCheckpointStore {
+
+    /**
+     * 保存先のファイル。
+     */
+    private final File file;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param file
+     *            保存先のファイル
+     */
+    public FileSyncCheckpointStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 保存先のファイルを取得します。
+     *
+     * @return 保存先のファイル
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.receive.SyncCheckpointStore#load(java.lang.String)
+     */
+    @Override
+    public synchronized SyncCheckpoint load(String key) throws IOException {
+        String value = read().getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        int index = value.indexOf(':');
+        try {
+            return new SyncCheckpoint(Long.parseLong(value.substring(0, index).trim()),
+                    Long.parseLong(value.substring(index + 1).trim()));
+        } catch (RuntimeException e) {
+            // 壊れた値は保存されていないものとして、最初から受信する。
+            System.out.println(e);
+            return null;
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.receive.SyncCheckpointStore#save(java.lang.String, com.szmslab.quickjavamail.receive.SyncCheckpoint)
+     */
+    @Override
+    public synchronized void save(String key, SyncCheckpoint checkpoint) throws IOException {
+        Properties properties = read();
+        properties.setProperty(key, checkpoint.toString());
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            properties.store(os, null);
+            os.flush();
+            os.getFD().sync();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        // Windowsでは既存のファイルに上書きできないため、削除してから置き換える。
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+        }
+    }
+
+    /**
+     * 保存先のファイルを読み込みます。
+     *
+     * @return 保存されている内容（ファイルが存在しない場合は空）
+     * @throws IOException
+     */
+    private Properties read() throws IOException {
+        Properties properties = new Properties();
+        if (!file.exists()) {
+            return properties;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            properties.load(is);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return properties;
+    }
+
+}
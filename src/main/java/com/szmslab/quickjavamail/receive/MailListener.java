@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Folder;
+import javax.mail.FolderClosedException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.StoreClosedException;
+import javax.mail.UIDFolder;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+
+/**
+ * 接続を維持したまま新しいメッセージを待ち受け、到着したメッセージをコールバックに通知するクラスです。
+ * <p>
+ * {@link MailReceiver#execute(ReceiveIterationCallback)}を定期的に呼び出す代わりに使用します。
+ * サーバがIDLEに対応している場合はIDLEで、対応していない場合はNOOPを一定間隔で送信して、新しいメッセージを検知します。
+ * 新しいメッセージは、処理済みの最大のUIDより大きいUIDの範囲で取得するため、切断中に到着したメッセージも再接続後に通知します。
+ * </p>
+ * <p>
+ * 接続が切れた場合は、待機時間を延ばしながら再接続します。
+ * コールバックが例外をスローした場合は、そのメッセージを読み飛ばして処理済みとし、次のメッセージを通知します
+ * （接続が切れたことによる例外の場合は、再接続後に再度通知します）。
+ * 待ち受けを行うスレッドに割り込んだ場合は、待ち受けを終了します（IDLEで待機中の場合は、IDLEが終了した時点で終了します）。
+ * コールバックがfalseを返した場合は、待ち受けを終了します。
+ * 差分受信（{@link MailReceiver#incremental(SyncCheckpointStore)}）を設定した場合は、処理済みの位置から再開し、
+ * 通知するたびに位置を保存します。設定していない場合は、開始した時点より後に到着したメッセージのみを通知します。
+ * UIDFolderに対応したプロトコル（IMAP）でのみ使用できます。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class MailListener {
+
+    /**
+     * 受信の設定。
+     */
+    private final MailReceiver receiver;
+
+    /**
+     * メール受信結果1件を処理するコールバック。
+     */
+    private final ReceiveIterationCallback callback;
+
+    /**
+     * サーバが対応している場合にIDLEを使用するかどうか。
+     */
+    private boolean useIdle = true;
+
+    /**
+     * IDLEを使用しない場合に、NOOPを送信する間隔（ミリ秒）。
+     */
+    private long pollInterval = 5000;
+
+    /**
+     * IDLEを再開する間隔（ミリ秒）。
+     */
+    private long idleRenewInterval = 9 * 60 * 1000;
+
+    /**
+     * 最初の再接続までの待機時間（ミリ秒）。
+     */
+    private long initialReconnectDelay = 1000;
+
+    /**
+     * 再接続までの待機時間の上限（ミリ秒）。
+     */
+    private long maxReconnectDelay = 60000;
+
+    /**
+     * 待ち受けを行うスレッド。
+     */
+    private Thread listenerThread;
+
+    /**
+     * IDLEを再開するためのタイマー。
+     */
+    private Timer renewTimer;
+
+    /**
+     * 待ち受け中かどうか。
+     */
+    private volatile boolean isRunning = false;
+
+    /**
+     * 接続中のフォルダ（接続していない場合はnull）。
+     */
+    private volatile Folder currentFolder;
+
+    /**
+     * 新しいメッセージが追加されたことを通知されたかどうか。
+     */
+    private final AtomicBoolean isAdded = new AtomicBoolean(false);
+
+    /**
+     * NOOPの送信間隔、再接続の待機に使用するロック。
+     */
+    private final Object waitLock = new Object();
+
+    /**
+     * UIDVALIDITY（接続していない場合は-1）。
+     */
+    private long uidValidity = -1;
+
+    /**
+     * 通知済みの最大のUID（開始していない場合は-1）。
+     */
+    private long lastUid = -1;
+
+    /**
+     * 最後に確認したメッセージ数。
+     */
+    private int lastCount = -1;
+
+    /**
+     * 通知したメッセージ数。
+     */
+    private final AtomicLong deliveredCount = new AtomicLong(0);
+
+    /**
+     * コールバックが例外をスローしたため、読み飛ばしたメッセージ数。
+     */
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    /**
+     * 再接続した回数。
+     */
+    private final AtomicLong reconnectCount = new AtomicLong(0);
+
+    /**
+     * コンストラクタです。
+     *
+     * @param receiver
+     *            受信の設定（接続先、フォルダ名、先読みする情報、差分受信の保存先など）
+     * @param callback
+     *            メール受信結果1件を処理するコールバック
+     */
+    public MailListener(MailReceiver receiver, ReceiveIterationCallback callback) {
+        this.receiver = receiver;
+        this.callback = callback;
+    }
+
+    /**
+     * サーバが対応している場合にIDLEを使用するかどうかを設定します。
+     *
+     * @param useIdle
+     *            IDLEを使用するかどうか（falseの場合は常にNOOPを送信します）
+     * @return 自身のインスタンス
+     */
+    public MailListener useIdle(boolean useIdle) {
+        this.useIdle = useIdle;
+        return this;
+    }
+
+    /**
+     * IDLEを使用しない場合に、NOOPを送信する間隔を設定します。
+     *
+     * @param pollInterval
+     *            NOOPを送信する間隔（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public MailListener pollInterval(long pollInterval) {
+        this.pollInterval = Math.max(pollInterval, 1);
+        return this;
+    }
+
+    /**
+     * IDLEを再開する間隔を設定します。
+     * <p>
+     * サーバに切断されないよう、30分より短い間隔（RFC 2177）で再開してください。
+     * </p>
+     *
+     * @param idleRenewInterval
+     *            IDLEを再開する間隔（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public MailListener idleRenewInterval(long idleRenewInterval) {
+        this.idleRenewInterval = Math.max(idleRenewInterval, 1);
+        return this;
+    }
+
+    /**
+     * 再接続までの待機時間を設定します。
+     * <p>
+     * 再接続に失敗するたびに待機時間を2倍にし、接続に成功したら最初の待機時間に戻します。
+     * </p>
+     *
+     * @param initialReconnectDelay
+     *            最初の再接続までの待機時間（ミリ秒）
+     * @param maxReconnectDelay
+     *            再接続までの待機時間の上限（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public MailListener reconnectDelay(long initialReconnectDelay, long maxReconnectDelay) {
+        this.initialReconnectDelay = Math.max(initialReconnectDelay, 0);
+        this.maxReconnectDelay = Math.max(maxReconnectDelay, this.initialReconnectDelay);
+        return this;
+    }
+
+    /**
+     * 待ち受けを開始します。
+     *
+     * @return 自身のインスタンス
+     */
+    public synchronized MailListener start() {
+        if (listenerThread != null) {
+            throw new IllegalStateException("MailListener is already started");
+        }
+        isRunning = true;
+        renewTimer = new Timer("MailListener-IdleRenew", true);
+        listenerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        }, "MailListener-" + receiver.getFolderName());
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        return this;
+    }
+
+    /**
+     * 待ち受けを停止します。
+     * <p>
+     * 通知中のメッセージの処理が完了してから、接続を閉じます。
+     * </p>
+     */
+    public void stop() {
+        isRunning = false;
+        synchronized (waitLock) {
+            waitLock.notifyAll();
+        }
+        abortIdle();
+    }
+
+    /**
+     * 待ち受けが終了するまで待機します。
+     *
+     * @param timeoutMillis
+     *            最大待機時間（ミリ秒）
+     * @return 終了した場合はtrue、タイムアウトした場合はfalse
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = listenerThread;
+        }
+        if (thread == null) {
+            return true;
+        }
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    /**
+     * 待ち受け中かどうかを取得します。
+     *
+     * @return 待ち受け中かどうか
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * 接続中かどうかを取得します。
+     *
+     * @return 接続中かどうか
+     */
+    public boolean isConnected() {
+        Folder folder = currentFolder;
+        return folder != null && folder.isOpen();
+    }
+
+    /**
+     * 通知したメッセージ数を取得します。
+     *
+     * @return 通知したメッセージ数
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * コールバックが例外をスローしたため、読み飛ばしたメッセージ数を取得します。
+     *
+     * @return 読み飛ばしたメッセージ数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 再接続した回数を取得します。
+     *
+     * @return 再接続した回数
+     */
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    /**
+     * 待ち受けを行うスレッドの処理です。
+     */
+    private void listen() {
+        long delay = initialReconnectDelay;
+        try {
+            while (isRunning) {
+                Store store = null;
+                Folder folder = null;
+                try {
+                    final Session session = receiver.createSession();
+                    store = session.getStore(receiver.getProperties().getProtocol());
+                    store.connect();
+
+                    folder = store.getFolder(receiver.getFolderName());
+                    if (!(folder instanceof UIDFolder)) {
+                        throw new MessagingException("MailListener is not supported: " + folder.getClass().getName());
+                    }
+                    folder.addMessageCountListener(new MessageCountAdapter() {
+                        @Override
+                        public void messagesAdded(MessageCountEvent e) {
+                            isAdded.set(true);
+                            synchronized (waitLock) {
+                                waitLock.notifyAll();
+                            }
+                        }
+                    });
+                    folder.open(receiver.isReadonly() ? Folder.READ_ONLY : Folder.READ_WRITE);
+                    currentFolder = folder;
+                    delay = initialReconnectDelay;
+
+                    resume(folder);
+                    final boolean isIdle = useIdle && folder instanceof IMAPFolder
+                            && store instanceof IMAPStore && ((IMAPStore) store).hasCapability("IDLE");
+                    while (isRunning) {
+                        if (!deliver(folder)) {
+                            isRunning = false;
+                            break;
+                        }
+                        if (Thread.interrupted()) {
+                            // IDLEでの待機中は割り込みで中断されないため、待機の終了後に確認する。
+                            throw new InterruptedException();
+                        }
+                        if (isRunning) {
+                            waitForMessages(folder, isIdle);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // 割り込まれた場合は、再接続せずに終了する。
+                    throw e;
+                } catch (Exception e) {
+                    if (isRunning) {
+                        System.out.println(e);
+                    }
+                } finally {
+                    currentFolder = null;
+                    close(store, folder);
+                }
+                if (isRunning) {
+                    synchronized (waitLock) {
+                        if (isRunning) {
+                            waitLock.wait(Math.max(delay, 1));
+                        }
+                    }
+                    delay = Math.min(Math.max(delay * 2, 1), maxReconnectDelay);
+                    reconnectCount.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            isRunning = false;
+        } finally {
+            renewTimer.cancel();
+        }
+    }
+
+    /**
+     * 接続時に、通知を再開する位置を決定します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @throws Exception
+     */
+    private void resume(Folder folder) throws Exception {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final long currentUidValidity = uidFolder.getUIDValidity();
+        final SyncCheckpointStore checkpointStore = receiver.getCheckpointStore();
+        if (checkpointStore != null) {
+            SyncCheckpoint checkpoint = checkpointStore.load(receiver.getCheckpointKey());
+            lastUid = checkpoint != null ? checkpoint.getNextUid(currentUidValidity) - 1 : 0;
+        } else if (lastUid < 0 || uidValidity != currentUidValidity) {
+            // 開始時、UIDVALIDITYが変わった場合は、現在の最後のメッセージより後から通知する。
+            int count = folder.getMessageCount();
+            lastUid = count > 0 ? uidFolder.getUID(folder.getMessage(count)) : 0;
+        }
+        uidValidity = currentUidValidity;
+        lastCount = -1;
+    }
+
+    /**
+     * 通知済みの最大のUIDより後のメッセージを、コールバックに通知します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @return 待ち受けを継続するかどうか
+     * @throws Exception
+     */
+    private boolean deliver(final Folder folder) throws Exception {
+        final boolean added = isAdded.getAndSet(false);
+        final int count = folder.getMessageCount();
+        if (count == lastCount && !added) {
+            return true;
+        }
+        lastCount = count;
+        if (count == 0) {
+            return true;
+        }
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final long currentLastUid = uidFolder.getUID(folder.getMessage(count));
+        if (currentLastUid <= lastUid) {
+            return true;
+        }
+
+        final Message[] messages = uidFolder.getMessagesByUID(lastUid + 1, currentLastUid);
+        final MailReceiver.SyncProgress progress = new MailReceiver.SyncProgress(uidFolder, uidValidity, lastUid);
+        try {
+            return receiver.iterate(folder, messages, new ReceiveIterationCallback() {
+                @Override
+                public boolean iterate(MessageLoader loader) throws Exception {
+                    boolean isContinued;
+                    try {
+                        isContinued = callback.iterate(loader);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        if (isConnectionFailure(folder, e)) {
+                            throw e;
+                        }
+                        // 同じメッセージを繰り返し通知しないよう、読み飛ばして処理済みとする。
+                        e.printStackTrace();
+                        failedCount.incrementAndGet();
+                        return true;
+                    }
+                    deliveredCount.incrementAndGet();
+                    return isContinued;
+                }
+            }, progress);
+        } finally {
+            long processedUid = progress.toCheckpoint().getLastUid();
+            if (processedUid > lastUid) {
+                lastUid = processedUid;
+                if (receiver.getCheckpointStore() != null) {
+                    receiver.getCheckpointStore().save(receiver.getCheckpointKey(), progress.toCheckpoint());
+                }
+            }
+            receiver.release(messages);
+            if (!receiver.isReadonly() && folder.isOpen()) {
+                folder.expunge();
+                lastCount = folder.getMessageCount();
+            }
+        }
+    }
+
+    /**
+     * コールバックがスローした例外が、接続が切れたことによるものかどうかを判定します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @param e
+     *            コールバックがスローした例外
+     * @return 接続が切れたことによる例外かどうか
+     */
+    private static boolean isConnectionFailure(Folder folder, Exception e) {
+        return e instanceof FolderClosedException || e instanceof StoreClosedException || !folder.isOpen();
+    }
+
+    /**
+     * 新しいメッセージが到着するまで待機します。
+     * <p>
+     * IDLEを使用する場合は、サーバから通知があるか、IDLEを再開する間隔が経過するまで待機します。
+     * 使用しない場合は、NOOPを送信する間隔だけ待機してから、NOOPを送信します。
+     * </p>
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @param isIdle
+     *            IDLEを使用するかどうか
+     * @throws Exception
+     */
+    private void waitForMessages(Folder folder, boolean isIdle) throws Exception {
+        if (isIdle) {
+            TimerTask renewTask = new TimerTask() {
+                @Override
+                public void run() {
+                    abortIdle();
+                }
+            };
+            renewTimer.schedule(renewTask, idleRenewInterval);
+            try {
+                ((IMAPFolder) folder).idle(true);
+            } finally {
+                renewTask.cancel();
+            }
+        } else {
+            synchronized (waitLock) {
+                if (isRunning && !isAdded.get()) {
+                    waitLock.wait(pollInterval);
+                }
+            }
+            noop(folder);
+        }
+    }
+
+    /**
+     * 他のスレッドからコマンドを送信して、IDLEを中断します。
+     */
+    private void abortIdle() {
+        Folder folder = currentFolder;
+        if (folder instanceof IMAPFolder && folder.isOpen()) {
+            try {
+                noop(folder);
+            } catch (MessagingException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * NOOPを送信して、サーバからの通知（EXISTSなど）を受信します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @throws MessagingException
+     */
+    private static void noop(Folder folder) throws MessagingException {
+        if (folder instanceof IMAPFolder) {
+            ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+                @Override
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    protocol.noop();
+                    return null;
+                }
+            });
+        } else {
+            folder.getMessageCount();
+        }
+    }
+
+    /**
+     * フォルダ、ストアを閉じます。
+     *
+     * @param store
+     *            ストア
+     * @param folder
+     *            フォルダ
+     */
+    private void close(Store store, Folder folder) {
+        if (folder != null && folder.isOpen()) {
+            try {
+                folder.close(!receiver.isReadonly());
+            } catch (MessagingException e) {
+                System.out.println(e);
+            }
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (MessagingException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+}
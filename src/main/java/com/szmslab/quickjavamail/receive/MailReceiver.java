@@ -6,16 +6,27 @@
  */
 package com.szmslab.quickjavamail.receive;
 
+import java.util.Arrays;
+
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 
 import org.apache.commons.lang3.StringUtils;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.UID;
+import com.sun.mail.pop3.POP3Message;
 import com.szmslab.quickjavamail.utils.MailProperties;
+import com.szmslab.quickjavamail.utils.SessionCache;
 
 /**
  * JavaMailによるメール受信を行うクラスです。
@@ -24,6 +35,25 @@ import com.szmslab.quickjavamail.utils.MailProperties;
  */
 public class MailReceiver {
 
+    /**
+     * ページ単位で受信する場合に、IMAPのフォルダを開き直すまでに処理するメッセージ数。
+     */
+    static final int REOPEN_INTERVAL = 10000;
+
+    /**
+     * ページ単位で受信する場合の、ページの区切り方です。
+     */
+    public enum PagingMode {
+        /**
+         * メッセージ番号の範囲で区切ります。
+         */
+        MESSAGE_NUMBER,
+        /**
+         * UIDの範囲で区切ります（UIDFolderに対応したプロトコルのみ）。
+         */
+        UID
+    }
+
     /**
      * JavaMailのプロパティ。
      */
@@ -39,6 +69,11 @@ public class MailReceiver {
      */
     private boolean useDefaultSession = true;
 
+    /**
+     * セッションのキャッシュ（nullの場合は共有のキャッシュを使用します）。
+     */
+    private SessionCache sessionCache;
+
     /**
      * 受信対象のフォルダ名。
      */
@@ -49,6 +84,31 @@ public class MailReceiver {
      */
     private boolean readonly = true;
 
+    /**
+     * 受信時にまとめて先読みするメッセージの情報。
+     */
+    private PrefetchSpec prefetchSpec;
+
+    /**
+     * ページの区切り方。
+     */
+    private PagingMode pagingMode = PagingMode.MESSAGE_NUMBER;
+
+    /**
+     * 1ページのメッセージ数（0の場合はページ単位で受信しません）。
+     */
+    private int pageSize = 0;
+
+    /**
+     * 差分受信で処理済みのメッセージの位置の保存先（nullの場合は差分受信しません）。
+     */
+    private SyncCheckpointStore checkpointStore;
+
+    /**
+     * 処理済みのメッセージの位置を保存するキー（nullの場合は接続先とフォルダ名から作成します）。
+     */
+    private String checkpointKey;
+
     /**
      * コンストラクタです。
      *
@@ -73,6 +133,10 @@ public class MailReceiver {
 
     /**
      * デフォルトのセッション使用有無を設定します。
+     * <p>
+     * trueの場合、プロパティの内容ごとにキャッシュしたセッション（{@link SessionCache}）を使用します。
+     * falseの場合、呼び出しごとにセッションを作成します。
+     * </p>
      *
      * @param useDefaultSession
      *            デフォルトのセッションを使用するかどうか
@@ -83,6 +147,21 @@ public class MailReceiver {
         return this;
     }
 
+    /**
+     * セッションのキャッシュを設定します。
+     * <p>
+     * 設定しない場合は、共有のキャッシュ（{@link SessionCache#getDefault()}）を使用します。
+     * </p>
+     *
+     * @param sessionCache
+     *            セッションのキャッシュ
+     * @return 自身のインスタンス
+     */
+    public MailReceiver sessionCache(SessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+        return this;
+    }
+
     /**
      * 受信対象のフォルダ名を設定します。
      *
@@ -109,6 +188,114 @@ public class MailReceiver {
         return this;
     }
 
+    /**
+     * 受信時にまとめて先読みするメッセージの情報を設定します。
+     * <p>
+     * 設定した場合は、{@link PrefetchSpec#getWindowSize()}件ごとに
+     * コールバックを呼び出す前にまとめて取得します。
+     * </p>
+     *
+     * @param prefetchSpec
+     *            先読みするメッセージの情報
+     * @return 自身のインスタンス
+     */
+    public MailReceiver prefetch(PrefetchSpec prefetchSpec) {
+        this.prefetchSpec = prefetchSpec;
+        return this;
+    }
+
+    /**
+     * ページ単位で受信するように設定します。
+     * <p>
+     * フォルダの全てのメッセージを一度に取得せず、1ページ分ずつ取得してコールバックを呼び出します。
+     * 先読みする情報（{@link #prefetch(PrefetchSpec)}）を設定した場合は、ページごとに先読みします。
+     * UIDで区切る場合は、最初に対象のUIDの一覧を取得し、実在するUIDをページ単位に区切ります
+     * （UIDに欠番が多いフォルダでも、空のページを取得することはありません）。
+     * </p>
+     * <p>
+     * 処理済みのページのメッセージは、読み込んだヘッダや内容を破棄します。
+     * ただし、JavaMailはフォルダを閉じるまでメッセージごとのオブジェクト（1件あたり数百バイト）を保持するため、
+     * IMAPでは{@value #REOPEN_INTERVAL}件ごとにフォルダを開き直して解放します（削除のフラグはサーバに反映済みです）。
+     * このほか、IMAPはフォルダを開いている間、メッセージ数に比例するメッセージ番号の対応表（1件あたり十数バイト）を保持します。
+     * POP3ではフォルダを開き直すと削除が取り消されるため開き直さず、メッセージごとのオブジェクトは受信が終わるまで残ります。
+     * </p>
+     *
+     * @param pagingMode
+     *            ページの区切り方
+     * @param pageSize
+     *            1ページのメッセージ数（0の場合はページ単位で受信しません）
+     * @return 自身のインスタンス
+     */
+    public MailReceiver paging(PagingMode pagingMode, int pageSize) {
+        if (pagingMode != null) {
+            this.pagingMode = pagingMode;
+        }
+        this.pageSize = Math.max(pageSize, 0);
+        return this;
+    }
+
+    /**
+     * 差分受信するように設定します。
+     * <p>
+     * 前回までに処理したメッセージの最大のUIDを保存し、それより大きいUIDのメッセージのみを受信します。
+     * フォルダのUIDVALIDITYが変わった場合は、最初から受信し直します。
+     * UIDFolderに対応したプロトコル（IMAP）でのみ使用できます。
+     * ページ単位の受信（{@link #paging(PagingMode, int)}）を設定した場合は、UIDの範囲で区切ります。
+     * </p>
+     * <p>
+     * 位置は、コールバックの処理が完了したメッセージまで進めます（コールバックが例外をスローしたメッセージは含みません）。
+     * </p>
+     *
+     * @param checkpointStore
+     *            処理済みのメッセージの位置の保存先（nullの場合は差分受信しません）
+     * @return 自身のインスタンス
+     */
+    public MailReceiver incremental(SyncCheckpointStore checkpointStore) {
+        return incremental(checkpointStore, null);
+    }
+
+    /**
+     * 差分受信するように設定します。
+     *
+     * @param checkpointStore
+     *            処理済みのメッセージの位置の保存先（nullの場合は差分受信しません）
+     * @param checkpointKey
+     *            処理済みのメッセージの位置を保存するキー（nullの場合は接続先とフォルダ名から作成します）
+     * @return 自身のインスタンス
+     * @see #incremental(SyncCheckpointStore)
+     */
+    public MailReceiver incremental(SyncCheckpointStore checkpointStore, String checkpointKey) {
+        this.checkpointStore = checkpointStore;
+        this.checkpointKey = checkpointKey;
+        return this;
+    }
+
+    /**
+     * 処理済みのメッセージの位置を保存するキーを取得します。
+     *
+     * @return キー（設定していない場合は「プロトコル://ユーザ名@ホスト:ポート/フォルダ名」）
+     */
+    public String getCheckpointKey() {
+        if (checkpointKey != null) {
+            return checkpointKey;
+        }
+        return properties.getProtocol() + "://" + StringUtils.defaultString(properties.getUserName()) + "@"
+                + StringUtils.defaultString(properties.getHost()) + ":"
+                + StringUtils.defaultString(properties.getPort()) + "/" + folderName;
+    }
+
+    /**
+     * 新しいメッセージを待ち受けるリスナーを作成し、開始します。
+     *
+     * @param callback
+     *            メール受信結果1件を処理するコールバック
+     * @return 開始したリスナー
+     * @see MailListener
+     */
+    public MailListener listen(ReceiveIterationCallback callback) {
+        return new MailListener(this, callback).start();
+    }
+
     /**
      * メールを受信します。
      *
@@ -117,10 +304,7 @@ public class MailReceiver {
      * @throws Exception
      */
     public void execute(ReceiveIterationCallback callback) throws Exception {
-        final Session session = useDefaultSession
-                ? Session.getDefaultInstance(properties.getProperties(), properties.getAuthenticator())
-                : Session.getInstance(properties.getProperties(), properties.getAuthenticator());
-        session.setDebug(isDebug);
+        final Session session = createSession();
 
         Store store = null;
         Folder folder = null;
@@ -131,16 +315,12 @@ public class MailReceiver {
             folder = store.getFolder(folderName);
             folder.open(readonly ? Folder.READ_ONLY : Folder.READ_WRITE);
 
-            final Message messages[] = folder.getMessages();
-            for (Message message : messages) {
-                MessageLoader loader = new MessageLoader(message, !readonly);
-                boolean isContinued = callback.iterate(loader);
-                if (!readonly && loader.isDeleted()) {
-                    message.setFlag(Flags.Flag.DELETED, loader.isDeleted());
-                }
-                if (!isContinued) {
-                    break;
-                }
+            if (checkpointStore != null) {
+                iterateIncremental(folder, callback);
+            } else if (pageSize > 0) {
+                iteratePages(folder, callback);
+            } else {
+                iterate(folder, folder.getMessages(), callback, null);
             }
         } finally {
             if (folder != null) {
@@ -160,4 +340,376 @@ public class MailReceiver {
         }
     }
 
+    /**
+     * JavaMailのプロパティを取得します。
+     *
+     * @return JavaMailのプロパティ
+     */
+    MailProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * 受信対象のフォルダ名を取得します。
+     *
+     * @return 受信対象のフォルダ名
+     */
+    String getFolderName() {
+        return folderName;
+    }
+
+    /**
+     * 読取専用でメッセージを受信するかどうかを取得します。
+     *
+     * @return 読取専用でメッセージを受信するかどうか
+     */
+    boolean isReadonly() {
+        return readonly;
+    }
+
+    /**
+     * ページの区切り方を取得します。
+     *
+     * @return ページの区切り方
+     */
+    PagingMode getPagingMode() {
+        return pagingMode;
+    }
+
+    /**
+     * 差分受信で処理済みのメッセージの位置の保存先を取得します。
+     *
+     * @return 処理済みのメッセージの位置の保存先（差分受信しない場合はnull）
+     */
+    SyncCheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * フォルダのメッセージを1ページ分ずつ取得して、コールバックを呼び出します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @param callback
+     *            メール受信結果1件を処理するコールバック
+     * @throws Exception
+     */
+    private void iteratePages(Folder folder, ReceiveIterationCallback callback) throws Exception {
+        int count = folder.getMessageCount();
+        if (count <= 0) {
+            return;
+        }
+        if (pagingMode == PagingMode.UID) {
+            if (!(folder instanceof UIDFolder)) {
+                throw new MessagingException("UID paging is not supported: " + folder.getClass().getName());
+            }
+            final UIDFolder uidFolder = (UIDFolder) folder;
+            // 受信開始時点の最初と最後のメッセージのUIDの範囲を対象とする（受信中に追加されたメッセージは対象外）。
+            iterateUids(folder, fetchUids(folder, uidFolder.getUID(folder.getMessage(1)),
+                    uidFolder.getUID(folder.getMessage(count))), pageSize, callback, null);
+        } else {
+            int processed = 0;
+            for (int start = 1; start <= count; start += pageSize) {
+                Message[] page = folder.getMessages(start, Math.min(start + pageSize - 1, count));
+                boolean isContinued = iterate(folder, page, callback, null);
+                release(page);
+                if (!isContinued) {
+                    break;
+                }
+                processed += page.length;
+                if (processed >= REOPEN_INTERVAL && reopen(folder)) {
+                    processed = 0;
+                    // 開き直すまでの間に他のクライアントが削除した分は、メッセージ数を減らす。
+                    count = Math.min(count, folder.getMessageCount());
+                }
+            }
+        }
+    }
+
+    /**
+     * 前回までに処理したメッセージより後のメッセージについて、コールバックを呼び出します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @param callback
+     *            メール受信結果1件を処理するコールバック
+     * @throws Exception
+     */
+    private void iterateIncremental(Folder folder, ReceiveIterationCallback callback) throws Exception {
+        if (!(folder instanceof UIDFolder)) {
+            throw new MessagingException("Incremental receiving is not supported: " + folder.getClass().getName());
+        }
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final String key = getCheckpointKey();
+        final SyncCheckpoint checkpoint = checkpointStore.load(key);
+        final long uidValidity = uidFolder.getUIDValidity();
+        final long firstUid = checkpoint != null ? checkpoint.getNextUid(uidValidity) : 1;
+        final SyncProgress progress = new SyncProgress(uidFolder, uidValidity, firstUid - 1);
+        try {
+            final int count = folder.getMessageCount();
+            if (count > 0) {
+                // 最後のメッセージのUIDが位置以下であれば、新しいメッセージは無い。
+                long lastUid = uidFolder.getUID(folder.getMessage(count));
+                if (lastUid >= firstUid) {
+                    if (pageSize > 0) {
+                        iterateUids(folder, fetchUids(folder, firstUid, lastUid), pageSize, callback, progress);
+                    } else {
+                        Message[] messages = uidFolder.getMessagesByUID(firstUid, lastUid);
+                        iterate(folder, messages, callback, progress);
+                        release(messages);
+                    }
+                }
+            }
+        } finally {
+            SyncCheckpoint current = progress.toCheckpoint();
+            if (checkpoint == null || checkpoint.getUidValidity() != current.getUidValidity()
+                    || checkpoint.getLastUid() != current.getLastUid()) {
+                checkpointStore.save(key, current);
+            }
+        }
+    }
+
+    /**
+     * UIDの一覧を1ページ分ずつ区切ってメッセージを取得し、コールバックを呼び出します。
+     *
+     * @param folder
+     *            受信対象のフォルダ（UIDFolder）
+     * @param uids
+     *            UIDの一覧（昇順）
+     * @param pageSize
+     *            1ページのメッセージ数
+     * @param callback
+     *            メール受信結果1件を処理するコールバック
+     * @param progress
+     *            差分受信の進捗（差分受信しない場合はnull）
+     * @throws Exception
+     */
+    private void iterateUids(Folder folder, long[] uids, int pageSize, ReceiveIterationCallback callback,
+            SyncProgress progress) throws Exception {
+        final UIDFolder uidFolder = (UIDFolder) folder;
+        final long uidValidity = uidFolder.getUIDValidity();
+        int processed = 0;
+        for (int i = 0; i < uids.length; i += pageSize) {
+            // 実在するUIDの範囲で取得するため、1ページは最大でpageSize件になる。
+            Message[] page = uidFolder.getMessagesByUID(uids[i], uids[Math.min(i + pageSize, uids.length) - 1]);
+            boolean isContinued = iterate(folder, page, callback, progress);
+            release(page);
+            if (!isContinued) {
+                break;
+            }
+            processed += page.length;
+            if (processed >= REOPEN_INTERVAL && reopen(folder)) {
+                processed = 0;
+                if (uidFolder.getUIDValidity() != uidValidity) {
+                    throw new MessagingException("UIDVALIDITY has changed: " + folder.getFullName());
+                }
+            }
+        }
+    }
+
+    /**
+     * UIDの範囲に実在するメッセージのUIDの一覧を取得します。
+     * <p>
+     * IMAPでは、メッセージのオブジェクトを作成せずに「UID FETCH 下限:上限 (UID)」の応答からUIDのみを取得します。
+     * </p>
+     *
+     * @param folder
+     *            受信対象のフォルダ（UIDFolder）
+     * @param firstUid
+     *            UIDの下限
+     * @param lastUid
+     *            UIDの上限
+     * @return UIDの一覧（昇順）
+     * @throws MessagingException
+     */
+    static long[] fetchUids(Folder folder, final long firstUid, final long lastUid) throws MessagingException {
+        long[] uids;
+        if (folder instanceof IMAPFolder) {
+            UID[] items = (UID[]) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+                @Override
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    return protocol.fetchSequenceNumbers(firstUid, lastUid);
+                }
+            });
+            uids = new long[items.length];
+            for (int i = 0; i < items.length; i++) {
+                uids[i] = items[i].uid;
+            }
+        } else {
+            UIDFolder uidFolder = (UIDFolder) folder;
+            Message[] messages = uidFolder.getMessagesByUID(firstUid, lastUid);
+            uids = new long[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                uids[i] = uidFolder.getUID(messages[i]);
+            }
+        }
+        // 範囲外のUID（「n:m」の解釈がサーバにより異なる場合）を除いて昇順に並べる。
+        Arrays.sort(uids);
+        int from = 0;
+        int to = uids.length;
+        while (from < to && uids[from] < firstUid) {
+            from++;
+        }
+        while (to > from && uids[to - 1] > lastUid) {
+            to--;
+        }
+        return Arrays.copyOfRange(uids, from, to);
+    }
+
+    /**
+     * IMAPのフォルダを開き直して、JavaMailが保持しているメッセージのオブジェクトを解放します。
+     * <p>
+     * 削除のフラグはサーバに反映済みのため、閉じる際に削除（EXPUNGE）はしません。
+     * </p>
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @return 開き直したかどうか（IMAP以外は開き直しません）
+     * @throws MessagingException
+     */
+    private boolean reopen(Folder folder) throws MessagingException {
+        if (!(folder instanceof IMAPFolder)) {
+            return false;
+        }
+        folder.close(false);
+        folder.open(readonly ? Folder.READ_ONLY : Folder.READ_WRITE);
+        return true;
+    }
+
+    /**
+     * メッセージごとにコールバックを呼び出します。
+     *
+     * @param folder
+     *            受信対象のフォルダ
+     * @param messages
+     *            メッセージ
+     * @param callback
+     *            メール受信結果1件を処理するコールバック
+     * @param progress
+     *            差分受信の進捗（差分受信しない場合はnull）
+     * @return 受信を継続するかどうか
+     * @throws Exception
+     */
+    boolean iterate(Folder folder, Message[] messages, ReceiveIterationCallback callback,
+            SyncProgress progress) throws Exception {
+        final FetchProfile profile = (prefetchSpec != null && !prefetchSpec.isEmpty())
+                ? prefetchSpec.toFetchProfile() : null;
+        for (int i = 0; i < messages.length; i++) {
+            if (profile != null && i % prefetchSpec.getWindowSize() == 0) {
+                folder.fetch(Arrays.copyOfRange(messages, i,
+                        Math.min(i + prefetchSpec.getWindowSize(), messages.length)), profile);
+            }
+            Message message = messages[i];
+            if (message == null) {
+                continue;
+            }
+            MessageLoader loader = new MessageLoader(message, !readonly);
+            boolean isContinued = callback.iterate(loader);
+            if (!readonly && loader.isDeleted()) {
+                message.setFlag(Flags.Flag.DELETED, loader.isDeleted());
+            }
+            if (progress != null) {
+                progress.processed(message);
+            }
+            if (!isContinued) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 処理済みのメッセージが保持しているヘッダや内容を破棄します。
+     * <p>
+     * 削除のフラグは、IMAPではサーバに反映済み、POP3では破棄の対象外のため、影響はありません。
+     * </p>
+     *
+     * @param messages
+     *            処理済みのメッセージ
+     */
+    void release(Message[] messages) {
+        for (Message message : messages) {
+            if (message instanceof IMAPMessage) {
+                ((IMAPMessage) message).invalidateHeaders();
+            } else if (message instanceof POP3Message) {
+                ((POP3Message) message).invalidate(true);
+            }
+        }
+    }
+
+    /**
+     * セッションを作成します。
+     *
+     * @return セッション
+     */
+    Session createSession() {
+        if (useDefaultSession) {
+            return (sessionCache != null ? sessionCache : SessionCache.getDefault()).getSession(properties, isDebug);
+        }
+        final Session session = Session.getInstance(properties.getProperties(), properties.getAuthenticator());
+        session.setDebug(isDebug);
+        return session;
+    }
+
+    /**
+     * 差分受信の進捗を格納するクラスです。
+     *
+     * @author szmslab
+     */
+    static class SyncProgress {
+
+        /**
+         * 受信対象のフォルダ。
+         */
+        private final UIDFolder uidFolder;
+
+        /**
+         * UIDVALIDITY。
+         */
+        private final long uidValidity;
+
+        /**
+         * 処理済みの最大のUID。
+         */
+        private long lastUid;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param uidFolder
+         *            受信対象のフォルダ
+         * @param uidValidity
+         *            UIDVALIDITY
+         * @param lastUid
+         *            処理済みの最大のUID
+         */
+        SyncProgress(UIDFolder uidFolder, long uidValidity, long lastUid) {
+            this.uidFolder = uidFolder;
+            this.uidValidity = uidValidity;
+            this.lastUid = lastUid;
+        }
+
+        /**
+         * メッセージの処理が完了したことを記録します。
+         *
+         * @param message
+         *            処理が完了したメッセージ
+         * @throws MessagingException
+         */
+        void processed(Message message) throws MessagingException {
+            // UIDの範囲で取得したメッセージはUIDを保持しているため、サーバには問い合わせない。
+            lastUid = Math.max(lastUid, uidFolder.getUID(message));
+        }
+
+        /**
+         * 処理済みのメッセージの位置を取得します。
+         *
+         * @return 処理済みのメッセージの位置
+         */
+        SyncCheckpoint toCheckpoint() {
+            return new SyncCheckpoint(uidValidity, lastUid);
+        }
+
+    }
+
 }
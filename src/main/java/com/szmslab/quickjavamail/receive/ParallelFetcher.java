@@ -0,0 +1,778 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * 1つのフォルダを複数の接続で並行して受信するクラスです。
+ * <p>
+ * メッセージ番号（またはUID、{@link MailReceiver#paging(MailReceiver.PagingMode, int)}の区切り方に従います）の範囲を
+ * 接続数で分割し、接続ごとのスレッドがメッセージ全体をまとめて取得して、上限付きのキューに格納します。
+ * キューのメッセージは、処理スレッドがコールバックを呼び出して処理します。
+ * UIDで区切る場合は、実在するUIDの一覧を接続数で分割します。
+ * IMAPのみ対応しています。
+ * </p>
+ * <p>
+ * キューはメッセージ数（{@link #queueCapacity(int)}）とバイト数（{@link #maxQueuedBytes(int)}）の両方で制限します。
+ * このほか、接続ごとのスレッドは1回に取得したメッセージ（{@link #batchSize(int)}件）を処理が終わるまで保持するため、
+ * メモリの使用量は最大で「キューのバイト数の上限 + 接続数 × 1回に取得するメッセージ数 × メッセージのサイズ」程度になります。
+ * </p>
+ * <p>
+ * コールバックは複数の処理スレッドから同時に、メッセージ番号の順とは限らない順で呼び出されるため、スレッドセーフにしてください。
+ * コールバックに渡すメッセージ（{@link MessageLoader#getOriginalMessage()}）は、接続から切り離したメモリ上のコピーです。
+ * </p>
+ * <p>
+ * 受信中の各接続は読取専用で開きます。読取専用で受信しない場合、削除するメッセージは全ての受信が終わってから
+ * 1つの接続でUIDの昇順にまとめて削除します。メッセージ番号で区切る場合もUIDで削除するため、
+ * 受信中に他のクライアントがメッセージを削除（EXPUNGE）しても、別のメッセージを削除することはありません。
+ * 受信中にUIDVALIDITYが変わった場合は、削除せずに例外をスローします。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class ParallelFetcher {
+
+    /**
+     * キューの空きを待機している間に、中止したかどうかを確認する間隔（ミリ秒）。
+     */
+    private static final long ABORT_CHECK_INTERVAL = 100;
+
+    /**
+     * 受信の設定。
+     */
+    private final MailReceiver receiver;
+
+    /**
+     * 接続数。
+     */
+    private int connections = 4;
+
+    /**
+     * 処理スレッド数。
+     */
+    private int workers = 4;
+
+    /**
+     * キューに格納するメッセージ数の上限。
+     */
+    private int queueCapacity = 1000;
+
+    /**
+     * 1回の取得でまとめて取得するメッセージ数。
+     */
+    private int batchSize = 100;
+
+    /**
+     * キューに格納するメッセージのバイト数の上限。
+     */
+    private int maxQueuedBytes = 64 * 1024 * 1024;
+
+    /**
+     * 最後に受信した際の接続ごとの統計。
+     */
+    private volatile List<ConnectionStats> connectionStatsList = Collections.emptyList();
+
+    /**
+     * コンストラクタです。
+     *
+     * @param receiver
+     *            受信の設定（接続先、フォルダ名、読取専用かどうか、ページの区切り方）
+     */
+    public ParallelFetcher(MailReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * 接続数を設定します。
+     *
+     * @param connections
+     *            接続数
+     * @return 自身のインスタンス
+     */
+    public ParallelFetcher connections(int connections) {
+        this.connections = Math.max(connections, 1);
+        return this;
+    }
+
+    /**
+     * 処理スレッド数を設定します。
+     *
+     * @param workers
+     *            処理スレッド数
+     * @return 自身のインスタンス
+     */
+    public ParallelFetcher workers(int workers) {
+        this.workers = Math.max(workers, 1);
+        return this;
+    }
+
+    /**
+     * キューに格納するメッセージ数の上限を設定します。
+     * <p>
+     * キューが上限に達した場合、接続ごとのスレッドは空きができるまで取得を待機します。
+     * </p>
+     *
+     * @param queueCapacity
+     *            キューに格納するメッセージ数の上限
+     * @return 自身のインスタンス
+     */
+    public ParallelFetcher queueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(queueCapacity, 1);
+        return this;
+    }
+
+    /**
+     * 1回の取得でまとめて取得するメッセージ数を設定します。
+     *
+     * @param batchSize
+     *            1回の取得でまとめて取得するメッセージ数
+     * @return 自身のインスタンス
+     */
+    public ParallelFetcher batchSize(int batchSize) {
+        this.batchSize = Math.max(batchSize, 1);
+        return this;
+    }
+
+    /**
+     * キューに格納するメッセージのバイト数の上限を設定します。
+     * <p>
+     * キューのメッセージの合計サイズが上限に達した場合、接続ごとのスレッドは空きができるまで待機します。
+     * 上限より大きいメッセージは、上限のサイズとして扱います。
+     * </p>
+     *
+     * @param maxQueuedBytes
+     *            キューに格納するメッセージのバイト数の上限
+     * @return 自身のインスタンス
+     */
+    public ParallelFetcher maxQueuedBytes(int maxQueuedBytes) {
+        this.maxQueuedBytes = Math.max(maxQueuedBytes, 1);
+        return this;
+    }
+
+    /**
+     * 最後に受信した際の接続ごとの統計を取得します。
+     *
+     * @return 接続ごとの統計
+     */
+    public List<ConnectionStats> getConnectionStats() {
+        return connectionStatsList;
+    }
+
+    /**
+     * メールを受信します。
+     * <p>
+     * コールバックがfalseを返した場合や例外をスローした場合は、残りのメッセージの受信を中止します。
+     * その場合も、それまでに削除するとしたメッセージは削除します。
+     * </p>
+     *
+     * @param callback
+     *            メール受信結果1件を処理するコールバック（スレッドセーフであること）
+     * @throws Exception
+     */
+    public void execute(final ReceiveIterationCallback callback) throws Exception {
+        final boolean isUid = receiver.getPagingMode() == MailReceiver.PagingMode.UID;
+        final Plan plan = prepare(isUid);
+        if (plan == null) {
+            connectionStatsList = Collections.emptyList();
+            return;
+        }
+
+        final BlockingQueue<FetchedMessage> queue = new ArrayBlockingQueue<FetchedMessage>(queueCapacity);
+        final Semaphore bytePermits = new Semaphore(maxQueuedBytes);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicBoolean abort = new AtomicBoolean(false);
+        final TreeSet<Long> deletedSet = new TreeSet<Long>();
+
+        // 範囲（メッセージ番号、またはUIDの一覧の位置）を接続数で分割する。
+        final int total = plan.uids != null ? plan.uids.length : plan.count;
+        final int offset = plan.uids != null ? 0 : 1;
+        final int connectionCount = Math.min(connections, total);
+        final List<ConnectionStats> statsList = new ArrayList<ConnectionStats>(connectionCount);
+        final List<Thread> fetcherList = new ArrayList<Thread>(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            final int from = offset + (int) ((long) total * i / connectionCount);
+            final int to = offset + (int) ((long) total * (i + 1) / connectionCount) - 1;
+            final ConnectionStats stats = plan.uids != null
+                    ? new ConnectionStats(i, plan.uids[from], plan.uids[to])
+                    : new ConnectionStats(i, from, to);
+            statsList.add(stats);
+            fetcherList.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(stats, plan, from, to, queue, bytePermits, abort);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                        abort.set(true);
+                    }
+                }
+            }, "ParallelFetcher-Connection-" + (i + 1)));
+        }
+        connectionStatsList = Collections.unmodifiableList(statsList);
+
+        final List<Thread> workerList = new ArrayList<Thread>(workers);
+        for (int i = 0; i < workers; i++) {
+            workerList.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        FetchedMessage fetched;
+                        while ((fetched = queue.take()) != FetchedMessage.END) {
+                            // 中止後も、接続ごとのスレッドが待機しないようキューは空にする。
+                            if (abort.get()) {
+                                bytePermits.release(fetched.bytes);
+                                continue;
+                            }
+                            try {
+                                MessageLoader loader = new MessageLoader(fetched.message, !receiver.isReadonly());
+                                boolean isContinued = callback.iterate(loader);
+                                if (!receiver.isReadonly() && loader.isDeleted()) {
+                                    synchronized (deletedSet) {
+                                        deletedSet.add(fetched.key);
+                                    }
+                                }
+                                if (!isContinued) {
+                                    abort.set(true);
+                                }
+                            } catch (Throwable e) {
+                                // Errorの場合も中止し、接続ごとのスレッドが待機しないよう、引き続きキューを空にする。
+                                error.compareAndSet(null, e);
+                                abort.set(true);
+                            } finally {
+                                bytePermits.release(fetched.bytes);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        abort.set(true);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                        abort.set(true);
+                    }
+                }
+            }, "ParallelFetcher-Worker-" + (i + 1)));
+        }
+
+        for (Thread thread : workerList) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for (Thread thread : fetcherList) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            for (Thread thread : fetcherList) {
+                thread.join();
+            }
+        } finally {
+            for (Thread thread : workerList) {
+                // 終了している処理スレッドの分は、終了の通知を格納できなくても待機しない。
+                while (!queue.offer(FetchedMessage.END, ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (!thread.isAlive()) {
+                        break;
+                    }
+                }
+            }
+            for (Thread thread : workerList) {
+                thread.join();
+            }
+            if (!deletedSet.isEmpty()) {
+                delete(deletedSet, plan.uidValidity);
+            }
+        }
+        Throwable e = error.get();
+        if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw (Exception) e;
+        }
+    }
+
+    /**
+     * 受信対象のメッセージの範囲を取得します。
+     *
+     * @param isUid
+     *            UIDの範囲で区切るかどうか
+     * @return 受信対象のメッセージの範囲（メッセージが無い場合はnull）
+     * @throws MessagingException
+     */
+    private Plan prepare(boolean isUid) throws MessagingException {
+        Store store = null;
+        Folder folder = null;
+        try {
+            store = receiver.createSession().getStore(receiver.getProperties().getProtocol());
+            store.connect();
+            folder = open(store, Folder.READ_ONLY);
+            final int count = folder.getMessageCount();
+            if (count <= 0) {
+                return null;
+            }
+            final IMAPFolder imapFolder = (IMAPFolder) folder;
+            if (!isUid) {
+                return new Plan(imapFolder.getUIDValidity(), count, null);
+            }
+            // 受信開始時点の最初と最後のメッセージのUIDの範囲に実在するUIDを対象とする。
+            long[] uids = MailReceiver.fetchUids(folder, imapFolder.getUID(folder.getMessage(1)),
+                    imapFolder.getUID(folder.getMessage(count)));
+            if (uids.length == 0) {
+                return null;
+            }
+            return new Plan(imapFolder.getUIDValidity(), count, uids);
+        } finally {
+            close(store, folder, false);
+        }
+    }
+
+    /**
+     * 1つの接続で範囲のメッセージを取得し、キューに格納します。
+     *
+     * @param stats
+     *            接続の統計
+     * @param plan
+     *            受信対象のメッセージの範囲
+     * @param from
+     *            取得する範囲の下限（メッセージ番号、またはUIDの一覧の位置）
+     * @param to
+     *            取得する範囲の上限（メッセージ番号、またはUIDの一覧の位置）
+     * @param queue
+     *            キュー
+     * @param bytePermits
+     *            キューに格納できるバイト数
+     * @param abort
+     *            中止したかどうか
+     * @throws Exception
+     */
+    private void fetch(ConnectionStats stats, Plan plan, int from, int to, BlockingQueue<FetchedMessage> queue,
+            Semaphore bytePermits, AtomicBoolean abort) throws Exception {
+        final long startNanos = System.nanoTime();
+        Store store = null;
+        Folder folder = null;
+        try {
+            store = receiver.createSession().getStore(receiver.getProperties().getProtocol());
+            store.connect();
+            folder = open(store, Folder.READ_ONLY);
+            final IMAPFolder imapFolder = (IMAPFolder) folder;
+            checkUidValidity(imapFolder, plan.uidValidity);
+
+            // コピーの作成時にフラグも参照するため、メッセージ全体と合わせてまとめて取得する。
+            // 削除はUIDで行うため、メッセージ番号で区切る場合もUIDを取得する。
+            final FetchProfile profile = new FetchProfile();
+            profile.add(FetchProfile.Item.FLAGS);
+            profile.add(UIDFolder.FetchProfileItem.UID);
+            profile.add(IMAPFolder.FetchProfileItem.MESSAGE);
+            for (int start = from; start <= to && !abort.get(); start += batchSize) {
+                int end = Math.min(start + batchSize - 1, to);
+                Message[] messages;
+                if (plan.uids != null) {
+                    messages = imapFolder.getMessagesByUID(plan.uids[start], plan.uids[end]);
+                } else {
+                    // 受信中に他のクライアントが削除した分は、メッセージ数を減らす。
+                    int count = folder.getMessageCount();
+                    if (start > count) {
+                        break;
+                    }
+                    messages = folder.getMessages(start, Math.min(end, count));
+                }
+                folder.fetch(messages, profile);
+                for (Message message : messages) {
+                    if (message == null || message.isExpunged() || abort.get()) {
+                        continue;
+                    }
+                    // 接続から切り離したコピーを作成する（取得済みの内容から作成するため、サーバには問い合わせない）。
+                    MimeMessage copy = new MimeMessage((MimeMessage) message);
+                    int size = Math.max(copy.getSize(), 0);
+                    int bytes = Math.min(size, maxQueuedBytes);
+                    stats.record(size);
+                    if (!put(queue, bytePermits, new FetchedMessage(imapFolder.getUID(message), copy, bytes), abort)) {
+                        break;
+                    }
+                }
+                receiver.release(messages);
+            }
+        } finally {
+            stats.elapsedNanos = System.nanoTime() - startNanos;
+            close(store, folder, false);
+        }
+    }
+
+    /**
+     * キューとバイト数に空きができるまで待機し、メッセージをキューに格納します。
+     * <p>
+     * 処理スレッドが異常終了した場合も待機し続けないよう、一定間隔で中止したかどうかを確認します。
+     * </p>
+     *
+     * @param queue
+     *            キュー
+     * @param bytePermits
+     *            キューに格納できるバイト数
+     * @param fetched
+     *            取得したメッセージ
+     * @param abort
+     *            中止したかどうか
+     * @return 格納したかどうか（中止した場合はfalse）
+     * @throws InterruptedException
+     */
+    private static boolean put(BlockingQueue<FetchedMessage> queue, Semaphore bytePermits, FetchedMessage fetched,
+            AtomicBoolean abort) throws InterruptedException {
+        while (!bytePermits.tryAcquire(fetched.bytes, ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (abort.get()) {
+                return false;
+            }
+        }
+        while (!queue.offer(fetched, ABORT_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (abort.get()) {
+                bytePermits.release(fetched.bytes);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * メッセージをUIDの昇順に削除します。
+     *
+     * @param uidSet
+     *            削除するメッセージのUID
+     * @param uidValidity
+     *            受信開始時のUIDVALIDITY
+     * @throws MessagingException
+     */
+    private void delete(TreeSet<Long> uidSet, long uidValidity) throws MessagingException {
+        Store store = null;
+        Folder folder = null;
+        try {
+            store = receiver.createSession().getStore(receiver.getProperties().getProtocol());
+            store.connect();
+            folder = open(store, Folder.READ_WRITE);
+            final IMAPFolder imapFolder = (IMAPFolder) folder;
+            // UIDが振り直された場合は、別のメッセージを削除しないよう中止する。
+            checkUidValidity(imapFolder, uidValidity);
+
+            long[] uids = new long[uidSet.size()];
+            int i = 0;
+            for (Long uid : uidSet) {
+                uids[i++] = uid;
+            }
+            Message[] messages = imapFolder.getMessagesByUID(uids);
+            List<Message> messageList = new ArrayList<Message>(messages.length);
+            for (Message message : messages) {
+                if (message != null) {
+                    messageList.add(message);
+                }
+            }
+            folder.setFlags(messageList.toArray(new Message[messageList.size()]),
+                    new Flags(Flags.Flag.DELETED), true);
+        } finally {
+            close(store, folder, true);
+        }
+    }
+
+    /**
+     * 受信対象のフォルダを開きます。
+     *
+     * @param store
+     *            ストア
+     * @param mode
+     *            フォルダを開くモード
+     * @return フォルダ
+     * @throws MessagingException
+     *             IMAP以外の場合
+     */
+    private Folder open(Store store, int mode) throws MessagingException {
+        Folder folder = store.getFolder(receiver.getFolderName());
+        if (!(folder instanceof IMAPFolder)) {
+            throw new MessagingException("ParallelFetcher supports IMAP only: " + folder.getClass().getName());
+        }
+        folder.open(mode);
+        return folder;
+    }
+
+    /**
+     * UIDVALIDITYが受信開始時から変わっていないことを確認します。
+     *
+     * @param folder
+     *            フォルダ
+     * @param uidValidity
+     *            受信開始時のUIDVALIDITY
+     * @throws MessagingException
+     *             UIDVALIDITYが変わった場合
+     */
+    private void checkUidValidity(IMAPFolder folder, long uidValidity) throws MessagingException {
+        if (folder.getUIDValidity() != uidValidity) {
+            throw new MessagingException("UIDVALIDITY has changed: " + folder.getFullName());
+        }
+    }
+
+    /**
+     * フォルダ、ストアを閉じます。
+     *
+     * @param store
+     *            ストア
+     * @param folder
+     *            フォルダ
+     * @param expunge
+     *            削除フラグのメッセージを削除するかどうか
+     */
+    private void close(Store store, Folder folder, boolean expunge) {
+        if (folder != null && folder.isOpen()) {
+            try {
+                folder.close(expunge);
+            } catch (MessagingException e) {
+                System.out.println(e);
+            }
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (MessagingException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * 接続ごとの統計を格納するクラスです。
+     *
+     * @author szmslab
+     */
+    public static class ConnectionStats {
+
+        /**
+         * 接続の番号（0から）。
+         */
+        private final int index;
+
+        /**
+         * 取得する範囲の下限（メッセージ番号またはUID）。
+         */
+        private final long first;
+
+        /**
+         * 取得する範囲の上限（メッセージ番号またはUID）。
+         */
+        private final long last;
+
+        /**
+         * 取得したメッセージ数。
+         */
+        private volatile long messageCount = 0;
+
+        /**
+         * 取得したバイト数。
+         */
+        private volatile long byteCount = 0;
+
+        /**
+         * 取得に要した時間（ナノ秒。取得中は0）。
+         */
+        private volatile long elapsedNanos = 0;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param index
+         *            接続の番号
+         * @param first
+         *            取得する範囲の下限
+         * @param last
+         *            取得する範囲の上限
+         */
+        ConnectionStats(int index, long first, long last) {
+            this.index = index;
+            this.first = first;
+            this.last = last;
+        }
+
+        /**
+         * 取得したメッセージを記録します（接続ごとのスレッドからのみ呼び出します）。
+         *
+         * @param size
+         *            メッセージのサイズ
+         */
+        void record(long size) {
+            messageCount++;
+            byteCount += size;
+        }
+
+        /**
+         * 接続の番号を取得します。
+         *
+         * @return 接続の番号（0から）
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * 取得する範囲の下限を取得します。
+         *
+         * @return 取得する範囲の下限（メッセージ番号またはUID）
+         */
+        public long getFirst() {
+            return first;
+        }
+
+        /**
+         * 取得する範囲の上限を取得します。
+         *
+         * @return 取得する範囲の上限（メッセージ番号またはUID）
+         */
+        public long getLast() {
+            return last;
+        }
+
+        /**
+         * 取得したメッセージ数を取得します。
+         *
+         * @return 取得したメッセージ数
+         */
+        public long getMessageCount() {
+            return messageCount;
+        }
+
+        /**
+         * 取得したバイト数を取得します。
+         *
+         * @return 取得したバイト数
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * 取得に要した時間を取得します。
+         *
+         * @return 取得に要した時間（ミリ秒。取得中は0）
+         */
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000;
+        }
+
+        /**
+         * 1秒あたりに取得したメッセージ数を取得します。
+         *
+         * @return 1秒あたりに取得したメッセージ数（取得中は0）
+         */
+        public double getMessagesPerSecond() {
+            long nanos = elapsedNanos;
+            return nanos > 0 ? messageCount * 1000000000.0 / nanos : 0;
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("connection=%d, range=%d-%d, messages=%d, bytes=%d, elapsed=%dms, %.1f msg/s",
+                    index, first, last, messageCount, byteCount, getElapsedMillis(), getMessagesPerSecond());
+        }
+
+    }
+
+    /**
+     * 受信対象のメッセージの範囲を格納するクラスです。
+     */
+    private static class Plan {
+
+        /**
+         * 受信開始時のUIDVALIDITY。
+         */
+        final long uidValidity;
+
+        /**
+         * 受信開始時のメッセージ数。
+         */
+        final int count;
+
+        /**
+         * 受信対象のUIDの一覧（メッセージ番号で区切る場合はnull）。
+         */
+        final long[] uids;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param uidValidity
+         *            受信開始時のUIDVALIDITY
+         * @param count
+         *            受信開始時のメッセージ数
+         * @param uids
+         *            受信対象のUIDの一覧
+         */
+        Plan(long uidValidity, int count, long[] uids) {
+            this.uidValidity = uidValidity;
+            this.count = count;
+            this.uids = uids;
+        }
+
+    }
+
+    /**
+     * 取得したメッセージを格納するクラスです。
+     */
+    private static class FetchedMessage {
+
+        /**
+         * 取得の終了を表す値。
+         */
+        static final FetchedMessage END = new FetchedMessage(0, null, 0);
+
+        /**
+         * UID。
+         */
+        final long key;
+
+        /**
+         * 接続から切り離したメッセージ。
+         */
+        final MimeMessage message;
+
+        /**
+         * キューに格納する際に確保したバイト数。
+         */
+        final int bytes;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param key
+         *            UID
+         * @param message
+         *            接続から切り離したメッセージ
+         * @param bytes
+         *            キューに格納する際に確保したバイト数
+         */
+        FetchedMessage(long key, MimeMessage message, int bytes) {
+            this.key = key;
+            this.message = message;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.mail.FetchProfile;
+import javax.mail.UIDFolder;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/**
+ * 受信時にまとめて先読みするメッセージの情報を格納するクラスです。
+ * <p>
+ * 指定した情報は、コールバックを呼び出す前に{@link javax.mail.Folder#fetch(javax.mail.Message[], FetchProfile)}で
+ * 一定件数（ウィンドウ）ごとにまとめて取得します。
+ * IMAPでは、メッセージごと・項目ごとに発生していたサーバとの往復が、ウィンドウごとに1回になります。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class PrefetchSpec {
+
+    /**
+     * 1回の先読みで取得するメッセージ数のデフォルト値。
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 500;
+
+    /**
+     * 先読みする項目。
+     */
+    private final Set<FetchProfile.Item> itemSet = new LinkedHashSet<FetchProfile.Item>();
+
+    /**
+     * 先読みするヘッダ名。
+     */
+    private final Set<String> headerNameSet = new LinkedHashSet<String>();
+
+    /**
+     * 1回の先読みで取得するメッセージ数。
+     */
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * エンベロープ（From、To、Cc、Reply-To、件名、送信日など）を先読みします。
+     *
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec envelope() {
+        itemSet.add(FetchProfile.Item.ENVELOPE);
+        return this;
+    }
+
+    /**
+     * フラグを先読みします。
+     *
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec flags() {
+        itemSet.add(FetchProfile.Item.FLAGS);
+        return this;
+    }
+
+    /**
+     * サイズを先読みします。
+     *
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec size() {
+        itemSet.add(FetchProfile.Item.SIZE);
+        return this;
+    }
+
+    /**
+     * UIDを先読みします。
+     *
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec uid() {
+        itemSet.add(UIDFolder.FetchProfileItem.UID);
+        return this;
+    }
+
+    /**
+     * Content-Typeなどのコンテンツ情報（IMAPではBODYSTRUCTURE）を先読みします。
+     *
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec contentInfo() {
+        itemSet.add(FetchProfile.Item.CONTENT_INFO);
+        return this;
+    }
+
+    /**
+     * 全てのヘッダを先読みします（IMAPのみ有効です）。
+     *
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec allHeaders() {
+        itemSet.add(IMAPFolder.FetchProfileItem.HEADERS);
+        return this;
+    }
+
+    /**
+     * 指定したヘッダを先読みします。
+     *
+     * @param headerNames
+     *            ヘッダ名
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec headers(String... headerNames) {
+        for (String headerName : headerNames) {
+            headerNameSet.add(headerName);
+        }
+        return this;
+    }
+
+    /**
+     * 1回の先読みで取得するメッセージ数を設定します。
+     * <p>
+     * 大きくするとサーバとの往復が減りますが、1回の応答が大きくなり、
+     * 途中で受信を終了した場合に不要な取得が増えます。
+     * </p>
+     *
+     * @param windowSize
+     *            1回の先読みで取得するメッセージ数
+     * @return 自身のインスタンス
+     */
+    public PrefetchSpec windowSize(int windowSize) {
+        this.windowSize = Math.max(windowSize, 1);
+        return this;
+    }
+
+    /**
+     * 1回の先読みで取得するメッセージ数を取得します。
+     *
+     * @return 1回の先読みで取得するメッセージ数
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * 先読みする項目が指定されていないかどうかを判定します。
+     *
+     * @return 先読みする項目が指定されていないかどうか
+     */
+    public boolean isEmpty() {
+        return itemSet.isEmpty() && headerNameSet.isEmpty();
+    }
+
+    /**
+     * 先読みする情報からFetchProfileを作成します。
+     *
+     * @return FetchProfile
+     */
+    public FetchProfile toFetchProfile() {
+        FetchProfile profile = new FetchProfile();
+        for (FetchProfile.Item item : itemSet) {
+            profile.add(item);
+        }
+        for (String headerName : headerNameSet) {
+            profile.add(headerName);
+        }
+        return profile;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+/**
+ * 差分受信で処理済みのメッセージの位置（UIDVALIDITYと処理済みの最大のUID）を格納するクラスです。
+ * <p>
+ * UIDはUIDVALIDITYが同じ間のみ有効なため、UIDVALIDITYが変わった場合は最初から受信し直します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public final class SyncCheckpoint {
+
+    /**
+     * UIDVALIDITY。
+     */
+    private final long uidValidity;
+
+    /**
+     * 処理済みの最大のUID。
+     */
+    private final long lastUid;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param uidValidity
+     *            UIDVALIDITY
+     * @param lastUid
+     *            処理済みの最大のUID
+     */
+    public SyncCheckpoint(long uidValidity, long lastUid) {
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+    }
+
+    /**
+     * UIDVALIDITYを取得します。
+     *
+     * @return UIDVALIDITY
+     */
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * 処理済みの最大のUIDを取得します。
+     *
+     * @return 処理済みの最大のUID
+     */
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    /**
+     * 次に受信するメッセージのUIDの下限を取得します。
+     *
+     * @param currentUidValidity
+     *            フォルダの現在のUIDVALIDITY
+     * @return UIDの下限（UIDVALIDITYが変わった場合は1）
+     */
+    public long getNextUid(long currentUidValidity) {
+        return uidValidity == currentUidValidity ? lastUid + 1 : 1;
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return uidValidity + ":" + lastUid;
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import java.io.IOException;
+
+/**
+ * 差分受信で処理済みのメッセージの位置を保存するためのインタフェースです。
+ *
+ * @author szmslab
+ * @see FileSyncCheckpointStore
+ */
+public interface SyncCheckpointStore {
+
+    /**
+     * 処理済みのメッセージの位置を読み込みます。
+     *
+     * @param key
+     *            キー（接続先とフォルダを識別する文字列）
+     * @return 処理済みのメッセージの位置（保存されていない場合はnull）
+     * @throws IOException
+     */
+    SyncCheckpoint load(String key) throws IOException;
+
+    /**
+     * 処理済みのメッセージの位置を保存します。
+     *
+     * @param key
+     *            キー（接続先とフォルダを識別する文字列）
+     * @param checkpoint
+     *            処理済みのメッセージの位置
+     * @throws IOException
+     */
+    void save(String key, SyncCheckpoint checkpoint) throws IOException;
+
+}
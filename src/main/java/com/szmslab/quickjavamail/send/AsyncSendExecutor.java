@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+
+/**
+ * メールを非同期で送信するクラスです。
+ * <p>
+ * 送信中（キュー待ちを含む）のメッセージ数とバイト数に上限を設け、
+ * 上限に達した場合は送信の受け付けを待機させます（背圧）。
+ * メッセージは受け付け時にシリアライズされるため、受け付け後にMailSenderを変更しても影響しません。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class AsyncSendExecutor {
+
+    /**
+     * 送信を実行するExecutorService。
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 送信中のメッセージ数の上限。
+     */
+    private int maxInFlightMessages = 1000;
+
+    /**
+     * 送信中のメッセージのバイト数の上限。
+     */
+    private int maxInFlightBytes = 64 * 1024 * 1024;
+
+    /**
+     * 送信中のメッセージ数を制限するセマフォ。
+     */
+    private Semaphore messagePermits = new Semaphore(maxInFlightMessages);
+
+    /**
+     * 送信中のメッセージのバイト数を制限するセマフォ。
+     */
+    private Semaphore bytePermits = new Semaphore(maxInFlightBytes);
+
+    /**
+     * 送信を受け付けたかどうか（受け付けた後は上限を変更できません）。
+     */
+    private volatile boolean isStarted = false;
+
+    /**
+     * シャットダウン済みかどうか。
+     */
+    private volatile boolean isShutdown = false;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param threads
+     *            送信スレッド数
+     */
+    public AsyncSendExecutor(int threads) {
+        this(Executors.newFixedThreadPool(threads));
+    }
+
+    /**
+     * コンストラクタです。
+     *
+     * @param executor
+     *            送信を実行するExecutorService
+     */
+    public AsyncSendExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 仮想スレッドで送信を行うAsyncSendExecutorを作成します。
+     * <p>
+     * JDK 21以降では、SMTPのやり取り1件ごとに仮想スレッドを割り当てます（同時実行数は送信中のメッセージ数の上限で制限されます）。
+     * 仮想スレッドが使用できない場合は、指定したスレッド数の通常のスレッドプールで送信します。
+     * </p>
+     * <p>
+     * JDK 21〜23では、JavaMailのSMTPTransportがsynchronizedメソッド内でサーバと通信するため、
+     * 送信中の仮想スレッドはキャリアスレッドに固定（pinning）されます。
+     * そのため、同時に送信できる数はキャリアスレッド数（デフォルトではCPUのコア数）までとなり、
+     * 通常のスレッドプールより少なくなる場合があります。
+     * これらのJDKでは、通常のスレッドプールを使用するか、jdk.virtualThreadScheduler.parallelismで
+     * キャリアスレッド数を増やしてください（JDK 24以降では、synchronizedによる固定は発生しません）。
+     * </p>
+     *
+     * @param fallbackThreads
+     *            仮想スレッドが使用できない場合の送信スレッド数
+     * @return AsyncSendExecutorのインスタンス
+     */
+    public static AsyncSendExecutor newVirtualThreadExecutor(int fallbackThreads) {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(fallbackThreads);
+        }
+        return new AsyncSendExecutor(executor);
+    }
+
+    /**
+     * 仮想スレッドが使用できるかどうかを取得します。
+     *
+     * @return 仮想スレッドが使用できるかどうか
+     */
+    public static boolean isVirtualThreadAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 仮想スレッドのExecutorServiceを作成します（JDK 21以降のAPIをリフレクションで呼び出します）。
+     * <p>
+     * SMTPの通信に使用する場合の注意は、{@link #newVirtualThreadExecutor(int)}を参照してください。
+     * </p>
+     *
+     * @return 仮想スレッドのExecutorService（使用できない場合はnull）
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isVirtualThreadAvailable()) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 送信中（キュー待ちを含む）のメッセージ数の上限を設定します（送信を受け付ける前に設定してください）。
+     *
+     * @param maxInFlightMessages
+     *            送信中のメッセージ数の上限
+     * @return 自身のインスタンス
+     * @throws IllegalStateException
+     *             送信を受け付けた後に呼び出した場合
+     */
+    public synchronized AsyncSendExecutor maxInFlightMessages(int maxInFlightMessages) {
+        checkNotStarted();
+        this.maxInFlightMessages = maxInFlightMessages;
+        this.messagePermits = new Semaphore(maxInFlightMessages);
+        return this;
+    }
+
+    /**
+     * 送信中（キュー待ちを含む）のメッセージのバイト数の上限を設定します（送信を受け付ける前に設定してください）。
+     *
+     * @param maxInFlightBytes
+     *            送信中のメッセージのバイト数の上限
+     * @return 自身のインスタンス
+     * @throws IllegalStateException
+     *             送信を受け付けた後に呼び出した場合
+     */
+    public synchronized AsyncSendExecutor maxInFlightBytes(int maxInFlightBytes) {
+        checkNotStarted();
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.bytePermits = new Semaphore(maxInFlightBytes);
+        return this;
+    }
+
+    /**
+     * 送信を受け付けていないことを確認します。
+     *
+     * @throws IllegalStateException
+     *             送信を受け付けた後の場合
+     */
+    private void checkNotStarted() {
+        if (isStarted) {
+            throw new IllegalStateException("AsyncSendExecutor has already accepted a message");
+        }
+    }
+
+    /**
+     * メールの送信を受け付けます。
+     * <p>
+     * 送信中のメッセージ数またはバイト数が上限に達している場合は、空きができるまで待機します。
+     * </p>
+     *
+     * @param sender
+     *            送信するメール
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> submit(MailSender sender) throws IOException, MessagingException, InterruptedException {
+        return submit(sender, null);
+    }
+
+    /**
+     * メールの送信を受け付けます。
+     * <p>
+     * 送信中のメッセージ数またはバイト数が上限に達している場合は、空きができるまで待機します。
+     * </p>
+     *
+     * @param sender
+     *            送信するメール
+     * @param callback
+     *            送信完了時に通知するコールバック（不要な場合はnull）
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> submit(MailSender sender, SendCallback callback)
+            throws IOException, MessagingException, InterruptedException {
+        if (isShutdown) {
+            throw new RejectedExecutionException("AsyncSendExecutor has been shut down");
+        }
+
+        final Semaphore messageSemaphore;
+        final Semaphore byteSemaphore;
+        final int maxBytes;
+        synchronized (this) {
+            isStarted = true;
+            messageSemaphore = messagePermits;
+            byteSemaphore = bytePermits;
+            maxBytes = maxInFlightBytes;
+        }
+        messageSemaphore.acquire();
+        int acquiredBytes = 0;
+        SendTask task = null;
+        boolean isSubmitted = false;
+        try {
+            // ワーカースレッドが呼び出し元のMailSenderを参照しないよう、受け付け時点の複製を使用する。
+            MailSender snapshot = new MailSender(sender);
+            SerializedMimeMessage message = SerializedMimeMessage.serialize(snapshot.createMessage(snapshot.createSession()));
+            int bytes = Math.min(message.getByteSize(), maxBytes);
+            byteSemaphore.acquire(bytes);
+            acquiredBytes = bytes;
+            task = new SendTask(snapshot, message, callback, messageSemaphore, byteSemaphore, bytes);
+            executor.execute(task);
+            isSubmitted = true;
+            return task;
+        } finally {
+            if (!isSubmitted) {
+                // 受け付けに失敗した場合（実行時例外を含む）は、確保した許可を戻す。
+                if (task != null) {
+                    // タスクの完了時に許可が戻される。
+                    task.cancel(false);
+                } else {
+                    byteSemaphore.release(acquiredBytes);
+                    messageSemaphore.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * 新たな送信の受け付けを停止します。
+     * <p>
+     * 受け付け済みのメールは、キュー待ちのものも含めて全て送信されます。
+     * </p>
+     */
+    public void shutdown() {
+        isShutdown = true;
+        executor.shutdown();
+    }
+
+    /**
+     * 新たな送信の受け付けを停止し、キュー待ちのメールを破棄します。
+     *
+     * @return 破棄したメールの件数
+     */
+    public int shutdownNow() {
+        isShutdown = true;
+        List<Runnable> canceledList = executor.shutdownNow();
+        for (Runnable runnable : canceledList) {
+            if (runnable instanceof Future<?>) {
+                ((Future<?>) runnable).cancel(false);
+            }
+        }
+        return canceledList.size();
+    }
+
+    /**
+     * シャットダウン後、受け付け済みのメールが全て送信されるまで待機します。
+     *
+     * @param timeout
+     *            最大待機時間
+     * @param unit
+     *            最大待機時間の単位
+     * @return 全て送信された場合はtrue、タイムアウトした場合はfalse
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * シャットダウン済みかどうかを取得します。
+     *
+     * @return シャットダウン済みかどうか
+     */
+    public boolean isShutdown() {
+        return isShutdown;
+    }
+
+    /**
+     * 送信中（キュー待ちを含む）のメッセージ数を取得します。
+     *
+     * @return 送信中のメッセージ数
+     */
+    public int getInFlightMessages() {
+        return maxInFlightMessages - messagePermits.availablePermits();
+    }
+
+    /**
+     * 送信中（キュー待ちを含む）のメッセージのバイト数を取得します。
+     *
+     * @return 送信中のメッセージのバイト数
+     */
+    public int getInFlightBytes() {
+        return maxInFlightBytes - bytePermits.availablePermits();
+    }
+
+    /**
+     * メール1件を送信するタスクです。
+     *
+     * @author szmslab
+     */
+    private static class SendTask extends FutureTask<SendResult> {
+
+        /**
+         * 送信完了時に通知するコールバック。
+         */
+        private final SendCallback callback;
+
+        /**
+         * 送信中のメッセージ数を制限するセマフォ。
+         */
+        private final Semaphore messageSemaphore;
+
+        /**
+         * 送信中のメッセージのバイト数を制限するセマフォ。
+         */
+        private final Semaphore byteSemaphore;
+
+        /**
+         * 確保したバイト数。
+         */
+        private final int bytes;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param sender
+         *            送信するメール（受け付け時点の複製）
+         * @param message
+         *            シリアライズしたメッセージ
+         * @param callback
+         *            送信完了時に通知するコールバック
+         * @param messageSemaphore
+         *            送信中のメッセージ数を制限するセマフォ
+         * @param byteSemaphore
+         *            送信中のメッセージのバイト数を制限するセマフォ
+         * @param bytes
+         *            確保したバイト数
+         */
+        SendTask(final MailSender sender, final SerializedMimeMessage message, SendCallback callback,
+                Semaphore messageSemaphore, Semaphore byteSemaphore, int bytes) {
+            super(new Callable<SendResult>() {
+                @Override
+                public SendResult call() {
+                    try {
+                        sender.send(message);
+                        return new SendResult(sender, message, null);
+                    } catch (Exception e) {
+                        return new SendResult(sender, message, e);
+                    }
+                }
+            });
+            this.callback = callback;
+            this.messageSemaphore = messageSemaphore;
+            this.byteSemaphore = byteSemaphore;
+            this.bytes = bytes;
+        }
+
+        /* (非 Javadoc)
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+            byteSemaphore.release(bytes);
+            messageSemaphore.release();
+            if (callback != null && !isCancelled()) {
+                try {
+                    callback.complete(get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * 接続先ごとの同時送信数を、送信の所要時間と応答から自動的に調整するクラスです。
+ * <p>
+ * 接続先（{@link TransportPool#createKey(com.szmslab.quickjavamail.utils.MailProperties, RelayGroup.Relay)}）ごとに
+ * 同時送信数の上限を保持し、上限に達している場合は空きができるまで待機します。
+ * 上限は送信が成功するたびに引き上げ、421・451の応答（過負荷）を受けた場合は引き下げます。
+ * 送信スレッドを多めに用意しておけば、中継サーバが処理できる最大の同時送信数に収束します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * 上限の調整方法です。
+     */
+    public enum Strategy {
+        /**
+         * 成功するたびに上限を1ずつ引き上げ、過負荷の場合は一定の割合で引き下げます（AIMD）。
+         */
+        AIMD,
+
+        /**
+         * 所要時間の長期平均と直近の値の比から上限を調整し、所要時間が延び始めた時点で引き上げを止めます。
+         */
+        GRADIENT
+    }
+
+    /**
+     * 所要時間の直近の値を計算する際の、新しい計測値の重み。
+     */
+    private static final double SHORT_RTT_SMOOTHING = 0.5;
+
+    /**
+     * 所要時間の長期平均を計算する際の、新しい計測値の重み。
+     */
+    private static final double LONG_RTT_SMOOTHING = 0.05;
+
+    /**
+     * GRADIENTで許容する所要時間の延び（長期平均に対する倍率）。
+     */
+    private static final double RTT_TOLERANCE = 1.5;
+
+    /**
+     * GRADIENTで計算した上限を反映する割合。
+     */
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    /**
+     * 接続時（挨拶・HELO・認証）の失敗の例外メッセージに含まれる、過負荷を示す応答のパターン。
+     */
+    private static final Pattern OVERLOAD_RESPONSE_PATTERN = Pattern.compile("(^|response: )(421|451)([ -]|$)");
+
+    /**
+     * 上限の調整方法。
+     */
+    private Strategy strategy = Strategy.AIMD;
+
+    /**
+     * 同時送信数の上限の初期値。
+     */
+    private int initialLimit = 4;
+
+    /**
+     * 同時送信数の上限の最小値。
+     */
+    private int minLimit = 1;
+
+    /**
+     * 同時送信数の上限の最大値。
+     */
+    private int maxLimit = 64;
+
+    /**
+     * 過負荷の場合に上限に掛ける割合。
+     */
+    private double backoffRatio = 0.9;
+
+    /**
+     * 過負荷とみなす送信の所要時間（ナノ秒、0以下の場合は所要時間では判定しません）。
+     */
+    private long latencyThresholdNanos = 0;
+
+    /**
+     * 接続先ごとの同時送信数の上限。
+     */
+    private final ConcurrentMap<String, Limit> limitMap = new ConcurrentHashMap<String, Limit>();
+
+    /**
+     * 上限の調整方法を設定します。
+     *
+     * @param strategy
+     *            上限の調整方法
+     * @return 自身のインスタンス
+     */
+    public ConcurrencyLimiter strategy(Strategy strategy) {
+        if (strategy != null) {
+            this.strategy = strategy;
+        }
+        return this;
+    }
+
+    /**
+     * 同時送信数の上限の初期値を設定します。
+     *
+     * @param initialLimit
+     *            同時送信数の上限の初期値
+     * @return 自身のインスタンス
+     */
+    public ConcurrencyLimiter initialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * 同時送信数の上限の範囲を設定します。
+     *
+     * @param minLimit
+     *            同時送信数の上限の最小値
+     * @param maxLimit
+     *            同時送信数の上限の最大値
+     * @return 自身のインスタンス
+     */
+    public ConcurrencyLimiter limitRange(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        return this;
+    }
+
+    /**
+     * 過負荷の場合に上限に掛ける割合を設定します。
+     *
+     * @param backoffRatio
+     *            過負荷の場合に上限に掛ける割合（0より大きく1未満）
+     * @return 自身のインスタンス
+     */
+    public ConcurrencyLimiter backoffRatio(double backoffRatio) {
+        if (backoffRatio > 0 && backoffRatio < 1) {
+            this.backoffRatio = backoffRatio;
+        }
+        return this;
+    }
+
+    /**
+     * 過負荷とみなす送信の所要時間を設定します。
+     * <p>
+     * 設定した場合、所要時間がこの値を超えた送信は、421・451の応答と同様に過負荷として扱います。
+     * </p>
+     *
+     * @param latencyThresholdMillis
+     *            過負荷とみなす送信の所要時間（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public ConcurrencyLimiter latencyThreshold(long latencyThresholdMillis) {
+        this.latencyThresholdNanos = latencyThresholdMillis * 1000000L;
+        return this;
+    }
+
+    /**
+     * 送信の許可を取得します。
+     * <p>
+     * 同時送信数が上限に達している場合は、空きができるまで待機します。
+     * 送信後は、必ず{@link #release(Permit, Exception)}を呼び出してください。
+     * </p>
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @return 送信の許可
+     * @throws InterruptedException
+     */
+    public Permit acquire(String key) throws InterruptedException {
+        Limit limit = getLimitState(key);
+        limit.acquire();
+        return new Permit(limit, System.nanoTime());
+    }
+
+    /**
+     * 送信の許可を返却し、送信の結果から上限を調整します。
+     *
+     * @param permit
+     *            送信の許可
+     * @param e
+     *            送信時に発生した例外（成功した場合はnull）
+     */
+    public void release(Permit permit, Exception e) {
+        if (permit == null) {
+            return;
+        }
+        long rttNanos = System.nanoTime() - permit.startNanos;
+        if (e == null) {
+            if (latencyThresholdNanos > 0 && rttNanos > latencyThresholdNanos) {
+                permit.limit.releaseOverload(permit.startNanos);
+            } else {
+                permit.limit.releaseSuccess(rttNanos);
+            }
+        } else if (e instanceof MessagingException && isOverload((MessagingException) e)) {
+            permit.limit.releaseOverload(permit.startNanos);
+        } else {
+            permit.limit.releaseIgnored();
+        }
+    }
+
+    /**
+     * 接続先の同時送信数の上限を取得します。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @return 同時送信数の上限（送信したことが無い接続先の場合は初期値）
+     */
+    public int getLimit(String key) {
+        Limit limit = limitMap.get(key);
+        return limit != null ? limit.getLimit() : Math.min(Math.max(initialLimit, minLimit), maxLimit);
+    }
+
+    /**
+     * 接続先の送信中の数を取得します。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @return 送信中の数
+     */
+    public int getInFlight(String key) {
+        Limit limit = limitMap.get(key);
+        return limit != null ? limit.getInFlight() : 0;
+    }
+
+    /**
+     * 全ての接続先の同時送信数の上限を取得します。
+     *
+     * @return 接続先ごとの同時送信数の上限
+     */
+    public Map<String, Integer> getLimits() {
+        Map<String, Integer> limits = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Limit> entry : limitMap.entrySet()) {
+            limits.put(entry.getKey(), entry.getValue().getLimit());
+        }
+        return limits;
+    }
+
+    /**
+     * 中継サーバの過負荷を示す失敗かどうかを判定します。
+     * <p>
+     * 例外、または連鎖した例外に421・451の応答が含まれるかどうかで判定します。
+     * 接続時の失敗（挨拶・HELO・認証に対する応答）は応答コードを持たない例外になるため、例外メッセージの応答から判定します。
+     * </p>
+     *
+     * @param e
+     *            送信時に発生した例外
+     * @return 過負荷を示す失敗かどうか
+     */
+    static boolean isOverload(MessagingException e) {
+        for (Exception ex = e; ex != null;
+                ex = ex instanceof MessagingException ? ((MessagingException) ex).getNextException() : null) {
+            int code = -1;
+            if (ex instanceof SMTPSendFailedException) {
+                code = ((SMTPSendFailedException) ex).getReturnCode();
+            } else if (ex instanceof SMTPAddressFailedException) {
+                code = ((SMTPAddressFailedException) ex).getReturnCode();
+            }
+            if (code == 421 || code == 451) {
+                return true;
+            }
+            if (code == -1 && ex.getMessage() != null && OVERLOAD_RESPONSE_PATTERN.matcher(ex.getMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 接続先の同時送信数の上限を取得します（存在しない場合は作成します）。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @return 同時送信数の上限
+     */
+    private Limit getLimitState(String key) {
+        Limit limit = limitMap.get(key);
+        if (limit == null) {
+            Limit newLimit = new Limit(Math.min(Math.max(initialLimit, minLimit), maxLimit));
+            limit = limitMap.putIfAbsent(key, newLimit);
+            if (limit == null) {
+                limit = newLimit;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * 接続先ごとの同時送信数の上限と、その調整に使用する値を格納するクラスです。
+     */
+    private class Limit {
+
+        /**
+         * 同時送信数の上限。
+         */
+        private double limit;
+
+        /**
+         * 送信中の数。
+         */
+        private int inFlight = 0;
+
+        /**
+         * 所要時間の直近の値（ナノ秒）。
+         */
+        private double shortRttNanos = 0;
+
+        /**
+         * 所要時間の長期平均（ナノ秒）。
+         */
+        private double longRttNanos = 0;
+
+        /**
+         * 最後に上限を引き下げた日時（ナノ秒）。
+         */
+        private long lastBackoffNanos = Long.MIN_VALUE;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param initialLimit
+         *            同時送信数の上限の初期値
+         */
+        Limit(int initialLimit) {
+            this.limit = initialLimit;
+        }
+
+        /**
+         * 同時送信数が上限未満になるまで待機してから、送信中の数を加算します。
+         *
+         * @throws InterruptedException
+         */
+        synchronized void acquire() throws InterruptedException {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+            inFlight++;
+        }
+
+        /**
+         * 成功した送信を返却し、上限を引き上げます。
+         *
+         * @param rttNanos
+         *            送信の所要時間（ナノ秒）
+         */
+        synchronized void releaseSuccess(long rttNanos) {
+            // 上限まで使用していない場合は、上限を引き上げても効果が確認できないため調整しない。
+            boolean isSaturated = inFlight * 2 >= limit;
+            inFlight--;
+            if (strategy == Strategy.GRADIENT) {
+                if (longRttNanos == 0) {
+                    shortRttNanos = rttNanos;
+                    longRttNanos = rttNanos;
+                } else {
+                    shortRttNanos += SHORT_RTT_SMOOTHING * (rttNanos - shortRttNanos);
+                    longRttNanos += LONG_RTT_SMOOTHING * (rttNanos - longRttNanos);
+                }
+                double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRttNanos / shortRttNanos));
+                double newLimit = limit * gradient + Math.sqrt(limit);
+                if (newLimit < limit || isSaturated) {
+                    setLimit(limit * (1 - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING);
+                }
+            } else if (isSaturated) {
+                setLimit(limit + 1);
+            }
+            notifyAll();
+        }
+
+        /**
+         * 過負荷となった送信を返却し、上限を引き下げます。
+         * <p>
+         * 同時に送信していた他の送信の失敗で重ねて引き下げないよう、
+         * 前回引き下げた後に開始した送信の場合のみ引き下げます。
+         * </p>
+         *
+         * @param startNanos
+         *            送信を開始した日時（ナノ秒）
+         */
+        synchronized void releaseOverload(long startNanos) {
+            inFlight--;
+            if (lastBackoffNanos == Long.MIN_VALUE || startNanos - lastBackoffNanos > 0) {
+                setLimit(limit * backoffRatio);
+                lastBackoffNanos = System.nanoTime();
+            }
+            notifyAll();
+        }
+
+        /**
+         * 上限の調整に使用しない結果の送信を返却します。
+         */
+        synchronized void releaseIgnored() {
+            inFlight--;
+            notifyAll();
+        }
+
+        /**
+         * 同時送信数の上限を取得します。
+         *
+         * @return 同時送信数の上限
+         */
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        /**
+         * 送信中の数を取得します。
+         *
+         * @return 送信中の数
+         */
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * 同時送信数の上限を、最小値と最大値の範囲内で設定します。
+         *
+         * @param newLimit
+         *            同時送信数の上限
+         */
+        private void setLimit(double newLimit) {
+            limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        }
+
+    }
+
+    /**
+     * 送信の許可を表すクラスです。
+     *
+     * @author szmslab
+     */
+    public static class Permit {
+
+        /**
+         * 接続先の同時送信数の上限。
+         */
+        private final Limit limit;
+
+        /**
+         * 送信を開始した日時（ナノ秒）。
+         */
+        private final long startNanos;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param limit
+         *            接続先の同時送信数の上限
+         * @param startNanos
+         *            送信を開始した日時（ナノ秒）
+         */
+        Permit(Limit limit, long startNanos) {
+            this.limit = limit;
+            this.startNanos = startNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.szmslab.quickjavamail.utils.MailProperties;
+
+/**
+ * 中継サーバごとの送信レートと同時送信数を制限し、送信のタイミングを調整するクラスです。
+ * <p>
+ * ホスト（ホスト名とポート番号）ごと、認証情報（ユーザ名）ごと、宛先のドメインごとに、
+ * トークンバケット方式で1分あたりの送信数を制限します。
+ * 制限に達した場合、送信は空きができるまで待機します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class DeliveryScheduler {
+
+    /**
+     * ホストごとの1分あたりの送信数（0以下の場合は制限なし）。
+     */
+    private int hostMessagesPerMinute = 0;
+
+    /**
+     * 認証情報ごとの1分あたりの送信数（0以下の場合は制限なし）。
+     */
+    private int credentialMessagesPerMinute = 0;
+
+    /**
+     * 認証情報ごとの同時送信数（0以下の場合は制限なし）。
+     */
+    private int credentialConcurrency = 0;
+
+    /**
+     * 宛先のドメインごとの1分あたりの送信数。
+     */
+    private final Map<String, Integer> domainMessagesPerMinuteMap = new HashMap<String, Integer>();
+
+    /**
+     * キーごとのトークンバケット。
+     */
+    private final ConcurrentMap<String, TokenBucket> bucketMap = new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * 認証情報ごとの同時送信数を制限するセマフォ。
+     */
+    private final ConcurrentMap<String, Semaphore> semaphoreMap = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * 待機中の送信数。
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+
+    /**
+     * 送信を許可した回数。
+     */
+    private final AtomicLong acquiredCount = new AtomicLong(0);
+
+    /**
+     * 待機した時間の合計（ナノ秒）。
+     */
+    private final AtomicLong totalWaitNanos = new AtomicLong(0);
+
+    /**
+     * 待機した時間の最大値（ナノ秒）。
+     */
+    private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+    /**
+     * ホスト（ホスト名とポート番号）ごとの1分あたりの送信数を設定します。
+     *
+     * @param messagesPerMinute
+     *            1分あたりの送信数
+     * @return 自身のインスタンス
+     */
+    public DeliveryScheduler hostRate(int messagesPerMinute) {
+        this.hostMessagesPerMinute = messagesPerMinute;
+        return this;
+    }
+
+    /**
+     * 認証情報（ユーザ名）ごとの1分あたりの送信数を設定します。
+     *
+     * @param messagesPerMinute
+     *            1分あたりの送信数
+     * @return 自身のインスタンス
+     */
+    public DeliveryScheduler credentialRate(int messagesPerMinute) {
+        this.credentialMessagesPerMinute = messagesPerMinute;
+        return this;
+    }
+
+    /**
+     * 認証情報（ユーザ名）ごとの同時送信数を設定します。
+     *
+     * @param maxConcurrent
+     *            同時送信数
+     * @return 自身のインスタンス
+     */
+    public DeliveryScheduler credentialConcurrency(int maxConcurrent) {
+        this.credentialConcurrency = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * 宛先のドメインごとの1分あたりの送信数を設定します。
+     *
+     * @param domain
+     *            宛先のドメイン
+     * @param messagesPerMinute
+     *            1分あたりの送信数
+     * @return 自身のインスタンス
+     */
+    public DeliveryScheduler domainRate(String domain, int messagesPerMinute) {
+        if (StringUtils.isNotBlank(domain)) {
+            domainMessagesPerMinuteMap.put(domain.toLowerCase(), messagesPerMinute);
+        }
+        return this;
+    }
+
+    /**
+     * 送信の許可を取得します。
+     * <p>
+     * 制限に達している場合は、送信できるようになるまで待機します。
+     * 送信後は、必ず{@link #release(Ticket)}を呼び出してください。
+     * </p>
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param addresses
+     *            送信先のアドレス
+     * @return 送信の許可
+     * @throws InterruptedException
+     */
+    public Ticket acquire(MailProperties properties, Address[] addresses) throws InterruptedException {
+        return acquire(properties, null, addresses);
+    }
+
+    /**
+     * 指定した中継サーバへの送信の許可を取得します。
+     * <p>
+     * ホストごと、認証情報ごとの制限は、中継サーバのホスト名とポート番号に対して適用します。
+     * 制限に達している場合は、送信できるようになるまで待機します。
+     * 送信後は、必ず{@link #release(Ticket)}を呼び出してください。
+     * </p>
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @param addresses
+     *            送信先のアドレス
+     * @return 送信の許可
+     * @throws InterruptedException
+     */
+    public Ticket acquire(MailProperties properties, RelayGroup.Relay relay, Address[] addresses)
+            throws InterruptedException {
+        String hostKey = relay != null
+                ? relay.getHost() + ":" + relay.getPort()
+                : StringUtils.defaultString(properties.getHost()) + ":" + StringUtils.defaultString(properties.getPort());
+        String credentialKey = StringUtils.defaultString(properties.getUserName()) + "@" + hostKey;
+
+        long startNanos = System.nanoTime();
+        queueDepth.incrementAndGet();
+        Semaphore semaphore = null;
+        try {
+            if (credentialConcurrency > 0) {
+                semaphore = getSemaphore(credentialKey);
+                semaphore.acquire();
+            }
+
+            long waitNanos = 0;
+            if (hostMessagesPerMinute > 0) {
+                waitNanos = Math.max(waitNanos, getBucket("host:" + hostKey, hostMessagesPerMinute).reserve());
+            }
+            if (credentialMessagesPerMinute > 0) {
+                waitNanos = Math.max(waitNanos, getBucket("credential:" + credentialKey, credentialMessagesPerMinute).reserve());
+            }
+            for (String domain : getDomains(addresses)) {
+                Integer messagesPerMinute = domainMessagesPerMinuteMap.get(domain);
+                if (messagesPerMinute != null && messagesPerMinute > 0) {
+                    waitNanos = Math.max(waitNanos, getBucket("domain:" + domain, messagesPerMinute).reserve());
+                }
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        } catch (InterruptedException e) {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            throw e;
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+
+        long waitedNanos = System.nanoTime() - startNanos;
+        acquiredCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitedNanos);
+        long max;
+        while (waitedNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitedNanos)) {
+            // 最大値を更新できるまで繰り返す。
+        }
+        return new Ticket(semaphore);
+    }
+
+    /**
+     * 送信の許可を返却します。
+     *
+     * @param ticket
+     *            送信の許可
+     */
+    public void release(Ticket ticket) {
+        if (ticket != null && ticket.semaphore != null) {
+            ticket.semaphore.release();
+        }
+    }
+
+    /**
+     * 待機中の送信数を取得します。
+     *
+     * @return 待機中の送信数
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * 送信を許可した回数を取得します。
+     *
+     * @return 送信を許可した回数
+     */
+    public long getAcquiredCount() {
+        return acquiredCount.get();
+    }
+
+    /**
+     * 待機した時間の合計（ミリ秒）を取得します。
+     *
+     * @return 待機した時間の合計（ミリ秒）
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * 待機した時間の最大値（ミリ秒）を取得します。
+     *
+     * @return 待機した時間の最大値（ミリ秒）
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * 待機した時間の平均値（ミリ秒）を取得します。
+     *
+     * @return 待機した時間の平均値（ミリ秒）
+     */
+    public double getAverageWaitMillis() {
+        long count = acquiredCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * キーに対応するトークンバケットを取得します。
+     *
+     * @param key
+     *            キー
+     * @param messagesPerMinute
+     *            1分あたりの送信数
+     * @return トークンバケット
+     */
+    private TokenBucket getBucket(String key, int messagesPerMinute) {
+        TokenBucket bucket = bucketMap.get(key);
+        if (bucket == null) {
+            // バースト数は1秒あたりの送信数とする。
+            bucketMap.putIfAbsent(key, new TokenBucket(messagesPerMinute, messagesPerMinute / 60));
+            bucket = bucketMap.get(key);
+        }
+        return bucket;
+    }
+
+    /**
+     * キーに対応するセマフォを取得します。
+     *
+     * @param key
+     *            キー
+     * @return セマフォ
+     */
+    private Semaphore getSemaphore(String key) {
+        Semaphore semaphore = semaphoreMap.get(key);
+        if (semaphore == null) {
+            semaphoreMap.putIfAbsent(key, new Semaphore(credentialConcurrency, true));
+            semaphore = semaphoreMap.get(key);
+        }
+        return semaphore;
+    }
+
+    /**
+     * 送信先のアドレスのドメインを取得します。
+     *
+     * @param addresses
+     *            送信先のアドレス
+     * @return ドメイン（小文字）
+     */
+    private Set<String> getDomains(Address[] addresses) {
+        Set<String> domainSet = new LinkedHashSet<String>();
+        if (addresses != null && !domainMessagesPerMinuteMap.isEmpty()) {
+            for (Address address : addresses) {
+                if (address instanceof InternetAddress) {
+                    String domain = StringUtils.substringAfterLast(((InternetAddress) address).getAddress(), "@");
+                    if (StringUtils.isNotEmpty(domain)) {
+                        domainSet.add(domain.toLowerCase());
+                    }
+                }
+            }
+        }
+        return domainSet;
+    }
+
+    /**
+     * 送信の許可を表すクラスです。
+     *
+     * @author szmslab
+     */
+    public static class Ticket {
+
+        /**
+         * 取得したセマフォ（同時送信数を制限しない場合はnull）。
+         */
+        private final Semaphore semaphore;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param semaphore
+         *            取得したセマフォ
+         */
+        Ticket(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+    }
+
+}
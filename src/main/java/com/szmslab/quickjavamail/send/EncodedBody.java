@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content-Transfer-Encodingによるエンコード済みの内容を格納するクラスです。
+ * <p>
+ * 内容はメモリ上のバイト配列、または、ファイルに保持されます。
+ * </p>
+ *
+ * @author szmslab
+ */
+class EncodedBody {
+
+    /**
+     * Content-Transfer-Encodingの値。
+     */
+    private final String encoding;
+
+    /**
+     * エンコード済みの内容（ファイルに保持する場合はnull）。
+     */
+    private final byte[] content;
+
+    /**
+     * エンコード済みの内容を保持するファイル（メモリ上に保持する場合はnull）。
+     */
+    private final File file;
+
+    /**
+     * エンコード済みの内容のサイズ（バイト）。
+     */
+    private final long size;
+
+    /**
+     * コンストラクタです（メモリ上に保持します）。
+     *
+     * @param encoding
+     *            Content-Transfer-Encodingの値
+     * @param content
+     *            エンコード済みの内容
+     */
+    EncodedBody(String encoding, byte[] content) {
+        this.encoding = encoding;
+        this.content = content;
+        this.file = null;
+        this.size = content.length;
+    }
+
+    /**
+     * コンストラクタです（ファイルに保持します）。
+     *
+     * @param encoding
+     *            Content-Transfer-Encodingの値
+     * @param file
+     *            エンコード済みの内容を保持するファイル
+     */
+    EncodedBody(String encoding, File file) {
+        this.encoding = encoding;
+        this.content = null;
+        this.file = file;
+        this.size = file.length();
+    }
+
+    /**
+     * Content-Transfer-Encodingの値を取得します。
+     *
+     * @return Content-Transfer-Encodingの値
+     */
+    String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * エンコード済みの内容（メモリ上に保持する場合）を取得します。
+     *
+     * @return エンコード済みの内容（ファイルに保持する場合はnull）
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * エンコード済みの内容を保持するファイルを取得します。
+     *
+     * @return エンコード済みの内容を保持するファイル（メモリ上に保持する場合はnull）
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * エンコード済みの内容のサイズ（バイト）を取得します。
+     *
+     * @return エンコード済みの内容のサイズ（バイト）
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * ファイルに保持しているかどうかを取得します。
+     *
+     * @return ファイルに保持しているかどうか
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * エンコード済みの内容を読み込むストリームを取得します。
+     *
+     * @return エンコード済みの内容を読み込むストリーム
+     * @throws IOException
+     */
+    InputStream getInputStream() throws IOException {
+        if (file != null) {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+}
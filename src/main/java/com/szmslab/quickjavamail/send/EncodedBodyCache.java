@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+
+import com.szmslab.quickjavamail.utils.MailUtil;
+
+/**
+ * 添付ファイル、インライン画像ファイルのエンコード済みの内容をキャッシュするクラスです。
+ * <p>
+ * 内容のハッシュ値とContent-Transfer-Encodingをキーとして保持し、複数のメッセージで同じファイルを送信する場合に
+ * エンコード済みの内容をそのまま書き出します。
+ * メモリ上の保持サイズが上限を超えた場合は、最も長く使用されていないものから破棄します。
+ * 退避先のディレクトリを設定した場合は、破棄する代わりにファイルに退避します。
+ * 退避したファイルの合計サイズが上限を超えた場合も、最も長く使用されていないものから削除します。
+ * なお、同じデータソースのインスタンスは内容が変更されないものとして扱います
+ * （{@link FileDataSource}は、ファイルのサイズと更新日時が変わった場合に内容を読み直します）。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class EncodedBodyCache {
+
+    /**
+     * ファイルに退避するエンコード済みの内容の上限サイズ（バイト）のデフォルト値。
+     */
+    public static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * メモリ上に保持するエンコード済みの内容の上限サイズ（バイト）。
+     */
+    private final long maxMemoryBytes;
+
+    /**
+     * ファイルに退避するエンコード済みの内容の上限サイズ（バイト）。
+     */
+    private long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+
+    /**
+     * エンコード済みの内容の退避先ディレクトリ。
+     */
+    private File spillDirectory;
+
+    /**
+     * メモリ上に保持しているエンコード済みの内容（最も長く使用されていないものが先頭）。
+     */
+    private final LinkedHashMap<String, EncodedBody> memoryMap = new LinkedHashMap<String, EncodedBody>(16, 0.75f, true);
+
+    /**
+     * ファイルに退避したエンコード済みの内容（最も長く使用されていないものが先頭）。
+     */
+    private final LinkedHashMap<String, EncodedBody> diskMap = new LinkedHashMap<String, EncodedBody>(16, 0.75f, true);
+
+    /**
+     * データソースごとのキーのキャッシュ（同じデータソースのハッシュ値の再計算を省略します）。
+     */
+    private final Map<DataSource, SourceKey> keyMap = new WeakHashMap<DataSource, SourceKey>();
+
+    /**
+     * メモリ上に保持しているエンコード済みの内容のサイズ（バイト）。
+     */
+    private long memoryBytes = 0;
+
+    /**
+     * ファイルに退避したエンコード済みの内容のサイズ（バイト）。
+     */
+    private long diskBytes = 0;
+
+    /**
+     * キャッシュにヒットした回数。
+     */
+    private long hitCount = 0;
+
+    /**
+     * キャッシュにヒットしなかった回数。
+     */
+    private long missCount = 0;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param maxMemoryBytes
+     *            メモリ上に保持するエンコード済みの内容の上限サイズ（バイト）
+     */
+    public EncodedBodyCache(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * エンコード済みの内容の退避先ディレクトリを設定します。
+     * <p>
+     * 設定しない場合、上限サイズを超えた内容はファイルに退避されずに破棄されます。
+     * </p>
+     *
+     * @param spillDirectory
+     *            エンコード済みの内容の退避先ディレクトリ
+     * @return 自身のインスタンス
+     */
+    public EncodedBodyCache spillDirectory(File spillDirectory) {
+        if (spillDirectory != null && !spillDirectory.exists()) {
+            spillDirectory.mkdirs();
+        }
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * ファイルに退避するエンコード済みの内容の上限サイズ（バイト）を設定します。
+     * <p>
+     * 上限を超えた場合は、最も長く使用されていないものから退避したファイルを削除します。
+     * 送信中のメッセージが参照しているファイルを削除しないよう、同時に送信する添付ファイルの合計より大きな値を設定してください。
+     * </p>
+     *
+     * @param maxDiskBytes
+     *            ファイルに退避するエンコード済みの内容の上限サイズ（バイト）
+     * @return 自身のインスタンス
+     */
+    public synchronized EncodedBodyCache maxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+        return this;
+    }
+
+    /**
+     * データソースの内容をエンコードしたパートを作成します。
+     * <p>
+     * キャッシュに存在する場合は、エンコード済みの内容を使用します。
+     * </p>
+     *
+     * @param ds
+     *            データソース
+     * @return エンコード済みの内容を持つパート
+     * @throws MessagingException
+     */
+    EncodedBodyPart createBodyPart(DataSource ds) throws MessagingException {
+        try {
+            return new EncodedBodyPart(ds.getContentType(), get(ds));
+        } catch (IOException e) {
+            throw new MessagingException("Can't encode content", e);
+        }
+    }
+
+    /**
+     * データソースをキャッシュできるかどうかを判定します。
+     * <p>
+     * multipart、messageは、Content-Transfer-Encodingが制限されるため対象外とします。
+     * </p>
+     *
+     * @param ds
+     *            データソース
+     * @return キャッシュできるかどうか
+     */
+    static boolean isCacheable(DataSource ds) {
+        try {
+            ContentType cType = new ContentType(ds.getContentType());
+            return !cType.match("multipart/*") && !cType.match("message/*");
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * データソースのエンコード済みの内容を取得します。
+     *
+     * @param ds
+     *            データソース
+     * @return エンコード済みの内容
+     * @throws IOException
+     * @throws MessagingException
+     */
+    EncodedBody get(DataSource ds) throws IOException, MessagingException {
+        SourceKey sourceKey = new SourceKey(ds);
+        synchronized (this) {
+            SourceKey cachedKey = keyMap.get(ds);
+            if (cachedKey != null && cachedKey.isSameSource(sourceKey)) {
+                EncodedBody body = lookup(cachedKey.key);
+                if (body != null) {
+                    return body;
+                }
+            }
+        }
+
+        byte[] rawContent = MailUtil.toByteArray(ds);
+        String encoding = MimeUtility.getEncoding(new ByteArrayDataSource(rawContent, ds.getContentType()));
+        String key = hash(rawContent) + ":" + encoding;
+        synchronized (this) {
+            sourceKey.key = key;
+            keyMap.put(ds, sourceKey);
+            EncodedBody body = lookup(key);
+            if (body != null) {
+                return body;
+            }
+            missCount++;
+        }
+
+        EncodedBody body = new EncodedBody(encoding, encode(rawContent, encoding));
+        synchronized (this) {
+            if (body.getSize() > maxMemoryBytes) {
+                if (spillDirectory != null && body.getSize() <= maxDiskBytes) {
+                    body = spill(key, body);
+                }
+            } else {
+                EncodedBody old = memoryMap.put(key, body);
+                if (old != null) {
+                    memoryBytes -= old.getSize();
+                }
+                memoryBytes += body.getSize();
+                trim();
+            }
+        }
+        return body;
+    }
+
+    /**
+     * キャッシュされた内容を全て破棄します（送信中に呼び出さないでください）。
+     */
+    public synchronized void clear() {
+        for (EncodedBody body : diskMap.values()) {
+            deleteSpillFile(body);
+        }
+        memoryMap.clear();
+        diskMap.clear();
+        keyMap.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+    }
+
+    /**
+     * メモリ上に保持しているエンコード済みの内容のサイズ（バイト）を取得します。
+     *
+     * @return メモリ上に保持しているエンコード済みの内容のサイズ（バイト）
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * ファイルに退避したエンコード済みの内容のサイズ（バイト）を取得します。
+     *
+     * @return ファイルに退避したエンコード済みの内容のサイズ（バイト）
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * キャッシュにヒットした回数を取得します。
+     *
+     * @return キャッシュにヒットした回数
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * キャッシュにヒットしなかった回数を取得します。
+     *
+     * @return キャッシュにヒットしなかった回数
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * キャッシュからエンコード済みの内容を検索します。
+     *
+     * @param key
+     *            キー
+     * @return エンコード済みの内容（存在しない場合はnull）
+     */
+    private EncodedBody lookup(String key) {
+        EncodedBody body = memoryMap.get(key);
+        if (body == null) {
+            body = diskMap.get(key);
+        }
+        if (body != null) {
+            hitCount++;
+        }
+        return body;
+    }
+
+    /**
+     * メモリ上の保持サイズが上限を超えている場合、最も長く使用されていないものから破棄、またはファイルに退避します。
+     *
+     * @throws IOException
+     */
+    private void trim() throws IOException {
+        List<String> evictedKeyList = new ArrayList<String>();
+        List<EncodedBody> evictedBodyList = new ArrayList<EncodedBody>();
+        for (Iterator<Map.Entry<String, EncodedBody>> itr = memoryMap.entrySet().iterator();
+                memoryBytes > maxMemoryBytes && itr.hasNext();) {
+            Map.Entry<String, EncodedBody> entry = itr.next();
+            evictedKeyList.add(entry.getKey());
+            evictedBodyList.add(entry.getValue());
+            memoryBytes -= entry.getValue().getSize();
+            itr.remove();
+        }
+        if (spillDirectory != null) {
+            for (int i = 0; i < evictedKeyList.size(); i++) {
+                if (evictedBodyList.get(i).getSize() <= maxDiskBytes) {
+                    spill(evictedKeyList.get(i), evictedBodyList.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * 退避したファイルの合計サイズが上限を超えている場合、最も長く使用されていないものから削除します。
+     * <p>
+     * 直前に退避したものは削除しません。
+     * </p>
+     *
+     * @param keptKey
+     *            直前に退避した内容のキー
+     */
+    private void trimDisk(String keptKey) {
+        for (Iterator<Map.Entry<String, EncodedBody>> itr = diskMap.entrySet().iterator();
+                diskBytes > maxDiskBytes && itr.hasNext();) {
+            Map.Entry<String, EncodedBody> entry = itr.next();
+            if (entry.getKey().equals(keptKey)) {
+                continue;
+            }
+            diskBytes -= entry.getValue().getSize();
+            deleteSpillFile(entry.getValue());
+            itr.remove();
+        }
+    }
+
+    /**
+     * エンコード済みの内容をファイルに退避します。
+     *
+     * @param key
+     *            キー
+     * @param body
+     *            エンコード済みの内容
+     * @return ファイルに退避したエンコード済みの内容
+     * @throws IOException
+     */
+    private EncodedBody spill(String key, EncodedBody body) throws IOException {
+        File file = new File(spillDirectory, key.replace(':', '.'));
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(file));
+            os.write(body.getContent());
+            os.flush();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        file.deleteOnExit();
+
+        EncodedBody spilledBody = new EncodedBody(body.getEncoding(), file);
+        EncodedBody old = diskMap.put(key, spilledBody);
+        if (old != null) {
+            diskBytes -= old.getSize();
+        }
+        diskBytes += spilledBody.getSize();
+        trimDisk(key);
+        return spilledBody;
+    }
+
+    /**
+     * 退避したファイルを削除します。
+     *
+     * @param body
+     *            ファイルに退避したエンコード済みの内容
+     */
+    private void deleteSpillFile(EncodedBody body) {
+        if (body.isSpilled()) {
+            body.getFile().delete();
+        }
+    }
+
+    /**
+     * 内容をエンコードします。
+     *
+     * @param rawContent
+     *            エンコード前の内容
+     * @param encoding
+     *            Content-Transfer-Encodingの値
+     * @return エンコード済みの内容
+     * @throws IOException
+     * @throws MessagingException
+     */
+    private static byte[] encode(byte[] rawContent, String encoding) throws IOException, MessagingException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(rawContent.length * 4 / 3 + 1024);
+        OutputStream os = MimeUtility.encode(baos, encoding);
+        os.write(rawContent);
+        os.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * 内容のハッシュ値（SHA-256）を計算します。
+     *
+     * @param rawContent
+     *            内容
+     * @return ハッシュ値（16進数）
+     */
+    private static String hash(byte[] rawContent) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(rawContent);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * データソースとキーの対応を格納するクラスです。
+     * <p>
+     * {@link FileDataSource}の場合は、キーを計算した時点のファイルのサイズと更新日時を保持し、
+     * 変更されている場合はキーを再計算します。
+     * </p>
+     */
+    private static class SourceKey {
+
+        /**
+         * キー（内容のハッシュ値とContent-Transfer-Encoding）。
+         */
+        private String key;
+
+        /**
+         * ファイルのサイズ（ファイル以外の場合は-1）。
+         */
+        private final long length;
+
+        /**
+         * ファイルの更新日時（ファイル以外の場合は-1）。
+         */
+        private final long lastModified;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param ds
+         *            データソース
+         */
+        SourceKey(DataSource ds) {
+            if (ds instanceof FileDataSource) {
+                File file = ((FileDataSource) ds).getFile();
+                this.length = file.length();
+                this.lastModified = file.lastModified();
+            } else {
+                this.length = -1;
+                this.lastModified = -1;
+            }
+        }
+
+        /**
+         * 同じ内容のデータソースかどうかを判定します。
+         *
+         * @param other
+         *            現在のデータソースの情報
+         * @return 同じ内容のデータソースかどうか
+         */
+        boolean isSameSource(SourceKey other) {
+            return length == other.length && lastModified == other.lastModified;
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * エンコード済みの内容を持つパートです。
+ * <p>
+ * 送信時に内容が再エンコードされず、エンコード済みの内容がそのまま書き出されます。
+ * </p>
+ *
+ * @author szmslab
+ */
+class EncodedBodyPart extends MimeBodyPart {
+
+    /**
+     * エンコード済みの内容。
+     */
+    private final EncodedBody body;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param contentType
+     *            Content-Typeの値
+     * @param body
+     *            エンコード済みの内容
+     * @throws MessagingException
+     */
+    EncodedBodyPart(String contentType, EncodedBody body) throws MessagingException {
+        super();
+        this.body = body;
+        setHeader("Content-Type", contentType);
+        setHeader("Content-Transfer-Encoding", body.getEncoding());
+    }
+
+    /* (非 Javadoc)
+     * @see javax.mail.internet.MimeBodyPart#getSize()
+     */
+    @Override
+    public int getSize() throws MessagingException {
+        return (int) Math.min(body.getSize(), Integer.MAX_VALUE);
+    }
+
+    /* (非 Javadoc)
+     * @see javax.mail.internet.MimeBodyPart#getContentStream()
+     */
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        try {
+            return body.getInputStream();
+        } catch (IOException e) {
+            throw new MessagingException("Can't read encoded content", e);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * メール送信の計測値をメモリ上に記録するクラスです。
+ *
+ * @author szmslab
+ */
+public class InMemoryMailMetrics implements MailMetrics {
+
+    /**
+     * フェーズごとの所要時間のヒストグラム。
+     */
+    private final Map<SmtpPhase, LatencyHistogram> histogramMap = new EnumMap<SmtpPhase, LatencyHistogram>(SmtpPhase.class);
+
+    /**
+     * 書き出したメッセージのバイト数。
+     */
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+
+    /**
+     * サーバが受け付けた宛先数。
+     */
+    private final AtomicLong acceptedRecipients = new AtomicLong(0);
+
+    /**
+     * サーバが拒否した宛先数。
+     */
+    private final AtomicLong rejectedRecipients = new AtomicLong(0);
+
+    /**
+     * プールの接続を再利用した回数。
+     */
+    private final AtomicLong poolHits = new AtomicLong(0);
+
+    /**
+     * プールに再利用できる接続がなかった回数。
+     */
+    private final AtomicLong poolMisses = new AtomicLong(0);
+
+    /**
+     * コンストラクタです。
+     */
+    public InMemoryMailMetrics() {
+        for (SmtpPhase phase : SmtpPhase.values()) {
+            histogramMap.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.send.MailMetrics#recordPhase(com.szmslab.quickjavamail.send.SmtpPhase, long)
+     */
+    @Override
+    public void recordPhase(SmtpPhase phase, long nanos) {
+        histogramMap.get(phase).record(nanos);
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.send.MailMetrics#recordBytesWritten(long)
+     */
+    @Override
+    public void recordBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.send.MailMetrics#recordRecipients(int, int)
+     */
+    @Override
+    public void recordRecipients(int accepted, int rejected) {
+        acceptedRecipients.addAndGet(accepted);
+        rejectedRecipients.addAndGet(rejected);
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.send.MailMetrics#recordPoolHit()
+     */
+    @Override
+    public void recordPoolHit() {
+        poolHits.incrementAndGet();
+    }
+
+    /* (非 Javadoc)
+     * @see com.szmslab.quickjavamail.send.MailMetrics#recordPoolMiss()
+     */
+    @Override
+    public void recordPoolMiss() {
+        poolMisses.incrementAndGet();
+    }
+
+    /**
+     * フェーズの所要時間のヒストグラムを取得します。
+     *
+     * @param phase
+     *            フェーズ
+     * @return 所要時間のヒストグラム
+     */
+    public LatencyHistogram getHistogram(SmtpPhase phase) {
+        return histogramMap.get(phase);
+    }
+
+    /**
+     * 書き出したメッセージのバイト数を取得します。
+     *
+     * @return 書き出したメッセージのバイト数
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * サーバが受け付けた宛先数を取得します。
+     *
+     * @return サーバが受け付けた宛先数
+     */
+    public long getAcceptedRecipients() {
+        return acceptedRecipients.get();
+    }
+
+    /**
+     * サーバが拒否した宛先数を取得します。
+     *
+     * @return サーバが拒否した宛先数
+     */
+    public long getRejectedRecipients() {
+        return rejectedRecipients.get();
+    }
+
+    /**
+     * プールの接続を再利用した回数を取得します。
+     *
+     * @return プールの接続を再利用した回数
+     */
+    public long getPoolHits() {
+        return poolHits.get();
+    }
+
+    /**
+     * プールに再利用できる接続がなかった回数を取得します。
+     *
+     * @return プールに再利用できる接続がなかった回数
+     */
+    public long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (SmtpPhase phase : SmtpPhase.values()) {
+            LatencyHistogram histogram = histogramMap.get(phase);
+            if (histogram.getCount() > 0) {
+                sb.append(phase).append(": ").append(histogram).append("\n");
+            }
+        }
+        sb.append(String.format("bytesWritten=%d, acceptedRecipients=%d, rejectedRecipients=%d, poolHits=%d, poolMisses=%d",
+                getBytesWritten(), getAcceptedRecipients(), getRejectedRecipients(), getPoolHits(), getPoolMisses()));
+        return sb.toString();
+    }
+
+}
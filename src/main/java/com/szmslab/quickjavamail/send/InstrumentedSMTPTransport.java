@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import com.sun.mail.smtp.SMTPTransport;
+import com.szmslab.quickjavamail.utils.MailProperties;
+
+/**
+ * 送信処理のフェーズごとの所要時間などを計測するTransportです。
+ * <p>
+ * SMTPTransportの各フェーズの処理を計測し、{@link MailMetrics}に記録します。
+ * 接続処理のうち、最初のEHLO（HELO）までを接続、最後のEHLOの後を認証の所要時間として記録します。
+ * 宛先の受け付け数は、TransportListenerへの通知（イベントキューを使用しない呼び出し元）で記録します。
+ * </p>
+ *
+ * @author szmslab
+ */
+class InstrumentedSMTPTransport extends SMTPTransport {
+
+    /**
+     * 計測値の記録先。
+     */
+    private final MailMetrics metrics;
+
+    /**
+     * 接続済みかどうか（isConnectedはNOOPコマンドを送信するため、独自に保持します）。
+     */
+    private boolean isOpened = false;
+
+    /**
+     * 接続処理中の最初のEHLO（HELO）の開始日時（ナノ秒）。
+     */
+    private long firstHelloNanos;
+
+    /**
+     * 接続処理中の最後のEHLO（HELO）、STARTTLSの終了日時（ナノ秒）。
+     */
+    private long lastHandshakeNanos;
+
+    /**
+     * DATAコマンドの開始日時（ナノ秒）。
+     */
+    private long dataStartNanos;
+
+    /**
+     * 送信中のメッセージの宛先数を記録済みかどうか（全ての宛先が拒否された場合は2回通知されるため）。
+     */
+    private boolean isRecipientsRecorded;
+
+    /**
+     * メッセージの書き出し先。
+     */
+    private CountingOutputStream dataStream;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param session
+     *            セッション
+     * @param urlname
+     *            接続先
+     * @param name
+     *            プロトコル
+     * @param isSSL
+     *            SSLを使用するかどうか
+     * @param metrics
+     *            計測値の記録先
+     */
+    InstrumentedSMTPTransport(Session session, URLName urlname, String name, boolean isSSL, MailMetrics metrics) {
+        super(session, urlname, name, isSSL);
+        this.metrics = metrics;
+    }
+
+    /**
+     * セッションのTransportを取得します。
+     * <p>
+     * JavaMailのプロパティに計測値の記録先が設定されている場合は、計測を行うTransportを返します。
+     * </p>
+     *
+     * @param session
+     *            セッション
+     * @param properties
+     *            JavaMailのプロパティ
+     * @return Transport
+     * @throws NoSuchProviderException
+     */
+    static Transport getTransport(Session session, MailProperties properties) throws NoSuchProviderException {
+        MailMetrics metrics = getMetrics(properties);
+        String protocol = session.getProperty("mail.transport.protocol");
+        if (metrics == null || !("smtp".equals(protocol) || "smtps".equals(protocol))) {
+            return session.getTransport();
+        }
+        return new InstrumentedSMTPTransport(session, new URLName(protocol, null, -1, null, null, null),
+                protocol, "smtps".equals(protocol), metrics);
+    }
+
+    /**
+     * JavaMailのプロパティに設定された計測値の記録先を取得します。
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @return 計測値の記録先（設定されていない場合はnull）
+     */
+    static MailMetrics getMetrics(MailProperties properties) {
+        if (properties instanceof SmtpProperties) {
+            return ((SmtpProperties) properties).getMetrics();
+        }
+        return null;
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#protocolConnect(java.lang.String, int, java.lang.String, java.lang.String)
+     */
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException {
+        long start = System.nanoTime();
+        firstHelloNanos = 0;
+        lastHandshakeNanos = 0;
+        String lastResponse = getLastServerResponse();
+        boolean isConnected;
+        try {
+            isConnected = super.protocolConnect(host, port, user, password);
+        } catch (MessagingException e) {
+            // 接続後に失敗した場合（挨拶の応答が4xx・5xxなど）のみ、接続の所要時間を記録する。
+            if (firstHelloNanos != 0 || getLastServerResponse() != lastResponse) {
+                recordConnect(start, System.nanoTime());
+            }
+            throw e;
+        }
+        long end = System.nanoTime();
+        isOpened = isConnected;
+        // 認証が必要でユーザ名・パスワードが無い場合は、接続せずにfalseを返す（Service#connectが再度呼び出す）ため記録しない。
+        if (isConnected || firstHelloNanos != 0) {
+            recordConnect(start, end);
+        }
+        if (isConnected && password != null && lastHandshakeNanos != 0) {
+            metrics.recordPhase(SmtpPhase.AUTH, end - lastHandshakeNanos);
+        }
+        return isConnected;
+    }
+
+    /**
+     * 接続の所要時間（最初のEHLO（HELO）まで）を記録します。
+     *
+     * @param start
+     *            接続の開始日時（ナノ秒）
+     * @param end
+     *            接続処理の終了日時（ナノ秒）
+     */
+    private void recordConnect(long start, long end) {
+        metrics.recordPhase(SmtpPhase.CONNECT, (firstHelloNanos == 0 ? end : firstHelloNanos) - start);
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#ehlo(java.lang.String)
+     */
+    @Override
+    protected boolean ehlo(String domain) throws MessagingException {
+        long start = startHello();
+        try {
+            return super.ehlo(domain);
+        } finally {
+            endHandshake(SmtpPhase.EHLO, start);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#helo(java.lang.String)
+     */
+    @Override
+    protected void helo(String domain) throws MessagingException {
+        long start = startHello();
+        try {
+            super.helo(domain);
+        } finally {
+            endHandshake(SmtpPhase.EHLO, start);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#startTLS()
+     */
+    @Override
+    protected void startTLS() throws MessagingException {
+        long start = System.nanoTime();
+        try {
+            super.startTLS();
+        } finally {
+            endHandshake(SmtpPhase.STARTTLS, start);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#sendMessage(javax.mail.Message, javax.mail.Address[])
+     */
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        isRecipientsRecorded = false;
+        super.sendMessage(message, addresses);
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#mailFrom()
+     */
+    @Override
+    protected void mailFrom() throws MessagingException {
+        long start = System.nanoTime();
+        try {
+            super.mailFrom();
+        } finally {
+            metrics.recordPhase(SmtpPhase.MAIL, System.nanoTime() - start);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#rcptTo()
+     */
+    @Override
+    protected void rcptTo() throws MessagingException {
+        long start = System.nanoTime();
+        try {
+            super.rcptTo();
+        } finally {
+            metrics.recordPhase(SmtpPhase.RCPT, System.nanoTime() - start);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#data()
+     */
+    @Override
+    protected OutputStream data() throws MessagingException {
+        dataStartNanos = System.nanoTime();
+        dataStream = new CountingOutputStream(super.data());
+        return dataStream;
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#finishData()
+     */
+    @Override
+    protected void finishData() throws IOException, MessagingException {
+        try {
+            super.finishData();
+        } finally {
+            metrics.recordPhase(SmtpPhase.DATA, System.nanoTime() - dataStartNanos);
+            if (dataStream != null) {
+                metrics.recordBytesWritten(dataStream.count);
+                dataStream = null;
+            }
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#close()
+     */
+    @Override
+    public synchronized void close() throws MessagingException {
+        long start = System.nanoTime();
+        boolean wasOpened = isOpened;
+        isOpened = false;
+        try {
+            super.close();
+        } finally {
+            if (wasOpened) {
+                metrics.recordPhase(SmtpPhase.QUIT, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see com.sun.mail.smtp.SMTPTransport#notifyTransportListeners(int, javax.mail.Address[], javax.mail.Address[], javax.mail.Address[], javax.mail.Message)
+     */
+    @Override
+    protected void notifyTransportListeners(int type, Address[] validSent, Address[] validUnsent,
+            Address[] invalid, Message msg) {
+        if (!isRecipientsRecorded) {
+            isRecipientsRecorded = true;
+            metrics.recordRecipients(validSent == null ? 0 : validSent.length, invalid == null ? 0 : invalid.length);
+        }
+        super.notifyTransportListeners(type, validSent, validUnsent, invalid, msg);
+    }
+
+    /**
+     * EHLO（HELO）の開始を記録します。
+     *
+     * @return 開始日時（ナノ秒）
+     */
+    private long startHello() {
+        long start = System.nanoTime();
+        if (firstHelloNanos == 0) {
+            firstHelloNanos = start;
+        }
+        return start;
+    }
+
+    /**
+     * 接続処理中のコマンドの終了を記録します。
+     *
+     * @param phase
+     *            フェーズ
+     * @param start
+     *            開始日時（ナノ秒）
+     */
+    private void endHandshake(SmtpPhase phase, long start) {
+        lastHandshakeNanos = System.nanoTime();
+        metrics.recordPhase(phase, lastHandshakeNanos - start);
+    }
+
+    /**
+     * 書き出したバイト数を数える出力ストリームです。
+     *
+     * @author szmslab
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /**
+         * 書き出したバイト数。
+         */
+        private long count = 0;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param out
+         *            出力ストリーム
+         */
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /* (非 Javadoc)
+         * @see java.io.FilterOutputStream#write(int)
+         */
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        /* (非 Javadoc)
+         * @see java.io.FilterOutputStream#write(byte[], int, int)
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+    }
+
+}
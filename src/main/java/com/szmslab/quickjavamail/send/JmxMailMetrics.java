@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * メール送信の計測値をメモリ上に記録し、JMXで公開するクラスです。
+ * <p>
+ * {@link #register(String)}で登録すると、
+ * 「com.szmslab.quickjavamail:type=MailMetrics,name=名前」のMBeanとして参照できます。
+ * フェーズごとに「ConnectCount」「ConnectMeanMillis」「ConnectP99Millis」「ConnectMaxMillis」のような属性を公開します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class JmxMailMetrics extends InMemoryMailMetrics implements DynamicMBean {
+
+    /**
+     * フェーズごとの属性名の接尾辞。
+     */
+    private static final String[] PHASE_ATTRIBUTE_SUFFIXES = {"Count", "MeanMillis", "P99Millis", "MaxMillis"};
+
+    /**
+     * 登録したMBeanの名前。
+     */
+    private ObjectName objectName;
+
+    /**
+     * MBeanとして登録します。
+     *
+     * @param name
+     *            名前
+     * @return 自身のインスタンス
+     * @throws JMException
+     */
+    public synchronized JmxMailMetrics register(String name) throws JMException {
+        ObjectName newName = new ObjectName("com.szmslab.quickjavamail:type=MailMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newName);
+        objectName = newName;
+        return this;
+    }
+
+    /**
+     * MBeanの登録を解除します。
+     *
+     * @throws JMException
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see javax.management.DynamicMBean#getAttribute(java.lang.String)
+     */
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        if ("BytesWritten".equals(attribute)) {
+            return getBytesWritten();
+        } else if ("AcceptedRecipients".equals(attribute)) {
+            return getAcceptedRecipients();
+        } else if ("RejectedRecipients".equals(attribute)) {
+            return getRejectedRecipients();
+        } else if ("PoolHits".equals(attribute)) {
+            return getPoolHits();
+        } else if ("PoolMisses".equals(attribute)) {
+            return getPoolMisses();
+        }
+        for (SmtpPhase phase : SmtpPhase.values()) {
+            String prefix = getAttributePrefix(phase);
+            if (!StringUtils.startsWith(attribute, prefix)) {
+                continue;
+            }
+            LatencyHistogram histogram = getHistogram(phase);
+            String suffix = attribute.substring(prefix.length());
+            if ("Count".equals(suffix)) {
+                return histogram.getCount();
+            } else if ("MeanMillis".equals(suffix)) {
+                return histogram.getMeanMillis();
+            } else if ("P99Millis".equals(suffix)) {
+                return histogram.getPercentileMillis(99);
+            } else if ("MaxMillis".equals(suffix)) {
+                return histogram.getMaxMillis();
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    /* (非 Javadoc)
+     * @see javax.management.DynamicMBean#setAttribute(javax.management.Attribute)
+     */
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read-only attribute: " + attribute.getName());
+    }
+
+    /* (非 Javadoc)
+     * @see javax.management.DynamicMBean#getAttributes(java.lang.String[])
+     */
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // 存在しない属性は返さない。
+            }
+        }
+        return list;
+    }
+
+    /* (非 Javadoc)
+     * @see javax.management.DynamicMBean#setAttributes(javax.management.AttributeList)
+     */
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    /* (非 Javadoc)
+     * @see javax.management.DynamicMBean#invoke(java.lang.String, java.lang.Object[], java.lang.String[])
+     */
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    /* (非 Javadoc)
+     * @see javax.management.DynamicMBean#getMBeanInfo()
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributeList = new ArrayList<MBeanAttributeInfo>();
+        for (String name : new String[] {"BytesWritten", "AcceptedRecipients", "RejectedRecipients", "PoolHits", "PoolMisses"}) {
+            attributeList.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        for (SmtpPhase phase : SmtpPhase.values()) {
+            for (String suffix : PHASE_ATTRIBUTE_SUFFIXES) {
+                String name = getAttributePrefix(phase) + suffix;
+                String type = "Count".equals(suffix) ? "long" : "double";
+                attributeList.add(new MBeanAttributeInfo(name, type, name, true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "quick-javamail send metrics",
+                attributeList.toArray(new MBeanAttributeInfo[attributeList.size()]),
+                null, new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * フェーズの属性名の接頭辞を取得します。
+     *
+     * @param phase
+     *            フェーズ
+     * @return 属性名の接頭辞（例：Connect）
+     */
+    private static String getAttributePrefix(SmtpPhase phase) {
+        return StringUtils.capitalize(phase.name().toLowerCase());
+    }
+
+}
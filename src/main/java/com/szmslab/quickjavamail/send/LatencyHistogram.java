@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 所要時間の分布を記録するヒストグラムです。
+ * <p>
+ * 所要時間はマイクロ秒単位で2のべき乗ごとの区間に集計するため、パーセンタイル値は区間の上限による概算値になります。
+ * 記録はロックを使用せずに行います。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class LatencyHistogram {
+
+    /**
+     * 区間の数（約36分までを区別します）。
+     */
+    private static final int BUCKET_COUNT = 32;
+
+    /**
+     * 区間ごとの記録数。
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * 記録数。
+     */
+    private final AtomicLong count = new AtomicLong(0);
+
+    /**
+     * 所要時間の合計（ナノ秒）。
+     */
+    private final AtomicLong totalNanos = new AtomicLong(0);
+
+    /**
+     * 所要時間の最大値（ナノ秒）。
+     */
+    private final AtomicLong maxNanos = new AtomicLong(0);
+
+    /**
+     * 所要時間を記録します。
+     *
+     * @param nanos
+     *            所要時間（ナノ秒）
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int index = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(index);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // 最大値を更新できるまで繰り返す。
+        }
+    }
+
+    /**
+     * 記録数を取得します。
+     *
+     * @return 記録数
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * 所要時間の合計（ナノ秒）を取得します。
+     *
+     * @return 所要時間の合計（ナノ秒）
+     */
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * 所要時間の最大値（ミリ秒）を取得します。
+     *
+     * @return 所要時間の最大値（ミリ秒）
+     */
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * 所要時間の平均値（ミリ秒）を取得します。
+     *
+     * @return 所要時間の平均値（ミリ秒）
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+    }
+
+    /**
+     * 所要時間のパーセンタイル値（ミリ秒）を取得します。
+     *
+     * @param percentile
+     *            パーセンタイル（0～100）
+     * @return 所要時間のパーセンタイル値（ミリ秒、区間の上限による概算値）
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(n * percentile / 100.0);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += buckets.get(i);
+            if (cumulative >= threshold) {
+                return Math.min((1L << i) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms",
+                getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+    }
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import com.szmslab.quickjavamail.utils.MailProperties;
+import com.szmslab.quickjavamail.utils.SessionCache;
+
+/**
+ * 不変のメールの内容（{@link MailSpec}）を送信するクラスです。
+ * <p>
+ * 送信に使用する設定（JavaMailのプロパティ、接続のプール、キャッシュなど）のみを保持し、
+ * 作成後に状態が変更されることはないため、1つのインスタンスを複数のスレッドで共有できます。
+ * 設定を変更する場合は、{@link MailSender#engine()}で新しいインスタンスを作成してください。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class MailEngine {
+
+    /**
+     * JavaMailのプロパティ。
+     */
+    private final MailProperties properties;
+
+    /**
+     * メール送信のデバッグログ出力有無 。
+     */
+    private final boolean isDebug;
+
+    /**
+     * デフォルトのセッション使用有無 。
+     */
+    private final boolean useDefaultSession;
+
+    /**
+     * セッションのキャッシュ（nullの場合は共有のキャッシュを使用します）。
+     */
+    private final SessionCache sessionCache;
+
+    /**
+     * 接続を再利用するためのプール。
+     */
+    private final TransportPool transportPool;
+
+    /**
+     * 添付ファイル、インライン画像ファイルのエンコード済みの内容のキャッシュ。
+     */
+    private final EncodedBodyCache encodedBodyCache;
+
+    /**
+     * 送信を停止するメールアドレスの一覧。
+     */
+    private final SuppressionList suppressionList;
+
+    /**
+     * コンストラクタです。
+     * <p>
+     * 接続のプール、キャッシュを使用しない場合の設定で作成します。
+     * </p>
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     */
+    public MailEngine(MailProperties properties) {
+        this(properties, false, true, null, null, null, null);
+    }
+
+    /**
+     * コンストラクタです。
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param isDebug
+     *            デバッグログを出力するかどうか
+     * @param useDefaultSession
+     *            デフォルトのセッションを使用するかどうか
+     * @param sessionCache
+     *            セッションのキャッシュ
+     * @param transportPool
+     *            接続を再利用するためのプール
+     * @param encodedBodyCache
+     *            添付ファイル、インライン画像ファイルのエンコード済みの内容のキャッシュ
+     * @param suppressionList
+     *            送信を停止するメールアドレスの一覧
+     */
+    MailEngine(MailProperties properties, boolean isDebug, boolean useDefaultSession,
+            SessionCache sessionCache, TransportPool transportPool, EncodedBodyCache encodedBodyCache,
+            SuppressionList suppressionList) {
+        this.properties = properties;
+        this.isDebug = isDebug;
+        this.useDefaultSession = useDefaultSession;
+        this.sessionCache = sessionCache;
+        this.transportPool = transportPool;
+        this.encodedBodyCache = encodedBodyCache;
+        this.suppressionList = suppressionList;
+    }
+
+    /**
+     * メールを送信します。
+     *
+     * @param spec
+     *            メールの内容
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    public void send(MailSpec spec) throws UnsupportedEncodingException, MessagingException {
+        newSender(spec).execute();
+    }
+
+    /**
+     * メールを送信し、送信に失敗した宛先を再送します。
+     *
+     * @param spec
+     *            メールの内容
+     * @param retryPolicy
+     *            再送方法
+     * @return 送信結果（全ての試行を統合した結果）
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     * @see MailSender#executeWithRetry(RetryPolicy)
+     */
+    public SendResult send(MailSpec spec, RetryPolicy retryPolicy)
+            throws IOException, MessagingException, InterruptedException {
+        return newSender(spec).executeWithRetry(retryPolicy);
+    }
+
+    /**
+     * 送信するメッセージを作成します。
+     * <p>
+     * 作成したメッセージは、{@link SerializedMimeMessage#serialize(MimeMessage)}でシリアライズしてから
+     * 他のスレッドに受け渡してください。
+     * </p>
+     *
+     * @param spec
+     *            メールの内容
+     * @return メッセージ
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    public MimeMessage createMessage(MailSpec spec) throws UnsupportedEncodingException, MessagingException {
+        MailSender sender = newSender(spec);
+        return sender.createMessage(sender.createSession());
+    }
+
+    /**
+     * 複数のメールをまとめて送信します。
+     *
+     * @param specs
+     *            メールの内容
+     * @return 送信結果（引数の順番に格納されます）
+     * @see MailSender#sendAll(Collection)
+     */
+    public List<SendResult> sendAll(Collection<MailSpec> specs) {
+        List<MailSender> senderList = new ArrayList<MailSender>(specs.size());
+        for (MailSpec spec : specs) {
+            senderList.add(newSender(spec));
+        }
+        return MailSender.sendAll(senderList);
+    }
+
+    /**
+     * メールを非同期で送信します。
+     *
+     * @param executor
+     *            非同期送信を行うAsyncSendExecutor
+     * @param spec
+     *            メールの内容
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> sendAsync(AsyncSendExecutor executor, MailSpec spec)
+            throws IOException, MessagingException, InterruptedException {
+        return sendAsync(executor, spec, null);
+    }
+
+    /**
+     * メールを非同期で送信します。
+     *
+     * @param executor
+     *            非同期送信を行うAsyncSendExecutor
+     * @param spec
+     *            メールの内容
+     * @param callback
+     *            送信完了時に通知するコールバック
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> sendAsync(AsyncSendExecutor executor, MailSpec spec, SendCallback callback)
+            throws IOException, MessagingException, InterruptedException {
+        return executor.submit(newSender(spec), callback);
+    }
+
+    /**
+     * メールを優先度のレーンを指定して非同期で送信します。
+     *
+     * @param executor
+     *            非同期送信を行うPriorityLaneExecutor
+     * @param laneName
+     *            レーン名
+     * @param spec
+     *            メールの内容
+     * @param callback
+     *            送信完了時に通知するコールバック
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> sendAsync(PriorityLaneExecutor executor, String laneName, MailSpec spec,
+            SendCallback callback) throws IOException, MessagingException, InterruptedException {
+        return executor.submit(laneName, newSender(spec), callback);
+    }
+
+    /**
+     * JavaMailのプロパティを取得します。
+     *
+     * @return JavaMailのプロパティ
+     */
+    public MailProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * メール送信のデバッグログ出力有無を取得します。
+     *
+     * @return デバッグログを出力するかどうか
+     */
+    boolean isDebug() {
+        return isDebug;
+    }
+
+    /**
+     * デフォルトのセッション使用有無を取得します。
+     *
+     * @return デフォルトのセッションを使用するかどうか
+     */
+    boolean isUseDefaultSession() {
+        return useDefaultSession;
+    }
+
+    /**
+     * セッションのキャッシュを取得します。
+     *
+     * @return セッションのキャッシュ
+     */
+    SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    /**
+     * 接続を再利用するためのプールを取得します。
+     *
+     * @return 接続を再利用するためのプール
+     */
+    TransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    /**
+     * 添付ファイル、インライン画像ファイルのエンコード済みの内容のキャッシュを取得します。
+     *
+     * @return エンコード済みの内容のキャッシュ
+     */
+    EncodedBodyCache getEncodedBodyCache() {
+        return encodedBodyCache;
+    }
+
+    /**
+     * 送信を停止するメールアドレスの一覧を取得します。
+     *
+     * @return 送信を停止するメールアドレスの一覧
+     */
+    SuppressionList getSuppressionList() {
+        return suppressionList;
+    }
+
+    /**
+     * メール1件の送信に使用するMailSenderを作成します。
+     * <p>
+     * MailSenderは呼び出しごとに作成し、スレッド間で共有しません。
+     * </p>
+     *
+     * @param spec
+     *            メールの内容
+     * @return MailSender
+     */
+    private MailSender newSender(MailSpec spec) {
+        return new MailSender(this, spec);
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+/**
+ * メール送信の計測値を記録するインタフェースです。
+ * <p>
+ * 送信スレッドから直接呼び出されるため、実装は短時間で処理を終え、スレッドセーフにしてください。
+ * </p>
+ *
+ * @author szmslab
+ */
+public interface MailMetrics {
+
+    /**
+     * フェーズの所要時間を記録します。
+     *
+     * @param phase
+     *            フェーズ
+     * @param nanos
+     *            所要時間（ナノ秒）
+     */
+    void recordPhase(SmtpPhase phase, long nanos);
+
+    /**
+     * 書き出したメッセージのバイト数を記録します。
+     *
+     * @param bytes
+     *            バイト数
+     */
+    void recordBytesWritten(long bytes);
+
+    /**
+     * サーバが受け付けた宛先数と、拒否した宛先数を記録します。
+     *
+     * @param accepted
+     *            受け付けた宛先数
+     * @param rejected
+     *            拒否した宛先数
+     */
+    void recordRecipients(int accepted, int rejected);
+
+    /**
+     * プールの接続を再利用したことを記録します。
+     */
+    void recordPoolHit();
+
+    /**
+     * プールに再利用できる接続がなく、新しく接続したことを記録します。
+     */
+    void recordPoolMiss();
+
+}
@@ -6,20 +6,33 @@
  */
 package com.szmslab.quickjavamail.send;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.Session;
+import javax.mail.SendFailedException;
 import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
@@ -34,9 +47,14 @@ import com.szmslab.quickjavamail.utils.AttachmentFile;
 import com.szmslab.quickjavamail.utils.InlineImageFile;
 import com.szmslab.quickjavamail.utils.MailAddress;
 import com.szmslab.quickjavamail.utils.MailProperties;
+import com.szmslab.quickjavamail.utils.SessionCache;
 
 /**
  * JavaMailによるメール送信を行うクラスです。
+ * <p>
+ * このクラスはスレッドセーフではありません。複数のスレッドで送信する場合は、
+ * {@link #spec()}で作成した不変のメールの内容を、{@link #engine()}で作成したMailEngineで送信してください。
+ * </p>
  *
  * @author szmslab
  */
@@ -57,6 +75,26 @@ public class MailSender {
      */
     private boolean useDefaultSession = true;
 
+    /**
+     * セッションのキャッシュ（nullの場合は共有のキャッシュを使用します）。
+     */
+    private SessionCache sessionCache;
+
+    /**
+     * 接続を再利用するためのプール。
+     */
+    private TransportPool transportPool;
+
+    /**
+     * 添付ファイル、インライン画像ファイルのエンコード済みの内容のキャッシュ。
+     */
+    private EncodedBodyCache encodedBodyCache;
+
+    /**
+     * 送信を停止するメールアドレスの一覧。
+     */
+    private SuppressionList suppressionList;
+
     /**
      * メールヘッダのプロパティ。
      */
@@ -128,6 +166,64 @@ public class MailSender {
         charset("ISO-2022-JP", "7bit");
     }
 
+    /**
+     * コピーコンストラクタです。
+     *
+     * @param source
+     *            コピー元のインスタンス
+     */
+    MailSender(MailSender source) {
+        this.properties = source.properties;
+        this.isDebug = source.isDebug;
+        this.useDefaultSession = source.useDefaultSession;
+        this.sessionCache = source.sessionCache;
+        this.transportPool = source.transportPool;
+        this.encodedBodyCache = source.encodedBodyCache;
+        this.suppressionList = source.suppressionList;
+        this.headers.putAll(source.headers);
+        this.charset = source.charset;
+        this.fromAddress = source.fromAddress;
+        this.replyToAddressList.addAll(source.replyToAddressList);
+        this.toAddressList.addAll(source.toAddressList);
+        this.ccAddressList.addAll(source.ccAddressList);
+        this.bccAddressList.addAll(source.bccAddressList);
+        this.subject = source.subject;
+        this.text = source.text;
+        this.html = source.html;
+        this.attachmentFileList.addAll(source.attachmentFileList);
+        this.inlineImageFileList.addAll(source.inlineImageFileList);
+    }
+
+    /**
+     * 送信に使用する設定とメールの内容から作成するコンストラクタです。
+     *
+     * @param engine
+     *            送信に使用する設定
+     * @param spec
+     *            メールの内容
+     */
+    MailSender(MailEngine engine, MailSpec spec) {
+        this.properties = engine.getProperties();
+        this.isDebug = engine.isDebug();
+        this.useDefaultSession = engine.isUseDefaultSession();
+        this.sessionCache = engine.getSessionCache();
+        this.transportPool = engine.getTransportPool();
+        this.encodedBodyCache = engine.getEncodedBodyCache();
+        this.suppressionList = engine.getSuppressionList();
+        this.headers.putAll(spec.getHeaders());
+        this.charset = spec.getCharset();
+        this.fromAddress = spec.getFrom();
+        this.replyToAddressList.addAll(spec.getReplyTo());
+        this.toAddressList.addAll(spec.getTo());
+        this.ccAddressList.addAll(spec.getCc());
+        this.bccAddressList.addAll(spec.getBcc());
+        this.subject = spec.getSubject();
+        this.text = spec.getText();
+        this.html = spec.getHtml();
+        this.attachmentFileList.addAll(spec.getAttachmentFiles());
+        this.inlineImageFileList.addAll(spec.getInlineImageFiles());
+    }
+
     /**
      * メール送信のデバッグログ出力有無を設定します。
      *
@@ -142,6 +238,10 @@ public class MailSender {
 
     /**
      * デフォルトのセッション使用有無を設定します。
+     * <p>
+     * trueの場合、プロパティの内容ごとにキャッシュしたセッション（{@link SessionCache}）を使用します。
+     * falseの場合、呼び出しごとにセッションを作成します。
+     * </p>
      *
      * @param useDefaultSession
      *            デフォルトのセッションを使用するかどうか
@@ -152,6 +252,68 @@ public class MailSender {
         return this;
     }
 
+    /**
+     * セッションのキャッシュを設定します。
+     * <p>
+     * 設定しない場合は、共有のキャッシュ（{@link SessionCache#getDefault()}）を使用します。
+     * </p>
+     *
+     * @param sessionCache
+     *            セッションのキャッシュ
+     * @return 自身のインスタンス
+     */
+    public MailSender sessionCache(SessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+        return this;
+    }
+
+    /**
+     * 接続を再利用するためのプールを設定します。
+     * <p>
+     * 設定しない場合は、送信ごとに接続・切断を行います。
+     * </p>
+     *
+     * @param transportPool
+     *            接続を再利用するためのプール
+     * @return 自身のインスタンス
+     */
+    public MailSender transportPool(TransportPool transportPool) {
+        this.transportPool = transportPool;
+        return this;
+    }
+
+    /**
+     * 添付ファイル、インライン画像ファイルのエンコード済みの内容のキャッシュを設定します。
+     * <p>
+     * 設定した場合、複数のメッセージで同じファイルを送信する際に、ファイルのエンコードを一度だけ行います。
+     * </p>
+     *
+     * @param encodedBodyCache
+     *            エンコード済みの内容のキャッシュ
+     * @return 自身のインスタンス
+     */
+    public MailSender encodedBodyCache(EncodedBodyCache encodedBodyCache) {
+        this.encodedBodyCache = encodedBodyCache;
+        return this;
+    }
+
+    /**
+     * 送信を停止するメールアドレスの一覧を設定します。
+     * <p>
+     * 設定した場合、宛先（To、Cc、Bcc、および{@link #executeFanOut(List, int, int)}の封筒の宛先）のうち、
+     * 一覧に含まれるアドレスを除いて送信します。
+     * 宛先が全て一覧に含まれる場合は送信せず、送信結果は{@link SendResult#isSuppressed()}で区別できます。
+     * </p>
+     *
+     * @param suppressionList
+     *            送信を停止するメールアドレスの一覧
+     * @return 自身のインスタンス
+     */
+    public MailSender suppressionList(SuppressionList suppressionList) {
+        this.suppressionList = suppressionList;
+        return this;
+    }
+
     /**
      * メールヘッダのプロパティを設定します。
      *
@@ -352,25 +514,880 @@ public class MailSender {
      * @throws MessagingException
      */
     public void execute() throws UnsupportedEncodingException, MessagingException {
-        final Session session = useDefaultSession
-                ? Session.getDefaultInstance(properties.getProperties(), properties.getAuthenticator())
-                : Session.getInstance(properties.getProperties(), properties.getAuthenticator());
+        send(createMessage(createSession()));
+    }
+
+    /**
+     * メールを送信し、送信に失敗した宛先を再送します。
+     * <p>
+     * メッセージは一度だけ作成・シリアライズし、再送時も同じMessage-IDで送信します。
+     * 再送は、有効だが未送信の宛先のみを対象とするため、送信済みの宛先に重複して送信されることはありません。
+     * 送信に失敗しても例外はスローせず、宛先ごとの結果を格納した送信結果を返します。
+     * </p>
+     *
+     * @param retryPolicy
+     *            再送方法
+     * @return 送信結果（全ての試行を統合した結果）
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public SendResult executeWithRetry(RetryPolicy retryPolicy)
+            throws IOException, MessagingException, InterruptedException {
+        SerializedMimeMessage message = SerializedMimeMessage.serialize(createMessage(createSession()));
+        SendResult result = attempt(message, null);
+        for (int retryCount = 1; retryCount < retryPolicy.getMaxAttempts(); retryCount++) {
+            Address[] retryAddresses = retryPolicy.getRetryAddresses(result);
+            if (retryAddresses.length == 0) {
+                break;
+            }
+            Thread.sleep(retryPolicy.getDelay(retryCount));
+            result = result.merge(attempt(message, retryAddresses), retryAddresses);
+        }
+        return result;
+    }
+
+    /**
+     * メッセージを1回送信し、送信結果を返します。
+     *
+     * @param message
+     *            メッセージ
+     * @param recipients
+     *            送信先のアドレス（nullの場合はメッセージの全ての宛先）
+     * @return 送信結果
+     */
+    private SendResult attempt(MimeMessage message, Address[] recipients) {
+        try {
+            send(message, recipients);
+            return new SendResult(this, message, recipients, null);
+        } catch (MessagingException e) {
+            return new SendResult(this, message, recipients, e);
+        }
+    }
+
+    /**
+     * 現在の設定内容から、不変のメールの内容を作成します。
+     * <p>
+     * 作成した内容は、以降にこのインスタンスを変更しても影響を受けません。
+     * </p>
+     *
+     * @return メールの内容
+     */
+    public MailSpec spec() {
+        return new MailSpec(headers, charset, fromAddress, replyToAddressList, toAddressList,
+                ccAddressList, bccAddressList, subject, text, html, attachmentFileList, inlineImageFileList);
+    }
+
+    /**
+     * 現在の設定内容から、メールの内容を送信するMailEngineを作成します。
+     * <p>
+     * JavaMailのプロパティ、デバッグログ出力有無、セッション、接続のプール、キャッシュ、送信を停止するメールアドレスの一覧の設定のみを引き継ぎます。
+     * 作成したMailEngineは、以降にこのインスタンスを変更しても影響を受けません。
+     * </p>
+     *
+     * @return MailEngine
+     */
+    public MailEngine engine() {
+        return new MailEngine(properties, isDebug, useDefaultSession, sessionCache, transportPool, encodedBodyCache,
+                suppressionList);
+    }
+
+    /**
+     * 現在の設定内容から、差し込み送信用のテンプレートを作成します。
+     * <p>
+     * 作成したテンプレートは、以降にこのインスタンスを変更しても影響を受けません。
+     * </p>
+     *
+     * @return 差し込み送信用のテンプレート
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public MailTemplate template() throws IOException, MessagingException {
+        return new MailTemplate(new MailSender(this));
+    }
+
+    /**
+     * メールを非同期で送信します。
+     *
+     * @param executor
+     *            非同期送信を行うAsyncSendExecutor
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> executeAsync(AsyncSendExecutor executor)
+            throws IOException, MessagingException, InterruptedException {
+        return executor.submit(this);
+    }
+
+    /**
+     * メールを非同期で送信します。
+     *
+     * @param executor
+     *            非同期送信を行うAsyncSendExecutor
+     * @param callback
+     *            送信完了時に通知するコールバック
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> executeAsync(AsyncSendExecutor executor, SendCallback callback)
+            throws IOException, MessagingException, InterruptedException {
+        return executor.submit(this, callback);
+    }
+
+    /**
+     * セッションを作成します。
+     *
+     * @return セッション
+     */
+    Session createSession() {
+        if (useDefaultSession) {
+            return (sessionCache != null ? sessionCache : SessionCache.getDefault()).getSession(properties, isDebug);
+        }
+        final Session session = Session.getInstance(properties.getProperties(), properties.getAuthenticator());
         session.setDebug(isDebug);
+        return session;
+    }
 
+    /**
+     * 送信するメッセージを作成します。
+     *
+     * @param session
+     *            セッション
+     * @return メッセージ
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    MimeMessage createMessage(Session session) throws UnsupportedEncodingException, MessagingException {
         final MimeMessage message = new MimeMessage(session);
 
         message.setFrom(toInternetAddress(fromAddress));
         message.setReplyTo(toInternetAddresses(replyToAddressList));
-        message.addRecipients(Message.RecipientType.TO, toInternetAddresses(toAddressList));
-        message.addRecipients(Message.RecipientType.CC, toInternetAddresses(ccAddressList));
-        message.addRecipients(Message.RecipientType.BCC, toInternetAddresses(bccAddressList));
+        message.addRecipients(Message.RecipientType.TO, toRecipientAddresses(toAddressList));
+        message.addRecipients(Message.RecipientType.CC, toRecipientAddresses(ccAddressList));
+        message.addRecipients(Message.RecipientType.BCC, toRecipientAddresses(bccAddressList));
         message.setSubject(subject, charset);
 
         setContent(message);
 
         message.setSentDate(new Date());
+        return message;
+    }
+
+    /**
+     * 差し込みの対象とならないヘッダ（From、ReplyTo、Cc、Bcc、および、指定した場合は件名）のヘッダ行を作成します。
+     *
+     * @param session
+     *            セッション
+     * @param includesSubject
+     *            件名を含めるかどうか
+     * @return ヘッダ行
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    @SuppressWarnings("unchecked")
+    List<String> createStaticHeaderLines(Session session, boolean includesSubject)
+            throws UnsupportedEncodingException, MessagingException {
+        final MimeMessage message = new MimeMessage(session);
+
+        message.setFrom(toInternetAddress(fromAddress));
+        message.setReplyTo(toInternetAddresses(replyToAddressList));
+        message.addRecipients(Message.RecipientType.CC, toRecipientAddresses(ccAddressList));
+        message.addRecipients(Message.RecipientType.BCC, toRecipientAddresses(bccAddressList));
+        if (includesSubject) {
+            message.setSubject(subject, charset);
+        }
+
+        List<String> headerLineList = new ArrayList<String>();
+        for (Enumeration<String> lines = message.getAllHeaderLines(); lines.hasMoreElements();) {
+            headerLineList.add(lines.nextElement());
+        }
+        return headerLineList;
+    }
+
+    /**
+     * 添付ファイルのパートをエンコードします。
+     *
+     * @return エンコード済みのパート
+     * @throws IOException
+     * @throws MessagingException
+     */
+    List<PreencodedPart> encodeAttachmentParts() throws IOException, MessagingException {
+        List<PreencodedPart> partList = new ArrayList<PreencodedPart>();
+        for (AttachmentFile file : attachmentFileList) {
+            partList.add(PreencodedPart.encode(createAttachmentPart(file)));
+        }
+        return partList;
+    }
+
+    /**
+     * インライン画像ファイルのパートをエンコードします。
+     *
+     * @return エンコード済みのパート
+     * @throws IOException
+     * @throws MessagingException
+     */
+    List<PreencodedPart> encodeImageParts() throws IOException, MessagingException {
+        List<PreencodedPart> partList = new ArrayList<PreencodedPart>();
+        for (InlineImageFile file : inlineImageFileList) {
+            partList.add(PreencodedPart.encode(createImagePart(file)));
+        }
+        return partList;
+    }
+
+    /**
+     * 文字セットを取得します。
+     *
+     * @return 文字セット
+     */
+    String getCharset() {
+        return charset;
+    }
+
+    /**
+     * 件名を取得します。
+     *
+     * @return 件名
+     */
+    String getSubject() {
+        return subject;
+    }
+
+    /**
+     * 本文(TEXT)を取得します。
+     *
+     * @return 本文(TEXT)
+     */
+    String getText() {
+        return text;
+    }
 
-        Transport.send(message);
+    /**
+     * 本文(HTML)を取得します。
+     *
+     * @return 本文(HTML)
+     */
+    String getHtml() {
+        return html;
+    }
+
+    /**
+     * メッセージを送信します。
+     * <p>
+     * プールが設定されている場合は、プールから借り出した接続で送信します。
+     * 計測値の記録先が設定されている場合は、フェーズごとの所要時間などを計測するTransportで送信します。
+     * </p>
+     *
+     * @param message
+     *            メッセージ
+     * @throws MessagingException
+     */
+    void send(MimeMessage message) throws MessagingException {
+        send(message, null);
+    }
+
+    /**
+     * メッセージを指定した宛先に送信します。
+     * <p>
+     * メッセージの全ての宛先に送信する場合で、宛先が全て送信を停止するアドレスの場合は、何もせずに戻ります。
+     * </p>
+     *
+     * @param message
+     *            メッセージ
+     * @param recipients
+     *            送信先のアドレス（nullの場合はメッセージの全ての宛先）
+     * @throws MessagingException
+     */
+    void send(MimeMessage message, Address[] recipients) throws MessagingException {
+        if (recipients == null && isAllSuppressed()) {
+            Address[] allRecipients = message.getAllRecipients();
+            if (allRecipients == null || allRecipients.length == 0) {
+                return;
+            }
+        }
+        RelayGroup relayGroup = getRelayGroup();
+        if (transportPool == null && InstrumentedSMTPTransport.getMetrics(properties) == null && relayGroup == null) {
+            DeliveryScheduler.Ticket ticket = acquireTicket(null, recipients != null ? recipients : message.getAllRecipients());
+            ConcurrencyLimiter.Permit permit = null;
+            Exception failure = null;
+            try {
+                permit = acquirePermit(TransportPool.createKey(properties));
+                if (recipients != null) {
+                    Transport.send(message, recipients);
+                } else {
+                    Transport.send(message);
+                }
+            } catch (MessagingException e) {
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                releasePermit(permit, failure);
+                releaseTicket(ticket);
+            }
+            return;
+        }
+
+        message.saveChanges();
+        Address[] addresses = recipients != null ? recipients : message.getAllRecipients();
+        if (addresses == null || addresses.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        // 送信に失敗した場合、接続はdeliverで返却・切断される。中継サーバの切り替えもdeliverで行う。
+        closeTransport(deliver(message.getSession(), null, message, addresses), true);
+    }
+
+    /**
+     * スケジューラ、リミッタの制限に従って待機してから、接続を使用してメッセージを送信します。
+     * <p>
+     * 接続が無い場合は、許可を取得してから接続します。
+     * そのため、リミッタは接続先ごとの同時接続数を制限し、接続時の失敗（接続時・EHLO・認証に対する421の応答など）も
+     * リミッタに通知されます。
+     * 中継サーバのグループが設定されている場合、接続に失敗した中継サーバは隔離し、他の中継サーバに接続します。
+     * 接続後は、MAIL FROM・DATAに対する4xxの応答でどの宛先にも送信していない場合のみ、他の中継サーバで再送します。
+     * メッセージ本文の送信後の失敗や、待機中の割り込みでは再送しません。
+     * </p>
+     *
+     * @param session
+     *            セッション
+     * @param pooled
+     *            接続（nullの場合は接続します）
+     * @param message
+     *            メッセージ
+     * @param addresses
+     *            送信先のアドレス
+     * @return 送信に使用した接続（このメソッドで接続し、送信に失敗した場合は、返却・切断してから例外をスローします）
+     * @throws MessagingException
+     */
+    private PooledTransport deliver(Session session, PooledTransport pooled, Message message, Address[] addresses)
+            throws MessagingException {
+        RelayGroup relayGroup = pooled == null ? getRelayGroup() : null;
+        int maxAttempts = relayGroup != null ? Math.max(relayGroup.size(), 1) : 1;
+        for (int attempt = 1;; attempt++) {
+            DeliveryScheduler.Ticket ticket = null;
+            ConcurrencyLimiter.Permit permit = null;
+            PooledTransport opened = null;
+            boolean isConnecting = false;
+            Exception failure = null;
+            try {
+                PooledTransport current = pooled;
+                if (current == null) {
+                    // スケジューラ、リミッタの制限は、選択した中継サーバごとに適用する。
+                    RelayGroup.Relay relay = relayGroup != null ? relayGroup.select() : null;
+                    ticket = acquireTicket(relay, addresses);
+                    permit = acquirePermit(TransportPool.createKey(properties, relay));
+                    isConnecting = true;
+                    opened = connect(session, relay);
+                    isConnecting = false;
+                    current = opened;
+                } else {
+                    ticket = acquireTicket(pooled.getRelay(), addresses);
+                    permit = acquirePermit(pooled.getKey());
+                }
+                sendToRelay(current, message, addresses);
+                return current;
+            } catch (MessagingException e) {
+                failure = e;
+                if (attempt >= maxAttempts || Thread.currentThread().isInterrupted()
+                        || !(isConnecting || RelayGroup.canFailover(e))) {
+                    throw e;
+                }
+                // 他の中継サーバで再送する。
+            } catch (RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                releasePermit(permit, failure);
+                releaseTicket(ticket);
+                if (failure != null && opened != null) {
+                    // 宛先が拒否されただけであれば、接続は再利用できる。
+                    closeTransport(opened, opened.getTransport().isConnected());
+                }
+            }
+        }
+    }
+
+    /**
+     * 接続を使用してメッセージを送信し、中継サーバの状態を記録します。
+     *
+     * @param pooled
+     *            接続
+     * @param message
+     *            メッセージ
+     * @param addresses
+     *            送信先のアドレス
+     * @throws MessagingException
+     */
+    private void sendToRelay(PooledTransport pooled, Message message, Address[] addresses) throws MessagingException {
+        RelayGroup.Relay relay = pooled.getRelay();
+        if (relay == null) {
+            pooled.sendMessage(message, addresses);
+            return;
+        }
+        RelayGroup relayGroup = getRelayGroup();
+        relayGroup.begin(relay);
+        long start = System.nanoTime();
+        boolean isRecorded = false;
+        try {
+            pooled.sendMessage(message, addresses);
+            relayGroup.recordSuccess(relay, System.nanoTime() - start);
+            isRecorded = true;
+        } catch (MessagingException e) {
+            if (RelayGroup.isRelayFailure(e)) {
+                relayGroup.end(relay);
+                relayGroup.recordFailure(relay);
+            } else {
+                relayGroup.recordSuccess(relay, System.nanoTime() - start);
+            }
+            isRecorded = true;
+            throw e;
+        } finally {
+            if (!isRecorded) {
+                // 実行時例外の場合も、送信中の数を戻す。
+                relayGroup.end(relay);
+            }
+        }
+    }
+
+    /**
+     * リミッタから送信の許可を取得します。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @return 送信の許可（リミッタが設定されていない場合はnull）
+     * @throws MessagingException
+     */
+    private ConcurrencyLimiter.Permit acquirePermit(String key) throws MessagingException {
+        ConcurrencyLimiter limiter = getConcurrencyLimiter();
+        if (limiter == null) {
+            return null;
+        }
+        try {
+            return limiter.acquire(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for delivery", e);
+        }
+    }
+
+    /**
+     * リミッタに送信の許可を返却します。
+     *
+     * @param permit
+     *            送信の許可
+     * @param failure
+     *            送信時に発生した例外（成功した場合はnull）
+     */
+    private void releasePermit(ConcurrencyLimiter.Permit permit, Exception failure) {
+        ConcurrencyLimiter limiter = getConcurrencyLimiter();
+        if (limiter != null) {
+            limiter.release(permit, failure);
+        }
+    }
+
+    /**
+     * JavaMailのプロパティに設定されたリミッタを取得します。
+     *
+     * @return リミッタ（設定されていない場合はnull）
+     */
+    private ConcurrencyLimiter getConcurrencyLimiter() {
+        if (properties instanceof SmtpProperties) {
+            return ((SmtpProperties) properties).getConcurrencyLimiter();
+        }
+        return null;
+    }
+
+    /**
+     * スケジューラから送信の許可を取得します。
+     *
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @param addresses
+     *            送信先のアドレス
+     * @return 送信の許可（スケジューラが設定されていない場合はnull）
+     * @throws MessagingException
+     */
+    private DeliveryScheduler.Ticket acquireTicket(RelayGroup.Relay relay, Address[] addresses)
+            throws MessagingException {
+        DeliveryScheduler scheduler = getDeliveryScheduler();
+        if (scheduler == null) {
+            return null;
+        }
+        try {
+            return scheduler.acquire(properties, relay, addresses);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for delivery", e);
+        }
+    }
+
+    /**
+     * スケジューラに送信の許可を返却します。
+     *
+     * @param ticket
+     *            送信の許可
+     */
+    private void releaseTicket(DeliveryScheduler.Ticket ticket) {
+        DeliveryScheduler scheduler = getDeliveryScheduler();
+        if (scheduler != null) {
+            scheduler.release(ticket);
+        }
+    }
+
+    /**
+     * JavaMailのプロパティに設定されたスケジューラを取得します。
+     *
+     * @return スケジューラ（設定されていない場合はnull）
+     */
+    private DeliveryScheduler getDeliveryScheduler() {
+        if (properties instanceof SmtpProperties) {
+            return ((SmtpProperties) properties).getDeliveryScheduler();
+        }
+        return null;
+    }
+
+    /**
+     * JavaMailのプロパティに設定された中継サーバを取得します。
+     *
+     * @return 中継サーバ（設定されていない場合はnull）
+     */
+    private RelayGroup getRelayGroup() {
+        if (properties instanceof SmtpProperties) {
+            return ((SmtpProperties) properties).getRelayGroup();
+        }
+        return null;
+    }
+
+    /**
+     * 複数のメールをまとめて送信します。
+     * <p>
+     * 同じJavaMailのプロパティを使用するメールは1つの接続でまとめて送信します。
+     * 送信に失敗したメールがあっても処理を中断せず、メールごとの送信結果を返します。
+     * </p>
+     *
+     * @param senders
+     *            送信するメール
+     * @return 送信結果（引数の順番に格納されます）
+     */
+    public static List<SendResult> sendAll(Collection<MailSender> senders) {
+        List<MailSender> senderList = new ArrayList<MailSender>(senders);
+        Map<MailProperties, List<Integer>> groupMap = new LinkedHashMap<MailProperties, List<Integer>>();
+        for (int i = 0; i < senderList.size(); i++) {
+            MailProperties key = senderList.get(i).properties;
+            List<Integer> indexList = groupMap.get(key);
+            if (indexList == null) {
+                indexList = new ArrayList<Integer>();
+                groupMap.put(key, indexList);
+            }
+            indexList.add(i);
+        }
+
+        SendResult[] results = new SendResult[senderList.size()];
+        for (List<Integer> indexList : groupMap.values()) {
+            sendGroup(senderList, indexList, results);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 同じJavaMailのプロパティを使用するメールを、1つの接続でまとめて送信します。
+     *
+     * @param senderList
+     *            送信するメール
+     * @param indexList
+     *            送信対象のインデックス
+     * @param results
+     *            送信結果
+     */
+    private static void sendGroup(List<MailSender> senderList, List<Integer> indexList, SendResult[] results) {
+        MailSender groupSender = senderList.get(indexList.get(0));
+        Session session = groupSender.createSession();
+        PooledTransport pooled = null;
+        try {
+            for (int index : indexList) {
+                MailSender sender = senderList.get(index);
+                MimeMessage message = null;
+                try {
+                    message = sender.createMessage(session);
+                    if (sender.isAllSuppressed()) {
+                        results[index] = SendResult.suppressed(sender, message, null);
+                        continue;
+                    }
+                    message.saveChanges();
+                    Address[] addresses = message.getAllRecipients();
+                    if (addresses == null || addresses.length == 0) {
+                        throw new SendFailedException("No recipient addresses");
+                    }
+                    pooled = groupSender.deliver(session, pooled, message, addresses);
+                    results[index] = new SendResult(sender, message, null);
+                } catch (Exception e) {
+                    results[index] = new SendResult(sender, message, e);
+                    if (pooled != null && !pooled.getTransport().isConnected()) {
+                        // 接続が切れた場合は、次のメールで再接続する。
+                        groupSender.closeTransport(pooled, false);
+                        pooled = null;
+                    }
+                }
+            }
+        } finally {
+            if (pooled != null) {
+                groupSender.closeTransport(pooled, true);
+            }
+        }
+    }
+
+    /**
+     * 1つのメッセージを、多数の宛先に分割して送信します。
+     * <p>
+     * メッセージは一度だけ作成・シリアライズし、指定した宛先を1トランザクションあたりの宛先数（RCPT数）ごとに分割して、
+     * Transport#sendMessage(Message, Address[])で送信します。
+     * 分割した宛先は、指定した並列数の接続に振り分けて並列に送信します。
+     * ヘッダ（To、Cc）は設定した内容のまま送信されるため、宛先は封筒の宛先（RCPT TO）としてのみ使用されます。
+     * </p>
+     * <p>
+     * 並列に送信するスレッドは呼び出しごとに並列数（分割数が少ない場合は分割数）だけ作成し、送信が終わると終了します。
+     * 送信中に例外（実行時例外を含む）が発生した場合は、その宛先の送信結果に格納し、他の宛先の送信は継続します。
+     * </p>
+     *
+     * @param recipients
+     *            封筒の宛先
+     * @param chunkSize
+     *            1トランザクションあたりの宛先数（1以上）
+     * @param parallelism
+     *            並列数（接続数、1以上）
+     * @return 分割した宛先ごとの送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     * @throws IllegalArgumentException
+     *             1トランザクションあたりの宛先数、並列数が0以下の場合
+     */
+    public List<SendResult> executeFanOut(List<MailAddress> recipients, int chunkSize, int parallelism)
+            throws IOException, MessagingException, InterruptedException {
+        return executeFanOut(recipients, chunkSize, parallelism, null);
+    }
+
+    /**
+     * 1つのメッセージを、多数の宛先に分割して送信し、送信に失敗した宛先を再送します。
+     * <p>
+     * {@link #executeFanOut(List, int, int)}で送信した後、分割した宛先ごとに、有効だが未送信の宛先のみを再送します。
+     * 再送した結果は、分割した宛先ごとの送信結果に統合されます。
+     * </p>
+     *
+     * @param recipients
+     *            封筒の宛先
+     * @param chunkSize
+     *            1トランザクションあたりの宛先数（1以上）
+     * @param parallelism
+     *            並列数（接続数、1以上）
+     * @param retryPolicy
+     *            再送方法（nullの場合は再送しません）
+     * @return 分割した宛先ごとの送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     * @throws IllegalArgumentException
+     *             1トランザクションあたりの宛先数、並列数が0以下の場合
+     */
+    public List<SendResult> executeFanOut(List<MailAddress> recipients, int chunkSize, int parallelism,
+            RetryPolicy retryPolicy) throws IOException, MessagingException, InterruptedException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        Session session = createSession();
+        SerializedMimeMessage message = SerializedMimeMessage.serialize(createMessage(session));
+
+        List<MailAddress> recipientList = filterSuppressed(recipients);
+        if (recipientList.isEmpty() && !recipients.isEmpty()) {
+            return Arrays.asList(SendResult.suppressed(this, message, toInternetAddresses(recipients)));
+        }
+        List<Address[]> chunkList = new ArrayList<Address[]>();
+        for (int i = 0; i < recipientList.size(); i += chunkSize) {
+            chunkList.add(toInternetAddresses(recipientList.subList(i, Math.min(i + chunkSize, recipientList.size()))));
+        }
+        SendResult[] results = sendChunksInParallel(session, message, chunkList, parallelism);
+
+        for (int retryCount = 1; retryPolicy != null && retryCount < retryPolicy.getMaxAttempts(); retryCount++) {
+            List<Integer> retryIndexList = new ArrayList<Integer>();
+            List<Address[]> retryChunkList = new ArrayList<Address[]>();
+            for (int i = 0; i < results.length; i++) {
+                Address[] retryAddresses = retryPolicy.getRetryAddresses(results[i]);
+                if (retryAddresses.length > 0) {
+                    retryIndexList.add(i);
+                    retryChunkList.add(retryAddresses);
+                }
+            }
+            if (retryChunkList.isEmpty()) {
+                break;
+            }
+            Thread.sleep(retryPolicy.getDelay(retryCount));
+            SendResult[] retryResults = sendChunksInParallel(session, message, retryChunkList, parallelism);
+            for (int i = 0; i < retryResults.length; i++) {
+                int index = retryIndexList.get(i);
+                results[index] = results[index].merge(retryResults[i], retryChunkList.get(i));
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * 分割した宛先を、指定した並列数の接続に振り分けて並列に送信します。
+     * <p>
+     * スレッドプールは呼び出しごとに作成し、送信が終わると終了します
+     * （スレッドごとに接続を1つ保持するため、呼び出しをまたいで共有しません）。
+     * </p>
+     *
+     * @param session
+     *            セッション
+     * @param message
+     *            シリアライズしたメッセージ
+     * @param chunkList
+     *            分割した宛先
+     * @param parallelism
+     *            並列数（接続数）
+     * @return 分割した宛先ごとの送信結果
+     * @throws InterruptedException
+     */
+    private SendResult[] sendChunksInParallel(final Session session, final SerializedMimeMessage message,
+            final List<Address[]> chunkList, int parallelism) throws InterruptedException {
+        final SendResult[] results = new SendResult[chunkList.size()];
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+
+        int threads = Math.max(1, Math.min(parallelism, chunkList.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futureList = new ArrayList<Future<?>>();
+            for (int i = 0; i < threads; i++) {
+                futureList.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendChunks(session, message, chunkList, nextIndex, results);
+                    }
+                }));
+            }
+            Exception failure = null;
+            for (Future<?> future : futureList) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // sendChunksは宛先ごとの例外を送信結果に格納するため、ここに到達するのは接続を閉じる際の実行時例外のみ。
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    failure = (Exception) e.getCause();
+                }
+            }
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = new SendResult(this, message, chunkList.get(i), failure);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * 分割した宛先を順に取り出し、1つの接続で送信します。
+     *
+     * @param session
+     *            セッション
+     * @param message
+     *            シリアライズしたメッセージ
+     * @param chunkList
+     *            分割した宛先
+     * @param nextIndex
+     *            次に送信する宛先のインデックス
+     * @param results
+     *            送信結果
+     */
+    private void sendChunks(Session session, SerializedMimeMessage message,
+            List<Address[]> chunkList, AtomicInteger nextIndex, SendResult[] results) {
+        PooledTransport pooled = null;
+        try {
+            SerializedMimeMessage threadMessage = message.copy();
+            int index;
+            while ((index = nextIndex.getAndIncrement()) < chunkList.size()) {
+                Address[] addresses = chunkList.get(index);
+                try {
+                    pooled = deliver(session, pooled, threadMessage, addresses);
+                    results[index] = new SendResult(this, message, addresses, null);
+                } catch (Exception e) {
+                    // 実行時例外も、他の宛先の送信結果を失わないよう、その宛先の送信結果に格納する。
+                    results[index] = new SendResult(this, message, addresses, e);
+                    if (pooled != null && !pooled.getTransport().isConnected()) {
+                        // 接続が切れた場合は、次の宛先で再接続する。
+                        closeTransport(pooled, false);
+                        pooled = null;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // 複製に失敗した場合は、残りの宛先を全て失敗とする。
+            int index;
+            while ((index = nextIndex.getAndIncrement()) < chunkList.size()) {
+                results[index] = new SendResult(this, message, chunkList.get(index), e);
+            }
+        } finally {
+            if (pooled != null) {
+                closeTransport(pooled, true);
+            }
+        }
+    }
+
+    /**
+     * 接続済みのTransportを取得します。
+     * <p>
+     * 接続に失敗した中継サーバは隔離されるため、次の選択では他の中継サーバが選ばれます。
+     * </p>
+     *
+     * @param session
+     *            セッション
+     * @param relay
+     *            中継サーバ（中継サーバのグループを使用しない場合はnull）
+     * @return 接続済みのTransport
+     * @throws MessagingException
+     */
+    private PooledTransport connect(Session session, RelayGroup.Relay relay) throws MessagingException {
+        try {
+            if (transportPool != null) {
+                return transportPool.borrow(session, properties, relay);
+            }
+            return TransportPool.connect(session, properties, relay);
+        } catch (MessagingException e) {
+            if (relay != null) {
+                getRelayGroup().recordFailure(relay);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 接続済みのTransportを返却、または切断します。
+     *
+     * @param pooled
+     *            接続済みのTransport
+     * @param isReusable
+     *            接続を再利用できるかどうか
+     */
+    private void closeTransport(PooledTransport pooled, boolean isReusable) {
+        if (transportPool == null) {
+            pooled.close();
+        } else if (isReusable) {
+            transportPool.release(pooled);
+        } else {
+            transportPool.invalidate(pooled);
+        }
     }
 
     /**
@@ -382,7 +1399,7 @@ public class MailSender {
      * @throws AddressException
      * @throws UnsupportedEncodingException
      */
-    private InternetAddress[] toInternetAddresses(List<MailAddress> addressList) throws AddressException, UnsupportedEncodingException {
+    InternetAddress[] toInternetAddresses(List<MailAddress> addressList) throws AddressException, UnsupportedEncodingException {
         List<InternetAddress> list = new ArrayList<InternetAddress>();
         for (MailAddress address : addressList) {
             InternetAddress iAddress = toInternetAddress(address);
@@ -393,6 +1410,63 @@ public class MailSender {
         return list.toArray(new InternetAddress[list.size()]);
     }
 
+    /**
+     * 宛先のMailAddressのリストを、送信を停止するアドレスを除いたInternetAddressの配列に変換します。
+     *
+     * @param addressList
+     *            MailAddressのリスト
+     * @return InternetAddressの配列
+     * @throws AddressException
+     * @throws UnsupportedEncodingException
+     */
+    InternetAddress[] toRecipientAddresses(List<MailAddress> addressList) throws AddressException, UnsupportedEncodingException {
+        return toInternetAddresses(filterSuppressed(addressList));
+    }
+
+    /**
+     * 宛先（To、Cc、Bcc）が全て送信を停止するアドレスかどうかを判定します。
+     *
+     * @return 宛先が全て送信を停止するアドレスかどうか（宛先が無い場合、一覧が設定されていない場合はfalse）
+     */
+    boolean isAllSuppressed() {
+        return isAllSuppressed(toAddressList);
+    }
+
+    /**
+     * 指定したToと、Cc、Bccの宛先が全て送信を停止するアドレスかどうかを判定します。
+     *
+     * @param toList
+     *            Toのアドレス
+     * @return 宛先が全て送信を停止するアドレスかどうか（宛先が無い場合、一覧が設定されていない場合はfalse）
+     */
+    boolean isAllSuppressed(List<MailAddress> toList) {
+        if (suppressionList == null || (toList.isEmpty() && ccAddressList.isEmpty() && bccAddressList.isEmpty())) {
+            return false;
+        }
+        return filterSuppressed(toList).isEmpty() && filterSuppressed(ccAddressList).isEmpty()
+                && filterSuppressed(bccAddressList).isEmpty();
+    }
+
+    /**
+     * 送信を停止するアドレスを除いたリストを取得します。
+     *
+     * @param addressList
+     *            MailAddressのリスト
+     * @return 送信を停止するアドレスを除いたリスト（一覧が設定されていない場合は引数のリスト）
+     */
+    private List<MailAddress> filterSuppressed(List<MailAddress> addressList) {
+        if (suppressionList == null) {
+            return addressList;
+        }
+        List<MailAddress> list = new ArrayList<MailAddress>(addressList.size());
+        for (MailAddress address : addressList) {
+            if (!suppressionList.contains(address)) {
+                list.add(address);
+            }
+        }
+        return list;
+    }
+
     /**
      * MailAddressをInternetAddressに変換します。
      *
@@ -439,10 +1513,12 @@ public class MailSender {
     /**
      * MimeBodyPartを作成します（text/plain）。
      *
+     * @param text
+     *            本文(TEXT)
      * @return MimeBodyPart（text/plain）のインスタンス
      * @throws MessagingException
      */
-    private MimeBodyPart createTextPart() throws MessagingException {
+    private MimeBodyPart createTextPart(String text) throws MessagingException {
         MimeBodyPart textPart = new MimeBodyPart();
         textPart.setText(StringUtils.defaultString(text), charset);
         setHeaderToPart(textPart);
@@ -452,16 +1528,38 @@ public class MailSender {
     /**
      * MimeBodyPartを作成します（text/html）。
      *
+     * @param html
+     *            本文(HTML)
      * @return MimeBodyPart（text/html）のインスタンス
      * @throws MessagingException
      */
-    private MimeBodyPart createHtmlPart() throws MessagingException {
+    private MimeBodyPart createHtmlPart(String html) throws MessagingException {
         MimeBodyPart htmlPart = new MimeBodyPart();
         htmlPart.setText(StringUtils.defaultString(html), charset, "html");
         setHeaderToPart(htmlPart);
         return htmlPart;
     }
 
+    /**
+     * ファイルの内容を持つMimeBodyPartを作成します。
+     * <p>
+     * キャッシュが設定されている場合は、エンコード済みの内容を持つMimeBodyPartを作成します。
+     * </p>
+     *
+     * @param ds
+     *            ファイルのデータソース
+     * @return MimeBodyPartのインスタンス
+     * @throws MessagingException
+     */
+    private MimeBodyPart createFilePart(DataSource ds) throws MessagingException {
+        if (encodedBodyCache != null && EncodedBodyCache.isCacheable(ds)) {
+            return encodedBodyCache.createBodyPart(ds);
+        }
+        MimeBodyPart filePart = new MimeBodyPart();
+        filePart.setDataHandler(new DataHandler(ds));
+        return filePart;
+    }
+
     /**
      * MimeBodyPartを作成します（Content-Disposition: attachment）。
      *
@@ -472,9 +1570,8 @@ public class MailSender {
      * @throws UnsupportedEncodingException
      */
     private MimeBodyPart createAttachmentPart(AttachmentFile file) throws MessagingException, UnsupportedEncodingException {
-        MimeBodyPart attachmentPart = new MimeBodyPart();
+        MimeBodyPart attachmentPart = createFilePart(file.getDataSource());
         attachmentPart.setFileName(MimeUtility.encodeText(file.getFileName(), charset, null));
-        attachmentPart.setDataHandler(new DataHandler(file.getDataSource()));
         attachmentPart.setDisposition(MimeBodyPart.ATTACHMENT);
         return attachmentPart;
     }
@@ -489,10 +1586,9 @@ public class MailSender {
      * @throws UnsupportedEncodingException
      */
     private MimeBodyPart createImagePart(InlineImageFile file) throws MessagingException, UnsupportedEncodingException {
-        MimeBodyPart imagePart = new MimeBodyPart();
+        MimeBodyPart imagePart = createFilePart(file.getDataSource());
         imagePart.setContentID(file.getContentId());
         imagePart.setFileName(MimeUtility.encodeText(file.getFileName(), charset, null));
-        imagePart.setDataHandler(new DataHandler(file.getDataSource()));
         imagePart.setDisposition(MimeBodyPart.INLINE);
         return imagePart;
     }
@@ -506,8 +1602,36 @@ public class MailSender {
      * @throws UnsupportedEncodingException
      */
     private void setContent(MimeMessage message) throws MessagingException, UnsupportedEncodingException {
+        List<MimeBodyPart> attachmentPartList = new ArrayList<MimeBodyPart>();
+        for (AttachmentFile file : attachmentFileList) {
+            attachmentPartList.add(createAttachmentPart(file));
+        }
+        List<MimeBodyPart> imagePartList = new ArrayList<MimeBodyPart>();
+        for (InlineImageFile file : inlineImageFileList) {
+            imagePartList.add(createImagePart(file));
+        }
+        setContent(message, text, html, attachmentPartList, imagePartList);
+    }
+
+    /**
+     * メールのヘッダと本文を設定します。
+     *
+     * @param message
+     *            メッセージ
+     * @param text
+     *            本文(TEXT)
+     * @param html
+     *            本文(HTML)
+     * @param attachmentPartList
+     *            添付ファイルのパート
+     * @param imagePartList
+     *            インライン画像ファイルのパート
+     * @throws MessagingException
+     */
+    void setContent(MimeMessage message, String text, String html,
+            List<MimeBodyPart> attachmentPartList, List<MimeBodyPart> imagePartList) throws MessagingException {
         if (StringUtils.isEmpty(html)) {
-            if (attachmentFileList.isEmpty()) {
+            if (attachmentPartList.isEmpty()) {
                 /*
                  * text/plain
                  */
@@ -519,23 +1643,23 @@ public class MailSender {
                  * └ attachment
                  */
                 Multipart mixedMultipart = createMixedMimeMultipart();
-                mixedMultipart.addBodyPart(createTextPart());
-                for (AttachmentFile file : attachmentFileList) {
-                    mixedMultipart.addBodyPart(createAttachmentPart(file));
+                mixedMultipart.addBodyPart(createTextPart(text));
+                for (MimeBodyPart attachmentPart : attachmentPartList) {
+                    mixedMultipart.addBodyPart(attachmentPart);
                 }
                 message.setContent(mixedMultipart);
             }
         } else {
-            if (attachmentFileList.isEmpty()) {
-                if (inlineImageFileList.isEmpty()) {
+            if (attachmentPartList.isEmpty()) {
+                if (imagePartList.isEmpty()) {
                     /*
                      * multipart/alternative
                      * ├ text/plain
                      * └ text/html
                      */
                     Multipart alternativeMultipart = createAlternativeMimeMultipart();
-                    alternativeMultipart.addBodyPart(createTextPart());
-                    alternativeMultipart.addBodyPart(createHtmlPart());
+                    alternativeMultipart.addBodyPart(createTextPart(text));
+                    alternativeMultipart.addBodyPart(createHtmlPart(html));
                     message.setContent(alternativeMultipart);
                 } else {
                     /*
@@ -546,20 +1670,20 @@ public class MailSender {
                      *   └ image
                      */
                     Multipart relatedMultipart = createRelatedMimeMultipart();
-                    relatedMultipart.addBodyPart(createHtmlPart());
-                    for (InlineImageFile file : inlineImageFileList) {
-                        relatedMultipart.addBodyPart(createImagePart(file));
+                    relatedMultipart.addBodyPart(createHtmlPart(html));
+                    for (MimeBodyPart imagePart : imagePartList) {
+                        relatedMultipart.addBodyPart(imagePart);
                     }
                     MimeBodyPart relatedPart = new MimeBodyPart();
                     relatedPart.setContent(relatedMultipart);
 
                     Multipart alternativeMultipart = createAlternativeMimeMultipart();
-                    alternativeMultipart.addBodyPart(createTextPart());
+                    alternativeMultipart.addBodyPart(createTextPart(text));
                     alternativeMultipart.addBodyPart(relatedPart);
                     message.setContent(alternativeMultipart);
                 }
             } else {
-                if (inlineImageFileList.isEmpty()) {
+                if (imagePartList.isEmpty()) {
                     /*
                      * multipart/mixed
                      * ├ mulpart/alternative
@@ -568,15 +1692,15 @@ public class MailSender {
                      * └ attachment
                      */
                     Multipart alternativeMultipart = createAlternativeMimeMultipart();
-                    alternativeMultipart.addBodyPart(createTextPart());
-                    alternativeMultipart.addBodyPart(createHtmlPart());
+                    alternativeMultipart.addBodyPart(createTextPart(text));
+                    alternativeMultipart.addBodyPart(createHtmlPart(html));
                     MimeBodyPart alternativePart = new MimeBodyPart();
                     alternativePart.setContent(alternativeMultipart);
 
                     Multipart mixedMultipart = createMixedMimeMultipart();
                     mixedMultipart.addBodyPart(alternativePart);
-                    for (AttachmentFile file : attachmentFileList) {
-                        mixedMultipart.addBodyPart(createAttachmentPart(file));
+                    for (MimeBodyPart attachmentPart : attachmentPartList) {
+                        mixedMultipart.addBodyPart(attachmentPart);
                     }
                     message.setContent(mixedMultipart);
                 } else {
@@ -590,23 +1714,23 @@ public class MailSender {
                      * └ attachment
                      */
                     Multipart relatedMultipart = createRelatedMimeMultipart();
-                    relatedMultipart.addBodyPart(createHtmlPart());
-                    for (InlineImageFile file : inlineImageFileList) {
-                        relatedMultipart.addBodyPart(createImagePart(file));
+                    relatedMultipart.addBodyPart(createHtmlPart(html));
+                    for (MimeBodyPart imagePart : imagePartList) {
+                        relatedMultipart.addBodyPart(imagePart);
                     }
                     MimeBodyPart relatedPart = new MimeBodyPart();
                     relatedPart.setContent(relatedMultipart);
 
                     Multipart alternativeMultipart = createAlternativeMimeMultipart();
-                    alternativeMultipart.addBodyPart(createTextPart());
+                    alternativeMultipart.addBodyPart(createTextPart(text));
                     alternativeMultipart.addBodyPart(relatedPart);
                     MimeBodyPart alternativePart = new MimeBodyPart();
                     alternativePart.setContent(alternativeMultipart);
 
                     Multipart mixedMultipart = createMixedMimeMultipart();
                     mixedMultipart.addBodyPart(alternativePart);
-                    for (AttachmentFile file : attachmentFileList) {
-                        mixedMultipart.addBodyPart(createAttachmentPart(file));
+                    for (MimeBodyPart attachmentPart : attachmentPartList) {
+                        mixedMultipart.addBodyPart(attachmentPart);
                     }
                     message.setContent(mixedMultipart);
                 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.szmslab.quickjavamail.utils.AttachmentFile;
+import com.szmslab.quickjavamail.utils.InlineImageFile;
+import com.szmslab.quickjavamail.utils.MailAddress;
+
+/**
+ * 送信するメールの内容（ヘッダ、宛先、件名、本文、添付ファイルなど）を格納する不変のクラスです。
+ * <p>
+ * {@link MailSender#spec()}で作成します。
+ * 作成後に内容が変更されることはないため、複数のスレッドで共有したり、処理の段階間で受け渡したりできます。
+ * 送信は{@link MailEngine}で行います。
+ * なお、添付ファイル、インライン画像ファイルのデータソースは内容が変更されないものとして扱います。
+ * </p>
+ *
+ * @author szmslab
+ */
+public final class MailSpec {
+
+    /**
+     * メールヘッダ。
+     */
+    private final Map<String, String> headers;
+
+    /**
+     * 文字セット。
+     */
+    private final String charset;
+
+    /**
+     * メールアドレス（From）。
+     */
+    private final MailAddress fromAddress;
+
+    /**
+     * メールアドレス（ReplyTo）。
+     */
+    private final List<MailAddress> replyToAddressList;
+
+    /**
+     * メールアドレス（To）。
+     */
+    private final List<MailAddress> toAddressList;
+
+    /**
+     * メールアドレス（Cc）。
+     */
+    private final List<MailAddress> ccAddressList;
+
+    /**
+     * メールアドレス（Bcc）。
+     */
+    private final List<MailAddress> bccAddressList;
+
+    /**
+     * 件名。
+     */
+    private final String subject;
+
+    /**
+     * 本文(TEXT)。
+     */
+    private final String text;
+
+    /**
+     * 本文(HTML)。
+     */
+    private final String html;
+
+    /**
+     * 添付ファイル。
+     */
+    private final List<AttachmentFile> attachmentFileList;
+
+    /**
+     * インライン画像ファイル。
+     */
+    private final List<InlineImageFile> inlineImageFileList;
+
+    /**
+     * コンストラクタです。
+     * <p>
+     * 引数の内容は全てコピーされます。
+     * </p>
+     *
+     * @param headers
+     *            メールヘッダのプロパティ
+     * @param charset
+     *            文字セット
+     * @param fromAddress
+     *            メールアドレス（From）
+     * @param replyToAddressList
+     *            メールアドレス（ReplyTo）
+     * @param toAddressList
+     *            メールアドレス（To）
+     * @param ccAddressList
+     *            メールアドレス（Cc）
+     * @param bccAddressList
+     *            メールアドレス（Bcc）
+     * @param subject
+     *            件名
+     * @param text
+     *            本文(TEXT)
+     * @param html
+     *            本文(HTML)
+     * @param attachmentFileList
+     *            添付ファイル
+     * @param inlineImageFileList
+     *            インライン画像ファイル
+     */
+    MailSpec(Properties headers, String charset, MailAddress fromAddress,
+            List<MailAddress> replyToAddressList, List<MailAddress> toAddressList,
+            List<MailAddress> ccAddressList, List<MailAddress> bccAddressList,
+            String subject, String text, String html,
+            List<AttachmentFile> attachmentFileList, List<InlineImageFile> inlineImageFileList) {
+        Map<String, String> headerMap = new LinkedHashMap<String, String>();
+        for (String key : headers.stringPropertyNames()) {
+            headerMap.put(key, headers.getProperty(key));
+        }
+        this.headers = Collections.unmodifiableMap(headerMap);
+        this.charset = charset;
+        this.fromAddress = fromAddress;
+        this.replyToAddressList = copyOf(replyToAddressList);
+        this.toAddressList = copyOf(toAddressList);
+        this.ccAddressList = copyOf(ccAddressList);
+        this.bccAddressList = copyOf(bccAddressList);
+        this.subject = subject;
+        this.text = text;
+        this.html = html;
+        this.attachmentFileList = copyOf(attachmentFileList);
+        this.inlineImageFileList = copyOf(inlineImageFileList);
+    }
+
+    /**
+     * メールヘッダを取得します。
+     *
+     * @return メールヘッダ（変更できません）
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * 文字セットを取得します。
+     *
+     * @return 文字セット
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * メールアドレス（From）を取得します。
+     *
+     * @return メールアドレス（From）
+     */
+    public MailAddress getFrom() {
+        return fromAddress;
+    }
+
+    /**
+     * メールアドレス（ReplyTo）を取得します。
+     *
+     * @return メールアドレス（ReplyTo）（変更できません）
+     */
+    public List<MailAddress> getReplyTo() {
+        return replyToAddressList;
+    }
+
+    /**
+     * メールアドレス（To）を取得します。
+     *
+     * @return メールアドレス（To）（変更できません）
+     */
+    public List<MailAddress> getTo() {
+        return toAddressList;
+    }
+
+    /**
+     * メールアドレス（Cc）を取得します。
+     *
+     * @return メールアドレス（Cc）（変更できません）
+     */
+    public List<MailAddress> getCc() {
+        return ccAddressList;
+    }
+
+    /**
+     * メールアドレス（Bcc）を取得します。
+     *
+     * @return メールアドレス（Bcc）（変更できません）
+     */
+    public List<MailAddress> getBcc() {
+        return bccAddressList;
+    }
+
+    /**
+     * 件名を取得します。
+     *
+     * @return 件名
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * 本文(TEXT)を取得します。
+     *
+     * @return 本文(TEXT)
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * 本文(HTML)を取得します。
+     *
+     * @return 本文(HTML)
+     */
+    public String getHtml() {
+        return html;
+    }
+
+    /**
+     * 添付ファイルを取得します。
+     *
+     * @return 添付ファイル（変更できません）
+     */
+    public List<AttachmentFile> getAttachmentFiles() {
+        return attachmentFileList;
+    }
+
+    /**
+     * インライン画像ファイルを取得します。
+     *
+     * @return インライン画像ファイル（変更できません）
+     */
+    public List<InlineImageFile> getInlineImageFiles() {
+        return inlineImageFileList;
+    }
+
+    /**
+     * 宛先（To、Cc、Bcc）のみを置き換えた内容を作成します。
+     * <p>
+     * 宛先以外の内容は、このインスタンスと共有します。
+     * </p>
+     *
+     * @param to
+     *            メールアドレス（To）
+     * @param cc
+     *            メールアドレス（Cc）
+     * @param bcc
+     *            メールアドレス（Bcc）
+     * @return 宛先を置き換えた内容
+     */
+    public MailSpec withRecipients(List<MailAddress> to, List<MailAddress> cc, List<MailAddress> bcc) {
+        return new MailSpec(this, copyOf(to), copyOf(cc), copyOf(bcc));
+    }
+
+    /**
+     * 宛先のみを置き換えるコンストラクタです。
+     *
+     * @param source
+     *            コピー元のインスタンス
+     * @param toAddressList
+     *            メールアドレス（To）
+     * @param ccAddressList
+     *            メールアドレス（Cc）
+     * @param bccAddressList
+     *            メールアドレス（Bcc）
+     */
+    private MailSpec(MailSpec source, List<MailAddress> toAddressList,
+            List<MailAddress> ccAddressList, List<MailAddress> bccAddressList) {
+        this.headers = source.headers;
+        this.charset = source.charset;
+        this.fromAddress = source.fromAddress;
+        this.replyToAddressList = source.replyToAddressList;
+        this.toAddressList = toAddressList;
+        this.ccAddressList = ccAddressList;
+        this.bccAddressList = bccAddressList;
+        this.subject = source.subject;
+        this.text = source.text;
+        this.html = source.html;
+        this.attachmentFileList = source.attachmentFileList;
+        this.inlineImageFileList = source.inlineImageFileList;
+    }
+
+    /**
+     * 変更できないリストにコピーします。
+     *
+     * @param list
+     *            コピー元のリスト（nullの場合は空のリストとして扱います）
+     * @return 変更できないリスト
+     */
+    private static <T> List<T> copyOf(List<T> list) {
+        if (list == null || list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.szmslab.quickjavamail.utils.MailAddress;
+
+/**
+ * 差し込み送信用のテンプレートです。
+ * <p>
+ * 添付ファイル、インライン画像ファイル、および、差し込みの対象とならないヘッダは作成時に一度だけエンコードし、
+ * 宛先（To）と差し込み項目が変わる部分のみをメッセージごとに作成します。
+ * 件名、本文(TEXT)、本文(HTML)中の「${項目名}」が差し込み項目の値に置き換えられます。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class MailTemplate {
+
+    /**
+     * 差し込み項目の開始文字列。
+     */
+    private static final String FIELD_PREFIX = "${";
+
+    /**
+     * 差し込み項目の終了文字列。
+     */
+    private static final String FIELD_SUFFIX = "}";
+
+    /**
+     * テンプレートの元となったメール。
+     */
+    private final MailSender prototype;
+
+    /**
+     * 件名に差し込み項目が含まれるかどうか。
+     */
+    private final boolean isMergedSubject;
+
+    /**
+     * 差し込みの対象とならないヘッダ行。
+     */
+    private final List<String> staticHeaderLineList;
+
+    /**
+     * エンコード済みの添付ファイルのパート。
+     */
+    private final List<PreencodedPart> attachmentPartList;
+
+    /**
+     * エンコード済みのインライン画像ファイルのパート。
+     */
+    private final List<PreencodedPart> imagePartList;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param prototype
+     *            テンプレートの元となったメール
+     * @throws IOException
+     * @throws MessagingException
+     */
+    MailTemplate(MailSender prototype) throws IOException, MessagingException {
+        this.prototype = prototype;
+        this.isMergedSubject = StringUtils.contains(prototype.getSubject(), FIELD_PREFIX);
+        this.staticHeaderLineList = prototype.createStaticHeaderLines(prototype.createSession(), !isMergedSubject);
+        this.attachmentPartList = prototype.encodeAttachmentParts();
+        this.imagePartList = prototype.encodeImageParts();
+    }
+
+    /**
+     * 宛先と差し込み項目を指定してメッセージを作成します。
+     *
+     * @param fields
+     *            差し込み項目（項目名と値）
+     * @param addresses
+     *            メールアドレス（To）
+     * @return メッセージ
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    public MimeMessage createMessage(Map<String, String> fields, MailAddress... addresses)
+            throws UnsupportedEncodingException, MessagingException {
+        return createMessage(prototype.createSession(), fields, addresses);
+    }
+
+    /**
+     * 宛先と差し込み項目を指定してメールを送信します。
+     * <p>
+     * 宛先（Cc、Bccを含む）が全て送信を停止するアドレスの場合は送信しません。
+     * </p>
+     *
+     * @param fields
+     *            差し込み項目（項目名と値）
+     * @param addresses
+     *            メールアドレス（To）
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    public void execute(Map<String, String> fields, MailAddress... addresses)
+            throws UnsupportedEncodingException, MessagingException {
+        if (prototype.isAllSuppressed(Arrays.asList(addresses))) {
+            return;
+        }
+        prototype.send(createMessage(fields, addresses));
+    }
+
+    /**
+     * 宛先と差し込み項目を指定してメッセージを作成します。
+     *
+     * @param session
+     *            セッション
+     * @param fields
+     *            差し込み項目（項目名と値）
+     * @param addresses
+     *            メールアドレス（To）
+     * @return メッセージ
+     * @throws UnsupportedEncodingException
+     * @throws MessagingException
+     */
+    MimeMessage createMessage(Session session, Map<String, String> fields, MailAddress... addresses)
+            throws UnsupportedEncodingException, MessagingException {
+        final String charset = prototype.getCharset();
+        final MimeMessage message = new MimeMessage(session);
+
+        for (String line : staticHeaderLineList) {
+            message.addHeaderLine(line);
+        }
+        message.setRecipients(Message.RecipientType.TO, prototype.toRecipientAddresses(Arrays.asList(addresses)));
+        if (isMergedSubject) {
+            message.setSubject(merge(prototype.getSubject(), fields), charset);
+        }
+
+        prototype.setContent(message,
+                merge(prototype.getText(), fields),
+                merge(prototype.getHtml(), fields),
+                createBodyParts(attachmentPartList),
+                createBodyParts(imagePartList));
+
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    /**
+     * 文字列中の差し込み項目を値に置き換えます。
+     *
+     * @param template
+     *            置き換え前の文字列
+     * @param fields
+     *            差し込み項目（項目名と値）
+     * @return 置き換え後の文字列
+     */
+    private String merge(String template, Map<String, String> fields) {
+        if (fields == null || fields.isEmpty() || !StringUtils.contains(template, FIELD_PREFIX)) {
+            return template;
+        }
+        String[] searchList = new String[fields.size()];
+        String[] replacementList = new String[fields.size()];
+        int i = 0;
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            searchList[i] = FIELD_PREFIX + field.getKey() + FIELD_SUFFIX;
+            replacementList[i] = StringUtils.defaultString(field.getValue());
+            i++;
+        }
+        return StringUtils.replaceEach(template, searchList, replacementList);
+    }
+
+    /**
+     * エンコード済みのパートからMimeBodyPartを作成します。
+     *
+     * @param partList
+     *            エンコード済みのパート
+     * @return MimeBodyPartのリスト
+     * @throws MessagingException
+     */
+    private List<MimeBodyPart> createBodyParts(List<PreencodedPart> partList) throws MessagingException {
+        List<MimeBodyPart> bodyPartList = new ArrayList<MimeBodyPart>();
+        for (PreencodedPart part : partList) {
+            bodyPartList.add(part.createBodyPart());
+        }
+        return bodyPartList;
+    }
+
+}
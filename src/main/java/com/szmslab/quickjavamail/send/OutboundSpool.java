@@ -0,0 +1,1059 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.szmslab.quickjavamail.utils.MailProperties;
+
+/**
+ * 送信するメッセージをファイルに保存し、バックグラウンドで送信するスプールです。
+ * <p>
+ * メッセージは追記専用のセグメントファイルに書き込まれ、ディスクに同期されてから送信されます。
+ * 複数のスレッドから同時に追加されたメッセージは、まとめて1回の同期でディスクに書き込まれます（グループコミット）。
+ * 送信に失敗した場合は、送信結果（{@link SendResult}）と再送方法（{@link RetryPolicy}）から再送する宛先を決め、
+ * 間隔を延ばしながら、有効だが未送信の宛先と一時的に拒否（4xx応答）された宛先のみを再送します。
+ * 恒久的なエラー（5xx応答、宛先が無いなど）で再送する宛先が無い場合、または再送回数の上限に達した場合は、送信を諦めます。
+ * 送信を試行した回数と再送する宛先はスプールに記録するため、JVMの再起動後も引き継がれます。
+ * </p>
+ * <p>
+ * JVMの再起動後に{@link #start()}を呼び出すと、送信が完了していないメッセージを再送します。
+ * 同じMessage-IDのメッセージは、直近に送信が完了した100,000件の範囲で一度だけ送信されます。
+ * 送信が完了したMessage-IDはセグメントの切り替え時に新しいセグメントへ引き継ぐため、
+ * 古いセグメントを削除した後や、JVMの再起動後も重複と判定されます。
+ * Message-IDを設定していないメッセージは、追加のたびに新しいMessage-IDが振られるため、重複と判定されません。
+ * ただし、サーバが受け付けた直後、送信完了を記録する前にJVMが停止した場合は、再起動後に再送されます。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class OutboundSpool {
+
+    /**
+     * メッセージの追加を表すレコードの種別。
+     */
+    private static final byte RECORD_ENQUEUE = 'E';
+
+    /**
+     * 送信の完了を表すレコードの種別。
+     */
+    private static final byte RECORD_DONE = 'D';
+
+    /**
+     * 再送の予定（試行した回数、再送する宛先）を表すレコードの種別。
+     */
+    private static final byte RECORD_RETRY = 'R';
+
+    /**
+     * セグメントファイル名の接頭辞。
+     */
+    private static final String SEGMENT_PREFIX = "spool-";
+
+    /**
+     * セグメントファイル名の接尾辞。
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * 重複の判定のために保持する送信済みのMessage-IDの数。
+     */
+    private static final int MAX_COMPLETED_IDS = 100000;
+
+    /**
+     * スプールのディレクトリ。
+     */
+    private final File directory;
+
+    /**
+     * 送信に使用するMailSender。
+     */
+    private final MailSender transportSender;
+
+    /**
+     * セグメントファイルの切り替えサイズ（バイト）。
+     */
+    private long segmentSize = 64 * 1024 * 1024;
+
+    /**
+     * 再送方法（スプールでは、一時的に拒否された宛先も再送します）。
+     */
+    private RetryPolicy retryPolicy = new RetryPolicy().maxAttempts(10)
+            .delay(60 * 1000, 2.0, 60 * 60 * 1000).retryDeferredRecipients(true);
+
+    /**
+     * 送信スレッド数。
+     */
+    private int workerThreads = 1;
+
+    /**
+     * 送信完了時（送信を諦めた場合を含む）に通知するコールバック。
+     */
+    private SendCallback callback;
+
+    /**
+     * 送信が完了していないメッセージ（Message-IDとスプール上の位置）。
+     */
+    private final Map<String, SpoolEntry> pendingMap = new LinkedHashMap<String, SpoolEntry>();
+
+    /**
+     * 送信が完了したMessage-ID（古いものから破棄されます）。
+     */
+    private final Map<String, Boolean> completedIdMap = new LinkedHashMap<String, Boolean>() {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_COMPLETED_IDS;
+        }
+
+    };
+
+    /**
+     * セグメントごとの送信が完了していないメッセージ数。
+     */
+    private final TreeMap<Long, Integer> liveCountMap = new TreeMap<Long, Integer>();
+
+    /**
+     * 送信を待機しているメッセージ（次に送信を試行する日時の順）。
+     */
+    private final DelayQueue<SpoolEntry> queue = new DelayQueue<SpoolEntry>();
+
+    /**
+     * 送信スレッド。
+     */
+    private final List<Thread> workerList = new ArrayList<Thread>();
+
+    /**
+     * 書き込み中のセグメントの番号。
+     */
+    private long currentSegment;
+
+    /**
+     * 書き込み中のセグメントファイル。
+     */
+    private FileOutputStream segmentStream;
+
+    /**
+     * 書き込み中のセグメントへの出力ストリーム。
+     */
+    private DataOutputStream out;
+
+    /**
+     * 書き込み中のセグメントのサイズ（バイト）。
+     */
+    private long currentSize;
+
+    /**
+     * 書き込み中のセグメントに引き継いだ、送信完了のレコードのサイズ（バイト）。
+     */
+    private long carriedSize;
+
+    /**
+     * 書き込んだレコードの通番。
+     */
+    private long writtenSeq = 0;
+
+    /**
+     * ディスクに同期したレコードの通番（syncLockで保護します）。
+     */
+    private long syncedSeq = 0;
+
+    /**
+     * ディスクへの同期を直列化するためのロック。
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * 開始済みかどうか。
+     */
+    private volatile boolean isStarted = false;
+
+    /**
+     * 終了済みかどうか。
+     */
+    private volatile boolean isClosed = false;
+
+    /**
+     * 送信に成功したメッセージ数。
+     */
+    private final AtomicLong deliveredCount = new AtomicLong(0);
+
+    /**
+     * 送信を諦めたメッセージ数。
+     */
+    private final AtomicLong failedCount = new AtomicLong(0);
+
+    /**
+     * 再送を予定したメッセージ数。
+     */
+    private final AtomicLong retryCount = new AtomicLong(0);
+
+    /**
+     * 宛先が全て送信を停止するアドレスだったため、追加しなかったメッセージ数。
+     */
+    private final AtomicLong suppressedCount = new AtomicLong(0);
+
+    /**
+     * ディスクに同期した回数。
+     */
+    private final AtomicLong syncCount = new AtomicLong(0);
+
+    /**
+     * コンストラクタです。
+     *
+     * @param directory
+     *            スプールのディレクトリ
+     * @param properties
+     *            JavaMailのプロパティ
+     */
+    public OutboundSpool(File directory, MailProperties properties) {
+        this.directory = directory;
+        // セッションは送信スレッドごとに1回だけ作成するため、デフォルトのセッションは使用しない。
+        this.transportSender = new MailSender(properties).useDefaultSession(false);
+    }
+
+    /**
+     * セグメントファイルの切り替えサイズ（バイト）を設定します。
+     *
+     * @param segmentSize
+     *            セグメントファイルの切り替えサイズ（バイト）
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool segmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * 送信を試行する回数の上限を設定します。
+     *
+     * @param maxAttempts
+     *            送信を試行する回数の上限
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool maxAttempts(int maxAttempts) {
+        retryPolicy.maxAttempts(maxAttempts);
+        return this;
+    }
+
+    /**
+     * 再送までの時間を設定します。
+     * <p>
+     * 再送までの時間は、初回の時間から失敗するごとに倍になり、上限で頭打ちになります。
+     * </p>
+     *
+     * @param initialBackoff
+     *            初回の再送までの時間（ミリ秒）
+     * @param maxBackoff
+     *            再送までの時間の上限（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool backoff(long initialBackoff, long maxBackoff) {
+        retryPolicy.delay(initialBackoff, 2.0, maxBackoff);
+        return this;
+    }
+
+    /**
+     * 再送方法を設定します。
+     * <p>
+     * {@link #maxAttempts(int)}、{@link #backoff(long, long)}で設定した内容は、この再送方法で置き換えられます。
+     * </p>
+     *
+     * @param retryPolicy
+     *            再送方法
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool retryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy != null) {
+            this.retryPolicy = retryPolicy;
+        }
+        return this;
+    }
+
+    /**
+     * 送信スレッド数を設定します。
+     *
+     * @param workerThreads
+     *            送信スレッド数
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool workerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * 送信に使用する接続のプールを設定します。
+     *
+     * @param transportPool
+     *            接続を再利用するためのプール
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool transportPool(TransportPool transportPool) {
+        transportSender.transportPool(transportPool);
+        return this;
+    }
+
+    /**
+     * 送信完了時（送信を諦めた場合を含む）に通知するコールバックを設定します。
+     *
+     * @param callback
+     *            送信完了時に通知するコールバック
+     * @return 自身のインスタンス
+     */
+    public OutboundSpool callback(SendCallback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    /**
+     * スプールを開始します。
+     * <p>
+     * 既存のセグメントファイルを読み込み、送信が完了していないメッセージの送信を再開します。
+     * </p>
+     *
+     * @return 自身のインスタンス
+     * @throws IOException
+     */
+    public synchronized OutboundSpool start() throws IOException {
+        if (isStarted) {
+            throw new IllegalStateException("OutboundSpool is already started");
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        long lastSegment = 0;
+        for (long segment : listSegments()) {
+            replay(segment);
+            lastSegment = segment;
+        }
+        openSegment(lastSegment + 1);
+        carryCompletedIds();
+        deleteDeadSegments();
+        queue.addAll(pendingMap.values());
+
+        for (int i = 0; i < workerThreads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverLoop();
+                }
+            }, "OutboundSpool-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            workerList.add(worker);
+        }
+        isStarted = true;
+        return this;
+    }
+
+    /**
+     * メールをスプールに追加します。
+     * <p>
+     * メッセージがディスクに同期されてから戻ります。
+     * 宛先が全て送信を停止するアドレスの場合は、スプールに追加せず、
+     * コールバックに送信しなかった送信結果（{@link SendResult#isSuppressed()}）を通知してから戻ります。
+     * </p>
+     * <p>
+     * 重複の判定には、{@link MailSender#header(String, String)}でMessage-IDを設定してください。
+     * 設定していない場合は、追加のたびに新しいMessage-IDが振られます。
+     * </p>
+     *
+     * @param sender
+     *            送信するメール
+     * @return Message-ID
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public String enqueue(MailSender sender) throws IOException, MessagingException {
+        SerializedMimeMessage message = serialize(sender.createMessage(sender.createSession()));
+        if (sender.isAllSuppressed()) {
+            if (!isStarted || isClosed) {
+                throw new IllegalStateException("OutboundSpool is not running");
+            }
+            suppressedCount.incrementAndGet();
+            if (callback != null) {
+                callback.complete(SendResult.suppressed(sender, message, null));
+            }
+            return message.getMessageID();
+        }
+        return enqueue(message);
+    }
+
+    /**
+     * メッセージをスプールに追加します。
+     * <p>
+     * メッセージがディスクに同期されてから戻ります。
+     * Message-IDが設定されている場合はそのまま使用し、既にスプールに追加済み、または送信済みの場合は追加しません。
+     * </p>
+     * <p>
+     * ディスクへの同期に失敗した場合は、追加を取り消してから例外をスローするため、同じメッセージを再度追加できます。
+     * ただし、書き込んだレコードがディスクに残っていた場合は、次回の開始時に送信されます。
+     * </p>
+     *
+     * @param message
+     *            送信するメッセージ
+     * @return Message-ID
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public String enqueue(MimeMessage message) throws IOException, MessagingException {
+        SerializedMimeMessage serialized = serialize(message);
+        byte[] bytes = serialized.getBytes();
+        String messageId = serialized.getMessageID();
+
+        SpoolEntry entry;
+        long seq;
+        synchronized (this) {
+            if (!isStarted || isClosed) {
+                throw new IllegalStateException("OutboundSpool is not running");
+            }
+            if (pendingMap.containsKey(messageId) || completedIdMap.containsKey(messageId)) {
+                return messageId;
+            }
+            entry = append(RECORD_ENQUEUE, messageId, bytes);
+            pendingMap.put(messageId, entry);
+            incrementLiveCount(entry.getSegment(), 1);
+            seq = writtenSeq;
+        }
+        try {
+            sync(seq);
+        } catch (IOException e) {
+            // 再度追加された際に重複と判定されないよう、追加を取り消す。
+            synchronized (this) {
+                if (pendingMap.remove(messageId) != null) {
+                    incrementLiveCount(entry.getSegment(), -1);
+                }
+            }
+            throw e;
+        }
+        queue.add(entry);
+        return messageId;
+    }
+
+    /**
+     * スプールを終了します。
+     * <p>
+     * 送信中のメッセージの送信完了を待ってから終了します。送信が完了していないメッセージは、次回の開始時に送信されます。
+     * </p>
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        isClosed = true;
+        for (Thread worker : workerList) {
+            worker.interrupt();
+        }
+        for (Thread worker : workerList) {
+            worker.join();
+        }
+        synchronized (this) {
+            if (out != null) {
+                try {
+                    out.flush();
+                    segmentStream.getFD().sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    closeSegment();
+                }
+            }
+        }
+    }
+
+    /**
+     * 送信が完了していないメッセージ数を取得します。
+     *
+     * @return 送信が完了していないメッセージ数
+     */
+    public synchronized int getPendingCount() {
+        return pendingMap.size();
+    }
+
+    /**
+     * 送信に成功したメッセージ数を取得します。
+     *
+     * @return 送信に成功したメッセージ数
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * 送信を諦めたメッセージ数を取得します。
+     *
+     * @return 送信を諦めたメッセージ数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 再送を予定した回数を取得します。
+     *
+     * @return 再送を予定した回数
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * 宛先が全て送信を停止するアドレスだったため、追加しなかったメッセージ数を取得します。
+     *
+     * @return 追加しなかったメッセージ数
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    /**
+     * ディスクに同期した回数を取得します。
+     *
+     * @return ディスクに同期した回数
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    /**
+     * 送信を待機しているメッセージを順に取り出し、送信します。
+     */
+    private void deliverLoop() {
+        Session session = transportSender.createSession();
+        while (!isClosed) {
+            SpoolEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            deliver(session, entry);
+        }
+    }
+
+    /**
+     * メッセージを送信し、結果を記録します。
+     *
+     * @param session
+     *            セッション
+     * @param entry
+     *            送信するメッセージ
+     */
+    private void deliver(Session session, SpoolEntry entry) {
+        MimeMessage message = null;
+        Exception exception;
+        try {
+            message = new SerializedMimeMessage(session, read(entry));
+            transportSender.send(message, entry.getRecipients());
+            exception = null;
+        } catch (Exception e) {
+            exception = e;
+        }
+
+        SendResult result = new SendResult(transportSender, message, entry.getRecipients(), exception);
+        if (exception != null && entry.getAttempts() + 1 < retryPolicy.getMaxAttempts()) {
+            // 宛先が無い、5xxで拒否されたなど、再送する宛先が無い場合は送信を諦める。
+            Address[] retryAddresses = retryPolicy.getRetryAddresses(result);
+            if (retryAddresses.length > 0) {
+                entry.retryAfter(retryPolicy.getDelay(entry.getAttempts() + 1), retryAddresses);
+                try {
+                    recordRetry(entry);
+                } catch (IOException e) {
+                    // 記録できなかった場合は、次回の開始時に試行回数を数え直して全ての宛先に再送される。
+                    e.printStackTrace();
+                }
+                retryCount.incrementAndGet();
+                queue.add(entry);
+                return;
+            }
+        }
+
+        try {
+            complete(entry);
+        } catch (IOException e) {
+            // 完了を記録できなかった場合は、次回の開始時に再送される。
+            e.printStackTrace();
+        }
+        if (exception == null) {
+            deliveredCount.incrementAndGet();
+        } else {
+            failedCount.incrementAndGet();
+        }
+        if (callback != null) {
+            callback.complete(result);
+        }
+    }
+
+    /**
+     * 再送の予定（試行した回数、再送する宛先）を記録します。
+     *
+     * @param entry
+     *            再送するメッセージ
+     * @throws IOException
+     */
+    private void recordRetry(SpoolEntry entry) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(entry.getAttempts());
+        Address[] recipients = entry.getRecipients();
+        dos.writeInt(recipients.length);
+        for (Address recipient : recipients) {
+            dos.writeUTF(recipient.toString());
+        }
+        dos.flush();
+
+        long seq;
+        synchronized (this) {
+            if (out == null) {
+                throw new IOException("OutboundSpool is closed");
+            }
+            append(RECORD_RETRY, entry.getMessageId(), baos.toByteArray());
+            seq = writtenSeq;
+        }
+        sync(seq);
+    }
+
+    /**
+     * 送信の完了を記録します。
+     *
+     * @param entry
+     *            送信が完了したメッセージ
+     * @throws IOException
+     */
+    private void complete(SpoolEntry entry) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (out == null) {
+                throw new IOException("OutboundSpool is closed");
+            }
+            append(RECORD_DONE, entry.getMessageId(), new byte[0]);
+            pendingMap.remove(entry.getMessageId());
+            completedIdMap.put(entry.getMessageId(), Boolean.TRUE);
+            incrementLiveCount(entry.getSegment(), -1);
+            seq = writtenSeq;
+        }
+        sync(seq);
+        synchronized (this) {
+            deleteDeadSegments();
+        }
+    }
+
+    /**
+     * セグメントにレコードを書き込みます（ディスクへの同期は行いません）。
+     *
+     * @param type
+     *            レコードの種別
+     * @param messageId
+     *            Message-ID
+     * @param content
+     *            メッセージ
+     * @return 書き込んだメッセージの位置
+     * @throws IOException
+     */
+    private SpoolEntry append(byte type, String messageId, byte[] content) throws IOException {
+        if (currentSize - carriedSize >= segmentSize) {
+            // 切り替え前のセグメントは、ここで同期する。
+            out.flush();
+            segmentStream.getFD().sync();
+            syncCount.incrementAndGet();
+            closeSegment();
+            openSegment(currentSegment + 1);
+            carryCompletedIds();
+        }
+
+        long offset = writeRecord(type, messageId, content);
+        writtenSeq++;
+        return new SpoolEntry(messageId, currentSegment, offset, content.length);
+    }
+
+    /**
+     * セグメントにレコードを書き込みます。
+     *
+     * @param type
+     *            レコードの種別
+     * @param messageId
+     *            Message-ID
+     * @param content
+     *            メッセージ
+     * @return 書き込んだメッセージの位置
+     * @throws IOException
+     */
+    private long writeRecord(byte type, String messageId, byte[] content) throws IOException {
+        byte[] idBytes = toBytes(messageId);
+        long offset = currentSize + 1 + 2 + idBytes.length + 4;
+        out.writeByte(type);
+        out.writeShort(idBytes.length);
+        out.write(idBytes);
+        out.writeInt(content.length);
+        out.write(content);
+        out.writeLong(checksum(idBytes, content));
+        currentSize = offset + content.length + 8;
+        return offset;
+    }
+
+    /**
+     * 送信が完了したMessage-IDを、新しいセグメントに引き継ぎます。
+     * <p>
+     * 古いセグメントを削除した後も重複と判定できるよう、保持している全てのMessage-IDの送信完了のレコードを
+     * 古いものから順に書き込み、古いセグメントを削除する前にディスクに同期します。
+     * </p>
+     *
+     * @throws IOException
+     */
+    private void carryCompletedIds() throws IOException {
+        if (!completedIdMap.isEmpty()) {
+            for (String messageId : completedIdMap.keySet()) {
+                writeRecord(RECORD_DONE, messageId, new byte[0]);
+            }
+            out.flush();
+            segmentStream.getFD().sync();
+            syncCount.incrementAndGet();
+        }
+        carriedSize = currentSize;
+    }
+
+    /**
+     * 指定した通番までのレコードをディスクに同期します。
+     * <p>
+     * 同期を待っている間に他のスレッドが書き込んだレコードは、次の1回の同期でまとめてディスクに書き込まれます。
+     * </p>
+     *
+     * @param seq
+     *            レコードの通番
+     * @throws IOException
+     */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return;
+            }
+            FileOutputStream stream;
+            long targetSeq;
+            synchronized (this) {
+                out.flush();
+                stream = segmentStream;
+                targetSeq = writtenSeq;
+            }
+            // 同期中もレコードの書き込みを受け付ける。
+            try {
+                stream.getFD().sync();
+            } catch (IOException e) {
+                synchronized (this) {
+                    // セグメントの切り替えで閉じられた場合は、切り替え時に同期済み。
+                    if (stream == segmentStream) {
+                        throw e;
+                    }
+                }
+            }
+            syncedSeq = targetSeq;
+            syncCount.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * 設定済みのMessage-IDを保持したまま、メッセージをシリアライズします。
+     *
+     * @param message
+     *            メッセージ
+     * @return シリアライズしたメッセージ
+     * @throws IOException
+     * @throws MessagingException
+     */
+    private static SerializedMimeMessage serialize(MimeMessage message) throws IOException, MessagingException {
+        if (message instanceof SerializedMimeMessage) {
+            return (SerializedMimeMessage) message;
+        }
+        // saveChangesでMessage-IDが振り直されるため、設定済みのMessage-IDを戻す。
+        String originalId = message.getMessageID();
+        message.saveChanges();
+        if (originalId != null) {
+            message.setHeader("Message-ID", originalId);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        message.writeTo(baos);
+        return new SerializedMimeMessage(message.getSession(), baos.toByteArray());
+    }
+
+    /**
+     * セグメントファイルを読み込み、送信が完了していないメッセージを復元します。
+     * <p>
+     * 途中で壊れたレコード（書き込み中に停止した場合など）以降は読み込みません。
+     * </p>
+     *
+     * @param segment
+     *            セグメントの番号
+     * @throws IOException
+     */
+    private void replay(long segment) throws IOException {
+        liveCountMap.put(segment, 0);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(getSegmentFile(segment))));
+            long position = 0;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    byte[] idBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(idBytes);
+                    int length = in.readInt();
+                    long offset = position + 1 + 2 + idBytes.length + 4;
+                    byte[] content = new byte[length];
+                    in.readFully(content);
+                    if (in.readLong() != checksum(idBytes, content)) {
+                        break;
+                    }
+                    position = offset + length + 8;
+
+                    String messageId = new String(idBytes, "UTF-8");
+                    if (type == RECORD_ENQUEUE) {
+                        if (!pendingMap.containsKey(messageId) && !completedIdMap.containsKey(messageId)) {
+                            pendingMap.put(messageId, new SpoolEntry(messageId, segment, offset, length));
+                            incrementLiveCount(segment, 1);
+                        }
+                    } else if (type == RECORD_RETRY) {
+                        SpoolEntry entry = pendingMap.get(messageId);
+                        if (entry != null) {
+                            restoreRetry(entry, content);
+                        }
+                    } else if (type == RECORD_DONE) {
+                        SpoolEntry entry = pendingMap.remove(messageId);
+                        if (entry != null) {
+                            incrementLiveCount(entry.getSegment(), -1);
+                        }
+                        completedIdMap.put(messageId, Boolean.TRUE);
+                    } else {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 再送の予定のレコードから、試行した回数と再送する宛先を復元します。
+     *
+     * @param entry
+     *            再送するメッセージ
+     * @param content
+     *            レコードの内容
+     * @throws IOException
+     */
+    private static void restoreRetry(SpoolEntry entry, byte[] content) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        int attempts = in.readInt();
+        Address[] recipients = new Address[in.readInt()];
+        try {
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = new InternetAddress(in.readUTF(), false);
+            }
+        } catch (AddressException e) {
+            // 宛先を復元できない場合は、全ての宛先に再送する。
+            recipients = null;
+        }
+        entry.restore(attempts, recipients);
+    }
+
+    /**
+     * スプールからメッセージを読み込みます。
+     *
+     * @param entry
+     *            メッセージの位置
+     * @return メッセージ
+     * @throws IOException
+     */
+    private byte[] read(SpoolEntry entry) throws IOException {
+        byte[] bytes = new byte[entry.getLength()];
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(getSegmentFile(entry.getSegment()), "r");
+            file.seek(entry.getOffset());
+            file.readFully(bytes);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 新しいセグメントファイルを作成します。
+     *
+     * @param segment
+     *            セグメントの番号
+     * @throws IOException
+     */
+    private void openSegment(long segment) throws IOException {
+        segmentStream = new FileOutputStream(getSegmentFile(segment));
+        out = new DataOutputStream(new BufferedOutputStream(segmentStream, 64 * 1024));
+        currentSegment = segment;
+        currentSize = 0;
+        liveCountMap.put(segment, 0);
+    }
+
+    /**
+     * 書き込み中のセグメントファイルを閉じます。
+     */
+    private void closeSegment() {
+        try {
+            out.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        out = null;
+        segmentStream = null;
+    }
+
+    /**
+     * セグメントの送信が完了していないメッセージ数を増減します。
+     *
+     * @param segment
+     *            セグメントの番号
+     * @param delta
+     *            増減数
+     */
+    private void incrementLiveCount(long segment, int delta) {
+        Integer count = liveCountMap.get(segment);
+        liveCountMap.put(segment, (count == null ? 0 : count) + delta);
+    }
+
+    /**
+     * 全てのメッセージの送信が完了したセグメントファイルを、古いものから順に削除します。
+     * <p>
+     * 送信完了のレコードは追加のレコードより後のセグメントに書き込まれるため、
+     * 古いセグメントが残っている間は、それより新しいセグメントを削除しません。
+     * </p>
+     */
+    private void deleteDeadSegments() {
+        while (!liveCountMap.isEmpty()) {
+            Map.Entry<Long, Integer> first = liveCountMap.firstEntry();
+            if (first.getKey() == currentSegment || first.getValue() > 0) {
+                break;
+            }
+            getSegmentFile(first.getKey()).delete();
+            liveCountMap.remove(first.getKey());
+        }
+    }
+
+    /**
+     * 既存のセグメントの番号を取得します。
+     *
+     * @return セグメントの番号（昇順）
+     */
+    private long[] listSegments() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+        long[] segments = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            segments[i] = Long.parseLong(
+                    names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * セグメントファイルを取得します。
+     *
+     * @param segment
+     *            セグメントの番号
+     * @return セグメントファイル
+     */
+    private File getSegmentFile(long segment) {
+        return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * 文字列をバイト列に変換します。
+     *
+     * @param s
+     *            文字列
+     * @return バイト列（UTF-8）
+     */
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * レコードのチェックサム（CRC32）を計算します。
+     *
+     * @param idBytes
+     *            Message-ID
+     * @param content
+     *            メッセージ
+     * @return チェックサム
+     */
+    private static long checksum(byte[] idBytes, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(idBytes);
+        crc.update(content);
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+/**
+ * TransportPoolから貸し出される接続済みのTransportを格納するクラスです。
+ *
+ * @author szmslab
+ */
+public class PooledTransport {
+
+    /**
+     * 接続先を識別するキー。
+     */
+    private final String key;
+
+    /**
+     * プール内で接続を識別するキー（接続先に加えて、セッションの設定を含みます）。
+     */
+    private final String poolKey;
+
+    /**
+     * 接続済みのTransport。
+     */
+    private final Transport transport;
+
+    /**
+     * 接続先の中継サーバ（RelayGroupを使用しない場合はnull）。
+     */
+    private final RelayGroup.Relay relay;
+
+    /**
+     * 接続した日時（ミリ秒）。
+     */
+    private final long createdTime;
+
+    /**
+     * 最後に使用した日時（ミリ秒）。
+     */
+    private long lastUsedTime;
+
+    /**
+     * この接続で送信したメッセージ数。
+     */
+    private int messageCount;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @param transport
+     *            接続済みのTransport
+     */
+    PooledTransport(String key, Transport transport) {
+        this(key, transport, null);
+    }
+
+    /**
+     * コンストラクタです。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @param transport
+     *            接続済みのTransport
+     * @param relay
+     *            接続先の中継サーバ
+     */
+    PooledTransport(String key, Transport transport, RelayGroup.Relay relay) {
+        this(key, key, transport, relay);
+    }
+
+    /**
+     * コンストラクタです。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @param poolKey
+     *            プール内で接続を識別するキー
+     * @param transport
+     *            接続済みのTransport
+     * @param relay
+     *            接続先の中継サーバ
+     */
+    PooledTransport(String key, String poolKey, Transport transport, RelayGroup.Relay relay) {
+        this.key = key;
+        this.poolKey = poolKey;
+        this.transport = transport;
+        this.relay = relay;
+        this.createdTime = System.currentTimeMillis();
+        this.lastUsedTime = createdTime;
+    }
+
+    /**
+     * メッセージを送信します。
+     *
+     * @param message
+     *            メッセージ
+     * @param addresses
+     *            送信先のアドレス
+     * @throws MessagingException
+     */
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        messageCount++;
+        lastUsedTime = System.currentTimeMillis();
+        transport.sendMessage(message, addresses);
+    }
+
+    /**
+     * 接続先を識別するキーを取得します。
+     *
+     * @return 接続先を識別するキー
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * プール内で接続を識別するキーを取得します。
+     *
+     * @return プール内で接続を識別するキー
+     */
+    String getPoolKey() {
+        return poolKey;
+    }
+
+    /**
+     * 接続済みのTransportを取得します。
+     *
+     * @return 接続済みのTransport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * 接続先の中継サーバを取得します。
+     *
+     * @return 接続先の中継サーバ（RelayGroupを使用しない場合はnull）
+     */
+    public RelayGroup.Relay getRelay() {
+        return relay;
+    }
+
+    /**
+     * 接続した日時（ミリ秒）を取得します。
+     *
+     * @return 接続した日時（ミリ秒）
+     */
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * 最後に使用した日時（ミリ秒）を取得します。
+     *
+     * @return 最後に使用した日時（ミリ秒）
+     */
+    public long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    /**
+     * 最後に使用した日時を現在日時に更新します。
+     */
+    void touch() {
+        lastUsedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * この接続で送信したメッセージ数を取得します。
+     *
+     * @return この接続で送信したメッセージ数
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * 接続を閉じます。
+     */
+    void close() {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return key;
+    }
+
+}
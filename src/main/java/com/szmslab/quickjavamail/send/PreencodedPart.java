@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * Content-Transfer-Encodingによるエンコード済みのパートを格納するクラスです。
+ * <p>
+ * エンコード済みの内容から作成したMimeBodyPartは、送信時に再エンコードされず、内容がそのまま書き出されます。
+ * </p>
+ *
+ * @author szmslab
+ */
+class PreencodedPart {
+
+    /**
+     * パートのヘッダ行。
+     */
+    private final List<String> headerLineList;
+
+    /**
+     * エンコード済みの内容。
+     */
+    private final byte[] content;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param headerLineList
+     *            パートのヘッダ行
+     * @param content
+     *            エンコード済みの内容
+     */
+    PreencodedPart(List<String> headerLineList, byte[] content) {
+        this.headerLineList = headerLineList;
+        this.content = content;
+    }
+
+    /**
+     * パートをエンコードします。
+     *
+     * @param part
+     *            パート
+     * @return エンコード済みのパート
+     * @throws MessagingException
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    static PreencodedPart encode(MimeBodyPart part) throws MessagingException, IOException {
+        // Content-Type、Content-Transfer-Encodingのヘッダを確定させる。
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        MimeMessage message = new MimeMessage((Session) null);
+        message.setContent(multipart);
+        message.saveChanges();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        part.writeTo(baos);
+        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
+        InternetHeaders headers = new InternetHeaders(bais);
+        List<String> headerLineList = new ArrayList<String>();
+        for (Enumeration<String> lines = headers.getAllHeaderLines(); lines.hasMoreElements();) {
+            headerLineList.add(lines.nextElement());
+        }
+        byte[] content = new byte[bais.available()];
+        bais.read(content, 0, content.length);
+        return new PreencodedPart(headerLineList, content);
+    }
+
+    /**
+     * エンコード済みの内容からMimeBodyPartを作成します。
+     *
+     * @return MimeBodyPartのインスタンス
+     * @throws MessagingException
+     */
+    MimeBodyPart createBodyPart() throws MessagingException {
+        return new MimeBodyPart(createHeaders(), content);
+    }
+
+    /**
+     * ヘッダ行の複製を作成します。
+     *
+     * @return パートのヘッダ
+     */
+    InternetHeaders createHeaders() {
+        InternetHeaders headers = new InternetHeaders();
+        for (String line : headerLineList) {
+            headers.addHeaderLine(line);
+        }
+        return headers;
+    }
+
+    /**
+     * エンコード済みの内容のサイズ（バイト）を取得します。
+     *
+     * @return エンコード済みの内容のサイズ（バイト）
+     */
+    int getContentSize() {
+        return content.length;
+    }
+
+}
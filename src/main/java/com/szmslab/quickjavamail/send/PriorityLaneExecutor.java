@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+/**
+ * 優先度の異なるメールを、レーンごとに分けて非同期で送信するクラスです。
+ * <p>
+ * レーンごとに重み、同時送信数の上限、キューの上限を設定し、
+ * 重み付き公平キューイング（メッセージのバイト数を重みで割った仮想時刻の順）で送信するメールを選択します。
+ * 例えば、トランザクションメールのレーンに大きな重みを設定し、一括送信のレーンの同時送信数を送信スレッド数より小さくすると、
+ * 一括送信中でもトランザクションメールは空いている送信スレッドで待たずに送信され、一括送信は残りの能力を使用します。
+ * </p>
+ * <p>
+ * メッセージは受け付け時にシリアライズされるため、受け付け後にMailSenderを変更しても影響しません。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class PriorityLaneExecutor {
+
+    /**
+     * 送信スレッド数。
+     */
+    private final int threads;
+
+    /**
+     * レーン名ごとのレーン。
+     */
+    private final Map<String, Lane> laneMap = new LinkedHashMap<String, Lane>();
+
+    /**
+     * 送信スレッド。
+     */
+    private final List<Thread> workerList = new ArrayList<Thread>();
+
+    /**
+     * 仮想時刻（最後に送信を開始したメールの開始タグ）。
+     */
+    private double virtualTime = 0;
+
+    /**
+     * 開始済みかどうか。
+     */
+    private boolean isStarted = false;
+
+    /**
+     * シャットダウン済みかどうか。
+     */
+    private boolean isShutdown = false;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param threads
+     *            送信スレッド数
+     */
+    public PriorityLaneExecutor(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * レーンを追加します（開始する前に設定してください）。
+     *
+     * @param name
+     *            レーン名
+     * @param weight
+     *            重み（大きいほど多くの送信機会が割り当てられます）
+     * @param maxConcurrency
+     *            同時送信数の上限（0以下の場合は送信スレッド数）
+     * @param maxQueued
+     *            キュー待ちのメール数の上限（上限に達した場合、受け付けは空きができるまで待機します）
+     * @return 自身のインスタンス
+     */
+    public synchronized PriorityLaneExecutor lane(String name, int weight, int maxConcurrency, int maxQueued) {
+        if (isStarted) {
+            throw new IllegalStateException("PriorityLaneExecutor is already started");
+        }
+        laneMap.put(name, new Lane(this, name, Math.max(weight, 1),
+                maxConcurrency > 0 ? Math.min(maxConcurrency, threads) : threads, Math.max(maxQueued, 1)));
+        return this;
+    }
+
+    /**
+     * 送信スレッドを開始します。
+     *
+     * @return 自身のインスタンス
+     */
+    public synchronized PriorityLaneExecutor start() {
+        if (isStarted) {
+            throw new IllegalStateException("PriorityLaneExecutor is already started");
+        }
+        if (laneMap.isEmpty()) {
+            throw new IllegalStateException("No lane configured");
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop();
+                }
+            }, "PriorityLaneExecutor-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+            workerList.add(worker);
+        }
+        isStarted = true;
+        return this;
+    }
+
+    /**
+     * メールの送信を受け付けます。
+     *
+     * @param laneName
+     *            レーン名
+     * @param sender
+     *            送信するメール
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> submit(String laneName, MailSender sender)
+            throws IOException, MessagingException, InterruptedException {
+        return submit(laneName, sender, null);
+    }
+
+    /**
+     * メールの送信を受け付けます。
+     * <p>
+     * レーンのキューが上限に達している場合は、空きができるまで待機します。
+     * </p>
+     *
+     * @param laneName
+     *            レーン名
+     * @param sender
+     *            送信するメール
+     * @param callback
+     *            送信完了時に通知するコールバック
+     * @return 送信結果
+     * @throws IOException
+     * @throws MessagingException
+     * @throws InterruptedException
+     */
+    public Future<SendResult> submit(String laneName, MailSender sender, SendCallback callback)
+            throws IOException, MessagingException, InterruptedException {
+        Lane lane;
+        synchronized (this) {
+            lane = laneMap.get(laneName);
+        }
+        if (lane == null) {
+            throw new IllegalArgumentException("Unknown lane: " + laneName);
+        }
+        // 送信スレッドが呼び出し元のMailSenderを参照しないよう、受け付け時点の複製を使用する。
+        MailSender snapshot = new MailSender(sender);
+        SerializedMimeMessage message = SerializedMimeMessage.serialize(snapshot.createMessage(snapshot.createSession()));
+        LaneTask task = new LaneTask(lane, snapshot, message, callback);
+
+        synchronized (this) {
+            while (!isShutdown && lane.queue.size() >= lane.maxQueued) {
+                wait();
+            }
+            if (isShutdown) {
+                throw new RejectedExecutionException("PriorityLaneExecutor has been shut down");
+            }
+            // 仮想時刻より前の開始タグは使用しない（空いていたレーンが貯めた分で他のレーンを妨げないため）。
+            task.startTag = Math.max(virtualTime, lane.lastFinishTag);
+            task.finishTag = task.startTag + (double) Math.max(message.getByteSize(), 1) / lane.weight;
+            lane.lastFinishTag = task.finishTag;
+            lane.queue.add(task);
+            notifyAll();
+        }
+        return task;
+    }
+
+    /**
+     * 新たな送信の受け付けを停止します。
+     * <p>
+     * 受け付け済みのメールは、キュー待ちのものも含めて全て送信されます。
+     * </p>
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * シャットダウン後、受け付け済みのメールが全て送信されるまで待機します。
+     *
+     * @param timeout
+     *            最大待機時間
+     * @param unit
+     *            最大待機時間の単位
+     * @return 全て送信された場合はtrue、タイムアウトした場合はfalse
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        List<Thread> workers;
+        synchronized (this) {
+            workers = new ArrayList<Thread>(workerList);
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            worker.join(remainingMillis);
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * レーンを取得します。
+     *
+     * @param name
+     *            レーン名
+     * @return レーン（存在しない場合はnull）
+     */
+    public synchronized Lane getLane(String name) {
+        return laneMap.get(name);
+    }
+
+    /**
+     * 全てのレーンを取得します。
+     *
+     * @return レーン（追加した順）
+     */
+    public synchronized Collection<Lane> getLanes() {
+        return Collections.unmodifiableList(new ArrayList<Lane>(laneMap.values()));
+    }
+
+    /**
+     * 送信スレッドの処理です。
+     */
+    private void workLoop() {
+        try {
+            while (true) {
+                LaneTask task;
+                synchronized (this) {
+                    while ((task = poll()) == null) {
+                        if (isShutdown && isQueueEmpty()) {
+                            return;
+                        }
+                        wait();
+                    }
+                }
+                task.lane.queueLatency.record(System.nanoTime() - task.enqueuedNanos);
+                try {
+                    task.run();
+                } finally {
+                    synchronized (this) {
+                        task.lane.inFlight--;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // 送信スレッドを終了する。
+        }
+    }
+
+    /**
+     * 次に送信するメールを取り出します。
+     * <p>
+     * 同時送信数の上限に達していないレーンのうち、先頭のメールの終了タグが最も小さいものを選択します。
+     * </p>
+     *
+     * @return 送信するメール（送信できるメールが無い場合はnull）
+     */
+    private LaneTask poll() {
+        Lane selected = null;
+        for (Lane lane : laneMap.values()) {
+            LaneTask head = lane.queue.peek();
+            if (head != null && lane.inFlight < lane.maxConcurrency
+                    && (selected == null || head.finishTag < selected.queue.peek().finishTag)) {
+                selected = lane;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        LaneTask task = selected.queue.poll();
+        selected.inFlight++;
+        virtualTime = Math.max(virtualTime, task.startTag);
+        // キューに空きができたため、受け付けを待機しているスレッドに通知する。
+        notifyAll();
+        return task;
+    }
+
+    /**
+     * 全てのレーンのキューが空かどうかを判定します。
+     *
+     * @return 全てのレーンのキューが空かどうか
+     */
+    private boolean isQueueEmpty() {
+        for (Lane lane : laneMap.values()) {
+            if (!lane.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * レーンの設定と状態を格納するクラスです。
+     *
+     * @author szmslab
+     */
+    public static class Lane {
+
+        /**
+         * 状態を保護するロック（PriorityLaneExecutor）。
+         */
+        private final Object lock;
+
+        /**
+         * レーン名。
+         */
+        private final String name;
+
+        /**
+         * 重み。
+         */
+        private final int weight;
+
+        /**
+         * 同時送信数の上限。
+         */
+        private final int maxConcurrency;
+
+        /**
+         * キュー待ちのメール数の上限。
+         */
+        private final int maxQueued;
+
+        /**
+         * キュー待ちのメール。
+         */
+        private final LinkedList<LaneTask> queue = new LinkedList<LaneTask>();
+
+        /**
+         * 送信中の数。
+         */
+        private int inFlight = 0;
+
+        /**
+         * 最後に受け付けたメールの終了タグ。
+         */
+        private double lastFinishTag = 0;
+
+        /**
+         * 受け付けから送信開始までの待機時間の分布。
+         */
+        private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+        /**
+         * 受け付けから送信完了までの所要時間の分布。
+         */
+        private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+        /**
+         * 送信に成功した件数。
+         */
+        private final AtomicLong successCount = new AtomicLong(0);
+
+        /**
+         * 送信に失敗した件数。
+         */
+        private final AtomicLong failureCount = new AtomicLong(0);
+
+        /**
+         * 送信前、または送信中に取り消された件数。
+         */
+        private final AtomicLong cancelledCount = new AtomicLong(0);
+
+        /**
+         * コンストラクタです。
+         *
+         * @param lock
+         *            状態を保護するロック
+         * @param name
+         *            レーン名
+         * @param weight
+         *            重み
+         * @param maxConcurrency
+         *            同時送信数の上限
+         * @param maxQueued
+         *            キュー待ちのメール数の上限
+         */
+        Lane(Object lock, String name, int weight, int maxConcurrency, int maxQueued) {
+            this.lock = lock;
+            this.name = name;
+            this.weight = weight;
+            this.maxConcurrency = maxConcurrency;
+            this.maxQueued = maxQueued;
+        }
+
+        /**
+         * レーン名を取得します。
+         *
+         * @return レーン名
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 重みを取得します。
+         *
+         * @return 重み
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * 同時送信数の上限を取得します。
+         *
+         * @return 同時送信数の上限
+         */
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        /**
+         * キュー待ちのメール数を取得します。
+         *
+         * @return キュー待ちのメール数
+         */
+        public int getQueueSize() {
+            synchronized (lock) {
+                return queue.size();
+            }
+        }
+
+        /**
+         * 送信中の数を取得します。
+         *
+         * @return 送信中の数
+         */
+        public int getInFlight() {
+            synchronized (lock) {
+                return inFlight;
+            }
+        }
+
+        /**
+         * 受け付けから送信開始までの待機時間の分布を取得します。
+         *
+         * @return 待機時間の分布
+         */
+        public LatencyHistogram getQueueLatency() {
+            return queueLatency;
+        }
+
+        /**
+         * 受け付けから送信完了までの所要時間の分布を取得します。
+         *
+         * @return 所要時間の分布
+         */
+        public LatencyHistogram getTotalLatency() {
+            return totalLatency;
+        }
+
+        /**
+         * 送信に成功した件数を取得します。
+         *
+         * @return 送信に成功した件数
+         */
+        public long getSuccessCount() {
+            return successCount.get();
+        }
+
+        /**
+         * 送信に失敗した件数を取得します。
+         *
+         * @return 送信に失敗した件数
+         */
+        public long getFailureCount() {
+            return failureCount.get();
+        }
+
+        /**
+         * 送信前、または送信中に取り消された件数を取得します。
+         *
+         * @return 取り消された件数
+         */
+        public long getCancelledCount() {
+            return cancelledCount.get();
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("%s: queued=%d, inFlight=%d, success=%d, failure=%d, cancelled=%d, queue=[%s], total=[%s]",
+                    name, getQueueSize(), getInFlight(), getSuccessCount(), getFailureCount(), getCancelledCount(),
+                    queueLatency, totalLatency);
+        }
+
+    }
+
+    /**
+     * レーンに受け付けたメール1件を送信するタスクです。
+     *
+     * @author szmslab
+     */
+    private static class LaneTask extends FutureTask<SendResult> {
+
+        /**
+         * 受け付けたレーン。
+         */
+        private final Lane lane;
+
+        /**
+         * 送信完了時に通知するコールバック。
+         */
+        private final SendCallback callback;
+
+        /**
+         * 受け付けた日時（ナノ秒）。
+         */
+        private final long enqueuedNanos = System.nanoTime();
+
+        /**
+         * 重み付き公平キューイングの開始タグ。
+         */
+        private double startTag;
+
+        /**
+         * 重み付き公平キューイングの終了タグ。
+         */
+        private double finishTag;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param lane
+         *            受け付けたレーン
+         * @param sender
+         *            送信するメール（受け付け時点の複製）
+         * @param message
+         *            シリアライズしたメッセージ
+         * @param callback
+         *            送信完了時に通知するコールバック
+         */
+        LaneTask(Lane lane, final MailSender sender, final SerializedMimeMessage message, SendCallback callback) {
+            super(new Callable<SendResult>() {
+                @Override
+                public SendResult call() {
+                    try {
+                        sender.send(message);
+                        return new SendResult(sender, message, null);
+                    } catch (Exception e) {
+                        return new SendResult(sender, message, e);
+                    }
+                }
+            });
+            this.lane = lane;
+            this.callback = callback;
+        }
+
+        /* (非 Javadoc)
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                // キュー待ちのまま取り消された場合は、キューから取り除き、受け付けを待機しているスレッドに通知する。
+                synchronized (lane.lock) {
+                    if (lane.queue.remove(this)) {
+                        lane.lock.notifyAll();
+                    }
+                }
+                lane.cancelledCount.incrementAndGet();
+                return;
+            }
+            lane.totalLatency.record(System.nanoTime() - enqueuedNanos);
+            SendResult result = null;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+            if (result != null && result.isSuccess()) {
+                lane.successCount.incrementAndGet();
+            } else {
+                lane.failureCount.incrementAndGet();
+            }
+            if (callback != null && result != null) {
+                try {
+                    callback.complete(result);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,641 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.net.SocketFactory;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * 複数の中継サーバに送信を振り分け、障害時に他の中継サーバへ切り替えるクラスです。
+ * <p>
+ * 接続に失敗した中継サーバ、または4xxの応答を返した中継サーバは、一定時間隔離して送信先から外します。
+ * 隔離時間は、連続して失敗するたびに上限まで倍増します。
+ * 全ての中継サーバが隔離されている場合は、最も早く隔離が解除される中継サーバを使用します。
+ * </p>
+ * <p>
+ * 中継サーバごとに接続するため、ssl(true)、starttls(true)で設定される信頼するホストは、
+ * JavaMailのプロパティに設定したホスト名のみが対象となる点に注意してください。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class RelayGroup {
+
+    /**
+     * 中継サーバの選択方法です。
+     */
+    public enum Strategy {
+        /**
+         * 送信の所要時間の平均値と送信中の数から、最も早く送信できる中継サーバを選択します。
+         */
+        LEAST_LATENCY,
+
+        /**
+         * 重みに比例した割合で、中継サーバを順番に選択します。
+         */
+        WEIGHTED
+    }
+
+    /**
+     * 送信の所要時間の平均値を計算する際の、新しい計測値の重み。
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /**
+     * 中継サーバ。
+     */
+    private final List<Relay> relayList = new CopyOnWriteArrayList<Relay>();
+
+    /**
+     * 中継サーバの選択方法。
+     */
+    private Strategy strategy = Strategy.LEAST_LATENCY;
+
+    /**
+     * 最初に失敗した際の隔離時間（ミリ秒）。
+     */
+    private long initialQuarantineMillis = 5000;
+
+    /**
+     * 隔離時間の上限（ミリ秒）。
+     */
+    private long maxQuarantineMillis = 300000;
+
+    /**
+     * ヘルスチェックのタイムアウト時間（ミリ秒）。
+     */
+    private int healthCheckTimeout = 5000;
+
+    /**
+     * ヘルスチェックに使用するソケットのファクトリ。
+     */
+    private SocketFactory healthCheckSocketFactory = SocketFactory.getDefault();
+
+    /**
+     * ヘルスチェックを行うスレッド。
+     */
+    private Thread healthCheckThread;
+
+    /**
+     * 中継サーバを追加します。
+     *
+     * @param host
+     *            ホスト名
+     * @param port
+     *            ポート番号
+     * @return 自身のインスタンス
+     */
+    public RelayGroup relay(String host, int port) {
+        return relay(host, port, 1);
+    }
+
+    /**
+     * 中継サーバを追加します。
+     *
+     * @param host
+     *            ホスト名
+     * @param port
+     *            ポート番号
+     * @param weight
+     *            重み（{@link Strategy#WEIGHTED}の場合に使用します）
+     * @return 自身のインスタンス
+     */
+    public RelayGroup relay(String host, int port, int weight) {
+        relayList.add(new Relay(host, port, Math.max(weight, 1)));
+        return this;
+    }
+
+    /**
+     * 中継サーバの選択方法を設定します。
+     *
+     * @param strategy
+     *            中継サーバの選択方法
+     * @return 自身のインスタンス
+     */
+    public RelayGroup strategy(Strategy strategy) {
+        if (strategy != null) {
+            this.strategy = strategy;
+        }
+        return this;
+    }
+
+    /**
+     * 失敗した中継サーバの隔離時間を設定します。
+     *
+     * @param initialMillis
+     *            最初に失敗した際の隔離時間（ミリ秒）
+     * @param maxMillis
+     *            隔離時間の上限（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public RelayGroup quarantine(long initialMillis, long maxMillis) {
+        this.initialQuarantineMillis = initialMillis;
+        this.maxQuarantineMillis = Math.max(initialMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * ヘルスチェックのタイムアウト時間を設定します。
+     *
+     * @param timeout
+     *            タイムアウト時間（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public RelayGroup healthCheckTimeout(int timeout) {
+        this.healthCheckTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * ヘルスチェックに使用するソケットのファクトリを設定します。
+     * <p>
+     * SMTP over SSLの中継サーバを確認する場合は、SSLSocketFactoryを設定してください。
+     * </p>
+     *
+     * @param socketFactory
+     *            ソケットのファクトリ
+     * @return 自身のインスタンス
+     */
+    public RelayGroup healthCheckSocketFactory(SocketFactory socketFactory) {
+        if (socketFactory != null) {
+            this.healthCheckSocketFactory = socketFactory;
+        }
+        return this;
+    }
+
+    /**
+     * 定期的なヘルスチェックを開始します。
+     *
+     * @param intervalMillis
+     *            ヘルスチェックの間隔（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public synchronized RelayGroup startHealthCheck(final long intervalMillis) {
+        if (healthCheckThread != null) {
+            throw new IllegalStateException("Health check is already started");
+        }
+        healthCheckThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(intervalMillis);
+                        checkHealth();
+                    }
+                } catch (InterruptedException e) {
+                    // 停止が要求された。
+                }
+            }
+        }, "RelayGroup-HealthCheck");
+        healthCheckThread.setDaemon(true);
+        healthCheckThread.start();
+        return this;
+    }
+
+    /**
+     * 定期的なヘルスチェックを停止します。
+     */
+    public synchronized void stopHealthCheck() {
+        if (healthCheckThread != null) {
+            healthCheckThread.interrupt();
+            healthCheckThread = null;
+        }
+    }
+
+    /**
+     * 全ての中継サーバのヘルスチェックを行います。
+     * <p>
+     * 接続してSMTPの応答（220）を確認し、成功した中継サーバは隔離を解除、失敗した中継サーバは隔離します。
+     * </p>
+     */
+    public void checkHealth() {
+        for (Relay relay : relayList) {
+            if (probe(relay)) {
+                relay.recover();
+            } else {
+                recordFailure(relay);
+            }
+        }
+    }
+
+    /**
+     * 中継サーバを取得します。
+     *
+     * @return 中継サーバ（変更できません）
+     */
+    public List<Relay> getRelays() {
+        return Collections.unmodifiableList(new ArrayList<Relay>(relayList));
+    }
+
+    /**
+     * 中継サーバの数を取得します。
+     *
+     * @return 中継サーバの数
+     */
+    public int size() {
+        return relayList.size();
+    }
+
+    /**
+     * 送信に使用する中継サーバを選択します。
+     *
+     * @return 中継サーバ
+     * @throws MessagingException
+     */
+    Relay select() throws MessagingException {
+        if (relayList.isEmpty()) {
+            throw new MessagingException("No relay configured");
+        }
+        long now = System.currentTimeMillis();
+        List<Relay> availableList = new ArrayList<Relay>(relayList.size());
+        Relay soonest = null;
+        for (Relay relay : relayList) {
+            if (relay.quarantineUntil <= now) {
+                availableList.add(relay);
+            } else if (soonest == null || relay.quarantineUntil < soonest.quarantineUntil) {
+                soonest = relay;
+            }
+        }
+        if (availableList.isEmpty()) {
+            return soonest;
+        }
+        if (strategy == Strategy.WEIGHTED) {
+            return selectWeighted(availableList);
+        }
+        return selectLeastLatency(availableList);
+    }
+
+    /**
+     * 送信の開始を記録します。
+     *
+     * @param relay
+     *            中継サーバ
+     */
+    void begin(Relay relay) {
+        relay.inFlight.incrementAndGet();
+    }
+
+    /**
+     * 送信の成功を記録します。
+     *
+     * @param relay
+     *            中継サーバ
+     * @param elapsedNanos
+     *            送信の所要時間（ナノ秒）
+     */
+    void recordSuccess(Relay relay, long elapsedNanos) {
+        relay.inFlight.decrementAndGet();
+        relay.successCount.incrementAndGet();
+        relay.recover();
+        synchronized (relay) {
+            relay.latencyNanos = relay.latencyNanos == 0
+                    ? elapsedNanos : relay.latencyNanos + LATENCY_SMOOTHING * (elapsedNanos - relay.latencyNanos);
+        }
+    }
+
+    /**
+     * 送信の終了を記録します（中継サーバの状態には影響しない失敗の場合）。
+     *
+     * @param relay
+     *            中継サーバ
+     */
+    void end(Relay relay) {
+        relay.inFlight.decrementAndGet();
+    }
+
+    /**
+     * 中継サーバの失敗を記録し、隔離します。
+     *
+     * @param relay
+     *            中継サーバ
+     */
+    void recordFailure(Relay relay) {
+        relay.failureCount.incrementAndGet();
+        int failures = relay.consecutiveFailures.incrementAndGet();
+        long backoff = initialQuarantineMillis << Math.min(failures - 1, 30);
+        relay.quarantineUntil = System.currentTimeMillis() + Math.min(backoff, maxQuarantineMillis);
+    }
+
+    /**
+     * 中継サーバの障害として記録すべき失敗かどうかを判定します。
+     * <p>
+     * 接続の失敗、切断、4xxの応答を対象とします。
+     * 宛先ごとの拒否や、一部の宛先に送信済みの場合は対象外とします。
+     * </p>
+     *
+     * @param e
+     *            送信時に発生した例外
+     * @return 中継サーバの障害かどうか
+     */
+    static boolean isRelayFailure(MessagingException e) {
+        if (e instanceof SMTPSendFailedException) {
+            SMTPSendFailedException sfe = (SMTPSendFailedException) e;
+            int code = sfe.getReturnCode();
+            return code >= 400 && code < 500
+                    && (sfe.getValidSentAddresses() == null || sfe.getValidSentAddresses().length == 0);
+        }
+        return !(e instanceof SendFailedException);
+    }
+
+    /**
+     * 接続後の失敗のうち、他の中継サーバで再送できる失敗かどうかを判定します。
+     * <p>
+     * MAIL FROM・DATAに対する4xxの応答で、どの宛先にも送信していない場合のみを対象とします。
+     * メッセージ本文の送信後の失敗（終端に対する応答の失敗、タイムアウトなど）は、
+     * 中継サーバがメッセージを受け付けている可能性があるため対象外とします。
+     * </p>
+     *
+     * @param e
+     *            送信時に発生した例外
+     * @return 他の中継サーバで再送できるかどうか
+     */
+    static boolean canFailover(MessagingException e) {
+        if (!(e instanceof SMTPSendFailedException)) {
+            return false;
+        }
+        SMTPSendFailedException sfe = (SMTPSendFailedException) e;
+        String command = sfe.getCommand();
+        int code = sfe.getReturnCode();
+        return command != null && (command.startsWith("MAIL FROM") || command.equals("DATA"))
+                && code >= 400 && code < 500
+                && (sfe.getValidSentAddresses() == null || sfe.getValidSentAddresses().length == 0);
+    }
+
+    /**
+     * 平均の所要時間と送信中の数から、最も早く送信できる中継サーバを選択します。
+     * <p>
+     * 所要時間が未計測の中継サーバは、計測済みの中継サーバの平均の所要時間として扱います。
+     * 全ての中継サーバが未計測の場合は、送信中の数が最も少ない中継サーバを選択します。
+     * </p>
+     *
+     * @param availableList
+     *            隔離されていない中継サーバ
+     * @return 中継サーバ
+     */
+    private Relay selectLeastLatency(List<Relay> availableList) {
+        double totalLatency = 0;
+        int measured = 0;
+        for (Relay relay : availableList) {
+            if (relay.latencyNanos > 0) {
+                totalLatency += relay.latencyNanos;
+                measured++;
+            }
+        }
+        double defaultLatency = measured > 0 ? totalLatency / measured : 1;
+
+        Relay best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Relay relay : availableList) {
+            double latency = relay.latencyNanos > 0 ? relay.latencyNanos : defaultLatency;
+            double score = latency * (relay.inFlight.get() + 1);
+            // 同じ評価の場合は、未計測の中継サーバを選択して計測する。
+            if (best == null || score < bestScore
+                    || (score == bestScore && relay.latencyNanos == 0 && best.latencyNanos > 0)) {
+                best = relay;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 重みに比例した割合で中継サーバを選択します（Smooth Weighted Round Robin）。
+     *
+     * @param availableList
+     *            隔離されていない中継サーバ
+     * @return 中継サーバ
+     */
+    private synchronized Relay selectWeighted(List<Relay> availableList) {
+        Relay best = null;
+        int totalWeight = 0;
+        for (Relay relay : availableList) {
+            relay.currentWeight += relay.weight;
+            totalWeight += relay.weight;
+            if (best == null || relay.currentWeight > best.currentWeight) {
+                best = relay;
+            }
+        }
+        best.currentWeight -= totalWeight;
+        return best;
+    }
+
+    /**
+     * 中継サーバに接続し、SMTPの応答（220）を確認します。
+     *
+     * @param relay
+     *            中継サーバ
+     * @return 応答を確認できたかどうか
+     */
+    private boolean probe(Relay relay) {
+        Socket socket = null;
+        try {
+            socket = healthCheckSocketFactory.createSocket();
+            socket.connect(new InetSocketAddress(relay.host, relay.port), healthCheckTimeout);
+            socket.setSoTimeout(healthCheckTimeout);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String line;
+            while ((line = reader.readLine()) != null && line.startsWith("220-")) {
+                // 複数行の応答を読み飛ばす。
+            }
+            boolean isReady = line != null && line.startsWith("220");
+            OutputStream os = socket.getOutputStream();
+            os.write("QUIT\r\n".getBytes("US-ASCII"));
+            os.flush();
+            return isReady;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 無視する。
+                }
+            }
+        }
+    }
+
+    /**
+     * 中継サーバの設定と状態を格納するクラスです。
+     *
+     * @author szmslab
+     */
+    public static class Relay {
+
+        /**
+         * ホスト名。
+         */
+        private final String host;
+
+        /**
+         * ポート番号。
+         */
+        private final int port;
+
+        /**
+         * 重み。
+         */
+        private final int weight;
+
+        /**
+         * 重み付けによる選択の現在値（RelayGroupのロックで保護します）。
+         */
+        private int currentWeight;
+
+        /**
+         * 送信の所要時間の平均値（ナノ秒、未計測の場合は0）。
+         */
+        private volatile double latencyNanos;
+
+        /**
+         * 隔離が解除される日時（ミリ秒）。
+         */
+        private volatile long quarantineUntil;
+
+        /**
+         * 連続して失敗した回数。
+         */
+        private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+        /**
+         * 送信中の数。
+         */
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+
+        /**
+         * 送信に成功した回数。
+         */
+        private final AtomicLong successCount = new AtomicLong(0);
+
+        /**
+         * 失敗した回数。
+         */
+        private final AtomicLong failureCount = new AtomicLong(0);
+
+        /**
+         * コンストラクタです。
+         *
+         * @param host
+         *            ホスト名
+         * @param port
+         *            ポート番号
+         * @param weight
+         *            重み
+         */
+        Relay(String host, int port, int weight) {
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        /**
+         * 隔離を解除します。
+         */
+        void recover() {
+            consecutiveFailures.set(0);
+            quarantineUntil = 0;
+        }
+
+        /**
+         * ホスト名を取得します。
+         *
+         * @return ホスト名
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * ポート番号を取得します。
+         *
+         * @return ポート番号
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * 重みを取得します。
+         *
+         * @return 重み
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * 隔離されているかどうかを取得します。
+         *
+         * @return 隔離されているかどうか
+         */
+        public boolean isQuarantined() {
+            return quarantineUntil > System.currentTimeMillis();
+        }
+
+        /**
+         * 送信の所要時間の平均値（ミリ秒）を取得します。
+         *
+         * @return 送信の所要時間の平均値（ミリ秒、未計測の場合は0）
+         */
+        public double getAverageLatencyMillis() {
+            return latencyNanos / 1000000.0;
+        }
+
+        /**
+         * 送信中の数を取得します。
+         *
+         * @return 送信中の数
+         */
+        public int getInFlightCount() {
+            return inFlight.get();
+        }
+
+        /**
+         * 送信に成功した回数を取得します。
+         *
+         * @return 送信に成功した回数
+         */
+        public long getSuccessCount() {
+            return successCount.get();
+        }
+
+        /**
+         * 失敗した回数を取得します。
+         *
+         * @return 失敗した回数
+         */
+        public long getFailureCount() {
+            return failureCount.get();
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+
+    }
+
+}
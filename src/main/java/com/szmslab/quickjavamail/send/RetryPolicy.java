@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Address;
+
+/**
+ * 送信に失敗した宛先の再送方法を格納するクラスです。
+ * <p>
+ * 再送は、有効だが未送信の宛先（{@link SendResult#getValidUnsentAddresses()}）のみを対象とし、
+ * 送信済みの宛先や、恒久的に拒否された宛先には再送しません。
+ * 再送の間隔は、試行するたびに上限まで指数的に延ばします。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class RetryPolicy {
+
+    /**
+     * 最大試行回数（初回の送信を含みます）。
+     */
+    private int maxAttempts = 3;
+
+    /**
+     * 最初の再送までの待機時間（ミリ秒）。
+     */
+    private long initialDelay = 1000;
+
+    /**
+     * 再送するたびに待機時間に掛ける倍率。
+     */
+    private double multiplier = 2.0;
+
+    /**
+     * 待機時間の上限（ミリ秒）。
+     */
+    private long maxDelay = 60000;
+
+    /**
+     * 一時的に拒否（4xx）された宛先も再送するかどうか。
+     */
+    private boolean retryDeferredRecipients = false;
+
+    /**
+     * 最大試行回数を設定します。
+     *
+     * @param maxAttempts
+     *            最大試行回数（初回の送信を含みます）
+     * @return 自身のインスタンス
+     */
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        return this;
+    }
+
+    /**
+     * 再送までの待機時間を設定します。
+     *
+     * @param initialDelay
+     *            最初の再送までの待機時間（ミリ秒）
+     * @param multiplier
+     *            再送するたびに待機時間に掛ける倍率
+     * @param maxDelay
+     *            待機時間の上限（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public RetryPolicy delay(long initialDelay, double multiplier, long maxDelay) {
+        this.initialDelay = Math.max(initialDelay, 0);
+        this.multiplier = Math.max(multiplier, 1.0);
+        this.maxDelay = Math.max(maxDelay, this.initialDelay);
+        return this;
+    }
+
+    /**
+     * 一時的に拒否（RCPT TOに対する4xxの応答）された宛先も再送するかどうかを設定します。
+     *
+     * @param retryDeferredRecipients
+     *            一時的に拒否された宛先も再送するかどうか
+     * @return 自身のインスタンス
+     */
+    public RetryPolicy retryDeferredRecipients(boolean retryDeferredRecipients) {
+        this.retryDeferredRecipients = retryDeferredRecipients;
+        return this;
+    }
+
+    /**
+     * 最大試行回数を取得します。
+     *
+     * @return 最大試行回数
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 再送までの待機時間を取得します。
+     *
+     * @param retryCount
+     *            何回目の再送か（1以上）
+     * @return 待機時間（ミリ秒）
+     */
+    public long getDelay(int retryCount) {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(retryCount - 1, 0));
+        return (long) Math.min(delay, maxDelay);
+    }
+
+    /**
+     * 送信結果から、再送するアドレスを取得します。
+     * <p>
+     * 成功した場合や、メッセージが恒久的に拒否（MAIL FROM、DATAに対する5xxの応答）された場合は再送しません。
+     * </p>
+     *
+     * @param result
+     *            送信結果
+     * @return 再送するアドレス（再送しない場合は空の配列）
+     */
+    public Address[] getRetryAddresses(SendResult result) {
+        int replyCode = result.getReplyCode();
+        if (result.isSuccess() || (replyCode >= 500 && replyCode < 600)) {
+            return new Address[0];
+        }
+        List<Address> addressList = new ArrayList<Address>(Arrays.asList(result.getValidUnsentAddresses()));
+        if (retryDeferredRecipients) {
+            for (Address address : result.getInvalidAddresses()) {
+                int code = result.getReplyCode(address);
+                if (code >= 400 && code < 500) {
+                    addressList.add(address);
+                }
+            }
+        }
+        return addressList.toArray(new Address[addressList.size()]);
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+/**
+ * 非同期で送信したメールの送信結果を受け取るためのインタフェースです。
+ *
+ * @author szmslab
+ */
+public interface SendCallback {
+
+    /**
+     * メール1件の送信が完了したときに通知されます。
+     *
+     * @param result
+     *            送信結果
+     */
+    void complete(SendResult result);
+
+}
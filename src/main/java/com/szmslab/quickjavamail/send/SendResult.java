@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPAddressSucceededException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * メール1件の送信結果を格納するクラスです。
+ * <p>
+ * 宛先ごとに、送信済み（valid-sent）、有効だが未送信（valid-unsent）、拒否された（invalid）のいずれかに分類します。
+ * 一部の宛先が拒否された場合でも、未送信の宛先のみを再送できます（{@link RetryPolicy}）。
+ * 宛先が全て送信を停止するアドレスだったため送信しなかった場合は、成功として扱い、{@link #isSuppressed()}で区別します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class SendResult {
+
+    /**
+     * 送信したMailSender。
+     */
+    private final MailSender sender;
+
+    /**
+     * 送信したメッセージ（作成に失敗した場合はnull）。
+     */
+    private final MimeMessage message;
+
+    /**
+     * 送信先のアドレス（メッセージの全ての宛先に送信した場合はnull）。
+     */
+    private final Address[] recipients;
+
+    /**
+     * 送信時に発生した例外（成功した場合はnull）。
+     */
+    private final Exception exception;
+
+    /**
+     * 送信済みのアドレス。
+     */
+    private final Address[] validSentAddresses;
+
+    /**
+     * 有効だが未送信のアドレス。
+     */
+    private final Address[] validUnsentAddresses;
+
+    /**
+     * 拒否されたアドレス。
+     */
+    private final Address[] invalidAddresses;
+
+    /**
+     * アドレスごとのSMTPの応答コード。
+     */
+    private final Map<Address, Integer> replyCodeMap;
+
+    /**
+     * メッセージに対するSMTPの応答コード（MAIL FROM、DATAなどで失敗した場合のみ、それ以外は-1）。
+     */
+    private final int replyCode;
+
+    /**
+     * 送信を試行した回数。
+     */
+    private final int attemptCount;
+
+    /**
+     * 宛先が全て送信を停止するアドレスだったため、送信しなかったかどうか。
+     */
+    private final boolean isSuppressed;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param sender
+     *            送信したMailSender
+     * @param message
+     *            送信したメッセージ
+     * @param exception
+     *            送信時に発生した例外
+     */
+    public SendResult(MailSender sender, MimeMessage message, Exception exception) {
+        this(sender, message, null, exception);
+    }
+
+    /**
+     * コンストラクタです。
+     *
+     * @param sender
+     *            送信したMailSender
+     * @param message
+     *            送信したメッセージ
+     * @param recipients
+     *            送信先のアドレス
+     * @param exception
+     *            送信時に発生した例外
+     */
+    public SendResult(MailSender sender, MimeMessage message, Address[] recipients, Exception exception) {
+        this(sender, message, recipients, exception,
+                exception == null && recipients == null && sender != null && sender.isAllSuppressed());
+    }
+
+    /**
+     * コンストラクタです。
+     *
+     * @param sender
+     *            送信したMailSender
+     * @param message
+     *            送信したメッセージ
+     * @param recipients
+     *            送信先のアドレス
+     * @param exception
+     *            送信時に発生した例外
+     * @param isSuppressed
+     *            宛先が全て送信を停止するアドレスだったため、送信しなかったかどうか
+     */
+    private SendResult(MailSender sender, MimeMessage message, Address[] recipients, Exception exception,
+            boolean isSuppressed) {
+        this.sender = sender;
+        this.message = message;
+        this.recipients = recipients;
+        this.exception = exception;
+        this.attemptCount = 1;
+        this.isSuppressed = isSuppressed;
+
+        Map<Address, Integer> codeMap = new LinkedHashMap<Address, Integer>();
+        if (isSuppressed) {
+            this.validSentAddresses = new Address[0];
+            this.validUnsentAddresses = new Address[0];
+            this.invalidAddresses = new Address[0];
+        } else if (exception instanceof SendFailedException) {
+            SendFailedException sfe = (SendFailedException) exception;
+            this.validSentAddresses = nonNull(sfe.getValidSentAddresses());
+            this.validUnsentAddresses = nonNull(sfe.getValidUnsentAddresses());
+            this.invalidAddresses = nonNull(sfe.getInvalidAddresses());
+            collectReplyCodes(sfe, codeMap);
+        } else if (exception == null) {
+            this.validSentAddresses = getTargetAddresses(message, recipients);
+            this.validUnsentAddresses = new Address[0];
+            this.invalidAddresses = new Address[0];
+        } else {
+            // 接続の失敗などで宛先を確認できなかった場合は、全ての宛先を未送信とする。
+            this.validSentAddresses = new Address[0];
+            this.validUnsentAddresses = getTargetAddresses(message, recipients);
+            this.invalidAddresses = new Address[0];
+        }
+        this.replyCodeMap = Collections.unmodifiableMap(codeMap);
+        this.replyCode = exception instanceof SMTPSendFailedException
+                ? ((SMTPSendFailedException) exception).getReturnCode() : -1;
+    }
+
+    /**
+     * 再送した結果を統合するコンストラクタです。
+     *
+     * @param previous
+     *            前回までの送信結果
+     * @param retry
+     *            再送した結果
+     * @param retried
+     *            再送したアドレス
+     */
+    private SendResult(SendResult previous, SendResult retry, Address[] retried) {
+        this.sender = previous.sender;
+        this.message = previous.message;
+        this.recipients = previous.recipients;
+        this.exception = retry.exception;
+        this.attemptCount = previous.attemptCount + retry.attemptCount;
+        this.isSuppressed = previous.isSuppressed && retry.isSuppressed;
+
+        List<Address> retriedList = Arrays.asList(retried);
+        List<Address> sentList = new ArrayList<Address>(Arrays.asList(previous.validSentAddresses));
+        sentList.addAll(Arrays.asList(retry.validSentAddresses));
+        List<Address> invalidList = new ArrayList<Address>();
+        for (Address address : previous.invalidAddresses) {
+            if (!retriedList.contains(address)) {
+                invalidList.add(address);
+            }
+        }
+        invalidList.addAll(Arrays.asList(retry.invalidAddresses));
+        this.validSentAddresses = sentList.toArray(new Address[sentList.size()]);
+        this.validUnsentAddresses = retry.validUnsentAddresses;
+        this.invalidAddresses = invalidList.toArray(new Address[invalidList.size()]);
+
+        Map<Address, Integer> codeMap = new LinkedHashMap<Address, Integer>(previous.replyCodeMap);
+        codeMap.putAll(retry.replyCodeMap);
+        this.replyCodeMap = Collections.unmodifiableMap(codeMap);
+        this.replyCode = retry.replyCode;
+    }
+
+    /**
+     * 宛先が全て送信を停止するアドレスだったため、送信しなかった送信結果を作成します。
+     *
+     * @param sender
+     *            MailSender
+     * @param message
+     *            メッセージ
+     * @param recipients
+     *            送信を停止した宛先のアドレス（nullの場合はメッセージの全ての宛先）
+     * @return 送信結果
+     */
+    static SendResult suppressed(MailSender sender, MimeMessage message, Address[] recipients) {
+        return new SendResult(sender, message, recipients, null, true);
+    }
+
+    /**
+     * 再送した結果を統合した送信結果を作成します。
+     *
+     * @param retry
+     *            再送した結果
+     * @param retried
+     *            再送したアドレス
+     * @return 統合した送信結果
+     */
+    SendResult merge(SendResult retry, Address[] retried) {
+        return new SendResult(this, retry, retried);
+    }
+
+    /**
+     * 送信に成功したかどうかを取得します。
+     * <p>
+     * 宛先が全て送信を停止するアドレスだったため送信しなかった場合も、成功として扱います。
+     * </p>
+     *
+     * @return 送信に成功したかどうか
+     */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /**
+     * 宛先が全て送信を停止するアドレスだったため、送信しなかったかどうかを取得します。
+     *
+     * @return 送信しなかったかどうか
+     */
+    public boolean isSuppressed() {
+        return isSuppressed;
+    }
+
+    /**
+     * 送信したMailSenderを取得します。
+     *
+     * @return 送信したMailSender
+     */
+    public MailSender getSender() {
+        return sender;
+    }
+
+    /**
+     * 送信したメッセージを取得します。
+     *
+     * @return 送信したメッセージ（作成に失敗した場合はnull）
+     */
+    public MimeMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * 送信先のアドレスを取得します。
+     *
+     * @return 送信先のアドレス（メッセージの全ての宛先に送信した場合はnull）
+     */
+    public Address[] getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * 送信時に発生した例外を取得します。
+     *
+     * @return 送信時に発生した例外（成功した場合はnull）
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * 送信済みのアドレスを取得します。
+     *
+     * @return 送信済みのアドレス
+     */
+    public Address[] getValidSentAddresses() {
+        return validSentAddresses.clone();
+    }
+
+    /**
+     * 有効だが未送信のアドレスを取得します。
+     * <p>
+     * 他の宛先の拒否や、接続の失敗などによって送信されなかったアドレスです。再送の対象になります。
+     * </p>
+     *
+     * @return 有効だが未送信のアドレス
+     */
+    public Address[] getValidUnsentAddresses() {
+        return validUnsentAddresses.clone();
+    }
+
+    /**
+     * 拒否されたアドレスを取得します。
+     *
+     * @return 拒否されたアドレス
+     */
+    public Address[] getInvalidAddresses() {
+        return invalidAddresses.clone();
+    }
+
+    /**
+     * アドレスごとのSMTPの応答コードを取得します。
+     * <p>
+     * 拒否されたアドレス（RCPT TOの応答）のみを格納します。
+     * mail.smtp.reportsuccessを設定した場合は、受け付けられたアドレスも格納します。
+     * </p>
+     *
+     * @return アドレスごとのSMTPの応答コード（変更できません）
+     */
+    public Map<Address, Integer> getReplyCodes() {
+        return replyCodeMap;
+    }
+
+    /**
+     * アドレスのSMTPの応答コードを取得します。
+     *
+     * @param address
+     *            アドレス
+     * @return SMTPの応答コード（不明な場合は-1）
+     */
+    public int getReplyCode(Address address) {
+        Integer code = replyCodeMap.get(address);
+        return code != null ? code : -1;
+    }
+
+    /**
+     * メッセージに対するSMTPの応答コードを取得します。
+     *
+     * @return SMTPの応答コード（MAIL FROM、DATAなどで失敗した場合のみ、それ以外は-1）
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    /**
+     * 送信を試行した回数を取得します。
+     *
+     * @return 送信を試行した回数
+     */
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    /**
+     * 例外に連鎖したアドレスごとの応答コードを収集します。
+     *
+     * @param e
+     *            送信時に発生した例外
+     * @param codeMap
+     *            アドレスごとの応答コード
+     */
+    private static void collectReplyCodes(MessagingException e, Map<Address, Integer> codeMap) {
+        for (Exception ex = e.getNextException(); ex != null;
+                ex = ex instanceof MessagingException ? ((MessagingException) ex).getNextException() : null) {
+            if (ex instanceof SMTPAddressFailedException) {
+                SMTPAddressFailedException afe = (SMTPAddressFailedException) ex;
+                codeMap.put(afe.getAddress(), afe.getReturnCode());
+            } else if (ex instanceof SMTPAddressSucceededException) {
+                SMTPAddressSucceededException ase = (SMTPAddressSucceededException) ex;
+                codeMap.put(ase.getAddress(), ase.getReturnCode());
+            }
+        }
+    }
+
+    /**
+     * 送信対象のアドレスを取得します。
+     *
+     * @param message
+     *            メッセージ
+     * @param recipients
+     *            送信先のアドレス（nullの場合はメッセージの全ての宛先）
+     * @return 送信対象のアドレス
+     */
+    private static Address[] getTargetAddresses(MimeMessage message, Address[] recipients) {
+        if (recipients != null) {
+            return recipients.clone();
+        }
+        if (message == null) {
+            return new Address[0];
+        }
+        try {
+            return nonNull(message.getAllRecipients());
+        } catch (MessagingException e) {
+            return new Address[0];
+        }
+    }
+
+    /**
+     * nullの場合は空の配列に変換します。
+     *
+     * @param addresses
+     *            アドレス
+     * @return アドレス
+     */
+    private static Address[] nonNull(Address[] addresses) {
+        return addresses != null ? addresses : new Address[0];
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        if (isSuppressed) {
+            return "suppressed";
+        }
+        return isSuccess() ? "success" : "failure: " + exception;
+    }
+
+}
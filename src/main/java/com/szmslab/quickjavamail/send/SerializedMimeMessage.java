@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+/**
+ * 送信用にシリアライズ済みのメッセージを格納するクラスです。
+ * <p>
+ * 内容は送信時に再エンコードされず、シリアライズしたバイト列がそのまま送信されます。
+ * また、送信時にMessage-IDが振り直されることはありません。
+ * 内容はシリアライズしたバイト列を共有するため、複製を作成しても内容はコピーされません。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class SerializedMimeMessage extends MimeMessage {
+
+    /**
+     * シリアライズしたメッセージ。
+     */
+    private final byte[] bytes;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param session
+     *            セッション
+     * @param bytes
+     *            シリアライズしたメッセージ
+     * @throws MessagingException
+     */
+    public SerializedMimeMessage(Session session, byte[] bytes) throws MessagingException {
+        super(session, new SharedByteArrayInputStream(bytes));
+        this.bytes = bytes;
+    }
+
+    /**
+     * メッセージをシリアライズします。
+     *
+     * @param message
+     *            メッセージ
+     * @return シリアライズしたメッセージ
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public static SerializedMimeMessage serialize(MimeMessage message) throws MessagingException, IOException {
+        if (message instanceof SerializedMimeMessage) {
+            return (SerializedMimeMessage) message;
+        }
+        message.saveChanges();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        message.writeTo(baos);
+        return new SerializedMimeMessage(message.getSession(), baos.toByteArray());
+    }
+
+    /**
+     * シリアライズしたメッセージのサイズ（バイト）を取得します。
+     *
+     * @return シリアライズしたメッセージのサイズ（バイト）
+     */
+    public int getByteSize() {
+        return bytes.length;
+    }
+
+    /**
+     * シリアライズしたメッセージを取得します（内容を変更しないでください）。
+     *
+     * @return シリアライズしたメッセージ
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 内容を共有する複製を作成します。
+     * <p>
+     * 複数のスレッドで同じメッセージを送信する場合は、スレッドごとに複製を使用してください。
+     * </p>
+     *
+     * @return 複製したメッセージ
+     * @throws MessagingException
+     */
+    public SerializedMimeMessage copy() throws MessagingException {
+        return new SerializedMimeMessage(session, bytes);
+    }
+
+    /* (非 Javadoc)
+     * @see javax.mail.internet.MimeMessage#updateHeaders()
+     */
+    @Override
+    protected void updateHeaders() throws MessagingException {
+        // シリアライズ時に確定したヘッダをそのまま使用する。
+        if (getHeader("Message-ID") == null) {
+            updateMessageID();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+/**
+ * SMTPの送信処理のフェーズです。
+ *
+ * @author szmslab
+ */
+public enum SmtpPhase {
+
+    /**
+     * 接続（TCP接続、SMTPSの場合はTLSハンドシェイク、グリーティングの受信）。
+     */
+    CONNECT,
+
+    /**
+     * EHLO（HELO）コマンド。
+     */
+    EHLO,
+
+    /**
+     * STARTTLSコマンド（TLSハンドシェイクを含む）。
+     */
+    STARTTLS,
+
+    /**
+     * 認証（AUTHコマンド）。
+     */
+    AUTH,
+
+    /**
+     * MAIL FROMコマンド。
+     */
+    MAIL,
+
+    /**
+     * RCPT TOコマンド（全ての宛先）。
+     */
+    RCPT,
+
+    /**
+     * DATAコマンド（メッセージの書き出しと、受け付け応答の受信を含む）。
+     */
+    DATA,
+
+    /**
+     * 切断（QUITコマンド）。
+     */
+    QUIT
+
+}
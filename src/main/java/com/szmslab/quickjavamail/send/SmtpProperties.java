@@ -17,6 +17,125 @@ import com.szmslab.quickjavamail.utils.MailProperties;
  */
 public class SmtpProperties extends MailProperties {
 
+    /**
+     * 送信のタイミングを調整するスケジューラ。
+     */
+    private DeliveryScheduler deliveryScheduler;
+
+    /**
+     * 送信の計測値の記録先。
+     */
+    private MailMetrics metrics;
+
+    /**
+     * 送信を振り分ける中継サーバ。
+     */
+    private RelayGroup relayGroup;
+
+    /**
+     * 接続先ごとの同時送信数を調整するリミッタ。
+     */
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * 送信のタイミングを調整するスケジューラを設定します。
+     * <p>
+     * 設定した場合、MailSenderからの送信はスケジューラの制限に従って待機してから行われます。
+     * 同じ中継サーバを使用する全てのプロパティに、同じスケジューラを設定してください。
+     * </p>
+     *
+     * @param deliveryScheduler
+     *            送信のタイミングを調整するスケジューラ
+     * @return 自身のインスタンス
+     */
+    public SmtpProperties deliveryScheduler(DeliveryScheduler deliveryScheduler) {
+        this.deliveryScheduler = deliveryScheduler;
+        return this;
+    }
+
+    /**
+     * 送信のタイミングを調整するスケジューラを取得します。
+     *
+     * @return 送信のタイミングを調整するスケジューラ（設定されていない場合はnull）
+     */
+    public DeliveryScheduler getDeliveryScheduler() {
+        return deliveryScheduler;
+    }
+
+    /**
+     * 送信の計測値の記録先を設定します。
+     * <p>
+     * 設定した場合、MailSenderからの送信はフェーズごとの所要時間などを計測するTransportで行われます。
+     * </p>
+     *
+     * @param metrics
+     *            送信の計測値の記録先
+     * @return 自身のインスタンス
+     */
+    public SmtpProperties metrics(MailMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * 送信の計測値の記録先を取得します。
+     *
+     * @return 送信の計測値の記録先（設定されていない場合はnull）
+     */
+    public MailMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 送信を振り分ける中継サーバを設定します。
+     * <p>
+     * 設定した場合、MailSenderからの送信はホスト名、ポート番号の設定の代わりに、
+     * RelayGroupが選択した中継サーバに接続して行われます。
+     * </p>
+     *
+     * @param relayGroup
+     *            送信を振り分ける中継サーバ
+     * @return 自身のインスタンス
+     */
+    public SmtpProperties relays(RelayGroup relayGroup) {
+        this.relayGroup = relayGroup;
+        return this;
+    }
+
+    /**
+     * 送信を振り分ける中継サーバを取得します。
+     *
+     * @return 送信を振り分ける中継サーバ（設定されていない場合はnull）
+     */
+    public RelayGroup getRelayGroup() {
+        return relayGroup;
+    }
+
+    /**
+     * 接続先ごとの同時送信数を調整するリミッタを設定します。
+     * <p>
+     * 設定した場合、MailSenderからの送信はリミッタが許可する同時送信数の範囲で行われます。
+     * 同じ中継サーバを使用する全てのプロパティに、同じリミッタを設定してください。
+     * </p>
+     *
+     * @param concurrencyLimiter
+     *            接続先ごとの同時送信数を調整するリミッタ
+     * @return 自身のインスタンス
+     */
+    public SmtpProperties concurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        return this;
+    }
+
+    /**
+     * 接続先ごとの同時送信数を調整するリミッタを取得します。
+     *
+     * @return 接続先ごとの同時送信数を調整するリミッタ（設定されていない場合はnull）
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
     /* (非 Javadoc)
      * @see com.szmslab.quickjavamail.utils.MailProperties#getDefaultProtocol()
      */
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+
+/**
+ * スプールに格納されたメッセージの位置と再送状況を格納するクラスです。
+ *
+ * @author szmslab
+ */
+class SpoolEntry implements Delayed {
+
+    /**
+     * Message-ID。
+     */
+    private final String messageId;
+
+    /**
+     * メッセージを格納したセグメントの番号。
+     */
+    private final long segment;
+
+    /**
+     * セグメント内のメッセージの位置。
+     */
+    private final long offset;
+
+    /**
+     * メッセージのサイズ（バイト）。
+     */
+    private final int length;
+
+    /**
+     * 送信を試行した回数。
+     */
+    private int attempts = 0;
+
+    /**
+     * 次に送信を試行する日時（ミリ秒）。
+     */
+    private long nextAttemptTime = 0;
+
+    /**
+     * 次に送信する宛先（nullの場合はメッセージの全ての宛先）。
+     */
+    private Address[] recipients = null;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param messageId
+     *            Message-ID
+     * @param segment
+     *            メッセージを格納したセグメントの番号
+     * @param offset
+     *            セグメント内のメッセージの位置
+     * @param length
+     *            メッセージのサイズ（バイト）
+     */
+    SpoolEntry(String messageId, long segment, long offset, int length) {
+        this.messageId = messageId;
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Message-IDを取得します。
+     *
+     * @return Message-ID
+     */
+    String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * メッセージを格納したセグメントの番号を取得します。
+     *
+     * @return メッセージを格納したセグメントの番号
+     */
+    long getSegment() {
+        return segment;
+    }
+
+    /**
+     * セグメント内のメッセージの位置を取得します。
+     *
+     * @return セグメント内のメッセージの位置
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * メッセージのサイズ（バイト）を取得します。
+     *
+     * @return メッセージのサイズ（バイト）
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * 送信を試行した回数を取得します。
+     *
+     * @return 送信を試行した回数
+     */
+    int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * 次に送信する宛先を取得します。
+     *
+     * @return 次に送信する宛先（nullの場合はメッセージの全ての宛先）
+     */
+    Address[] getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * 送信の失敗を記録し、次に送信を試行する日時と宛先を設定します。
+     *
+     * @param backoff
+     *            次に送信を試行するまでの時間（ミリ秒）
+     * @param recipients
+     *            次に送信する宛先
+     */
+    void retryAfter(long backoff, Address[] recipients) {
+        attempts++;
+        nextAttemptTime = System.currentTimeMillis() + backoff;
+        this.recipients = recipients;
+    }
+
+    /**
+     * スプールから読み込んだ再送状況を復元します。
+     *
+     * @param attempts
+     *            送信を試行した回数
+     * @param recipients
+     *            次に送信する宛先
+     */
+    void restore(int attempts, Address[] recipients) {
+        this.attempts = attempts;
+        this.recipients = recipients;
+    }
+
+    /* (非 Javadoc)
+     * @see java.util.concurrent.Delayed#getDelay(java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(nextAttemptTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(Delayed o) {
+        long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.szmslab.quickjavamail.utils.MailAddress;
+
+/**
+ * 送信を停止するメールアドレス（配信停止、バウンスなど）の一覧を保持するクラスです。
+ * <p>
+ * メールアドレスは文字列として保持せず、小文字に正規化したアドレスの64ビットのハッシュ値を
+ * オープンアドレス法のハッシュテーブル（long配列）に格納します。
+ * 1件あたり12～23バイト程度のため、数百万件でも数十MBに収まります。
+ * ハッシュ値が衝突した場合は送信しない側に倒れますが、その確率は無視できる程度です。
+ * </p>
+ * <p>
+ * ブルームフィルタを有効にした場合は、ハッシュテーブルより小さいビット配列で先に判定し、
+ * 一覧に含まれないアドレスの大半をハッシュテーブルを参照せずに判定します。
+ * </p>
+ * <p>
+ * 再読み込み時は新しいテーブルを作成してから差し替えるため、読み込み中も送信は止まりません。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class SuppressionList {
+
+    /**
+     * ハッシュテーブルの最大負荷率。
+     */
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    /**
+     * 現在の一覧。
+     */
+    private volatile Snapshot snapshot = new Snapshot(new long[0], 0, 0);
+
+    /**
+     * ブルームフィルタの1件あたりのビット数（0の場合はブルームフィルタを使用しません）。
+     */
+    private int bloomBitsPerEntry = 0;
+
+    /**
+     * 読み込んだファイル。
+     */
+    private File file;
+
+    /**
+     * 読み込んだファイルの最終更新日時。
+     */
+    private long fileLastModified;
+
+    /**
+     * 定期的に再読み込みを行うスレッド。
+     */
+    private Thread reloadThread;
+
+    /**
+     * ブルームフィルタの1件あたりのビット数を設定します。
+     * <p>
+     * 次回の読み込みから有効になります。10ビットの場合、誤判定（ハッシュテーブルの参照が必要になる割合）は約1%です。
+     * </p>
+     *
+     * @param bitsPerEntry
+     *            1件あたりのビット数（0の場合はブルームフィルタを使用しません）
+     * @return 自身のインスタンス
+     */
+    public SuppressionList bloomFilter(int bitsPerEntry) {
+        this.bloomBitsPerEntry = Math.max(bitsPerEntry, 0);
+        return this;
+    }
+
+    /**
+     * ファイルからメールアドレスの一覧を読み込みます。
+     * <p>
+     * ファイルはUTF-8で、1行に1件のメールアドレスを記述します。空行と#で始まる行は無視します。
+     * 読み込みに失敗した場合は、それまでの一覧がそのまま使用されます。
+     * </p>
+     *
+     * @param file
+     *            ファイル
+     * @return 自身のインスタンス
+     * @throws IOException
+     */
+    public SuppressionList load(File file) throws IOException {
+        synchronized (this) {
+            this.file = file;
+        }
+        long lastModified = file.lastModified();
+        long[] hashes = new long[1024];
+        int count = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                if (count == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                hashes[count++] = hash(line);
+            }
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        snapshot = new Snapshot(hashes, count, bloomBitsPerEntry);
+        synchronized (this) {
+            this.fileLastModified = lastModified;
+        }
+        return this;
+    }
+
+    /**
+     * メールアドレスの一覧を読み込みます。
+     *
+     * @param addresses
+     *            メールアドレス
+     * @return 自身のインスタンス
+     */
+    public SuppressionList load(Collection<String> addresses) {
+        long[] hashes = new long[addresses.size()];
+        int count = 0;
+        for (String address : addresses) {
+            if (address != null && address.trim().length() > 0) {
+                hashes[count++] = hash(address);
+            }
+        }
+        snapshot = new Snapshot(hashes, count, bloomBitsPerEntry);
+        return this;
+    }
+
+    /**
+     * 読み込んだファイルが更新されている場合は、再読み込みします。
+     *
+     * @return 再読み込みしたかどうか
+     * @throws IOException
+     */
+    public boolean reloadIfModified() throws IOException {
+        File target;
+        long lastModified;
+        synchronized (this) {
+            target = file;
+            lastModified = fileLastModified;
+        }
+        if (target == null || target.lastModified() == lastModified) {
+            return false;
+        }
+        load(target);
+        return true;
+    }
+
+    /**
+     * 読み込んだファイルの定期的な再読み込みを開始します。
+     *
+     * @param intervalMillis
+     *            更新を確認する間隔（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public synchronized SuppressionList startAutoReload(final long intervalMillis) {
+        if (reloadThread != null) {
+            throw new IllegalStateException("Auto reload is already started");
+        }
+        reloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Thread.sleep(intervalMillis);
+                        try {
+                            reloadIfModified();
+                        } catch (IOException e) {
+                            // 読み込みに失敗した場合は、それまでの一覧を使用し続ける。
+                            System.out.println(e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // 停止が要求された。
+                }
+            }
+        }, "SuppressionList-Reload");
+        reloadThread.setDaemon(true);
+        reloadThread.start();
+        return this;
+    }
+
+    /**
+     * 定期的な再読み込みを停止します。
+     */
+    public synchronized void stopAutoReload() {
+        if (reloadThread != null) {
+            reloadThread.interrupt();
+            reloadThread = null;
+        }
+    }
+
+    /**
+     * メールアドレスが一覧に含まれるかどうかを判定します。
+     * <p>
+     * 大文字・小文字、前後の空白は区別しません。
+     * </p>
+     *
+     * @param address
+     *            メールアドレス
+     * @return 一覧に含まれるかどうか
+     */
+    public boolean contains(String address) {
+        return address != null && snapshot.contains(hash(address));
+    }
+
+    /**
+     * メールアドレスが一覧に含まれるかどうかを判定します。
+     *
+     * @param address
+     *            メールアドレス
+     * @return 一覧に含まれるかどうか
+     */
+    public boolean contains(MailAddress address) {
+        return address != null && contains(address.getAddress());
+    }
+
+    /**
+     * 一覧の件数を取得します。
+     *
+     * @return 一覧の件数
+     */
+    public int size() {
+        return snapshot.size;
+    }
+
+    /**
+     * 一覧が使用しているメモリのサイズ（バイト）を取得します。
+     *
+     * @return 一覧が使用しているメモリのサイズ（バイト）
+     */
+    public long getMemoryBytes() {
+        Snapshot current = snapshot;
+        return (current.table.length + (current.bloom != null ? current.bloom.length : 0)) * 8L;
+    }
+
+    /**
+     * メールアドレスを小文字に正規化した64ビットのハッシュ値を計算します。
+     * <p>
+     * 前後の空白を除き、文字ごとに小文字に変換しながらFNV-1aで計算し、MurmurHash3の最終処理で攪拌します。
+     * 空きを表す0は返しません。
+     * </p>
+     *
+     * @param address
+     *            メールアドレス
+     * @return ハッシュ値
+     */
+    static long hash(String address) {
+        int begin = 0;
+        int end = address.length();
+        while (begin < end && Character.isWhitespace(address.charAt(begin))) {
+            begin++;
+        }
+        while (end > begin && Character.isWhitespace(address.charAt(end - 1))) {
+            end--;
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = begin; i < end; i++) {
+            h ^= Character.toLowerCase(address.charAt(i));
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    /**
+     * 読み込んだ一覧を格納する不変のクラスです。
+     */
+    private static final class Snapshot {
+
+        /**
+         * ハッシュテーブル（0は空き）。
+         */
+        private final long[] table;
+
+        /**
+         * ハッシュテーブルのインデックスのマスク。
+         */
+        private final int mask;
+
+        /**
+         * ブルームフィルタ（使用しない場合はnull）。
+         */
+        private final long[] bloom;
+
+        /**
+         * ブルームフィルタのビット位置のマスク。
+         */
+        private final long bloomMask;
+
+        /**
+         * ブルームフィルタのハッシュ関数の数。
+         */
+        private final int bloomHashCount;
+
+        /**
+         * 件数。
+         */
+        private final int size;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param hashes
+         *            ハッシュ値
+         * @param count
+         *            ハッシュ値の件数
+         * @param bloomBitsPerEntry
+         *            ブルームフィルタの1件あたりのビット数
+         */
+        Snapshot(long[] hashes, int count, int bloomBitsPerEntry) {
+            int capacity = 16;
+            while (capacity < count / MAX_LOAD_FACTOR) {
+                capacity <<= 1;
+            }
+            this.table = new long[capacity];
+            this.mask = capacity - 1;
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                long h = hashes[i];
+                int index = (int) h & mask;
+                while (table[index] != 0 && table[index] != h) {
+                    index = (index + 1) & mask;
+                }
+                if (table[index] == 0) {
+                    table[index] = h;
+                    distinct++;
+                }
+            }
+            this.size = distinct;
+
+            if (bloomBitsPerEntry > 0 && distinct > 0) {
+                long bits = 64;
+                while (bits < (long) distinct * bloomBitsPerEntry) {
+                    bits <<= 1;
+                }
+                this.bloom = new long[(int) (bits >>> 6)];
+                this.bloomMask = bits - 1;
+                this.bloomHashCount = Math.max(1, Math.min(16, (int) Math.round(bloomBitsPerEntry * Math.log(2))));
+                for (long h : table) {
+                    if (h != 0) {
+                        long h1 = h;
+                        long h2 = (h >>> 32) | 1;
+                        for (int k = 0; k < bloomHashCount; k++) {
+                            long bit = (h1 + k * h2) & bloomMask;
+                            bloom[(int) (bit >>> 6)] |= 1L << bit;
+                        }
+                    }
+                }
+            } else {
+                this.bloom = null;
+                this.bloomMask = 0;
+                this.bloomHashCount = 0;
+            }
+        }
+
+        /**
+         * ハッシュ値が一覧に含まれるかどうかを判定します。
+         *
+         * @param h
+         *            ハッシュ値
+         * @return 一覧に含まれるかどうか
+         */
+        boolean contains(long h) {
+            if (size == 0) {
+                return false;
+            }
+            if (bloom != null) {
+                long h2 = (h >>> 32) | 1;
+                for (int k = 0; k < bloomHashCount; k++) {
+                    long bit = (h + k * h2) & bloomMask;
+                    if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                        return false;
+                    }
+                }
+            }
+            int index = (int) h & mask;
+            long entry;
+            while ((entry = table[index]) != 0) {
+                if (entry == h) {
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+/**
+ * トークンバケット方式で送信レートを制限するクラスです。
+ * <p>
+ * トークンが不足している場合は、先の時間のトークンを予約し、待機すべき時間を返します（予約した順に送信されます）。
+ * </p>
+ *
+ * @author szmslab
+ */
+class TokenBucket {
+
+    /**
+     * 1ナノ秒あたりに補充されるトークン数。
+     */
+    private final double tokensPerNano;
+
+    /**
+     * 保持できる最大トークン数（バースト数）。
+     */
+    private final double capacity;
+
+    /**
+     * 現在のトークン数（予約済みの場合は負の値）。
+     */
+    private double tokens;
+
+    /**
+     * 最後にトークンを補充した日時（ナノ秒）。
+     */
+    private long lastRefillNanos;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param messagesPerMinute
+     *            1分あたりの送信数
+     * @param burst
+     *            連続して送信できる最大数
+     */
+    TokenBucket(int messagesPerMinute, int burst) {
+        this.tokensPerNano = messagesPerMinute / 60000000000.0;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * トークンを1つ予約します。
+     *
+     * @return トークンが使用可能になるまでの待機時間（ナノ秒）
+     */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.szmslab.quickjavamail.utils.MailProperties;
+import com.szmslab.quickjavamail.utils.SessionCache;
+
+/**
+ * 接続・認証済みのTransportを再利用するためのプールです。
+ * <p>
+ * 接続先（プロトコル、ホスト名、ポート番号、ユーザ名）とセッションの設定（{@link SessionCache#createKey(MailProperties)}）
+ * ごとに接続を保持し、連続した送信で接続、EHLO、STARTTLS、AUTHのやり取りを省略します。
+ * 設定（STARTTLS、エンベロープのFromなど）が異なるセッションの接続は再利用しません。
+ * </p>
+ * <p>
+ * アイドル中の接続は、借り出す際に最大アイドル時間を超えていれば閉じられますが、
+ * 借り出しが無い場合は閉じられません。{@link #evictionInterval(long)}で定期的に閉じるスレッドを開始するか、
+ * {@link #evictIdle()}を定期的に呼び出してください。使用後は{@link #close()}を呼び出してください。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class TransportPool {
+
+    /**
+     * 接続を保持する最大アイドル時間（ミリ秒）。
+     */
+    private long maxIdleTime = 60000;
+
+    /**
+     * NOOPによる接続確認を行うまでのアイドル時間（ミリ秒）。
+     */
+    private long validationInterval = 5000;
+
+    /**
+     * 1接続で送信する最大メッセージ数。
+     */
+    private int maxMessagesPerConnection = 100;
+
+    /**
+     * 接続先ごとに保持する最大接続数。
+     */
+    private int maxIdlePerKey = 8;
+
+    /**
+     * 接続先ごとのアイドル中の接続。
+     */
+    private final Map<String, LinkedList<PooledTransport>> idleMap = new HashMap<String, LinkedList<PooledTransport>>();
+
+    /**
+     * 最大アイドル時間を超えた接続を定期的に閉じるタイマー（開始していない場合はnull）。
+     */
+    private Timer evictionTimer;
+
+    /**
+     * 接続を保持する最大アイドル時間（ミリ秒）を設定します。
+     *
+     * @param maxIdleTime
+     *            接続を保持する最大アイドル時間（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public TransportPool maxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    /**
+     * NOOPによる接続確認を行うまでのアイドル時間（ミリ秒）を設定します。
+     *
+     * @param validationInterval
+     *            NOOPによる接続確認を行うまでのアイドル時間（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public TransportPool validationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+        return this;
+    }
+
+    /**
+     * 1接続で送信する最大メッセージ数を設定します。
+     *
+     * @param maxMessagesPerConnection
+     *            1接続で送信する最大メッセージ数
+     * @return 自身のインスタンス
+     */
+    public TransportPool maxMessagesPerConnection(int maxMessagesPerConnection) {
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+        return this;
+    }
+
+    /**
+     * 接続先ごとに保持する最大接続数を設定します。
+     *
+     * @param maxIdlePerKey
+     *            接続先ごとに保持する最大接続数
+     * @return 自身のインスタンス
+     */
+    public TransportPool maxIdlePerKey(int maxIdlePerKey) {
+        this.maxIdlePerKey = maxIdlePerKey;
+        return this;
+    }
+
+    /**
+     * 最大アイドル時間を超えた接続を定期的に閉じるスレッド（TransportPool-Evictor）を開始します。
+     * <p>
+     * 0以下を指定した場合は停止します。スレッドは{@link #close()}で停止します。
+     * </p>
+     *
+     * @param evictionInterval
+     *            接続を閉じる間隔（ミリ秒）
+     * @return 自身のインスタンス
+     */
+    public synchronized TransportPool evictionInterval(long evictionInterval) {
+        if (evictionTimer != null) {
+            evictionTimer.cancel();
+            evictionTimer = null;
+        }
+        if (evictionInterval > 0) {
+            evictionTimer = new Timer("TransportPool-Evictor", true);
+            evictionTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        evictIdle();
+                    } catch (RuntimeException e) {
+                        // タイマーを止めないよう、例外は出力のみとする。
+                        e.printStackTrace();
+                    }
+                }
+            }, evictionInterval, evictionInterval);
+        }
+        return this;
+    }
+
+    /**
+     * 接続済みのTransportを借り出します。
+     * <p>
+     * 再利用できる接続が無い場合は、新たに接続します。
+     * </p>
+     *
+     * @param session
+     *            セッション
+     * @param properties
+     *            JavaMailのプロパティ
+     * @return 接続済みのTransport
+     * @throws MessagingException
+     */
+    public PooledTransport borrow(Session session, MailProperties properties) throws MessagingException {
+        return borrow(session, properties, null);
+    }
+
+    /**
+     * 指定した中継サーバに接続済みのTransportを借り出します。
+     * <p>
+     * 再利用できる接続が無い場合は、新たに接続します。
+     * </p>
+     *
+     * @param session
+     *            セッション
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @return 接続済みのTransport
+     * @throws MessagingException
+     */
+    public PooledTransport borrow(Session session, MailProperties properties, RelayGroup.Relay relay)
+            throws MessagingException {
+        String key = createPoolKey(properties, relay);
+        MailMetrics metrics = InstrumentedSMTPTransport.getMetrics(properties);
+        PooledTransport pooled;
+        while ((pooled = poll(key)) != null) {
+            if (isValid(pooled)) {
+                pooled.touch();
+                if (metrics != null) {
+                    metrics.recordPoolHit();
+                }
+                return pooled;
+            }
+            pooled.close();
+        }
+        if (metrics != null) {
+            metrics.recordPoolMiss();
+        }
+        return connect(session, properties, relay, key);
+    }
+
+    /**
+     * 借り出したTransportを返却します。
+     * <p>
+     * 最大メッセージ数に達した接続や、保持数を超えた接続は閉じられます。
+     * </p>
+     *
+     * @param pooled
+     *            借り出したTransport
+     */
+    public void release(PooledTransport pooled) {
+        if (pooled == null) {
+            return;
+        }
+        if (pooled.getMessageCount() < maxMessagesPerConnection && offer(pooled)) {
+            return;
+        }
+        pooled.close();
+    }
+
+    /**
+     * 借り出したTransportを破棄します。
+     *
+     * @param pooled
+     *            借り出したTransport
+     */
+    public void invalidate(PooledTransport pooled) {
+        if (pooled != null) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * 最大アイドル時間を超えた接続を閉じます。
+     * <p>
+     * {@link #evictionInterval(long)}を設定しない場合は、定期的に呼び出してください。
+     * </p>
+     */
+    public void evictIdle() {
+        List<PooledTransport> evictedList = new ArrayList<PooledTransport>();
+        long now = System.currentTimeMillis();
+        synchronized (idleMap) {
+            for (Iterator<LinkedList<PooledTransport>> listItr = idleMap.values().iterator(); listItr.hasNext();) {
+                LinkedList<PooledTransport> idleList = listItr.next();
+                for (Iterator<PooledTransport> itr = idleList.iterator(); itr.hasNext();) {
+                    PooledTransport pooled = itr.next();
+                    if (now - pooled.getLastUsedTime() > maxIdleTime) {
+                        itr.remove();
+                        evictedList.add(pooled);
+                    }
+                }
+                if (idleList.isEmpty()) {
+                    listItr.remove();
+                }
+            }
+        }
+        for (PooledTransport pooled : evictedList) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * 保持している全ての接続を閉じ、接続を定期的に閉じるスレッドを停止します。
+     */
+    public void close() {
+        synchronized (this) {
+            if (evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+        }
+        List<PooledTransport> closedList = new ArrayList<PooledTransport>();
+        synchronized (idleMap) {
+            for (LinkedList<PooledTransport> idleList : idleMap.values()) {
+                closedList.addAll(idleList);
+            }
+            idleMap.clear();
+        }
+        for (PooledTransport pooled : closedList) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * アイドル中の接続数を取得します。
+     *
+     * @return アイドル中の接続数
+     */
+    public int getIdleCount() {
+        int count = 0;
+        synchronized (idleMap) {
+            for (LinkedList<PooledTransport> idleList : idleMap.values()) {
+                count += idleList.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 接続先を識別するキーを作成します。
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @return 接続先を識別するキー
+     */
+    public static String createKey(MailProperties properties) {
+        return String.format("%s://%s@%s:%s",
+                properties.getProtocol(),
+                StringUtils.defaultString(properties.getUserName()),
+                StringUtils.defaultString(properties.getHost()),
+                StringUtils.defaultString(properties.getPort()));
+    }
+
+    /**
+     * 接続先を識別するキーを作成します。
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @return 接続先を識別するキー
+     */
+    public static String createKey(MailProperties properties, RelayGroup.Relay relay) {
+        if (relay == null) {
+            return createKey(properties);
+        }
+        return String.format("%s://%s@%s:%d",
+                properties.getProtocol(),
+                StringUtils.defaultString(properties.getUserName()),
+                relay.getHost(),
+                relay.getPort());
+    }
+
+    /**
+     * プール内で接続を識別するキー（接続先とセッションの設定）を作成します。
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @return プール内で接続を識別するキー
+     */
+    static String createPoolKey(MailProperties properties, RelayGroup.Relay relay) {
+        return createKey(properties, relay) + "#" + SessionCache.createKey(properties);
+    }
+
+    /**
+     * 新たに接続します。
+     *
+     * @param session
+     *            セッション
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @return 接続済みのTransport
+     * @throws MessagingException
+     */
+    static PooledTransport connect(Session session, MailProperties properties, RelayGroup.Relay relay)
+            throws MessagingException {
+        return connect(session, properties, relay, createKey(properties, relay));
+    }
+
+    /**
+     * 新たに接続します。
+     *
+     * @param session
+     *            セッション
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param relay
+     *            接続先の中継サーバ（nullの場合はJavaMailのプロパティの接続先）
+     * @param poolKey
+     *            プール内で接続を識別するキー
+     * @return 接続済みのTransport
+     * @throws MessagingException
+     */
+    private static PooledTransport connect(Session session, MailProperties properties, RelayGroup.Relay relay,
+            String poolKey) throws MessagingException {
+        Transport transport = InstrumentedSMTPTransport.getTransport(session, properties);
+        if (relay == null) {
+            transport.connect();
+        } else {
+            transport.connect(relay.getHost(), relay.getPort(), null, null);
+        }
+        return new PooledTransport(createKey(properties, relay), poolKey, transport, relay);
+    }
+
+    /**
+     * アイドル中の接続を1件取り出します（最後に返却されたものから取り出します）。
+     *
+     * @param key
+     *            接続先を識別するキー
+     * @return アイドル中の接続（存在しない場合はnull）
+     */
+    private PooledTransport poll(String key) {
+        synchronized (idleMap) {
+            LinkedList<PooledTransport> idleList = idleMap.get(key);
+            if (idleList == null || idleList.isEmpty()) {
+                return null;
+            }
+            return idleList.removeFirst();
+        }
+    }
+
+    /**
+     * 接続をアイドル中の接続として保持します。
+     *
+     * @param pooled
+     *            接続
+     * @return 保持できたかどうか
+     */
+    private boolean offer(PooledTransport pooled) {
+        synchronized (idleMap) {
+            LinkedList<PooledTransport> idleList = idleMap.get(pooled.getPoolKey());
+            if (idleList == null) {
+                idleList = new LinkedList<PooledTransport>();
+                idleMap.put(pooled.getPoolKey(), idleList);
+            }
+            if (idleList.size() >= maxIdlePerKey) {
+                return false;
+            }
+            idleList.addFirst(pooled);
+            return true;
+        }
+    }
+
+    /**
+     * 接続が再利用できるかどうかを判定します。
+     * <p>
+     * 一定時間使用されていない接続は、NOOPを送信して接続を確認します。
+     * </p>
+     *
+     * @param pooled
+     *            接続
+     * @return 再利用できるかどうか
+     */
+    private boolean isValid(PooledTransport pooled) {
+        long idleTime = System.currentTimeMillis() - pooled.getLastUsedTime();
+        if (idleTime > maxIdleTime || pooled.getMessageCount() >= maxMessagesPerConnection) {
+            return false;
+        }
+        if (idleTime > validationInterval) {
+            // SMTPTransport#isConnected()はNOOPを送信して接続を確認する。
+            return pooled.getTransport().isConnected();
+        }
+        return true;
+    }
+
+}
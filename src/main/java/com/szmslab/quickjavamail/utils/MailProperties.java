@@ -6,7 +6,10 @@
  */
 package com.szmslab.quickjavamail.utils;
 
+import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
@@ -41,6 +44,16 @@ abstract public class MailProperties {
      */
     private Authenticator authenticator;
 
+    /**
+     * 認証情報のユーザ名。
+     */
+    private String userName;
+
+    /**
+     * 認証情報のハッシュ値（セッションのキャッシュのキーに使用します）。
+     */
+    private String credentialDigest;
+
     /**
      * コンストラクタです。
      */
@@ -77,6 +90,42 @@ abstract public class MailProperties {
         return authenticator;
     }
 
+    /**
+     * ホスト名を取得します。
+     *
+     * @return ホスト名
+     */
+    public String getHost() {
+        return getString(String.format("mail.%s.host", protocol));
+    }
+
+    /**
+     * ポート番号を取得します。
+     *
+     * @return ポート番号
+     */
+    public String getPort() {
+        return getString(String.format("mail.%s.port", protocol));
+    }
+
+    /**
+     * 認証情報のユーザ名を取得します。
+     *
+     * @return 認証情報のユーザ名
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+    /**
+     * 認証情報のハッシュ値を取得します。
+     *
+     * @return 認証情報のハッシュ値（認証情報を設定していない場合はnull）
+     */
+    String getCredentialDigest() {
+        return credentialDigest;
+    }
+
     /**
      * ホスト名を設定します。
      *
@@ -139,6 +188,8 @@ abstract public class MailProperties {
      */
     public MailProperties authenticate(final String userName, final String password) {
         if (StringUtils.isNotBlank(userName) && StringUtils.isNotBlank(password)) {
+            this.userName = userName;
+            this.credentialDigest = digest(userName + "\u0000" + password);
             authenticator = new Authenticator() {
                 @Override
                 protected PasswordAuthentication getPasswordAuthentication() {
@@ -221,6 +272,29 @@ abstract public class MailProperties {
         return this;
     }
 
+    /**
+     * 文字列のハッシュ値（SHA-256）を計算します。
+     *
+     * @param s
+     *            文字列
+     * @return ハッシュ値（16進数）
+     */
+    private static String digest(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * デフォルトのプロトコルを取得します。
      *
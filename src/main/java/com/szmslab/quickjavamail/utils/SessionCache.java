@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.mail.Session;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * JavaMailのプロパティの内容ごとにセッションをキャッシュするクラスです。
+ * <p>
+ * Session.getDefaultInstanceは最初に渡されたプロパティでセッションを作成し、以降の呼び出しでは異なるプロパティを無視します。
+ * また、Session.getInstanceは呼び出しごとにプロバイダの設定を読み込みます。
+ * このクラスは、プロパティのスナップショット、プロトコル、認証情報（ユーザ名とパスワードのハッシュ値）、デバッグ有無をキーとして
+ * セッションを保持するため、接続先ごとに正しいセッションを、作成のコストなしで取得できます。
+ * キャッシュしたセッションは、作成後に元のMailPropertiesを変更しても影響を受けません。
+ * 保持数が上限を超えた場合は、最も長く使用されていないものから破棄します。
+ * </p>
+ *
+ * @author szmslab
+ */
+public class SessionCache {
+
+    /**
+     * デフォルトの最大保持数。
+     */
+    private static final int DEFAULT_MAX_SIZE = 256;
+
+    /**
+     * MailSender、MailReceiverが使用する共有のインスタンス。
+     */
+    private static final SessionCache defaultInstance = new SessionCache(DEFAULT_MAX_SIZE);
+
+    /**
+     * 最大保持数。
+     */
+    private final int maxSize;
+
+    /**
+     * キャッシュしたセッション（最も長く使用されていないものが先頭）。
+     */
+    private final LinkedHashMap<SessionKey, Session> sessionMap = new LinkedHashMap<SessionKey, Session>(16, 0.75f, true);
+
+    /**
+     * キャッシュにヒットした回数。
+     */
+    private long hitCount = 0;
+
+    /**
+     * キャッシュにヒットしなかった回数。
+     */
+    private long missCount = 0;
+
+    /**
+     * コンストラクタです。
+     *
+     * @param maxSize
+     *            最大保持数
+     */
+    public SessionCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * MailSender、MailReceiverが使用する共有のインスタンスを取得します。
+     *
+     * @return 共有のインスタンス
+     */
+    public static SessionCache getDefault() {
+        return defaultInstance;
+    }
+
+    /**
+     * プロパティの内容に対応するセッションを取得します（存在しない場合は作成します）。
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @param isDebug
+     *            デバッグログを出力するかどうか
+     * @return セッション
+     */
+    public Session getSession(MailProperties properties, boolean isDebug) {
+        SessionKey key = new SessionKey(properties, isDebug);
+        synchronized (this) {
+            Session session = sessionMap.get(key);
+            if (session != null) {
+                hitCount++;
+                return session;
+            }
+            missCount++;
+        }
+
+        // セッションの作成（プロバイダの読み込み）はロックの外で行う。
+        Properties snapshot = new Properties();
+        snapshot.putAll(key.propertyMap);
+        Session session = Session.getInstance(snapshot, properties.getAuthenticator());
+        session.setDebug(isDebug);
+
+        synchronized (this) {
+            Session cached = sessionMap.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            sessionMap.put(key, session);
+            if (sessionMap.size() > maxSize) {
+                sessionMap.remove(sessionMap.keySet().iterator().next());
+            }
+            return session;
+        }
+    }
+
+    /**
+     * プロパティの内容に対応するセッションを識別するキーを作成します。
+     * <p>
+     * キャッシュと同じく、プロパティのスナップショット、プロトコル、認証情報から計算したハッシュ値（SHA-256）です。
+     * 同じキーであれば、同じ設定のセッションとみなせます（デバッグ有無は含みません）。
+     * </p>
+     *
+     * @param properties
+     *            JavaMailのプロパティ
+     * @return セッションを識別するキー（16進数）
+     */
+    public static String createKey(MailProperties properties) {
+        SessionKey key = new SessionKey(properties, false);
+        StringBuilder sb = new StringBuilder();
+        sb.append(key.protocol).append('\u0000');
+        sb.append(key.userName).append('\u0000');
+        sb.append(key.credentialDigest).append('\u0000');
+        for (Map.Entry<Object, Object> entry : key.propertyMap.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\u0000');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * キャッシュしたセッションを全て破棄します。
+     */
+    public synchronized void clear() {
+        sessionMap.clear();
+    }
+
+    /**
+     * キャッシュしているセッションの数を取得します。
+     *
+     * @return キャッシュしているセッションの数
+     */
+    public synchronized int size() {
+        return sessionMap.size();
+    }
+
+    /**
+     * キャッシュにヒットした回数を取得します。
+     *
+     * @return キャッシュにヒットした回数
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * キャッシュにヒットしなかった回数を取得します。
+     *
+     * @return キャッシュにヒットしなかった回数
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * セッションのキー（プロパティの内容の不変なスナップショット）です。
+     *
+     * @author szmslab
+     */
+    private static final class SessionKey {
+
+        /**
+         * JavaMailのプロパティのスナップショット。
+         */
+        private final SortedMap<Object, Object> propertyMap;
+
+        /**
+         * プロトコル。
+         */
+        private final String protocol;
+
+        /**
+         * 認証情報のユーザ名。
+         */
+        private final String userName;
+
+        /**
+         * 認証情報のハッシュ値。
+         */
+        private final String credentialDigest;
+
+        /**
+         * デバッグログを出力するかどうか。
+         */
+        private final boolean isDebug;
+
+        /**
+         * ハッシュコード。
+         */
+        private final int hashCode;
+
+        /**
+         * コンストラクタです。
+         *
+         * @param properties
+         *            JavaMailのプロパティ
+         * @param isDebug
+         *            デバッグログを出力するかどうか
+         */
+        SessionKey(MailProperties properties, boolean isDebug) {
+            SortedMap<Object, Object> map = new TreeMap<Object, Object>();
+            Properties source = properties.getProperties();
+            synchronized (source) {
+                for (Map.Entry<Object, Object> entry : source.entrySet()) {
+                    map.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+            }
+            this.propertyMap = Collections.unmodifiableSortedMap(map);
+            this.protocol = properties.getProtocol();
+            this.userName = properties.getUserName();
+            this.credentialDigest = properties.getCredentialDigest();
+            this.isDebug = isDebug;
+
+            int h = propertyMap.hashCode();
+            h = 31 * h + (protocol == null ? 0 : protocol.hashCode());
+            h = 31 * h + (userName == null ? 0 : userName.hashCode());
+            h = 31 * h + (credentialDigest == null ? 0 : credentialDigest.hashCode());
+            this.hashCode = 31 * h + (isDebug ? 1 : 0);
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#hashCode()
+         */
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        /* (非 Javadoc)
+         * @see java.lang.Object#equals(java.lang.Object)
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) obj;
+            return hashCode == other.hashCode
+                    && isDebug == other.isDebug
+                    && StringUtils.equals(protocol, other.protocol)
+                    && StringUtils.equals(userName, other.userName)
+                    && StringUtils.equals(credentialDigest, other.credentialDigest)
+                    && propertyMap.equals(other.propertyMap);
+        }
+
+    }
+
+}
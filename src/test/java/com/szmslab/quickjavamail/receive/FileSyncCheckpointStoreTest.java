@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * FileSyncCheckpointStoreのテストです。
+ *
+ * @author szmslab
+ */
+public class FileSyncCheckpointStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * 保存されていないキーはnullを返すこと。
+     */
+    @Test
+    public void loadMissingKey() throws Exception {
+        FileSyncCheckpointStore store = new FileSyncCheckpointStore(new File(temporaryFolder.getRoot(), "checkpoint"));
+        assertNull(store.load("imap://user@localhost/INBOX"));
+    }
+
+    /**
+     * 保存した位置を、別のインスタンスから読み込めること。
+     */
+    @Test
+    public void saveAndLoad() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "sub/checkpoint.properties");
+        new FileSyncCheckpointStore(file).save("imap://user@localhost/INBOX", new SyncCheckpoint(100, 42));
+        new FileSyncCheckpointStore(file).save("imap://user@localhost/Sent", new SyncCheckpoint(7, 3));
+        assertTrue(file.exists());
+        assertFalse(new File(file.getParentFile(), file.getName() + ".tmp").exists());
+
+        FileSyncCheckpointStore store = new FileSyncCheckpointStore(file);
+        SyncCheckpoint inbox = store.load("imap://user@localhost/INBOX");
+        assertEquals(100, inbox.getUidValidity());
+        assertEquals(42, inbox.getLastUid());
+        assertEquals(3, store.load("imap://user@localhost/Sent").getLastUid());
+    }
+
+    /**
+     * UIDVALIDITYが変わった後に保存した位置で、以前の位置が置き換えられること。
+     */
+    @Test
+    public void overwriteAfterUidValidityReset() throws Exception {
+        FileSyncCheckpointStore store = new FileSyncCheckpointStore(temporaryFolder.newFile("checkpoint"));
+        String key = "imap://user@localhost/INBOX";
+        store.save(key, new SyncCheckpoint(100, 42));
+
+        SyncCheckpoint saved = store.load(key);
+        long nextUid = saved.getNextUid(200);
+        assertEquals(1, nextUid);
+        store.save(key, new SyncCheckpoint(200, 5));
+
+        SyncCheckpoint reset = store.load(key);
+        assertEquals(200, reset.getUidValidity());
+        assertEquals(6, reset.getNextUid(200));
+    }
+
+    /**
+     * 壊れた値は保存されていないものとして扱うこと。
+     */
+    @Test
+    public void ignoreBrokenValue() throws Exception {
+        File file = temporaryFolder.newFile("checkpoint");
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write("broken=abc\nmissing=100\n".getBytes("ISO-8859-1"));
+        } finally {
+            os.close();
+        }
+        FileSyncCheckpointStore store = new FileSyncCheckpointStore(file);
+        assertNull(store.load("broken"));
+        assertNull(store.load("missing"));
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.receive;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * SyncCheckpointのテストです。
+ *
+ * @author szmslab
+ */
+public class SyncCheckpointTest {
+
+    /**
+     * UIDVALIDITYが同じ場合は、処理済みの最大のUIDの次から受信すること。
+     */
+    @Test
+    public void nextUidWithSameUidValidity() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(100, 42);
+        assertEquals(43, checkpoint.getNextUid(100));
+    }
+
+    /**
+     * UIDVALIDITYが変わった場合は、最初から受信し直すこと。
+     */
+    @Test
+    public void resetWhenUidValidityChanged() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(100, 42);
+        assertEquals(1, checkpoint.getNextUid(101));
+    }
+
+    /**
+     * 保存形式の文字列に変換できること。
+     */
+    @Test
+    public void formatAsString() {
+        assertEquals("100:42", new SyncCheckpoint(100, 42).toString());
+    }
+
+}
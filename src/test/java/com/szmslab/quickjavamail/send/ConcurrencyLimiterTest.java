@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.MessagingException;
+
+import org.junit.Test;
+
+/**
+ * ConcurrencyLimiterのテストです。
+ *
+ * @author szmslab
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final String KEY = "smtp://@localhost:25";
+
+    /**
+     * 上限まで使用して成功した場合は、上限を1つ引き上げること。
+     */
+    @Test
+    public void increaseLimitWhenSaturated() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(2).limitRange(1, 10);
+        ConcurrencyLimiter.Permit first = limiter.acquire(KEY);
+        ConcurrencyLimiter.Permit second = limiter.acquire(KEY);
+        assertEquals(2, limiter.getInFlight(KEY));
+        limiter.release(first, null);
+        limiter.release(second, null);
+        assertEquals(3, limiter.getLimit(KEY));
+        assertEquals(0, limiter.getInFlight(KEY));
+    }
+
+    /**
+     * 上限まで使用していない場合は、成功しても上限を変更しないこと。
+     */
+    @Test
+    public void keepLimitWhenNotSaturated() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(4);
+        limiter.release(limiter.acquire(KEY), null);
+        assertEquals(4, limiter.getLimit(KEY));
+    }
+
+    /**
+     * 過負荷の応答で上限を引き下げ、同時に送信していた送信の失敗では重ねて引き下げないこと。
+     */
+    @Test
+    public void backOffOncePerOverload() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(10).backoffRatio(0.5);
+        ConcurrencyLimiter.Permit first = limiter.acquire(KEY);
+        ConcurrencyLimiter.Permit second = limiter.acquire(KEY);
+        limiter.release(first, overload());
+        limiter.release(second, overload());
+        assertEquals(5, limiter.getLimit(KEY));
+
+        limiter.release(limiter.acquire(KEY), overload());
+        assertEquals(2, limiter.getLimit(KEY));
+    }
+
+    /**
+     * 上限は最小値を下回らないこと。
+     */
+    @Test
+    public void clampToMinLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(4).limitRange(2, 8).backoffRatio(0.1);
+        limiter.release(limiter.acquire(KEY), overload());
+        assertEquals(2, limiter.getLimit(KEY));
+    }
+
+    /**
+     * 過負荷以外の失敗では上限を変更しないこと。
+     */
+    @Test
+    public void ignoreOtherFailures() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(4);
+        limiter.release(limiter.acquire(KEY), new MessagingException("550 5.1.1 User unknown"));
+        limiter.release(limiter.acquire(KEY), new IllegalStateException());
+        assertEquals(4, limiter.getLimit(KEY));
+        assertEquals(0, limiter.getInFlight(KEY));
+    }
+
+    /**
+     * 所要時間が閾値を超えた送信は、過負荷として扱うこと。
+     */
+    @Test
+    public void treatSlowSendAsOverload() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(10).backoffRatio(0.5).latencyThreshold(1);
+        ConcurrencyLimiter.Permit permit = limiter.acquire(KEY);
+        Thread.sleep(20);
+        limiter.release(permit, null);
+        assertEquals(5, limiter.getLimit(KEY));
+    }
+
+    /**
+     * 上限に達している場合は、返却されるまで待機すること。
+     */
+    @Test
+    public void blockAtLimit() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter().initialLimit(1).limitRange(1, 1);
+        ConcurrencyLimiter.Permit permit = limiter.acquire(KEY);
+        final AtomicReference<ConcurrencyLimiter.Permit> acquired = new AtomicReference<ConcurrencyLimiter.Permit>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(limiter.acquire(KEY));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        thread.join(200);
+        assertTrue(thread.isAlive());
+        assertNull(acquired.get());
+
+        limiter.release(permit, null);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNotNull(acquired.get());
+        assertEquals(1, limiter.getInFlight(KEY));
+    }
+
+    /**
+     * 421・451の応答を過負荷と判定すること。
+     */
+    @Test
+    public void detectOverloadResponses() {
+        assertTrue(ConcurrencyLimiter.isOverload(overload()));
+        assertTrue(ConcurrencyLimiter.isOverload(new MessagingException("Could not connect to SMTP host: localhost, port: 25, response: 451")));
+        MessagingException chained = new MessagingException("Sending failed");
+        chained.setNextException(overload());
+        assertTrue(ConcurrencyLimiter.isOverload(chained));
+        assertFalse(ConcurrencyLimiter.isOverload(new MessagingException("550 5.1.1 User unknown")));
+        assertFalse(ConcurrencyLimiter.isOverload(new MessagingException("Could not connect to SMTP host: localhost, port: 4210")));
+    }
+
+    private static MessagingException overload() {
+        return new MessagingException("Could not connect to SMTP host: localhost, port: 25, response: 421");
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.szmslab.quickjavamail.utils.MailAddress;
+
+/**
+ * OutboundSpoolのテストです。
+ *
+ * @author szmslab
+ */
+public class OutboundSpoolTest {
+
+    /**
+     * 待機する最大時間（ミリ秒）。
+     */
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private SmtpStubServer server;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SmtpStubServer();
+        directory = temporaryFolder.newFolder("spool");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * 送信できなかったメッセージが、次回の開始時にジャーナルから復元されて送信されること。
+     */
+    @Test
+    public void replayPendingMessagesOnRestart() throws Exception {
+        int deadPort = getUnusedPort();
+        OutboundSpool spool = new OutboundSpool(directory, properties(deadPort)).backoff(60000, 60000).start();
+        for (int i = 0; i < 3; i++) {
+            spool.enqueue(mail(deadPort, "to" + i + "@example.com"));
+        }
+        waitForRetries(spool, 3);
+        assertEquals(3, spool.getPendingCount());
+        spool.close();
+
+        OutboundSpool replayed = new OutboundSpool(directory, properties(server.getPort())).start();
+        waitForDelivered(replayed, 3);
+        assertEquals(0, replayed.getPendingCount());
+        assertEquals(3, server.getMessages().size());
+        replayed.close();
+
+        // 送信済みのメッセージは、再度開始しても送信されない。
+        OutboundSpool restarted = new OutboundSpool(directory, properties(server.getPort())).start();
+        Thread.sleep(300);
+        assertEquals(0, restarted.getPendingCount());
+        assertEquals(0, restarted.getDeliveredCount());
+        assertEquals(3, server.getMessages().size());
+        restarted.close();
+    }
+
+    /**
+     * 同じMessage-IDのメッセージは、開始をまたいでも重複して送信されないこと。
+     */
+    @Test
+    public void ignoreDuplicateMessageId() throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("from@example.com"));
+        message.setRecipients(Message.RecipientType.TO, "to@example.com");
+        message.setText("body");
+        message.setHeader("Message-ID", "<fixed@example.com>");
+
+        OutboundSpool spool = new OutboundSpool(directory, properties(server.getPort())).start();
+        assertEquals("<fixed@example.com>", spool.enqueue(message));
+        spool.enqueue(message);
+        waitForDelivered(spool, 1);
+        spool.close();
+
+        OutboundSpool restarted = new OutboundSpool(directory, properties(server.getPort())).start();
+        restarted.enqueue(message);
+        Thread.sleep(300);
+        assertEquals(0, restarted.getPendingCount());
+        assertEquals(1, server.getMessages().size());
+        restarted.close();
+    }
+
+    /**
+     * 送信完了のレコードを含むセグメントが削除された後も、同じMessage-IDのメッセージが再送されないこと。
+     */
+    @Test
+    public void ignoreDuplicateMessageIdAfterSegmentDeleted() throws Exception {
+        // 1レコードごとにセグメントを切り替える。
+        OutboundSpool spool = new OutboundSpool(directory, properties(server.getPort())).segmentSize(1).start();
+        MailSender fixed = mail(server.getPort(), "to@example.com").header("Message-ID", "<fixed@example.com>");
+        assertEquals("<fixed@example.com>", spool.enqueue(fixed));
+        waitForDelivered(spool, 1);
+        for (int i = 0; i < 3; i++) {
+            spool.enqueue(mail(server.getPort(), "to" + i + "@example.com"));
+        }
+        waitForDelivered(spool, 4);
+        spool.close();
+        assertTrue(directory.list().length <= 2);
+
+        OutboundSpool restarted = new OutboundSpool(directory, properties(server.getPort())).segmentSize(1).start();
+        restarted.enqueue(fixed);
+        Thread.sleep(300);
+        assertEquals(0, restarted.getPendingCount());
+        assertEquals(4, server.getMessages().size());
+        restarted.close();
+    }
+
+    /**
+     * 試行した回数がジャーナルに記録され、次回の開始時に引き継がれること。
+     */
+    @Test
+    public void persistAttemptsAcrossRestart() throws Exception {
+        int deadPort = getUnusedPort();
+        OutboundSpool spool = new OutboundSpool(directory, properties(deadPort))
+                .maxAttempts(2).backoff(60000, 60000).start();
+        spool.enqueue(mail(deadPort, "to@example.com"));
+        waitForRetries(spool, 1);
+        spool.close();
+
+        OutboundSpool restarted = new OutboundSpool(directory, properties(deadPort))
+                .maxAttempts(2).backoff(60000, 60000).start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (restarted.getFailedCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, restarted.getFailedCount());
+        assertEquals(0, restarted.getRetryCount());
+        assertEquals(0, restarted.getPendingCount());
+        restarted.close();
+    }
+
+    /**
+     * 一時的に拒否された宛先が再送されること。
+     */
+    @Test
+    public void retryDeferredRecipient() throws Exception {
+        server.deferOnce("deferred@example.com");
+        OutboundSpool spool = new OutboundSpool(directory, properties(server.getPort())).backoff(100, 100).start();
+        spool.enqueue(mail(server.getPort(), "to@example.com").cc(new MailAddress("deferred@example.com")));
+        waitForDelivered(spool, 1);
+        assertEquals(1, spool.getRetryCount());
+        assertEquals(1, server.getMessages().size());
+        assertTrue(server.getRecipients().contains("<deferred@example.com>"));
+        spool.close();
+    }
+
+    private static SmtpProperties properties(int port) {
+        SmtpProperties properties = new SmtpProperties();
+        properties.host("localhost").port(String.valueOf(port));
+        return properties;
+    }
+
+    private static MailSender mail(int port, String to) {
+        return new MailSender(properties(port)).useDefaultSession(false)
+                .from(new MailAddress("from@example.com")).to(new MailAddress(to)).subject("subject").text("body");
+    }
+
+    private static int getUnusedPort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static void waitForRetries(OutboundSpool spool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (spool.getRetryCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, spool.getRetryCount());
+    }
+
+    private static void waitForDelivered(OutboundSpool spool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (spool.getDeliveredCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, spool.getDeliveredCount());
+    }
+
+}
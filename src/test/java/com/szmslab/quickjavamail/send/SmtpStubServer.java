@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * テスト用の最小限のSMTPサーバです。
+ * <p>
+ * 全ての宛先を受け付け、受信したメッセージをメモリ上に保持します。
+ * 指定したアドレスを含むRCPT TOには、1回だけ450で応答します。
+ * </p>
+ *
+ * @author szmslab
+ */
+class SmtpStubServer implements Runnable {
+
+    /**
+     * 待ち受けるソケット。
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * 受信したメッセージ。
+     */
+    private final List<String> messageList = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * 受け付けた宛先。
+     */
+    private final List<String> recipientList = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * 1回だけ450で応答するアドレス。
+     */
+    private final List<String> deferOnceList = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * コンストラクタです（空いているポートで待ち受けを開始します）。
+     *
+     * @throws IOException
+     */
+    SmtpStubServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(this, "SmtpStubServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 待ち受けているポート番号を取得します。
+     *
+     * @return ポート番号
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 受信したメッセージを取得します。
+     *
+     * @return 受信したメッセージ
+     */
+    List<String> getMessages() {
+        synchronized (messageList) {
+            return new ArrayList<String>(messageList);
+        }
+    }
+
+    /**
+     * 受け付けた宛先を取得します。
+     *
+     * @return 受け付けた宛先
+     */
+    List<String> getRecipients() {
+        synchronized (recipientList) {
+            return new ArrayList<String>(recipientList);
+        }
+    }
+
+    /**
+     * 1回だけ450で応答するアドレスを追加します。
+     *
+     * @param address
+     *            アドレス
+     */
+    void deferOnce(String address) {
+        deferOnceList.add(address);
+    }
+
+    /**
+     * 待ち受けを終了します。
+     */
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    /* (非 Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            }, "SmtpStubServer-Session");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 1接続分のSMTPのやり取りを処理します。
+     *
+     * @param socket
+     *            ソケット
+     */
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1");
+            reply(writer, "220 stub");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                    reply(writer, "250-stub\r\n250 8BITMIME");
+                } else if (command.startsWith("RCPT")) {
+                    String address = line.substring(line.indexOf(':') + 1).trim();
+                    if (removeDeferred(address)) {
+                        reply(writer, "450 try again later");
+                    } else {
+                        recipientList.add(address);
+                        reply(writer, "250 ok");
+                    }
+                } else if (command.startsWith("DATA")) {
+                    reply(writer, "354 go ahead");
+                    StringBuilder sb = new StringBuilder();
+                    while ((line = reader.readLine()) != null && !line.equals(".")) {
+                        sb.append(line).append("\n");
+                    }
+                    messageList.add(sb.toString());
+                    reply(writer, "250 queued");
+                } else if (command.startsWith("QUIT")) {
+                    reply(writer, "221 bye");
+                    break;
+                } else {
+                    reply(writer, "250 ok");
+                }
+            }
+        } catch (IOException e) {
+            // クライアントが切断した。
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * 1回だけ450で応答するアドレスに含まれる場合は、取り除きます。
+     *
+     * @param address
+     *            RCPT TOのアドレス
+     * @return 450で応答するかどうか
+     */
+    private boolean removeDeferred(String address) {
+        synchronized (deferOnceList) {
+            for (int i = 0; i < deferOnceList.size(); i++) {
+                if (address.contains(deferOnceList.get(i))) {
+                    deferOnceList.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 応答を送信します。
+     *
+     * @param writer
+     *            出力先
+     * @param response
+     *            応答
+     * @throws IOException
+     */
+    private static void reply(Writer writer, String response) throws IOException {
+        writer.write(response + "\r\n");
+        writer.flush();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.szmslab.quickjavamail.utils.MailAddress;
+
+/**
+ * SuppressionListのテストです。
+ *
+ * @author szmslab
+ */
+public class SuppressionListTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * 大文字・小文字、前後の空白を区別せずに判定すること。
+     */
+    @Test
+    public void containsIgnoresCaseAndWhitespace() {
+        SuppressionList list = new SuppressionList().load(Arrays.asList("user@example.com", " Other@Example.com "));
+        assertEquals(2, list.size());
+        assertTrue(list.contains("USER@example.com"));
+        assertTrue(list.contains(" other@example.COM"));
+        assertTrue(list.contains(new MailAddress("user@example.com", "User")));
+        assertFalse(list.contains("user@example.org"));
+        assertFalse(list.contains((String) null));
+        assertFalse(list.contains((MailAddress) null));
+    }
+
+    /**
+     * 空のアドレスは一覧に含めないこと。
+     */
+    @Test
+    public void skipBlankAddresses() {
+        SuppressionList list = new SuppressionList().load(Arrays.asList("user@example.com", "", "  ", null));
+        assertEquals(1, list.size());
+        assertFalse(list.contains(""));
+    }
+
+    /**
+     * ブルームフィルタの有無にかかわらず、同じ判定結果になること。
+     */
+    @Test
+    public void bloomFilterDoesNotChangeResults() {
+        String[] addresses = new String[1000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "user" + i + "@example.com";
+        }
+        SuppressionList plain = new SuppressionList().bloomFilter(0).load(Arrays.asList(addresses));
+        SuppressionList filtered = new SuppressionList().bloomFilter(10).load(Arrays.asList(addresses));
+        for (int i = 0; i < 2000; i++) {
+            String address = "user" + i + "@example.com";
+            assertEquals(i < addresses.length, plain.contains(address));
+            assertEquals(i < addresses.length, filtered.contains(address));
+        }
+    }
+
+    /**
+     * ファイルの空行とコメント行を無視し、更新された場合のみ再読み込みすること。
+     */
+    @Test
+    public void loadAndReloadFile() throws Exception {
+        File file = temporaryFolder.newFile("suppression.txt");
+        write(file, "# comment\n\nuser@example.com\n  second@example.com  \n");
+        SuppressionList list = new SuppressionList().load(file);
+        assertEquals(2, list.size());
+        assertTrue(list.contains("second@example.com"));
+        assertFalse(list.contains("# comment"));
+        assertFalse(list.reloadIfModified());
+
+        write(file, "new@example.com\n");
+        file.setLastModified(file.lastModified() + 2000);
+        assertTrue(list.reloadIfModified());
+        assertEquals(1, list.size());
+        assertTrue(list.contains("NEW@example.com"));
+        assertFalse(list.contains("user@example.com"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+}
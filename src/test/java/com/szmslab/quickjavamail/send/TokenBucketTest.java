@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2014 szmslab
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package com.szmslab.quickjavamail.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * TokenBucketのテストです。
+ *
+ * @author szmslab
+ */
+public class TokenBucketTest {
+
+    /**
+     * バースト数までは待機せずに予約でき、それ以降は補充の間隔ごとに待機時間が延びること。
+     */
+    @Test
+    public void reserveWithinBurstThenWait() {
+        // 1秒に1つ補充する。
+        TokenBucket bucket = new TokenBucket(60, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.reserve());
+        }
+        long firstWait = bucket.reserve();
+        long secondWait = bucket.reserve();
+        assertTrue(firstWait > TimeUnit.MILLISECONDS.toNanos(900) && firstWait <= TimeUnit.SECONDS.toNanos(1));
+        assertTrue(secondWait > TimeUnit.MILLISECONDS.toNanos(1900) && secondWait <= TimeUnit.SECONDS.toNanos(2));
+    }
+
+    /**
+     * 時間の経過に応じてトークンが補充されること。
+     */
+    @Test
+    public void refillOverTime() throws Exception {
+        // 1ミリ秒に1つ補充する。
+        TokenBucket bucket = new TokenBucket(60000, 1);
+        assertEquals(0, bucket.reserve());
+        assertTrue(bucket.reserve() > 0);
+        Thread.sleep(20);
+        assertEquals(0, bucket.reserve());
+    }
+
+    /**
+     * バースト数が1未満の場合は1として扱うこと。
+     */
+    @Test
+    public void burstIsAtLeastOne() {
+        TokenBucket bucket = new TokenBucket(60, 0);
+        assertEquals(0, bucket.reserve());
+        assertTrue(bucket.reserve() > 0);
+    }
+
+}